@@ -0,0 +1,439 @@
+package Benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import Logging.MethodRegistry;
+import ParaTracer.TraceControl;
+
+/**
+ * Measures what the probes cost per call: representative JDK calls on
+ * collections, I/O and {@code URI} are timed without the agent, and
+ * with the agent in each of its modes:
+ *
+ * <p>{@code java -cp <classes> Benchmarks.ProbeBenchmark -agent ParaTracerAgent.jar [-modes none,trace,...] [-bench HashMap,...] [-threads 1,2,4] [-warmup 2] [-iterations 3] [-time <ms>]}</p>
+ *
+ * <p>Every mode runs in a JVM of its own, like a JMH fork, so the JIT
+ * profile of one mode does not leak into the next. For every benchmark
+ * and thread count there are warm-up iterations, then measured ones; each
+ * iteration starts the threads together and stops them after the
+ * iteration time. The results are the time per call of each thread
+ * (with its standard deviation over the iterations), the bytes each call
+ * allocates in the calling thread, the total throughput, and the time
+ * per call relative to the run without the agent:</p>
+ *
+ * <pre>
+ * Benchmark     Threads  Mode        ns/op      +/-     B/op    Mops/s   vs none
+ * HashMap             1  none         10.4      0.1      0.0     96.1     1.00x
+ * HashMap             1  trace        84.0      2.3      0.0     11.9     8.08x
+ * </pre>
+ *
+ * <p>The traced classes are given to the agent as a monitor
+ * specification listing only the classes of the benchmarks, and the
+ * trace goes to a temporary directory that keeps two segments at most.
+ * The JDK classes of the benchmarks are loaded before the agent starts,
+ * so the benchmark JVM has them retransformed through the
+ * {@link TraceControl} MBean first; a benchmark whose class has no
+ * probes then is reported and not measured, rather than measured
+ * without them.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class ProbeBenchmark {
+
+	/** The agent modes: a name, and the agent options, or null for no agent. */
+	private static final String[][] MODES = {
+		{ "none",     null                     },
+		{ "trace",    ""                       },
+		{ "paused",   "Tracing=paused"         },
+		{ "sample",   "Sample=method:64"       },
+		{ "drop",     "Backpressure=drop"      },
+		{ "throttle", "Throttle=100000"        },
+		{ "compress", "Compress=on"            },
+		{ "profile",  "Mode=profile"           },
+		{ "count",    "Mode=count"             },
+	};
+
+	/** One call, or a few, of a benchmark, on the state of one thread. */
+	private static abstract class Workload {
+		/** Runs call number {@code i}; the result is consumed. */
+		abstract long call( int i ) throws Exception;
+	}
+
+	/** Creates the state of a benchmark for one thread. */
+	private static abstract class Benchmark {
+		final String name;
+		/** The class the benchmark calls, to be traced. */
+		final String tracedClass;
+
+		Benchmark( String name, String tracedClass ) {
+			this.name        = name;
+			this.tracedClass = tracedClass;
+		}
+
+		abstract Workload create() throws Exception;
+	}
+
+	private static final Integer[] KEYS = new Integer[ 1024 ];
+	static {
+		for(int i=0; i < KEYS.length; ++i) {
+			KEYS[i] = i;
+		}
+	}
+
+	private static final Benchmark[] BENCHMARKS = {
+		new Benchmark( "HashMap", "java.util.HashMap" ) {
+			@Override
+			Workload create() {
+				final HashMap< Integer, Integer > map = new HashMap< Integer, Integer >();
+				return new Workload() {
+					@Override
+					long call( int i ) {
+						Integer key = KEYS[ i & 1023 ];
+						map.put( key, key );
+						return map.get( KEYS[ ( i * 31 ) & 1023 ] ) != null ? 1 : 0;
+					}
+				};
+			}
+		},
+		new Benchmark( "ArrayList", "java.util.ArrayList" ) {
+			@Override
+			Workload create() {
+				final ArrayList< Integer > list = new ArrayList< Integer >( Arrays.asList( KEYS ) );
+				return new Workload() {
+					@Override
+					long call( int i ) {
+						list.set( i & 1023, KEYS[ i & 1023 ] );
+						return list.get( ( i * 31 ) & 1023 );
+					}
+				};
+			}
+		},
+		new Benchmark( "StringReader", "java.io.StringReader" ) {
+			@Override
+			Workload create() {
+				final StringReader reader = new StringReader( "The quick brown fox jumps over the lazy dog" );
+				return new Workload() {
+					@Override
+					long call( int i ) throws IOException {
+						int c = reader.read();
+						if ( c < 0 ) {
+							reader.reset();
+						}
+						return c;
+					}
+				};
+			}
+		},
+		new Benchmark( "URI", "java.net.URI" ) {
+			@Override
+			Workload create() {
+				final URI a = URI.create( "http://example.com/a/b/c?q=1#f" );
+				final URI b = URI.create( "http://example.com/a/b/d?q=2#g" );
+				return new Workload() {
+					@Override
+					long call( int i ) {
+						return a.compareTo( b ) + a.getPath().length() + ( a.equals( b ) ? 1 : 0 );
+					}
+				};
+			}
+		},
+	};
+
+	/** Consumes the results, so that the calls are not optimized away. */
+	private static volatile long sink;
+
+	/** Ends the current iteration. */
+	private static volatile boolean stopped;
+
+	public static void main( String[] args ) throws Exception {
+		String agent      = "ParaTracerAgent.jar";
+		String modes      = null;
+		String benchmarks = null;
+		String threads    = "1,2,4";
+		int    warmup     = 2;
+		int    iterations = 3;
+		long   time       = 1000;
+		boolean child     = false;
+		for(int i=0; i < args.length; ++i) {
+			if ( "-agent".equals( args[i] ) && i + 1 < args.length ) {
+				agent = args[++i];
+			} else if ( "-modes".equals( args[i] ) && i + 1 < args.length ) {
+				modes = args[++i];
+			} else if ( "-bench".equals( args[i] ) && i + 1 < args.length ) {
+				benchmarks = args[++i];
+			} else if ( "-threads".equals( args[i] ) && i + 1 < args.length ) {
+				threads = args[++i];
+			} else if ( "-warmup".equals( args[i] ) && i + 1 < args.length ) {
+				warmup = Integer.parseInt( args[++i] );
+			} else if ( "-iterations".equals( args[i] ) && i + 1 < args.length ) {
+				iterations = Integer.parseInt( args[++i] );
+			} else if ( "-time".equals( args[i] ) && i + 1 < args.length ) {
+				time = Long.parseLong( args[++i] );
+			} else if ( "-child".equals( args[i] ) ) {
+				child = true;
+			} else {
+				System.err.println( "Usage: ProbeBenchmark [-agent <ParaTracerAgent.jar>] [-modes <mode,...>]"
+						+ " [-bench <benchmark,...>] [-threads <n,...>] [-warmup <n>] [-iterations <n>] [-time <ms>]" );
+				System.exit( 1 );
+			}
+		}
+		List< Benchmark > selected = new ArrayList< Benchmark >();
+		for( Benchmark b : BENCHMARKS ) {
+			if ( benchmarks == null || Arrays.asList( benchmarks.split( "," ) ).contains( b.name ) ) {
+				selected.add( b );
+			}
+		}
+		int[] threadCounts = parseInts( threads );
+		if ( child ) {
+			boolean agentLoaded = retransform();
+			for( Benchmark b : selected ) {
+				b.create(); // Loads the traced class, if it is not yet.
+				if ( agentLoaded && probedMethods( b.tracedClass ) == 0 ) {
+					System.out.println( "*** " + b.name + ": " + b.tracedClass + " has no probes, not measured" );
+					continue;
+				}
+				for( int n : threadCounts ) {
+					measure( b, n, warmup, iterations, time );
+				}
+			}
+			return;
+		}
+
+		// Fork one JVM per mode, and collect the results.
+		List< String >                      modeNames = new ArrayList< String >();
+		Map< String, Map< String, double[] > > results = new LinkedHashMap< String, Map< String, double[] > >();
+		File spec = File.createTempFile( "paratracer-bench", ".spec" );
+		spec.deleteOnExit();
+		StringBuilder sb = new StringBuilder();
+		for( Benchmark b : BENCHMARKS ) {
+			sb.append( "class " ).append( b.tracedClass ).append( '\n' );
+		}
+		Files.write( spec.toPath(), sb.toString().getBytes( "UTF-8" ) );
+		for( String[] mode : MODES ) {
+			if ( modes != null && ! Arrays.asList( modes.split( "," ) ).contains( mode[0] ) ) continue;
+			modeNames.add( mode[0] );
+			System.err.println( "# Mode " + mode[0] + ( mode[1] != null ? ": " + mode[1] : "" ) );
+			Map< String, double[] > r = fork( agent, mode[1], spec, args );
+			for( Map.Entry< String, double[] > e : r.entrySet() ) {
+				Map< String, double[] > byMode = results.get( e.getKey() );
+				if ( byMode == null ) {
+					byMode = new LinkedHashMap< String, double[] >();
+					results.put( e.getKey(), byMode );
+				}
+				byMode.put( mode[0], e.getValue() );
+			}
+		}
+		report( results, modeNames );
+	}
+
+	/** Runs the measurements in a new JVM, with the agent in the given mode. */
+	private static Map< String, double[] > fork( String agent, String options, File spec, String[] args )
+			throws IOException, InterruptedException {
+		List< String > command = new ArrayList< String >();
+		command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+		File traceDir = null;
+		if ( options != null ) {
+			traceDir = File.createTempFile( "paratracer-bench", "" );
+			traceDir.delete();
+			traceDir.mkdirs();
+			String opts = "Monitor=" + spec.getPath() + ",OutputDir=" + traceDir.getPath() + ",Retain=2,Control=jmx"
+					+ ( options.length() > 0 ? "," + options : "" );
+			command.add( "-javaagent:" + new File( agent ).getAbsolutePath() + "=" + opts );
+		}
+		command.add( "-cp" );
+		command.add( System.getProperty( "java.class.path" ) );
+		command.add( ProbeBenchmark.class.getName() );
+		command.addAll( Arrays.asList( args ) );
+		command.add( "-child" );
+		Process p = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+		Map< String, double[] > results = new LinkedHashMap< String, double[] >();
+		BufferedReader in = new BufferedReader( new InputStreamReader( p.getInputStream(), "UTF-8" ) );
+		String line;
+		while ( ( line = in.readLine() ) != null ) {
+			if ( line.startsWith( "RESULT " ) ) {
+				String[] f = line.split( " " );
+				double[] v = new double[ f.length - 3 ];
+				for(int i=0; i < v.length; ++i) {
+					v[i] = Double.parseDouble( f[ i + 3 ] );
+				}
+				results.put( f[1] + " " + f[2], v );
+			} else {
+				System.err.println( "  " + line );
+			}
+		}
+		int status = p.waitFor();
+		if ( status != 0 ) {
+			System.err.println( "*** The benchmark JVM exited with status " + status );
+		}
+		if ( traceDir != null ) {
+			File[] files = traceDir.listFiles();
+			if ( files != null ) {
+				for( File f : files ) {
+					f.delete();
+				}
+			}
+			traceDir.delete();
+		}
+		return results;
+	}
+
+	/**
+	 * Child JVM: retransforms the traced classes, which were loaded before
+	 * the agent, through the MBean of the agent. Returns {@code false} if
+	 * there is no agent.
+	 */
+	private static boolean retransform() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName  name   = new ObjectName( TraceControl.OBJECT_NAME );
+		if ( ! server.isRegistered( name ) ) return false;
+		Object classes = server.invoke( name, "startTracing", null, null );
+		System.out.println( "Retransformed " + classes + " classes" );
+		return true;
+	}
+
+	/** Child JVM: the number of methods of {@code className} with probes. */
+	private static int probedMethods( String className ) {
+		int n = 0;
+		for(int seq=0; seq < MethodRegistry.assigned(); ++seq) {
+			int id = MethodRegistry.assigned( seq );
+			if ( className.equals( MethodRegistry.className( id ) )
+					&& ! MethodRegistry.CLASS_ENTRY.equals( MethodRegistry.name( id ) ) ) {
+				++n;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Child JVM: measures benchmark {@code b} on {@code n} threads, and
+	 * prints {@code RESULT <benchmark> <threads> <ns/op> <+/-> <B/op> <Mops/s>}.
+	 */
+	private static void measure( Benchmark b, int n, int warmup, int iterations, long time ) throws Exception {
+		double[] nsPerOp = new double[ iterations ];
+		double   bytes   = 0;
+		double   mops    = 0;
+		for(int it=0; it < warmup + iterations; ++it) {
+			double[] r = iteration( b, n, time );
+			if ( it < warmup ) continue;
+			nsPerOp[ it - warmup ] = r[0];
+			bytes += r[1];
+			mops  += r[2];
+		}
+		double mean = 0;
+		for( double v : nsPerOp ) {
+			mean += v;
+		}
+		mean /= iterations;
+		double var = 0;
+		for( double v : nsPerOp ) {
+			var += ( v - mean ) * ( v - mean );
+		}
+		double sd = ( iterations > 1 )? Math.sqrt( var / ( iterations - 1 ) ) : 0;
+		System.out.println( "RESULT " + b.name + " " + n + " " + mean + " " + sd + " "
+				+ bytes / iterations + " " + mops / iterations );
+	}
+
+	/** Runs one iteration on {@code n} threads; returns ns/op, B/op and Mops/s. */
+	private static double[] iteration( Benchmark b, final int n, long time ) throws Exception {
+		final ThreadMXBean   mx      = ManagementFactory.getThreadMXBean();
+		final boolean        alloc   = mx instanceof com.sun.management.ThreadMXBean;
+		final CyclicBarrier  barrier = new CyclicBarrier( n + 1 );
+		final long[]         ops     = new long[ n ];
+		final long[]         nanos   = new long[ n ];
+		final long[]         bytes   = new long[ n ];
+		final Workload[]     loads   = new Workload[ n ];
+		final Exception[]    failure = new Exception[ 1 ];
+		for(int t=0; t < n; ++t) {
+			loads[t] = b.create();
+		}
+		stopped = false;
+		Thread[] threads = new Thread[ n ];
+		for(int t=0; t < n; ++t) {
+			final int id = t;
+			threads[t] = new Thread( "bench-" + t ) {
+				@Override
+				public void run() {
+					try {
+						Workload w   = loads[id];
+						long     tid = Thread.currentThread().getId();
+						long     s   = 0;
+						long     i   = 0;
+						barrier.await();
+						long a0 = alloc ? ( (com.sun.management.ThreadMXBean) mx ).getThreadAllocatedBytes( tid ) : 0;
+						long t0 = System.nanoTime();
+						while ( ! stopped ) {
+							for(int k=0; k < 256; ++k) {
+								s += w.call( (int) i++ );
+							}
+						}
+						nanos[id] = System.nanoTime() - t0;
+						bytes[id] = alloc ? ( (com.sun.management.ThreadMXBean) mx ).getThreadAllocatedBytes( tid ) - a0 : 0;
+						ops  [id] = i;
+						sink += s;
+					} catch ( Exception ex ) {
+						failure[0] = ex;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		barrier.await();
+		Thread.sleep( time );
+		stopped = true;
+		for( Thread t : threads ) {
+			t.join();
+		}
+		if ( failure[0] != null ) throw failure[0];
+		double nsPerOp = 0, bytesPerOp = 0, opsPerSec = 0;
+		for(int t=0; t < n; ++t) {
+			nsPerOp    += (double) nanos[t] / ops[t];
+			bytesPerOp += (double) bytes[t] / ops[t];
+			opsPerSec  += ops[t] * 1e9 / nanos[t];
+		}
+		return new double[] { nsPerOp / n, bytesPerOp / n, opsPerSec / 1e6 };
+	}
+
+	private static void report( Map< String, Map< String, double[] > > results, List< String > modes ) {
+		System.out.println( String.format( "%-14s%8s  %-10s%9s%9s%9s%9s%10s",
+				"Benchmark", "Threads", "Mode", "ns/op", "+/-", "B/op", "Mops/s", "vs none" ) );
+		for( Map.Entry< String, Map< String, double[] > > e : results.entrySet() ) {
+			String[] key  = e.getKey().split( " " );
+			double[] base = e.getValue().get( "none" );
+			for( String mode : modes ) {
+				double[] v = e.getValue().get( mode );
+				if ( v == null ) continue;
+				String rel = ( base != null )? String.format( "%9.2fx", v[0] / base[0] ) : "";
+				System.out.println( String.format( "%-14s%8s  %-10s%9.1f%9.1f%9.1f%9.1f%s",
+						key[0], key[1], mode, v[0], v[1], v[2], v[3], rel ) );
+			}
+		}
+	}
+
+	private static int[] parseInts( String list ) {
+		String[] parts = list.split( "," );
+		int[]    ints  = new int[ parts.length ];
+		for(int i=0; i < parts.length; ++i) {
+			ints[i] = Integer.parseInt( parts[i].trim() );
+		}
+		return ints;
+	}
+}
@@ -0,0 +1,353 @@
+package Logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the trace into a series of segment files of compressed blocks,
+ * {@code <baseName>-000001.ptrz}, {@code <baseName>-000002.ptrz}, ...
+ *
+ * <p>The drainer fills a block with records; once the block holds at
+ * least the block size, and at the end of a group of records (see
+ * {@link TraceWriter#boundary}), it is handed over to a helper thread,
+ * which compresses it with a {@link Deflater} and appends it to the
+ * segment. A block therefore always starts with a record, and can be
+ * decoded on its own. The drainer only waits when all the blocks in
+ * flight are still being compressed.</p>
+ *
+ * <p>A segment holds as many raw bytes as a plain segment would, and
+ * uncompresses into one. It is laid out as:</p>
+ * <pre>
+ * PTRZ version
+ * block*:  compressed length (int), raw length (int), deflated bytes
+ * 0 (int)
+ * footer:  block count (int)
+ *          per block: file offset (long), compressed length (int),
+ *                     raw offset (long), raw length (int),
+ *                     first batch (long), time stamp (long),
+ *                     lowest and highest thread (long, long)
+ *          method table length (int), METHOD records
+ * footer offset (long), PTZI (int)
+ * </pre>
+ * <p>The first batch of a block is the number of batches written before
+ * it since the trace started, its time stamp is the time (in
+ * milliseconds) its first record was drained, and its thread range spans
+ * the threads of its batches (-1, -1 if it has none). With these, and
+ * the method table of the segment, a reader finds and decodes a block
+ * without uncompressing the ones before it. A segment whose footer is
+ * missing (e.g. after a crash) can still be read block by block.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+final class BlockWriter extends TraceWriter {
+
+	/** Blocks being filled or compressed at once. */
+	private static final int BLOCKS_IN_FLIGHT   = 4;
+
+	/** A block of records, and what the footer tells of it. */
+	private static final class Block {
+		byte[] bytes;
+		int    length;
+		int    segment;
+		long   rawOffset;
+		long   firstBatch;
+		long   timestamp;
+		long   minThread;
+		long   maxThread;
+
+		Block( int size ) {
+			bytes = new byte[ size ];
+		}
+	}
+
+	/** A segment file, as the helper thread writes it. */
+	private static final class Segment {
+		final int              index;
+		final File             file;
+		final FileOutputStream out;
+		final FileChannel      channel;
+		final ByteArrayOutputStream footer = new ByteArrayOutputStream();
+		final DataOutputStream entries     = new DataOutputStream( footer );
+		int                    blocks;
+
+		Segment( int index, File file ) throws IOException {
+			this.index   = index;
+			this.file    = file;
+			this.out     = new FileOutputStream( file );
+			this.channel = out.getChannel();
+		}
+	}
+
+	private final File            dir;
+	private final String          baseName;
+	private final long            segmentSize;
+	private final int             blockSize;
+	private final int             retain;
+	private final int             fsync;
+	private final ExecutorService helper;
+	private final ArrayBlockingQueue< Block > free =
+			new ArrayBlockingQueue< Block >( BLOCKS_IN_FLIGHT );
+
+	// Drainer state.
+	private int                   index = 1;
+	private long                  rawSize;
+	private long                  batches;
+	private Block                 current;
+
+	// Helper state.
+	private Segment               segment;
+	private final Deflater        deflater = new Deflater( Deflater.BEST_SPEED );
+	private byte[]                deflated = new byte[ 64 * 1024 ];
+	private final ArrayList<File> finished = new ArrayList<File>();
+	/** The first error of the helper, reported to the drainer. */
+	private volatile IOException  failure;
+
+	BlockWriter( File dir, String baseName, long segmentSize, int retain, int fsync, int blockSize ) {
+		this.dir         = dir;
+		this.baseName    = baseName;
+		this.segmentSize = segmentSize;
+		this.blockSize   = blockSize;
+		this.retain      = retain;
+		this.fsync       = fsync;
+		this.helper      = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = EventRecorder.newInternalThread( "ParaTracer-BlockWriter", r );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+		for(int i=0; i < BLOCKS_IN_FLIGHT; ++i) {
+			free.add( new Block( blockSize + EventRecorder.CHUNK_SIZE ) );
+		}
+		dir.mkdirs();
+	}
+
+	@Override
+	long remaining() {
+		return segmentSize - rawSize;
+	}
+
+	@Override
+	void write( byte[] b, int off, int len ) throws IOException {
+		if ( failure != null ) throw failure;
+		Block blk = current;
+		if ( blk == null ) {
+			try {
+				blk = free.take();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IOException( "Interrupted while waiting for a trace block" );
+			}
+			blk.length     = 0;
+			blk.segment    = index;
+			blk.rawOffset  = rawSize;
+			blk.firstBatch = batches;
+			blk.timestamp  = System.currentTimeMillis();
+			blk.minThread  = -1;
+			blk.maxThread  = -1;
+			current        = blk;
+		}
+		if ( blk.length + len > blk.bytes.length ) {
+			blk.bytes = Arrays.copyOf( blk.bytes, Math.max( blk.length + len, 2 * blk.bytes.length ) );
+		}
+		System.arraycopy( b, off, blk.bytes, blk.length, len );
+		blk.length += len;
+		rawSize    += len;
+	}
+
+	@Override
+	void boundary( long threadId ) throws IOException {
+		Block blk = current;
+		if ( blk == null ) return;
+		if ( threadId >= 0 ) {
+			++batches;
+			if ( blk.minThread < 0 || threadId < blk.minThread ) blk.minThread = threadId;
+			if ( threadId > blk.maxThread ) blk.maxThread = threadId;
+		}
+		if ( blk.length >= blockSize ) {
+			flushBlock();
+		}
+	}
+
+	@Override
+	void roll() throws IOException {
+		flushBlock();
+		final int done = index;
+		helper.submit( new Runnable() {
+			@Override
+			public void run() {
+				finish( done, false );
+			}
+		});
+		++index;
+		rawSize = 0;
+	}
+
+	/** Hands the current block, even if not full, to the helper thread. */
+	private void flushBlock() throws IOException {
+		final Block blk = current;
+		if ( blk == null ) return;
+		current = null;
+		helper.submit( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if ( failure == null ) {
+						append( blk );
+					}
+				} catch ( IOException e ) {
+					failure = e;
+				} finally {
+					free.offer( blk );
+				}
+			}
+		});
+	}
+
+	@Override
+	void sync() throws IOException {
+		if ( fsync != SegmentWriter.FSYNC_BATCH ) return;
+		flushBlock();
+		helper.submit( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if ( segment != null ) {
+						segment.channel.force( false );
+					}
+				} catch ( IOException e ) {
+					failure = e;
+				}
+			}
+		});
+	}
+
+	@Override
+	void close() throws IOException {
+		flushBlock();
+		final int last = index;
+		helper.submit( new Runnable() {
+			@Override
+			public void run() {
+				finish( last, true );
+			}
+		});
+		helper.shutdown();
+		try {
+			helper.awaitTermination( 1, TimeUnit.MINUTES );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		deflater.end();
+		if ( failure != null ) throw failure;
+	}
+
+	/** Helper thread: compresses {@code blk} and appends it to its segment. */
+	private void append( Block blk ) throws IOException {
+		if ( segment == null || segment.index != blk.segment ) {
+			segment = new Segment( blk.segment, segmentFile( blk.segment ) );
+			ByteBuffer head = ByteBuffer.allocate( TraceFormat.BLOCKS_MAGIC.length + 1 );
+			head.put( TraceFormat.BLOCKS_MAGIC ).put( (byte) TraceFormat.BLOCKS_VERSION ).flip();
+			writeFully( segment.channel, head );
+		}
+		deflater.reset();
+		deflater.setInput( blk.bytes, 0, blk.length );
+		deflater.finish();
+		int n = 0;
+		while ( ! deflater.finished() ) {
+			if ( n == deflated.length ) {
+				deflated = Arrays.copyOf( deflated, 2 * n );
+			}
+			n += deflater.deflate( deflated, n, deflated.length - n );
+		}
+		long offset = segment.channel.position();
+		ByteBuffer head = ByteBuffer.allocate( 8 );
+		head.putInt( n ).putInt( blk.length ).flip();
+		writeFully( segment.channel, head );
+		writeFully( segment.channel, ByteBuffer.wrap( deflated, 0, n ) );
+
+		DataOutputStream e = segment.entries;
+		e.writeLong( offset );
+		e.writeInt ( n );
+		e.writeLong( blk.rawOffset );
+		e.writeInt ( blk.length );
+		e.writeLong( blk.firstBatch );
+		e.writeLong( blk.timestamp );
+		e.writeLong( blk.minThread );
+		e.writeLong( blk.maxThread );
+		++segment.blocks;
+	}
+
+	/**
+	 * Helper thread: writes the footer of segment {@code i}, closes it and
+	 * deletes the segments beyond the retention count. Unless the trace is
+	 * {@code closing}, the next segment counts as one of them, as in
+	 * {@link SegmentWriter}.
+	 */
+	private void finish( int i, boolean closing ) {
+		Segment s = segment;
+		if ( s == null || s.index != i ) return; // Nothing was written to it.
+		segment = null;
+		try {
+			try {
+				if ( failure == null ) {
+					byte[] methods = EventRecorder.methodTable();
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream( s.footer.size() + methods.length + 32 );
+					DataOutputStream      out   = new DataOutputStream( bytes );
+					long footerOffset = s.channel.position() + 4;
+					out.writeInt( 0 );
+					out.writeInt( s.blocks );
+					s.entries.flush();
+					s.footer.writeTo( out );
+					out.writeInt( methods.length );
+					out.write( methods );
+					out.writeLong( footerOffset );
+					out.writeInt( TraceFormat.FOOTER_MAGIC );
+					out.flush();
+					writeFully( s.channel, ByteBuffer.wrap( bytes.toByteArray() ) );
+					if ( fsync != SegmentWriter.FSYNC_NONE ) {
+						s.channel.force( false );
+					}
+				}
+			} finally {
+				s.out.close();
+			}
+		} catch ( IOException e ) {
+			failure = e;
+		}
+		finished.add( s.file );
+		int keep = closing? retain : retain - 1;
+		while ( retain > 0 && finished.size() > keep ) {
+			finished.remove( 0 ).delete();
+		}
+	}
+
+	private static void writeFully( FileChannel channel, ByteBuffer buf ) throws IOException {
+		while ( buf.hasRemaining() ) {
+			channel.write( buf );
+		}
+	}
+
+	private File segmentFile( int i ) {
+		String n = Integer.toString( i );
+		while ( n.length() < 6 ) {
+			n = "0" + n;
+		}
+		return new File( dir, baseName + "-" + n + ".ptrz" );
+	}
+}
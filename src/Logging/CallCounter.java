@@ -0,0 +1,279 @@
+package Logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The recorder of the count mode ({@link Logger#MODE_COUNT}): the probes
+ * only count the calls of every monitored method, and a snapshot of the
+ * counts replaces the previous one every few seconds, and at shutdown.
+ * It is a census of the library methods an application actually calls,
+ * at the cost of one increment per call.
+ *
+ * <p>Every thread counts into an array of its own, indexed by method
+ * ID, so counting takes no lock and no atomic instruction. A snapshot
+ * sums the arrays of all threads, without synchronization, so it may
+ * miss the last few calls of the threads that are running. The counts of
+ * the threads that have died are summed once and for all, and their
+ * arrays dropped, at the next snapshot or every
+ * {@value #SWEEP_INTERVAL} new threads.</p>
+ *
+ * <p>A snapshot lists, for every method called, the total number of
+ * calls, the calls since the previous snapshot and the number of threads
+ * that called it:</p>
+ *
+ * <pre>
+ * # ParaTracer call counts; snapshot 12 at Tue Mar 01 10:00:00 CET 2016, 5000 ms since the previous one
+ *        calls        delta  threads  method
+ *     18234022       912007       14  java.util.HashMap.get(java.lang.Object)
+ * </pre>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class CallCounter {
+
+	/** New threads between two sweeps of the dead ones. */
+	static  final int SWEEP_INTERVAL = 64;
+
+	/** The counts of one thread. */
+	private static final class Counts {
+		final Thread    thread;
+		/** By method ID. */
+		volatile long[] calls = new long[ 256 ];
+		/** Set while the thread writes a snapshot, whose calls are not counted. */
+		boolean         busy;
+		Counts          next;
+
+		Counts( Thread thread ) {
+			this.thread = thread;
+		}
+	}
+
+	/** The counts of several threads, by method ID. */
+	private static final class Totals {
+		long[] calls   = new long[ 0 ];
+		/** The number of threads that called the method. */
+		int[]  threads = new int [ 0 ];
+
+		void add( long[] counts ) {
+			if ( counts.length > calls.length ) {
+				calls   = Arrays.copyOf( calls,   counts.length );
+				threads = Arrays.copyOf( threads, counts.length );
+			}
+			for(int id=0; id < counts.length; ++id) {
+				if ( counts[id] == 0 ) continue;
+				calls  [id] += counts[id];
+				threads[id] += 1;
+			}
+		}
+
+		Totals copy() {
+			Totals t  = new Totals();
+			t.calls   = calls.clone();
+			t.threads = threads.clone();
+			return t;
+		}
+	}
+
+	/**
+	 * The counts of the threads, as a list that threads push onto without
+	 * locking. Only {@link #sweep} unlinks counts from it, and only those
+	 * after the first one, so that it never races the pushes.
+	 */
+	private static final AtomicReference< Counts > all     = new AtomicReference< Counts >();
+	private static final AtomicInteger             created = new AtomicInteger();
+	/** Guards the links of the list past its head, and {@link #dead}. */
+	private static final Object                    LOCK    = new Object();
+	/** The counts of the threads swept so far. */
+	private static final Totals                    dead    = new Totals();
+
+	private static final ThreadLocal< Counts > current = new ThreadLocal< Counts >() {
+		@Override
+		protected Counts initialValue() {
+			Counts c = new Counts( Thread.currentThread() );
+			do {
+				c.next = all.get();
+			} while ( ! all.compareAndSet( c.next, c ) );
+			if ( created.incrementAndGet() % SWEEP_INTERVAL == 0 ) {
+				sweep();
+			}
+			return c;
+		}
+	};
+
+	private static volatile File snapshotFile;
+	// The previous snapshot, to tell the calls made since.
+	private static long[]        previous = new long[ 0 ];
+	private static long          previousTime;
+	private static int           snapshots;
+
+	private CallCounter() {}
+
+	/**
+	 * Starts the count mode: a snapshot is written to {@code file} every
+	 * {@code intervalMillis} (0 for none), and at shutdown.
+	 */
+	static synchronized void start( File file, final long intervalMillis ) {
+		if ( snapshotFile != null ) return;
+		snapshotFile = file;
+		previousTime = System.currentTimeMillis();
+		final Runnable snapshot = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot();
+				} catch ( IOException ex ) {
+					System.err.println( "*** Cannot write the ParaTracer call counts: " + ex.getMessage() );
+				}
+			}
+		};
+		if ( intervalMillis > 0 ) {
+			Thread t = EventRecorder.newInternalThread( "ParaTracer-Counts", new Runnable() {
+				@Override
+				public void run() {
+					while ( true ) {
+						try {
+							Thread.sleep( intervalMillis );
+						} catch ( InterruptedException ex ) {
+							return;
+						}
+						snapshot.run();
+					}
+				}
+			} );
+			t.setDaemon( true );
+			t.start();
+		}
+		Runtime.getRuntime().addShutdownHook( EventRecorder.newInternalThread( "ParaTracer-Shutdown", snapshot ) );
+	}
+
+	/** Counts a call of method {@code methodId}. */
+	public static void count( int methodId ) {
+		Counts c = current.get();
+		if ( c.busy ) return;
+		long[] calls = c.calls;
+		if ( methodId >= calls.length ) {
+			calls = Arrays.copyOf( calls, Math.max( methodId + 1, 2 * calls.length ) );
+			c.calls = calls;
+		}
+		++calls[ methodId ];
+	}
+
+	/**
+	 * Adds the counts of the dead threads to {@link #dead}, and unlinks
+	 * them. A thread that has died has made all its calls, and they are
+	 * all visible once {@code isAlive} says so.
+	 */
+	private static void sweep() {
+		synchronized( LOCK ) {
+			Counts prev = all.get();
+			if ( prev == null ) return;
+			for( Counts c = prev.next; c != null; c = c.next ) {
+				if ( c.thread.isAlive() ) {
+					prev = c;
+				} else {
+					dead.add( c.calls );
+					prev.next = c.next;
+				}
+			}
+		}
+	}
+
+	/** Sums the counts of all threads. */
+	private static Totals totals() {
+		synchronized( LOCK ) {
+			sweep();
+			Totals t = dead.copy();
+			for( Counts c = all.get(); c != null; c = c.next ) {
+				t.add( c.calls );
+			}
+			return t;
+		}
+	}
+
+	/** The calls of method {@code methodId} so far, by all threads. */
+	static long calls( int methodId ) {
+		long[] calls = totals().calls;
+		return ( methodId < calls.length )? calls[ methodId ] : 0;
+	}
+
+	/** The number of thread counts still kept, dead threads not swept yet included. */
+	static int countsKept() {
+		synchronized( LOCK ) {
+			int n = 0;
+			for( Counts c = all.get(); c != null; c = c.next ) {
+				++n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the counts so far to the file given to
+	 * {@link #start}, replacing the previous one, and returns that file.
+	 */
+	public static synchronized File writeSnapshot() throws IOException {
+		File file = snapshotFile;
+		if ( file == null ) {
+			throw new IOException( "The count mode is not on" );
+		}
+		Counts self = current.get();
+		self.busy = true;
+		try {
+			Totals       totals  = totals();
+			final long[] counts  = totals.calls;
+			int[]        threads = totals.threads;
+			Integer[] ids = new Integer[ counts.length ];
+			int n = 0;
+			for(int id=0; id < counts.length; ++id) {
+				if ( counts[id] > 0 ) {
+					ids[ n++ ] = id;
+				}
+			}
+			ids = Arrays.copyOf( ids, n );
+			Arrays.sort( ids, new Comparator< Integer >() {
+				@Override
+				public int compare( Integer a, Integer b ) {
+					return Long.compare( counts[b], counts[a] );
+				}
+			} );
+
+			long now = System.currentTimeMillis();
+			File tmp = new File( file.getPath() + ".tmp" );
+			PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" ) );
+			try {
+				out.println( "# ParaTracer call counts; snapshot " + ( ++snapshots ) + " at " + new Date( now )
+						+ ", " + ( now - previousTime ) + " ms since the previous one" );
+				out.println( String.format( "%12s %12s %8s  %s", "calls", "delta", "threads", "method" ) );
+				for( int id : ids ) {
+					long delta = counts[id] - ( ( id < previous.length )? previous[id] : 0 );
+					out.println( String.format( "%12d %12d %8d  %s", counts[id], delta, threads[id],
+							TraceFormat.longName( MethodRegistry.className( id ),
+									MethodRegistry.name( id ), MethodRegistry.descriptor( id ) ) ) );
+				}
+			} finally {
+				out.close();
+			}
+			if ( ! tmp.renameTo( file ) ) {
+				file.delete();
+				if ( ! tmp.renameTo( file ) ) {
+					throw new IOException( "Cannot rename " + tmp + " to " + file );
+				}
+			}
+			previous     = counts;
+			previousTime = now;
+			return file;
+		} finally {
+			self.busy = false;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package Logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records trace events without any global lock on the hot path.
+ *
+ * <p>Each application thread writes into its own {@link ThreadBuffer},
+ * obtained through a {@code ThreadLocal}. A single daemon drainer thread
+ * sweeps all the thread buffers, writes every published chunk to the
+ * trace file, and hands the chunk back to its owner. The only lock is
+ * taken when a thread records its first event (to register its buffer)
+ * and when the drainer forgets the buffer of a dead thread.</p>
+ *
+ * <p>The drainer frames every chunk as a {@link TraceFormat#BATCH} record,
+ * and writes the {@link TraceFormat#METHOD} and {@link TraceFormat#THREAD}
+ * records that the batch depends on just before it. Batches go out in
+ * the order they are drained, but every record carries the time it was
+ * recorded, so the readers put the events of all threads back in order.
+ * The trace is stored by a {@link SegmentWriter}, or compressed by a
+ * {@link BlockWriter}; every segment starts with its own preamble and
+ * method table, so each one can be decoded on its own (and old ones can
+ * be deleted).</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class EventRecorder {
+
+	/** Size of one chunk of a thread buffer, in bytes. */
+	public  static final int CHUNK_SIZE  = 32 * 1024;
+	/** Number of chunks in the ring of each thread buffer. */
+	public  static final int CHUNK_COUNT = 4;
+
+	/** When a thread buffer is full, its thread waits for the drainer. */
+	public  static final int BACKPRESSURE_BLOCK  = 0;
+	/** When a thread buffer is full, new events are dropped. */
+	public  static final int BACKPRESSURE_DROP   = 1;
+	/**
+	 * As the drainer falls behind, only 1 of every 2, 4, ... calls is
+	 * kept, with both its events; when a thread buffer is full anyway,
+	 * new events are dropped.
+	 */
+	public  static final int BACKPRESSURE_SAMPLE = 2;
+	/** Lowest fraction of calls the sample policy keeps (a power of 2). */
+	static  final int        MAX_SAMPLE_RATE     = 1024;
+
+	private static final long DRAIN_INTERVAL_NANOS = 10L * 1000 * 1000;
+
+	private static final Object         LOCK    = new Object();
+	private static volatile ThreadBuffer[] registry = new ThreadBuffer[0];
+
+	private static final ThreadLocal< ThreadBuffer > buffers =
+			new ThreadLocal< ThreadBuffer >() {
+		@Override
+		protected ThreadBuffer initialValue() {
+			return register( Thread.currentThread() );
+		}
+	};
+
+	private static TraceWriter     writer;
+	private static String          header;
+	private static volatile Thread drainer;
+	private static volatile boolean running;
+	private static int             backpressure = BACKPRESSURE_BLOCK;
+	/** {@code System.nanoTime()} when the recording started. */
+	private static long            epoch;
+
+	/** Drainer state: the number of METHOD records in the current segment. */
+	private static int             methodsWritten = 0;
+	private static final byte[]    scratch = new byte[ 4 * TraceFormat.MAX_VARINT ];
+
+	/** Drainer state: the records that go in front of the next batch. */
+	private static final class Prefix extends ByteArrayOutputStream {
+		byte[] bytes() { return buf; }
+	}
+	private static final Prefix    prefix = new Prefix();
+
+	private EventRecorder() {}
+
+	/**
+	 * Returns the buffer of the calling thread, creating it on the first
+	 * call.
+	 */
+	public static ThreadBuffer buffer() {
+		return buffers.get();
+	}
+
+	/**
+	 * Opens the first trace segment, writes the format preamble and the
+	 * lines of {@code header} into it, and starts the drainer thread.
+	 * Calling it again has no effect.
+	 *
+	 * @param dir         the output directory
+	 * @param baseName    the name the segment files start with
+	 * @param segmentSize the size of a segment file, in bytes
+	 * @param retain      the number of segments to keep, 0 for all
+	 * @param fsync       one of the {@code SegmentWriter.FSYNC_} policies
+	 * @param blockSize   the size of a compressed block, in bytes, or 0 to
+	 *                    write plain segments
+	 */
+	static void start( File dir, String baseName, long segmentSize,
+			int retain, int fsync, int blockSize, String header ) {
+		synchronized( LOCK ) {
+			if ( running ) return;
+			EventRecorder.header = header;
+			epoch = System.nanoTime();
+			try {
+				writer = ( blockSize > 0 )
+						? new BlockWriter( dir, baseName, segmentSize, retain, fsync, blockSize )
+						: new SegmentWriter( dir, baseName, segmentSize, retain, fsync );
+				writePreamble();
+			} catch ( IOException e ) {
+				e.printStackTrace();
+				writer = null; // Discard the trace.
+			}
+			running = true;
+			Thread t = newInternalThread( "ParaTracer-Drainer", new Runnable() {
+				@Override
+				public void run() {
+					drainLoop();
+				}
+			});
+			t.setDaemon( true );
+			drainer = t;
+			t.start();
+			Runtime.getRuntime().addShutdownHook( newInternalThread( "ParaTracer-Shutdown", new Runnable() {
+				@Override
+				public void run() {
+					EventRecorder.stop();
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Stops the drainer, writes everything still buffered (including the
+	 * partially filled chunks of live threads, up to their last complete
+	 * record) and closes the trace. The events recorded after that are
+	 * dropped.
+	 */
+	public static void stop() {
+		Thread t;
+		synchronized( LOCK ) {
+			if ( ! running ) return;
+			running = false;
+			t = drainer;
+			drainer = null;
+		}
+		if ( t != null ) {
+			LockSupport.unpark( t );
+			try {
+				t.join();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized( LOCK ) {
+			try {
+				for( ThreadBuffer tb : registry ) {
+					while ( tb.hasPublished() ) {
+						tb.drainOne();
+					}
+					tb.drainPartial();
+				}
+				if ( writer != null ) {
+					writer.close();
+				}
+			} catch ( IOException e ) {
+				e.printStackTrace();
+			}
+			writer = null;
+		}
+	}
+
+	/**
+	 * Creates a thread of the recorder itself. Nothing it does is ever
+	 * recorded.
+	 */
+	static Thread newInternalThread( String name, final Runnable body ) {
+		return new Thread( name ) {
+			@Override
+			public void run() {
+				buffers.set( ThreadBuffer.suppressed( this ) );
+				body.run();
+			}
+		};
+	}
+
+	/** Sets one of the {@code BACKPRESSURE_} policies, before {@link #start}. */
+	static void setBackpressure( int policy ) {
+		backpressure = policy;
+	}
+
+	static int backpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * The time of a record, in nanoseconds since the recording started
+	 * (see {@link TraceFormat}).
+	 */
+	static long time() {
+		return System.nanoTime() - epoch;
+	}
+
+	/** True between {@link #start} and {@link #stop}. */
+	static boolean isRunning() {
+		return running;
+	}
+
+	/** Wakes the drainer up, typically because a chunk was published. */
+	static void signal() {
+		Thread t = drainer;
+		if ( t != null ) {
+			LockSupport.unpark( t );
+		}
+	}
+
+	/**
+	 * Drainer only: writes one chunk of {@code tb} as a BATCH record,
+	 * preceded by the records it refers to, rolling over to a new segment
+	 * first if the current one is full.
+	 */
+	static void writeBatch( ThreadBuffer tb, byte[] chunk, int len )
+			throws IOException {
+		if ( writer == null ) return;
+		buildPrefix( tb, len );
+		if ( writer.remaining() < prefix.size() + len ) {
+			writer.roll();
+			writePreamble();
+			buildPrefix( tb, len );
+		}
+		writer.write( prefix.bytes(), 0, prefix.size() );
+		writer.write( chunk, 0, len );
+		writer.boundary( tb.threadId );
+	}
+
+	private static void buildPrefix( ThreadBuffer tb, int len ) throws IOException {
+		prefix.reset();
+		writeMethods( prefix );
+		if ( ! tb.announced ) {
+			tb.announced = true;
+			int p = 0;
+			scratch[p++] = TraceFormat.THREAD;
+			p = TraceFormat.putVarint( scratch, p, tb.threadId );
+			prefix.write( scratch, 0, p );
+			writeString( prefix, -1, tb.thread.getName() );
+		}
+		int p = 0;
+		scratch[p++] = TraceFormat.BATCH;
+		p = TraceFormat.putVarint( scratch, p, tb.threadId );
+		p = TraceFormat.putVarint( scratch, p, len );
+		prefix.write( scratch, 0, p );
+	}
+
+	/**
+	 * Drainer only: writes a {@link TraceFormat#THROTTLE} record, rolling
+	 * over to a new segment first if the current one is full.
+	 */
+	static void writeThrottle( int methodId, long keep ) throws IOException {
+		if ( writer == null ) return;
+		prefix.reset();
+		writeMethods( prefix );
+		prefix.write( scratch, 0, throttleRecord( methodId, keep ) );
+		if ( writer.remaining() < prefix.size() ) {
+			writer.roll();
+			writePreamble();
+			prefix.reset();
+			prefix.write( scratch, 0, throttleRecord( methodId, keep ) );
+		}
+		writer.write( prefix.bytes(), 0, prefix.size() );
+		writer.boundary( -1 );
+	}
+
+	private static int throttleRecord( int methodId, long keep ) {
+		int p = 0;
+		scratch[p++] = TraceFormat.THROTTLE;
+		p = TraceFormat.putVarint( scratch, p, time() );
+		p = TraceFormat.putVarint( scratch, p, methodId );
+		p = TraceFormat.putVarint( scratch, p, keep );
+		return p;
+	}
+
+	/**
+	 * Writes the preamble of a new segment: the magic number, the header
+	 * lines, every method registered so far and the methods that are
+	 * throttled. The threads are announced again as their next batch goes
+	 * in.
+	 */
+	private static void writePreamble() throws IOException {
+		Prefix pre = new Prefix();
+		pre.write( TraceFormat.MAGIC );
+		pre.write( TraceFormat.VERSION );
+		if ( header != null && header.length() > 0 ) {
+			for( String line : header.split( "\n" ) ) {
+				writeString( pre, TraceFormat.TEXT, line + "\n" );
+			}
+		}
+		methodsWritten = 0;
+		writeMethods( pre );
+		byte[] levels = Throttle.levels;
+		for(int id=1; id < levels.length; ++id) {
+			if ( levels[id] != 0 ) {
+				pre.write( scratch, 0, throttleRecord( id, Throttle.keep( levels[id] ) ) );
+			}
+		}
+		for( ThreadBuffer tb : registry ) {
+			tb.announced = false;
+		}
+		writer.write( pre.bytes(), 0, pre.size() );
+		writer.boundary( -1 );
+	}
+
+	/**
+	 * Writes the METHOD records of the methods registered since the last
+	 * call. Every method used in a chunk was registered before its class
+	 * was even loaded, and every exception class before the event that
+	 * uses it, so calling this before writing the chunk covers all of
+	 * them.
+	 */
+	private static void writeMethods( OutputStream out ) throws IOException {
+		int n = MethodRegistry.assigned();
+		for( ; methodsWritten < n; ++methodsWritten ) {
+			writeMethod( out, MethodRegistry.assigned( methodsWritten ), scratch );
+		}
+	}
+
+	/** The METHOD records of every method registered so far, from any thread. */
+	static byte[] methodTable() throws IOException {
+		Prefix out = new Prefix();
+		byte[] buf = new byte[ 2 * TraceFormat.MAX_VARINT ];
+		int    n   = MethodRegistry.assigned();
+		for(int i=0; i < n; ++i) {
+			writeMethod( out, MethodRegistry.assigned( i ), buf );
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeMethod( OutputStream out, int id, byte[] buf ) throws IOException {
+		int p = 0;
+		buf[p++] = TraceFormat.METHOD;
+		p = TraceFormat.putVarint( buf, p, id );
+		out.write( buf, 0, p );
+		writeString( out, -1, MethodRegistry.className ( id ) );
+		writeString( out, -1, MethodRegistry.name      ( id ) );
+		writeString( out, -1, MethodRegistry.descriptor( id ) );
+		p = TraceFormat.putVarint( buf, 0, MethodRegistry.modifiers( id ) );
+		out.write( buf, 0, p );
+	}
+
+	/** Writes {@code str} as a string, preceded by {@code kind} unless it is negative. */
+	private static void writeString( OutputStream out, int kind, String str )
+			throws IOException {
+		byte[] bytes = str.getBytes( "UTF-8" );
+		byte[] head  = new byte[ 1 + TraceFormat.MAX_VARINT ];
+		int    p     = 0;
+		if ( kind >= 0 ) {
+			head[p++] = (byte) kind;
+		}
+		p = TraceFormat.putVarint( head, p, bytes.length );
+		out.write( head, 0, p );
+		out.write( bytes );
+	}
+
+	private static ThreadBuffer register( Thread thread ) {
+		ThreadBuffer tb = new ThreadBuffer( thread, CHUNK_SIZE, CHUNK_COUNT );
+		synchronized( LOCK ) {
+			ThreadBuffer[] old = registry;
+			ThreadBuffer[] nrg = new ThreadBuffer[ old.length + 1 ];
+			System.arraycopy( old, 0, nrg, 0, old.length );
+			nrg[ old.length ] = tb;
+			registry = nrg;
+		}
+		return tb;
+	}
+
+	private static void drainLoop() {
+		while ( running ) {
+			boolean dead = false;
+			try {
+				for( ThreadBuffer tb : registry ) {
+					// Check liveness first, so that nothing the thread
+					// published before dying is drained after its
+					// partial chunk.
+					boolean alive = tb.thread.isAlive();
+					while ( tb.hasPublished() ) {
+						tb.drainOne();
+					}
+					if ( ! alive ) {
+						tb.drainPartial();
+						tb.retired = true;
+						dead = true;
+					}
+				}
+				if ( Throttle.budget > 0 ) {
+					Throttle.update( registry, System.nanoTime() );
+				}
+				if ( writer != null ) {
+					writer.sync();
+				}
+			} catch ( IOException e ) {
+				e.printStackTrace();
+				writer = null; // Keep draining, but discard the trace.
+			}
+			if ( dead ) {
+				forgetDeadThreads();
+			}
+			LockSupport.parkNanos( DRAIN_INTERVAL_NANOS );
+		}
+	}
+
+	private static void forgetDeadThreads() {
+		synchronized( LOCK ) {
+			ThreadBuffer[] old = registry;
+			int n = 0;
+			for( ThreadBuffer tb : old ) {
+				if ( ! tb.retired ) ++n;
+			}
+			ThreadBuffer[] nrg = new ThreadBuffer[n];
+			int i = 0;
+			for( ThreadBuffer tb : old ) {
+				if ( ! tb.retired ) nrg[i++] = tb;
+			}
+			registry = nrg;
+		}
+	}
+}
@@ -1,51 +1,202 @@
 package Logging;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Stack;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
 
+/**
+ * Front end of the {@link EventRecorder}. The probes injected by the
+ * agent call {@link #enter} and {@link #exit}, which return the calling
+ * thread's buffer so that the probe can append the values of the event.
+ * {@code print} and {@code println} are kept for compatibility; they
+ * append {@link TraceFormat#TEXT} records. Neither path takes a lock.
+ *
+ * <p>Every probe first asks {@link #tracing}, whose answer is the target
+ * of a {@link MutableCallSite}. The JIT compiles it into the probes as a
+ * constant, so a paused probe is reduced to nothing; {@link #setTracing}
+ * changes the target, and the JVM deoptimizes the code that relied on
+ * it. No class is transformed again.</p>
+ */
 public class Logger {
 
-	private static String loggerDir = "E:\\Dropbox\\SIMM\\MiningSpecs\\ParaTracer";
-	private static FileWriter   fw;
-	private static PrintWriter  out;
-	private static HashMap< Long, Stack<String> > callStacks;
+	/** Size of a compressed block when none is given. */
+	public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+	/** The probes record every call into the trace. */
+	public static final int MODE_TRACE   = 0;
+	/** The probes time the calls, for the {@link Profiler}; no trace is written. */
+	public static final int MODE_PROFILE = 1;
+	/** The probes count the calls, for the {@link CallCounter}; no trace is written. */
+	public static final int MODE_COUNT   = 2;
+	/** The probes check the calls against properties, with the {@link PropertyMonitor}; no trace is written. */
+	public static final int MODE_CHECK   = 3;
+
+	private static String loggerDir = System.getProperty( "user.dir" );
+	private static volatile boolean initialized;
+	private static long     segmentSize = 64L * 1024 * 1024;
+	private static int      retainedSegments = 0;
+	private static int      fsyncPolicy = SegmentWriter.FSYNC_NONE;
+	private static int      blockSize = 0;
+	private static String   backpressure = "block";
+	private static int      mode = MODE_TRACE;
+	private static long     countInterval = 60 * 1000;
 	private static String   loggerFileSuffix = "";
 	private static String[] packages = null;
 
-	public static synchronized void pushArgs( long tid, String args ) {
-		init();
-		if ( ! callStacks.containsKey( tid ) ) {
-			callStacks.put( tid, new Stack<String>() );
+	/** The switch of all probes: a call site whose target returns a constant. */
+	private static final MethodHandle    ON  = MethodHandles.constant( boolean.class, true  );
+	private static final MethodHandle    OFF = MethodHandles.constant( boolean.class, false );
+	private static final MutableCallSite TRACING = new MutableCallSite( ON );
+	private static final MethodHandle    TRACING_INVOKER = TRACING.dynamicInvoker();
+	static {
+		// The JDK links, compiles and customizes the invoker in tracing()
+		// lazily, over its first calls, with classes such as HashMap whose
+		// probes would call tracing() again, without end. So it is done
+		// now, for both targets, before any probe runs.
+		for( MethodHandle target : new MethodHandle[] { OFF, ON } ) {
+			TRACING.setTarget( target );
+			for(int i=0; i < 1000; ++i) {
+				tracing();
+			}
+		}
+	}
+
+	/**
+	 * Kept for probes compiled against older agents. The stack belongs to
+	 * the calling thread, so {@code tid} must be its own ID; no lock is
+	 * taken and the ID is not boxed.
+	 */
+	public static void pushArgs( long tid, String args ) {
+		EventRecorder.buffer().pushLegacy( args );
+	}
+
+	public static String popArgs( long tid ) {
+		return EventRecorder.buffer().popLegacy();
+	}
+
+	/**
+	 * True unless tracing is paused. The probes call it before anything
+	 * else, and skip the event if it returns false.
+	 */
+	public static boolean tracing() {
+		try {
+			return (boolean) TRACING_INVOKER.invokeExact();
+		} catch ( Throwable ex ) {
+			throw new AssertionError( ex );
+		}
+	}
+
+	/** Incremented every time tracing resumes; see {@link ThreadBuffer#exitTraced}. */
+	static volatile int resumes;
+
+	/**
+	 * Pauses or resumes tracing, in all the probes at once. The probes see
+	 * nothing while tracing is paused, so a call under way across a pause
+	 * keeps only the events it made while tracing was on: a call that
+	 * started before the pause and ended during it has a START event but
+	 * no END, and one that started during the pause and ends after it has
+	 * neither. If a paused method called itself, the exit of the inner
+	 * call may be taken for that of the outer one.
+	 */
+	public static synchronized void setTracing( boolean on ) {
+		if ( on ) {
+			++resumes;
 		}
-		callStacks.get( tid ).push( args );
+		TRACING.setTarget( on ? ON : OFF );
+		MutableCallSite.syncAll( new MutableCallSite[] { TRACING } );
 	}
 
-	public static synchronized String popArgs( long tid ) {
-		assert( callStacks.containsKey( tid ) );
-		assert(!callStacks.get( tid ).empty() );
-		return( callStacks.get( tid ).pop  () );
+	/**
+	 * Begins a START event of method {@code methodId} (see
+	 * {@link MethodRegistry}) on {@code receiver}. Returns {@code null} if
+	 * the event must not be recorded, e.g. because it was triggered by the
+	 * recorder itself or was not sampled. Otherwise the caller must put {@code argc} values
+	 * and then call {@link ThreadBuffer#commit}.
+	 */
+	public static ThreadBuffer enter( int methodId, Object receiver, int argc ) {
+		ThreadBuffer tb = EventRecorder.buffer();
+		if ( tb.busy ) return null;
+		if ( ! tb.admit( methodId, receiver ) ) return null;
+		tb.busy = true;
+		boolean begun = false;
+		try {
+			tb.beginStart( methodId, receiver, argc );
+			begun = true;
+		} finally {
+			// The probe only commits a record that was begun, and would
+			// otherwise leave the thread busy, and untraced, for good.
+			if ( ! begun ) {
+				tb.busy = false;
+			}
+		}
+		return tb;
+	}
+
+	/**
+	 * Begins an END event of method {@code methodId}. Returns {@code null}
+	 * if the event must not be recorded. Otherwise the caller must put the
+	 * return value and then call {@link ThreadBuffer#commit}.
+	 */
+	public static ThreadBuffer exit( int methodId ) {
+		ThreadBuffer tb = EventRecorder.buffer();
+		if ( tb.busy ) return null;
+		if ( ! tb.exitTraced( methodId ) ) return null;
+		tb.busy = true;
+		boolean begun = false;
+		try {
+			tb.beginEnd( methodId );
+			begun = true;
+		} finally {
+			if ( ! begun ) {
+				tb.busy = false;
+			}
+		}
+		return tb;
 	}
 
-	public static synchronized void shutdown() {
-		if ( fw == null ) return;
+	/**
+	 * Records a THROW event: the call of method {@code methodId} is left
+	 * by exception {@code ex}. The probes call it from the one exception
+	 * handler they add to the method, and rethrow {@code ex}.
+	 */
+	public static void thrown( int methodId, Throwable ex ) {
+		ThreadBuffer tb = EventRecorder.buffer();
+		if ( tb.busy ) return;
+		if ( ! tb.exitTraced( methodId ) ) return;
+		tb.busy = true;
 		try {
-			fw.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			tb.writeThrow( methodId, MethodRegistry.classId( ex.getClass() ) );
+		} finally {
+			tb.commit();
 		}
 	}
 
-	public static synchronized void print( String str ) {
-		init();
-		out.print( str );
+	public static void shutdown() {
+		EventRecorder.stop();
+	}
+
+	public static void print( String str ) {
+		write( str, false );
 	}
 
-	public static synchronized void println( String str ) {
-		init();
-		out.println( str );
+	public static void println( String str ) {
+		write( str, true );
+	}
+
+	private static void write( String str, boolean newline ) {
+		if ( ! initialized ) {
+			init();
+		}
+		if ( mode != MODE_TRACE ) return; // There is no trace to write into.
+		ThreadBuffer tb = EventRecorder.buffer();
+		if ( tb.busy ) return;
+		tb.busy = true;
+		try {
+			tb.writeText( String.valueOf( str ), newline );
+		} finally {
+			tb.busy = false;
+		}
 	}
 
 	public static void setPackages( String[] pkgs ) {
@@ -56,33 +207,129 @@ public class Logger {
 		loggerFileSuffix = fileSuffix;
 	}
 
-	private static void init() {
-		if ( fw != null ) return;
-		String loggerFilePath = loggerDir + "\\paratracer" + loggerFileSuffix + ".out";
-		try {
-			fw  = new FileWriter( loggerFilePath );
-			out = new PrintWriter( fw );
-			if ( packages != null ) {
-				out.println( "=======================================================" );
-				out.println( "       M O N I T O R E D      P A C K A G E S          " );
-				out.println( "=======================================================" );
-				for( String pkg : packages ) {
-					if (pkg==null) continue;
-					out.println( pkg );
-				}
-				out.println( "=======================================================" );
+	public static void setOutputDir( String dir ) {
+		loggerDir = dir;
+	}
+
+	/** Sets the size of a trace segment file, in bytes (at least 1 MB). */
+	public static void setSegmentSize( long bytes ) {
+		segmentSize = Math.max( bytes, 1024L * 1024 );
+	}
+
+	/** Keeps only the last {@code n} trace segments; 0 keeps them all. */
+	public static void setRetainedSegments( int n ) {
+		retainedSegments = n;
+	}
+
+	/**
+	 * Compresses the trace in blocks of {@code bytes} (between 4 KB and
+	 * 64 MB); 0 writes it plain.
+	 */
+	public static void setCompression( long bytes ) {
+		blockSize = ( bytes <= 0 )? 0 : (int) Math.min( Math.max( bytes, 4096 ), 64L * 1024 * 1024 );
+	}
+
+	/**
+	 * Sets when the trace is forced to disk: {@code none} (left to the
+	 * operating system), {@code segment} (whenever a segment is full) or
+	 * {@code batch} (after every drain sweep).
+	 */
+	public static void setFsyncPolicy( String policy ) {
+		if ( "none".equalsIgnoreCase( policy ) ) {
+			fsyncPolicy = SegmentWriter.FSYNC_NONE;
+		} else if ( "segment".equalsIgnoreCase( policy ) ) {
+			fsyncPolicy = SegmentWriter.FSYNC_SEGMENT;
+		} else if ( "batch".equalsIgnoreCase( policy ) ) {
+			fsyncPolicy = SegmentWriter.FSYNC_BATCH;
+		} else {
+			throw new IllegalArgumentException( "Unknown fsync policy: " + policy );
+		}
+	}
+
+	/**
+	 * Sets what a thread does when its buffer is full: {@code block}
+	 * (wait for the drainer), {@code drop} (drop its new events) or
+	 * {@code sample} (keep fewer and fewer of them).
+	 */
+	public static void setBackpressure( String policy ) {
+		if ( "block".equalsIgnoreCase( policy ) ) {
+			EventRecorder.setBackpressure( EventRecorder.BACKPRESSURE_BLOCK );
+		} else if ( "drop".equalsIgnoreCase( policy ) ) {
+			EventRecorder.setBackpressure( EventRecorder.BACKPRESSURE_DROP );
+		} else if ( "sample".equalsIgnoreCase( policy ) ) {
+			EventRecorder.setBackpressure( EventRecorder.BACKPRESSURE_SAMPLE );
+		} else {
+			throw new IllegalArgumentException( "Unknown backpressure policy: " + policy );
+		}
+		backpressure = policy.toLowerCase();
+	}
+
+	/** Sets what the probes do: {@code trace}, {@code profile}, {@code count} or {@code check}. */
+	public static void setMode( String name ) {
+		if ( "trace".equalsIgnoreCase( name ) ) {
+			mode = MODE_TRACE;
+		} else if ( "profile".equalsIgnoreCase( name ) ) {
+			mode = MODE_PROFILE;
+		} else if ( "count".equalsIgnoreCase( name ) ) {
+			mode = MODE_COUNT;
+		} else if ( "check".equalsIgnoreCase( name ) ) {
+			mode = MODE_CHECK;
+		} else {
+			throw new IllegalArgumentException( "Unknown mode: " + name );
+		}
+	}
+
+	/**
+	 * Sets the time between two snapshots of the call counts, in the count
+	 * mode; 0 writes one at shutdown only.
+	 */
+	public static void setCountInterval( long millis ) {
+		countInterval = Math.max( millis, 0 );
+	}
+
+	/** One of the {@code MODE_} constants. */
+	public static int mode() {
+		return mode;
+	}
+
+	/**
+	 * Opens the trace and starts the recorder; in the profile, count and
+	 * check modes, only gets the {@link Profiler}, the {@link CallCounter}
+	 * or the {@link PropertyMonitor} ready instead. The agent calls it from
+	 * {@code premain}, before any class is instrumented; otherwise it runs
+	 * on the first {@code print}.
+	 */
+	public static synchronized void init() {
+		if ( initialized ) return;
+		initialized = true;
+		if ( mode == MODE_PROFILE ) {
+			Profiler.start( new File( loggerDir, "paratracer" + loggerFileSuffix + "-profile.txt" ) );
+			return;
+		}
+		if ( mode == MODE_COUNT ) {
+			CallCounter.start( new File( loggerDir, "paratracer" + loggerFileSuffix + "-counts.txt" ), countInterval );
+			return;
+		}
+		if ( mode == MODE_CHECK ) {
+			PropertyMonitor.start( new File( loggerDir, "paratracer" + loggerFileSuffix + "-violations.txt" ) );
+			return;
+		}
+		StringBuilder header = new StringBuilder();
+		if ( packages != null ) {
+			header.append( "=======================================================\n" );
+			header.append( "       M O N I T O R E D      P A C K A G E S          \n" );
+			header.append( "=======================================================\n" );
+			for( String pkg : packages ) {
+				if (pkg==null) continue;
+				header.append( pkg ).append( '\n' );
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			header.append( "=======================================================\n" );
 		}
-		callStacks = new HashMap< Long, Stack<String> >();
-//		final Thread mainThread = Thread.currentThread();
-		Runtime.getRuntime().addShutdownHook( new Thread() {
-		    public void run() {
-		    	shutdown();
-//		        mainThread.join();
-		    }
-		});
+		header.append( "Backpressure: " ).append( backpressure ).append( '\n' );
+		header.append( Sampler.describe() ).append( '\n' );
+		header.append( Throttle.describe() ).append( '\n' );
+		EventRecorder.start( new File( loggerDir ), "paratracer" + loggerFileSuffix,
+				segmentSize, retainedSegments, fsyncPolicy, blockSize, header.toString() );
 	}
 
 }
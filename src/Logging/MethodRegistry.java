@@ -0,0 +1,251 @@
+package Logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the instrumented methods. The agent registers every method
+ * it instruments at transform time, and gets back an {@code int} ID
+ * that it compiles into the probes as a constant. The signature metadata
+ * is kept next to the ID, and the drainer dumps each entry once into the
+ * trace as a {@link TraceFormat#METHOD} record, so the events themselves
+ * only carry the ID.
+ *
+ * <p>A method is identified by its declaring class, name and descriptor,
+ * so a class that is transformed again (e.g. by another class loader)
+ * keeps the IDs of its methods.</p>
+ *
+ * <p>Classes are transformed concurrently, so registration takes no
+ * lock: the first thread to put a method into the map assigns its ID,
+ * and the entries are stored in pages that are never moved, so readers
+ * need no lock either.</p>
+ *
+ * <p>Instrumented classes may also come out of the agent's bytecode
+ * cache, with the IDs of an earlier run compiled into them. Those IDs
+ * are claimed with {@link #registerAs}, and new IDs are taken above the
+ * highest one the cache has ever handed out (see {@link #reserve}), so
+ * the IDs are not always dense. The drainer therefore follows the order
+ * in which the IDs were assigned (see {@link #assigned}), not the IDs
+ * themselves.</p>
+ *
+ * <p>The classes of the exceptions that leave monitored calls are
+ * registered at run time, under the name {@link #CLASS_ENTRY} and an
+ * empty descriptor (see {@link #classId}), so that a
+ * {@link TraceFormat#THROW} event only carries their ID as well.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class MethodRegistry {
+
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int MAX_PAGES = 1024;
+
+	/** The name of the entries that stand for a class. */
+	public static final String CLASS_ENTRY = "<class>";
+
+	private static final class Entry {
+		final String className;
+		final String name;
+		final String descriptor;
+		final int    modifiers;
+		/** Set by the thread that registered the entry first. */
+		volatile int id;
+
+		Entry( String className, String name, String descriptor, int modifiers ) {
+			this.className  = className;
+			this.name       = name;
+			this.descriptor = descriptor;
+			this.modifiers  = modifiers;
+		}
+	}
+
+	private static final ConcurrentHashMap< String, Entry > ids =
+			new ConcurrentHashMap< String, Entry >();
+	private static final AtomicReferenceArray< AtomicReferenceArray< Entry > > pages =
+			new AtomicReferenceArray< AtomicReferenceArray< Entry > >( MAX_PAGES );
+	/** The next ID to try. ID 0 is reserved. */
+	private static final AtomicInteger next  = new AtomicInteger( 1 );
+	/** The highest ID assigned so far, plus one. */
+	private static final AtomicInteger limit = new AtomicInteger( 1 );
+	/** The assigned IDs, in the order they were assigned. */
+	private static final AtomicReferenceArray< AtomicIntegerArray > order =
+			new AtomicReferenceArray< AtomicIntegerArray >( MAX_PAGES );
+	private static final AtomicInteger assigned = new AtomicInteger( 0 );
+	/** The IDs of the classes, kept by the classes themselves. */
+	private static final ClassValue< Integer > classIds = new ClassValue< Integer >() {
+		@Override
+		protected Integer computeValue( Class< ? > type ) {
+			return register( type.getName(), CLASS_ENTRY, "", 0 );
+		}
+	};
+
+	private MethodRegistry() {}
+
+	/**
+	 * Returns the ID of the given method, assigning the next free one if
+	 * the method has not been registered before.
+	 *
+	 * @param className  the fully qualified name of the declaring class
+	 * @param name       the method name
+	 * @param descriptor the JVM method descriptor, e.g. {@code (I)V}
+	 * @param mods       the access flags of the method
+	 */
+	public static int register( String className, String name, String descriptor, int mods ) {
+		String key = className + "." + name + descriptor;
+		Entry  e   = ids.get( key );
+		if ( e == null ) {
+			Entry mine = new Entry( className, name, descriptor, mods );
+			e = ids.putIfAbsent( key, mine );
+			if ( e == null ) {
+				int id;
+				do {
+					id = next.getAndIncrement();
+				} while ( ! page( id, true ).compareAndSet( id & ( PAGE_SIZE - 1 ), null, mine ) );
+				assign( mine, id );
+				return id;
+			}
+		}
+		return idOf( e );
+	}
+
+	/**
+	 * Registers the given method under {@code id}, the ID it had when its
+	 * class was instrumented by an earlier run. Returns {@code false} if
+	 * the method, or the ID, is already taken otherwise; the class must
+	 * then be instrumented again.
+	 */
+	public static boolean registerAs( String className, String name, String descriptor, int mods, int id ) {
+		String key = className + "." + name + descriptor;
+		Entry  e   = ids.get( key );
+		if ( e == null ) {
+			if ( id <= 0 ) return false;
+			Entry mine = new Entry( className, name, descriptor, mods );
+			AtomicReferenceArray< Entry > page = page( id, true );
+			if ( ! page.compareAndSet( id & ( PAGE_SIZE - 1 ), null, mine ) ) {
+				Entry other = page.get( id & ( PAGE_SIZE - 1 ) );
+				if ( ! key.equals( other.className + "." + other.name + other.descriptor ) ) {
+					return false;
+				}
+				// Another thread claims the same ID for the same method.
+				while ( ( e = ids.get( key ) ) == null ) {
+					Thread.yield();
+				}
+				return idOf( e ) == id;
+			}
+			// The ID is ours, even if the method is registered under
+			// another one in the meantime; the entry then stays unused.
+			assign( mine, id );
+			e = ids.putIfAbsent( key, mine );
+			if ( e == null ) return true;
+		}
+		return idOf( e ) == id;
+	}
+
+	/**
+	 * Returns the ID of class {@code type}, registering it the first time.
+	 * Later lookups neither lock nor allocate.
+	 */
+	public static int classId( Class< ? > type ) {
+		return classIds.get( type );
+	}
+
+	/** Makes the IDs below {@code id} available to {@link #registerAs} only. */
+	public static void reserve( int id ) {
+		int n;
+		while ( ( n = next.get() ) < id && ! next.compareAndSet( n, id ) ) {}
+	}
+
+	/** The ID that {@link #register} would try next. */
+	public static int nextId() {
+		return next.get();
+	}
+
+	private static void assign( Entry e, int id ) {
+		e.id = id;
+		int n;
+		while ( ( n = limit.get() ) <= id && ! limit.compareAndSet( n, id + 1 ) ) {}
+		int seq = assigned.getAndIncrement();
+		orderPage( seq ).set( seq & ( PAGE_SIZE - 1 ), id );
+	}
+
+	private static int idOf( Entry e ) {
+		// Another thread won the race; its ID follows in a moment.
+		int id;
+		while ( ( id = e.id ) == 0 ) {
+			Thread.yield();
+		}
+		return id;
+	}
+
+	/** The highest ID assigned so far, plus one. */
+	public static int count() {
+		return limit.get();
+	}
+
+	/** Number of IDs assigned so far. */
+	public static int assigned() {
+		return assigned.get();
+	}
+
+	/**
+	 * The {@code seq}-th ID assigned, for {@code seq} below
+	 * {@link #assigned}. It is stored just after its number is taken, so
+	 * a reader may have to wait a moment for it.
+	 */
+	public static int assigned( int seq ) {
+		int id;
+		while ( ( id = orderPage( seq ).get( seq & ( PAGE_SIZE - 1 ) ) ) == 0 ) {
+			Thread.yield();
+		}
+		return id;
+	}
+
+	public static String className ( int id ) { return entry( id ).className;  }
+	public static String name      ( int id ) { return entry( id ).name;       }
+	public static String descriptor( int id ) { return entry( id ).descriptor; }
+	public static int    modifiers ( int id ) { return entry( id ).modifiers;  }
+
+	/**
+	 * Returns the entry of an assigned ID. The ID is assigned just before
+	 * the entry is stored, so a reader may have to wait a moment for it.
+	 */
+	private static Entry entry( int id ) {
+		AtomicReferenceArray< Entry > page = page( id, false );
+		Entry e;
+		while ( page == null || ( e = page.get( id & ( PAGE_SIZE - 1 ) ) ) == null ) {
+			Thread.yield();
+			page = page( id, false );
+		}
+		return e;
+	}
+
+	private static AtomicReferenceArray< Entry > page( int id, boolean create ) {
+		int p = id >>> PAGE_BITS;
+		if ( p >= MAX_PAGES ) {
+			throw new IllegalStateException( "Too many instrumented methods" );
+		}
+		AtomicReferenceArray< Entry > page = pages.get( p );
+		if ( page == null && create ) {
+			pages.compareAndSet( p, null, new AtomicReferenceArray< Entry >( PAGE_SIZE ) );
+			page = pages.get( p );
+		}
+		return page;
+	}
+
+	private static AtomicIntegerArray orderPage( int seq ) {
+		int p = seq >>> PAGE_BITS;
+		if ( p >= MAX_PAGES ) {
+			throw new IllegalStateException( "Too many instrumented methods" );
+		}
+		AtomicIntegerArray page = order.get( p );
+		if ( page == null ) {
+			order.compareAndSet( p, null, new AtomicIntegerArray( PAGE_SIZE ) );
+			page = order.get( p );
+		}
+		return page;
+	}
+}
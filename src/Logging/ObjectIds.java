@@ -0,0 +1,41 @@
+package Logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The IDs by which the trace knows objects: an object gets the next ID,
+ * 1, 2, 3..., the first time the probes see it, and keeps it while it
+ * lives. Unlike identity hash codes, two objects never share an ID, so a
+ * slice of the trace by object holds the calls of that object only; and
+ * an ID also tells which of two objects was seen first.
+ *
+ * <p>The IDs are kept in a {@link WeakIdentityMap}, which lets the
+ * objects die, and forgets them when they do. A lookup takes no lock; only
+ * the first sighting of an object locks one segment of the map.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class ObjectIds {
+
+	private static final WeakIdentityMap ids  = new WeakIdentityMap();
+	private static final AtomicLong      next = new AtomicLong( 1 );
+
+	private ObjectIds() {}
+
+	/** The ID of {@code obj}, or 0 for null. */
+	public static long id( Object obj ) {
+		if ( obj == null ) return 0;
+		long id = ids.get( obj );
+		if ( id != WeakIdentityMap.NONE ) return id;
+		// Another thread may get in first, and then this ID is never used.
+		long fresh = next.getAndIncrement();
+		id = ids.putIfAbsent( obj, fresh );
+		return ( id != WeakIdentityMap.NONE )? id : fresh;
+	}
+
+	/** The number of objects that have an ID, as far as the map knows. */
+	public static int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,333 @@
+package Logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The recorder of the profile mode ({@link Logger#MODE_PROFILE}). The
+ * probes read {@code System.nanoTime()} at the entry and at the exit of
+ * a monitored call, and hand the duration to {@link #record}, which
+ * counts it in a histogram of the method. Nothing is written per call:
+ * the histograms are merged into a percentile report at shutdown, or on
+ * demand (see {@link #writeReport}).
+ *
+ * <p>The histograms are log-linear: every power of two is split into
+ * {@value #SUB_BUCKETS} buckets of equal width, so a duration is known
+ * within 1/{@value #SUB_BUCKETS} of its value, from nanoseconds to
+ * hours, in {@value #BUCKETS} counters.</p>
+ *
+ * <p>Every thread counts into histograms of its own, one per method ID,
+ * allocated on the method's first call. Only the owning thread writes
+ * them, so recording takes no lock and no atomic instruction; the report
+ * reads them without synchronization, so a report taken while the
+ * threads run is only approximately up to date. Once a thread has died,
+ * its histograms are added to those of the dead threads, and its own are
+ * dropped, so that its calls stay in the report but a program that keeps
+ * starting threads does not keep their histograms; this is done by the
+ * report, and every {@value #SWEEP_INTERVAL} new threads.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class Profiler {
+
+	private static final int SUB_BITS    = 3;
+	public  static final int SUB_BUCKETS = 1 << SUB_BITS;
+	public  static final int BUCKETS     = ( 64 - SUB_BITS + 1 ) * SUB_BUCKETS;
+
+	// Besides the buckets, a histogram holds the sum and the maximum.
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+
+	/** The percentiles of the report. */
+	private static final double[] PERCENTILES      = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+	/** New threads between two sweeps of the dead ones. */
+	static  final int SWEEP_INTERVAL = 64;
+
+	/** The histograms of one thread. */
+	private static final class Profile {
+		final Thread  thread;
+		/** By method ID; null until the method is first called. */
+		volatile long[][] methods = new long[ 64 ][];
+		/** Set while the thread writes a report, whose calls are not counted. */
+		boolean       busy;
+		Profile       next;
+
+		Profile( Thread thread ) {
+			this.thread = thread;
+		}
+	}
+
+	/**
+	 * The profiles of the threads, as a list that threads push onto
+	 * without locking. Only {@link #sweep} unlinks profiles from it, and
+	 * only those after the first one, so that it never races the pushes.
+	 */
+	private static final AtomicReference< Profile > profiles = new AtomicReference< Profile >();
+	private static final AtomicInteger              created  = new AtomicInteger();
+	/** Guards the links of the list past its head, and {@link #dead}. */
+	private static final Object                     LOCK     = new Object();
+	/** The histograms of the threads swept so far, by method ID. */
+	private static long[][]                         dead     = new long[ 0 ][];
+
+	private static final ThreadLocal< Profile > current = new ThreadLocal< Profile >() {
+		@Override
+		protected Profile initialValue() {
+			Profile p = new Profile( Thread.currentThread() );
+			do {
+				p.next = profiles.get();
+			} while ( ! profiles.compareAndSet( p.next, p ) );
+			if ( created.incrementAndGet() % SWEEP_INTERVAL == 0 ) {
+				sweep();
+			}
+			return p;
+		}
+	};
+
+	private static volatile File reportFile;
+
+	private Profiler() {}
+
+	/**
+	 * Starts the profile mode: the report is written to {@code file} at
+	 * shutdown.
+	 */
+	static synchronized void start( File file ) {
+		if ( reportFile != null ) return;
+		reportFile = file;
+		Runtime.getRuntime().addShutdownHook( EventRecorder.newInternalThread( "ParaTracer-Profile", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeReport();
+				} catch ( IOException ex ) {
+					System.err.println( "*** Cannot write the ParaTracer profile: " + ex.getMessage() );
+				}
+			}
+		} ) );
+	}
+
+	/** Counts a call of method {@code methodId} that took {@code nanos}. */
+	public static void record( int methodId, long nanos ) {
+		Profile p = current.get();
+		if ( p.busy ) return;
+		long[][] methods = p.methods;
+		if ( methodId >= methods.length ) {
+			methods = Arrays.copyOf( methods, Math.max( methodId + 1, 2 * methods.length ) );
+			p.methods = methods;
+		}
+		long[] h = methods[ methodId ];
+		if ( h == null ) {
+			h = new long[ BUCKETS + 2 ];
+			methods[ methodId ] = h;
+		}
+		if ( nanos < 0 ) {
+			nanos = 0; // nanoTime is not always monotonic across cores.
+		}
+		++h[ bucket( nanos ) ];
+		h[ SUM ] += nanos;
+		if ( nanos > h[ MAX ] ) {
+			h[ MAX ] = nanos;
+		}
+	}
+
+	/** The bucket of a duration. */
+	static int bucket( long v ) {
+		if ( v < SUB_BUCKETS ) return (int) v;
+		int e = 63 - Long.numberOfLeadingZeros( v );
+		return ( e - SUB_BITS + 1 ) * SUB_BUCKETS + (int)( ( v >>> ( e - SUB_BITS ) ) & ( SUB_BUCKETS - 1 ) );
+	}
+
+	/** The smallest duration that falls into bucket {@code b}. */
+	static long bucketLow( int b ) {
+		if ( b < SUB_BUCKETS ) return b;
+		int e = b / SUB_BUCKETS + SUB_BITS - 1;
+		return (long)( SUB_BUCKETS + b % SUB_BUCKETS ) << ( e - SUB_BITS );
+	}
+
+	/** The largest duration that falls into bucket {@code b}. */
+	static long bucketHigh( int b ) {
+		if ( b < SUB_BUCKETS ) return b;
+		int e = b / SUB_BUCKETS + SUB_BITS - 1;
+		return bucketLow( b ) + ( 1L << ( e - SUB_BITS ) ) - 1;
+	}
+
+	/**
+	 * Adds the histograms of the dead threads to {@link #dead}, and
+	 * unlinks their profiles. A thread that has died has made all its
+	 * calls, and they are all visible once {@code isAlive} says so.
+	 */
+	private static void sweep() {
+		synchronized( LOCK ) {
+			Profile prev = profiles.get();
+			if ( prev == null ) return;
+			for( Profile p = prev.next; p != null; p = p.next ) {
+				if ( p.thread.isAlive() ) {
+					prev = p;
+				} else {
+					dead = add( dead, p.methods );
+					prev.next = p.next;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the histograms of all threads, by method ID. The result
+	 * holds a null for the methods never called.
+	 */
+	static long[][] merge() {
+		synchronized( LOCK ) {
+			sweep();
+			long[][] merged = add( new long[ 0 ][], dead );
+			for( Profile p = profiles.get(); p != null; p = p.next ) {
+				merged = add( merged, p.methods );
+			}
+			return merged;
+		}
+	}
+
+	/** Adds the histograms of {@code methods} to {@code to}; returns {@code to}, grown if needed. */
+	private static long[][] add( long[][] to, long[][] methods ) {
+		if ( methods.length > to.length ) {
+			to = Arrays.copyOf( to, methods.length );
+		}
+		for(int id=0; id < methods.length; ++id) {
+			long[] h = methods[id];
+			if ( h == null ) continue;
+			if ( to[id] == null ) {
+				to[id] = new long[ BUCKETS + 2 ];
+			}
+			long[] m = to[id];
+			for(int b=0; b < BUCKETS; ++b) {
+				m[b] += h[b];
+			}
+			m[ SUM ] += h[ SUM ];
+			m[ MAX ]  = Math.max( m[ MAX ], h[ MAX ] );
+		}
+		return to;
+	}
+
+	/** The number of thread profiles still kept, dead threads not swept yet included. */
+	static int profileCount() {
+		synchronized( LOCK ) {
+			int n = 0;
+			for( Profile p = profiles.get(); p != null; p = p.next ) {
+				++n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * The upper bound of the {@code q}-th percentile of a merged
+	 * histogram holding {@code count} calls.
+	 */
+	private static long percentile( long[] h, long count, double q ) {
+		long rank = (long) Math.ceil( count * q / 100 );
+		long seen = 0;
+		for(int b=0; b < BUCKETS; ++b) {
+			seen += h[b];
+			if ( seen >= Math.max( rank, 1 ) ) {
+				return Math.min( bucketHigh( b ), h[ MAX ] );
+			}
+		}
+		return h[ MAX ];
+	}
+
+	/**
+	 * Writes the report: one line per method called, the methods that
+	 * took the most time in total first, with the number of calls, the
+	 * total and mean time, the percentiles and the maximum, in
+	 * microseconds.
+	 */
+	public static void report( PrintWriter out ) {
+		Profile self = current.get();
+		self.busy = true;
+		try {
+			final long[][] merged = merge();
+			Integer[] ids = new Integer[ merged.length ];
+			int n = 0;
+			for(int id=0; id < merged.length; ++id) {
+				if ( merged[id] != null ) {
+					ids[ n++ ] = id;
+				}
+			}
+			ids = Arrays.copyOf( ids, n );
+			Arrays.sort( ids, new Comparator< Integer >() {
+				@Override
+				public int compare( Integer a, Integer b ) {
+					return Long.compare( merged[b][ SUM ], merged[a][ SUM ] );
+				}
+			} );
+			out.println( "# ParaTracer profile; times in microseconds, "
+					+ "within " + ( 100.0 / SUB_BUCKETS ) + "% for the percentiles" );
+			StringBuilder sb = new StringBuilder();
+			sb.append( String.format( "%12s %12s %10s", "calls", "total", "mean" ) );
+			for( String name : PERCENTILE_NAMES ) {
+				sb.append( String.format( " %10s", name ) );
+			}
+			sb.append( String.format( " %10s  %s", "max", "method" ) );
+			out.println( sb );
+			for( int id : ids ) {
+				long[] h     = merged[id];
+				long   count = 0;
+				for(int b=0; b < BUCKETS; ++b) {
+					count += h[b];
+				}
+				if ( count == 0 ) continue;
+				sb.setLength( 0 );
+				sb.append( String.format( "%12d %12.1f %10.3f", count, h[ SUM ] / 1e3, h[ SUM ] / 1e3 / count ) );
+				for( double q : PERCENTILES ) {
+					sb.append( String.format( " %10.3f", percentile( h, count, q ) / 1e3 ) );
+				}
+				sb.append( String.format( " %10.3f  ", h[ MAX ] / 1e3 ) );
+				sb.append( TraceFormat.longName( MethodRegistry.className( id ),
+						MethodRegistry.name( id ), MethodRegistry.descriptor( id ) ) );
+				out.println( sb );
+			}
+			out.flush();
+		} finally {
+			self.busy = false;
+		}
+	}
+
+	/**
+	 * Writes the report to the file given to {@link #start}, replacing the
+	 * previous one, and returns that file.
+	 */
+	public static File writeReport() throws IOException {
+		File file = reportFile;
+		if ( file == null ) {
+			throw new IOException( "The profile mode is not on" );
+		}
+		File tmp = new File( file.getPath() + ".tmp" );
+		PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" ) );
+		try {
+			report( out );
+		} finally {
+			out.close();
+		}
+		if ( ! tmp.renameTo( file ) ) {
+			file.delete();
+			if ( ! tmp.renameTo( file ) ) {
+				throw new IOException( "Cannot rename " + tmp + " to " + file );
+			}
+		}
+		return file;
+	}
+
+	/** True once the profile mode is on. */
+	public static boolean isOn() {
+		return reportFile != null;
+	}
+}
@@ -0,0 +1,124 @@
+package Logging;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A finite-state property of the calls on one object, checked by the
+ * {@link PropertyMonitor}: every object has a state of its own, which the
+ * calls on it move along the transitions of the property, and reaching
+ * the error state is a violation.
+ *
+ * <p>The events of a property are calls of the monitored methods, on
+ * entry, or on return with a given value; an event with no transition
+ * from a state leaves it there. The states are kept in a
+ * {@link WeakIdentityMap} of the objects that are not in the start state,
+ * so that an object in the start state costs nothing, and a dead object
+ * is forgotten. After a violation, the object starts over.</p>
+ *
+ * <p>Properties are built by {@code ParaTracer.PropertySpec}.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class Property {
+
+	/** The event is a call of the method. */
+	public static final int ON_ENTRY  = 0;
+	/** The event is a return from the method, with any value. */
+	public static final int ON_RETURN = 1;
+	/** The event is a return from the method, with the given value. */
+	public static final int RETURNS   = 2;
+
+	/** The calls that make an event of a property. */
+	static final class Pattern {
+		final int    event;
+		/** The class of the method, or a prefix ending in '*', or null for any. */
+		final String className;
+		final String name;
+		final int    when;
+		/** For {@link #RETURNS}: 1 for true or an object, 0 for false or null, or the integer. */
+		final long   value;
+
+		Pattern( int event, String className, String name, int when, long value ) {
+			this.event     = event;
+			this.className = className;
+			this.name      = name;
+			this.when      = when;
+			this.value     = value;
+		}
+
+		boolean matches( String className, String name ) {
+			if ( ! this.name.equals( name ) ) return false;
+			if ( this.className == null ) return true;
+			if ( this.className.endsWith( "*" ) ) {
+				return className.startsWith( this.className.substring( 0, this.className.length() - 1 ) );
+			}
+			return this.className.equals( className );
+		}
+	}
+
+	final String          name;
+	final String[]        states;
+	final String[]        events;
+	/** By state and event. */
+	final int[][]         next;
+	final int             start;
+	final int             error;
+	final WeakIdentityMap instances  = new WeakIdentityMap();
+	final AtomicLong      violations = new AtomicLong();
+	Pattern[]             patterns   = new Pattern[ 0 ];
+
+	/**
+	 * A property whose transitions are {@code next[state][event]}; use
+	 * {@link #addPattern} to tell which calls are its events.
+	 */
+	public Property( String name, String[] states, String[] events, int[][] next, int start, int error ) {
+		this.name   = name;
+		this.states = states.clone();
+		this.events = events.clone();
+		this.next   = next;
+		this.start  = start;
+		this.error  = error;
+	}
+
+	/**
+	 * Makes the calls of {@code className.name} event {@code event}, with
+	 * {@code when} one of {@link #ON_ENTRY}, {@link #ON_RETURN} and
+	 * {@link #RETURNS}. A null class name stands for any class, and one
+	 * ending in '*' for a prefix.
+	 */
+	public void addPattern( int event, String className, String name, int when, long value ) {
+		Pattern[] p = Arrays.copyOf( patterns, patterns.length + 1 );
+		p[ patterns.length ] = new Pattern( event, className, name, when, value );
+		patterns = p;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/** The number of violations so far. */
+	public long violations() {
+		return violations.get();
+	}
+
+	/**
+	 * Moves {@code receiver} along event {@code event}, and returns the
+	 * state it was in if that was a violation, or -1.
+	 */
+	int step( Object receiver, int event ) {
+		while ( true ) {
+			long current = instances.get( receiver );
+			int  state   = ( current == WeakIdentityMap.NONE )? start : (int) current;
+			int  to      = next[ state ][ event ];
+			if ( to == state ) return -1;
+			// Objects in the start state are not kept; neither are those
+			// in the error state, which start over.
+			long value = ( to == start || to == error )? WeakIdentityMap.NONE : to;
+			if ( instances.replace( receiver, current, value ) ) {
+				return ( to == error )? state : -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package Logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The recorder of the check mode ({@link Logger#MODE_CHECK}): the probes
+ * hand the calls of the methods named by a {@link Property} over to the
+ * monitor, which moves the receiver along the property, and writes a line
+ * into the violations file on the spot when it reaches the error state.
+ * No trace is written. The methods that no property names get no probe.
+ *
+ * <pre>
+ * # ParaTracer property violations since Tue Mar 01 10:00:00 CET 2016
+ * 1456822800123 [main] HasNext: next in state unsafe, at java.util.HashMap$KeyIterator.next() on java.util.HashMap$KeyIterator@1b6d3586
+ * </pre>
+ *
+ * <p>The parameter of a property is the receiver of the call: static
+ * methods have none, and do not take part in properties.</p>
+ *
+ * <p>Which events a method ID makes is worked out on its first call, from
+ * the names in the {@link MethodRegistry}, so that the classes cached by
+ * the agent need no table of their own.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class PropertyMonitor {
+
+	/** A probe bit: the method makes an event on entry. */
+	public static final int ENTRY  = 1;
+	/** A probe bit: the method makes an event on return. */
+	public static final int RETURN = 2;
+
+	/** An event of a property that a method makes. */
+	private static final class Binding {
+		final Property property;
+		final int      event;
+		final int      when;
+		final long     value;
+
+		Binding( Property property, Property.Pattern p ) {
+			this.property = property;
+			this.event    = p.event;
+			this.when     = p.when;
+			this.value    = p.value;
+		}
+	}
+
+	private static final Binding[] NO_BINDINGS = new Binding[ 0 ];
+
+	private static volatile Property[]  properties = new Property[ 0 ];
+	/** By method ID; null until the method is first called. */
+	private static volatile Binding[][] bindings   = new Binding[ 256 ][];
+
+	private static volatile File        violationsFile;
+	private static FileOutputStream     out;
+
+	/**
+	 * Set while the thread is inside the monitor: the calls it makes there,
+	 * e.g. to the registry or to the violations file, are not events,
+	 * which prevents infinite recursion.
+	 */
+	private static final class Busy {
+		boolean on;
+	}
+
+	private static final ThreadLocal< Busy > busy = new ThreadLocal< Busy >() {
+		@Override
+		protected Busy initialValue() {
+			return new Busy();
+		}
+	};
+
+	private PropertyMonitor() {}
+
+	/** Adds a property to check; must be called before any class gets its probes. */
+	public static synchronized void add( Property property ) {
+		Property[] p = Arrays.copyOf( properties, properties.length + 1 );
+		p[ properties.length ] = property;
+		properties = p;
+	}
+
+	public static Property[] properties() {
+		return properties.clone();
+	}
+
+	/**
+	 * The probes that method {@code name} of class {@code className}
+	 * needs: a combination of {@link #ENTRY} and {@link #RETURN}, or 0.
+	 */
+	public static int probesFor( String className, String name ) {
+		int bits = 0;
+		for( Property property : properties ) {
+			for( Property.Pattern p : property.patterns ) {
+				if ( p.matches( className, name ) ) {
+					bits |= ( p.when == Property.ON_ENTRY )? ENTRY : RETURN;
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Starts the check mode: the violations are written to {@code file}
+	 * as they happen, and counted at shutdown.
+	 */
+	static synchronized void start( File file ) {
+		if ( violationsFile != null ) return;
+		try {
+			out = new FileOutputStream( file );
+			out.write( ( "# ParaTracer property violations since " + new Date() + "\n" ).getBytes( "UTF-8" ) );
+			out.flush();
+		} catch ( IOException ex ) {
+			System.err.println( "*** Cannot write the ParaTracer violations: " + ex.getMessage() );
+			return;
+		}
+		violationsFile = file;
+		Runtime.getRuntime().addShutdownHook( EventRecorder.newInternalThread( "ParaTracer-Properties", new Runnable() {
+			@Override
+			public void run() {
+				for( Property property : properties ) {
+					if ( property.violations() > 0 ) {
+						System.err.println( "*** ParaTracer: " + property.violations() + " violation(s) of "
+								+ property.name() + ", see " + violationsFile );
+					}
+				}
+			}
+		} ) );
+	}
+
+	/** A call of method {@code methodId} on {@code receiver}. */
+	public static void event( int methodId, Object receiver ) {
+		if ( receiver == null ) return;
+		Busy self = busy.get();
+		if ( self.on ) return;
+		self.on = true;
+		try {
+			for( Binding b : bindings( methodId ) ) {
+				if ( b.when == Property.ON_ENTRY ) {
+					step( b, methodId, receiver );
+				}
+			}
+		} finally {
+			self.on = false;
+		}
+	}
+
+	/**
+	 * A return from method {@code methodId} on {@code receiver}, with
+	 * {@code value} encoded as for {@link Property#RETURNS}.
+	 */
+	public static void returned( int methodId, Object receiver, long value ) {
+		if ( receiver == null ) return;
+		Busy self = busy.get();
+		if ( self.on ) return;
+		self.on = true;
+		try {
+			for( Binding b : bindings( methodId ) ) {
+				if ( b.when == Property.ON_RETURN || ( b.when == Property.RETURNS && b.value == value ) ) {
+					step( b, methodId, receiver );
+				}
+			}
+		} finally {
+			self.on = false;
+		}
+	}
+
+	private static void step( Binding b, int methodId, Object receiver ) {
+		int state = b.property.step( receiver, b.event );
+		if ( state >= 0 ) {
+			b.property.violations.incrementAndGet();
+			report( b.property, state, b.event, methodId, receiver );
+		}
+	}
+
+	private static Binding[] bindings( int methodId ) {
+		Binding[][] all = bindings;
+		Binding[]   b   = ( methodId < all.length )? all[ methodId ] : null;
+		return ( b != null )? b : bind( methodId );
+	}
+
+	private static synchronized Binding[] bind( int methodId ) {
+		Binding[][] all = bindings;
+		if ( methodId >= all.length ) {
+			all = Arrays.copyOf( all, Math.max( methodId + 1, 2 * all.length ) );
+		} else if ( all[ methodId ] != null ) {
+			return all[ methodId ];
+		}
+		String className = MethodRegistry.className( methodId );
+		String name      = MethodRegistry.name( methodId );
+		ArrayList< Binding > found = new ArrayList< Binding >();
+		for( Property property : properties ) {
+			for( Property.Pattern p : property.patterns ) {
+				if ( p.matches( className, name ) ) {
+					found.add( new Binding( property, p ) );
+				}
+			}
+		}
+		Binding[] b = found.isEmpty()? NO_BINDINGS : found.toArray( new Binding[ found.size() ] );
+		all[ methodId ] = b;
+		bindings = all;
+		return b;
+	}
+
+	private static synchronized void report( Property property, int state, int event, int methodId, Object receiver ) {
+		if ( out == null ) return;
+		try {
+			String line = System.currentTimeMillis() + " [" + Thread.currentThread().getName() + "] "
+					+ property.name + ": " + property.events[ event ] + " in state " + property.states[ state ]
+					+ ", at " + TraceFormat.longName( MethodRegistry.className( methodId ),
+							MethodRegistry.name( methodId ), MethodRegistry.descriptor( methodId ) )
+					+ " on " + receiver.getClass().getName() + "@"
+					+ Integer.toHexString( System.identityHashCode( receiver ) ) + "\n";
+			out.write( line.getBytes( "UTF-8" ) );
+			out.flush();
+		} catch ( IOException ex ) {
+			System.err.println( "*** Cannot write the ParaTracer violations: " + ex.getMessage() );
+			out = null;
+		}
+	}
+
+	/** The number of violations of every property, one line each. */
+	public static String[] violationCounts() {
+		Property[] p     = properties;
+		String[]   lines = new String[ p.length ];
+		for(int i=0; i < p.length; ++i) {
+			lines[i] = p[i].name() + " " + p[i].violations();
+		}
+		return lines;
+	}
+
+	/** True once the check mode is on. */
+	public static boolean isOn() {
+		return violationsFile != null;
+	}
+}
@@ -0,0 +1,89 @@
+package Logging;
+
+/**
+ * Decides which calls are traced when only a sample of them is wanted.
+ * The decision is made once per call, at its START; the END of a call
+ * that was not sampled is not recorded either (see
+ * {@link ThreadBuffer#admit}).
+ *
+ * <ul>
+ * <li>{@link #METHOD}: 1 of every {@code rate} calls of each method, on
+ *     each thread.</li>
+ * <li>{@link #THREAD}: every call made by 1 of every {@code rate}
+ *     threads.</li>
+ * <li>{@link #OBJECT}: every call on 1 of every {@code rate} receiver
+ *     objects, so the parametric trace of a sampled object is complete.
+ *     Static calls have no receiver and are always traced.</li>
+ * </ul>
+ *
+ * <p>Threads and objects are picked by hashing their identity with the
+ * {@code seed}, so a run can be repeated with the same choice of threads
+ * (and, as far as identity hashes repeat, of objects).</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class Sampler {
+
+	public static final int NONE   = 0;
+	public static final int METHOD = 1;
+	public static final int THREAD = 2;
+	public static final int OBJECT = 3;
+
+	private static final String[] MODE_NAMES = { "none", "method", "thread", "object" };
+
+	static int  mode = NONE;
+	static int  rate = 1;
+	static long seed = System.nanoTime();
+
+	private Sampler() {}
+
+	/**
+	 * Sets the sampling mode ({@code none}, {@code method}, {@code thread}
+	 * or {@code object}) and keeps 1 of every {@code rate} calls,
+	 * threads or objects. It must be called before tracing starts.
+	 */
+	public static void configure( String modeName, int rate ) {
+		int m = -1;
+		for(int i=0; i < MODE_NAMES.length; ++i) {
+			if ( MODE_NAMES[i].equalsIgnoreCase( modeName ) ) {
+				m = i;
+			}
+		}
+		if ( m < 0 ) {
+			throw new IllegalArgumentException( "Unknown sampling mode: " + modeName );
+		}
+		if ( rate < 1 ) {
+			throw new IllegalArgumentException( "Sampling rate must be at least 1: " + rate );
+		}
+		Sampler.mode = ( rate == 1 )? NONE : m;
+		Sampler.rate = rate;
+	}
+
+	public static void setSeed( long seed ) {
+		Sampler.seed = seed;
+	}
+
+	/** The header line that records the sampling parameters. */
+	static String describe() {
+		if ( mode == NONE ) {
+			return "Sampling: none";
+		}
+		return "Sampling: " + MODE_NAMES[ mode ] + " 1/" + rate + " seed=" + seed;
+	}
+
+	static boolean admitsThread( long threadId ) {
+		return mode != THREAD || pick( threadId );
+	}
+
+	static boolean admitsObject( Object obj ) {
+		return obj == null || pick( System.identityHashCode( obj ) );
+	}
+
+	/** Keeps 1 of every {@code rate} keys, evenly whatever the keys are. */
+	private static boolean pick( long key ) {
+		long h = ( key ^ seed ) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return ( ( h & 0x7FFFFFFFL ) % rate ) == 0;
+	}
+}
@@ -0,0 +1,205 @@
+package Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the trace into a series of fixed-size segment files,
+ * {@code <baseName>-000001.ptrc}, {@code <baseName>-000002.ptrc}, ...,
+ * through memory-mapped buffers.
+ *
+ * <p>Only the drainer thread calls this class, so application threads
+ * never wait for the disk. The drainer does not wait either: a helper
+ * thread maps the next segment ahead of time, and finishes the previous
+ * one (forces it to disk if asked to, trims it to its used size, and
+ * deletes the segments beyond the retention count) in the background.</p>
+ *
+ * <p>The unused tail of a segment is zero-filled, and a zero record kind
+ * ({@link TraceFormat#PADDING}) ends the segment for the readers, so a
+ * segment that could not be trimmed (or was cut short by a crash) still
+ * decodes.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+final class SegmentWriter extends TraceWriter {
+
+	/** Leave flushing to the operating system. */
+	static final int FSYNC_NONE    = 0;
+	/** Force every segment to disk once it is full. */
+	static final int FSYNC_SEGMENT = 1;
+	/** Force the current segment to disk after every drain sweep. */
+	static final int FSYNC_BATCH   = 2;
+
+	private static final class Segment {
+		final File             file;
+		final RandomAccessFile raf;
+		final FileChannel      channel;
+		MappedByteBuffer       map;
+		long                   mapStart;
+
+		Segment( File file, long size ) throws IOException {
+			this.file    = file;
+			this.raf     = new RandomAccessFile( file, "rw" );
+			this.channel = raf.getChannel();
+			this.map     = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+
+		long size() {
+			return mapStart + map.position();
+		}
+	}
+
+	private final File            dir;
+	private final String          baseName;
+	private final long            segmentSize;
+	private final int             retain;
+	private final int             fsync;
+	private final ExecutorService helper;
+	private final ArrayList<File> finished = new ArrayList<File>();
+
+	private int                   index;
+	private Segment               current;
+	private Future<Segment>       next;
+
+	SegmentWriter( File dir, String baseName, long segmentSize, int retain, int fsync )
+			throws IOException {
+		this.dir         = dir;
+		this.baseName    = baseName;
+		this.segmentSize = segmentSize;
+		this.retain      = retain;
+		this.fsync       = fsync;
+		this.helper      = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = EventRecorder.newInternalThread( "ParaTracer-SegmentWriter", r );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+		dir.mkdirs();
+		current = new Segment( segmentFile( ++index ), segmentSize );
+		next    = prepare( index + 1 );
+	}
+
+	@Override
+	long remaining() {
+		return current.map.remaining();
+	}
+
+	File currentFile() {
+		return current.file;
+	}
+
+	@Override
+	void write( byte[] b, int off, int len ) throws IOException {
+		Segment s = current;
+		if ( s.map.remaining() < len ) {
+			long start = s.size();
+			s.map      = s.channel.map( FileChannel.MapMode.READ_WRITE, start,
+					Math.max( len, segmentSize / 4 ) );
+			s.mapStart = start;
+		}
+		s.map.put( b, off, len );
+	}
+
+	/** Moves on to the next segment, which the helper has already mapped. */
+	@Override
+	void roll() throws IOException {
+		final Segment old = current;
+		try {
+			current = next.get();
+		} catch ( Exception e ) {
+			throw new IOException( "Cannot open the next trace segment", e );
+		}
+		next = prepare( ++index + 1 );
+		helper.submit( new Runnable() {
+			@Override
+			public void run() {
+				finish( old );
+			}
+		});
+	}
+
+	@Override
+	void sync() {
+		if ( fsync == FSYNC_BATCH ) {
+			current.map.force();
+		}
+	}
+
+	@Override
+	void close() throws IOException {
+		Segment last = current;
+		current = null;
+		helper.shutdown();
+		try {
+			helper.awaitTermination( 1, TimeUnit.MINUTES );
+			Segment unused = next.get();
+			unused.raf.close();
+			unused.file.delete();
+		} catch ( Exception e ) {
+			// Nothing more to clean up.
+		}
+		if ( fsync != FSYNC_NONE ) {
+			last.map.force();
+		}
+		trim( last );
+	}
+
+	private Future<Segment> prepare( final int i ) {
+		return helper.submit( new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException {
+				return new Segment( segmentFile( i ), segmentSize );
+			}
+		});
+	}
+
+	/** Helper thread: completes a segment the drainer is done with. */
+	private void finish( Segment s ) {
+		if ( fsync != FSYNC_NONE ) {
+			s.map.force();
+		}
+		trim( s );
+		finished.add( s.file );
+		while ( retain > 0 && finished.size() >= retain ) {
+			finished.remove( 0 ).delete();
+		}
+	}
+
+	private static void trim( Segment s ) {
+		try {
+			long size = s.size();
+			s.map = null;
+			// This fails on platforms that cannot truncate a mapped file;
+			// the zero-filled tail is then simply left in place.
+			s.raf.setLength( size );
+		} catch ( IOException e ) {
+			// Keep the padding.
+		}
+		try {
+			s.raf.close();
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+
+	private File segmentFile( int i ) {
+		String n = Integer.toString( i );
+		while ( n.length() < 6 ) {
+			n = "0" + n;
+		}
+		return new File( dir, baseName + "-" + n + ".ptrc" );
+	}
+}
@@ -0,0 +1,645 @@
+package Logging;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A per-thread event buffer. Every application thread owns exactly one
+ * {@code ThreadBuffer}, which it fills without taking any lock. The buffer
+ * is a ring of fixed-size chunks: the owning thread appends events into
+ * the chunk at {@code head}, and publishes it once it is full. The
+ * {@link EventRecorder} drainer thread consumes published chunks from
+ * {@code tail} and writes them to storage. Every record is stamped with
+ * the time it was written, relative to the previous record of its chunk,
+ * so that the readers can merge the threads back into recording order.
+ *
+ * <p>Only the owning thread writes {@code head}, and only the drainer
+ * writes {@code tail}, so the ring is a single-producer/single-consumer
+ * queue and needs no locks.</p>
+ *
+ * <p>When the ring is full, the owner applies the backpressure policy of
+ * the recorder (see {@link EventRecorder#BACKPRESSURE_BLOCK}): it waits
+ * for the drainer, drops its new events, or keeps only a sample of its
+ * calls. A dropped event is still written, but into a private spill
+ * chunk that is never published, so the probes and the shadow stack work
+ * the same way for it. The number of events dropped is then written into
+ * the ring as a {@link TraceFormat#LOST} record, at the place of the gap.
+ * The sample policy decides on entry, like the {@link Sampler}, so a call
+ * is kept or left out whole; the events of the calls it leaves out are
+ * counted in one LOST record at the end of the chunk.</p>
+ *
+ * <p>The buffer also holds the thread's shadow stack: one frame per
+ * monitored call in progress, with the method ID and the receiver and
+ * argument values recorded at entry. The END event of the call repeats
+ * them, so every event is self-contained, and exits never allocate or
+ * lock to find them. A call that the {@link Sampler} leaves out gets a
+ * "skipped" frame instead, without any slot, so its exit is left out
+ * too. An exit that matches no frame, because its call started while
+ * tracing was paused, is left out as well, and the stack is left as it
+ * is (see {@link #exitTraced}).</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class ThreadBuffer {
+
+	public  final Thread   thread;
+	public  final long     threadId;
+
+	private final byte[][] chunks;
+	private final int[]    lengths;
+	private final int      chunkSize;
+
+	/** Number of chunks published by the owner thread. */
+	private volatile long  head;
+	/** Number of chunks consumed by the drainer thread. */
+	private volatile long  tail;
+
+	private byte[]         cur;
+	private int            pos;
+	/**
+	 * The time of the last record written into the current chunk, or 0
+	 * if none; the time of a record is written relative to it (see
+	 * {@link TraceFormat}).
+	 */
+	private long           lastTime;
+
+	/**
+	 * The end of the last complete record in the current chunk, with the
+	 * number of that chunk ({@code head}) in the high 32 bits. The owner
+	 * sets it with an ordered write after every record, and the drainer
+	 * reads it at shutdown, so that it takes the current chunk of a live
+	 * thread up to a record boundary only.
+	 */
+	private volatile long  committed;
+	private static final AtomicLongFieldUpdater< ThreadBuffer > COMMITTED =
+			AtomicLongFieldUpdater.newUpdater( ThreadBuffer.class, "committed" );
+	/**
+	 * Set by the drainer once it has taken the current chunk for good;
+	 * the owner then never writes into the ring again.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Set while the owner thread is inside the recorder. Any monitored
+	 * call made by the recorder itself (e.g. a JDK collection it uses)
+	 * sees this flag and is not recorded, which prevents infinite
+	 * recursion.
+	 */
+	public boolean         busy;
+
+	/** Set by the drainer once the owner has died and has been drained. */
+	boolean                retired;
+	/** Set by the drainer once it has written the THREAD record. */
+	boolean                announced;
+
+	// The shadow stack. Frame f holds method frameMethod[f], whose
+	// receiver and arguments are in slots frameStart[f] to
+	// frameStart[f+1] (or slotCount) of slotTags/slotValues. A skipped
+	// frame holds the negated method ID. frameResumes[f] is the value of
+	// Logger.resumes when the frame was pushed.
+	private int[]          frameMethod  = new int [32];
+	private int[]          frameStart   = new int [32];
+	private int[]          frameResumes = new int [32];
+	private int            depth;
+	private byte[]         slotTags    = new byte[128];
+	private long[]         slotValues  = new long[128];
+	private int            slotCount;
+	/** True while the values of a START event are being put. */
+	private boolean        entering;
+
+	// Sampling: the calls of each method since the last sampled one, and
+	// whether this thread is one of the sampled threads.
+	private int[]          methodTicks = new int[0];
+	private final boolean  threadSampled;
+
+	// Throttling: the calls of each method made by this thread so far,
+	// and (for the drainer) the part of them it has already collected.
+	private volatile int[] methodCalls = new int[0];
+	private int[]          callsSeen   = new int[0];
+
+	// Backpressure. While an event is shed, cur is the spill chunk and
+	// the position in the ring chunk is kept aside.
+	private byte[]         spill;
+	private boolean        shedding;
+	private byte[]         keptChunk;
+	private int            keptPos;
+	private long           keptTime;
+	/** Events dropped since the last LOST record. */
+	private long           dropped;
+	/** Under the sample policy, 1 of every sampleRate calls is kept. */
+	private int            sampleRate = 1;
+	private int            sampleTick;
+
+	// The stack behind the legacy Logger.pushArgs/popArgs.
+	private String[]       legacyArgs  = new String[16];
+	private int            legacyDepth;
+
+	ThreadBuffer( Thread thread, int chunkSize, int chunkCount ) {
+		this.thread    = thread;
+		this.threadId  = ( thread == null )? -1 : thread.getId();
+		this.chunkSize = chunkSize;
+		this.chunks    = new byte[ chunkCount ][];
+		this.lengths   = new int [ chunkCount ];
+		this.threadSampled = Sampler.admitsThread( threadId );
+	}
+
+	/**
+	 * A buffer that never records anything. It is handed out to the
+	 * recorder's own threads.
+	 */
+	static ThreadBuffer suppressed( Thread thread ) {
+		ThreadBuffer tb = new ThreadBuffer( thread, 0, 0 );
+		tb.busy = true;
+		return tb;
+	}
+
+	/**
+	 * Appends a {@link TraceFormat#TEXT} record holding {@code str} (and
+	 * a line terminator if {@code newline} is true). Characters are
+	 * encoded straight into the chunk, so no intermediate {@code byte[]}
+	 * is allocated. Text that would not fit in one chunk is truncated.
+	 */
+	public void writeText( String str, boolean newline ) {
+		int len   = str.length();
+		int limit = ( chunkSize - 8 * TraceFormat.MAX_VARINT ) / 3;
+		if ( len > limit ) {
+			len = limit;
+			if ( Character.isHighSurrogate( str.charAt( len - 1 ) ) ) {
+				--len; // Do not cut a surrogate pair.
+			}
+		}
+		int size = TraceFormat.utf8Length( str, len ) + ( newline? 1 : 0 );
+		reserve( 1 + 2 * TraceFormat.MAX_VARINT + size );
+		byte[] buf = cur;
+		int    p   = pos;
+		buf[p++] = TraceFormat.TEXT;
+		p = putTime( buf, p );
+		p = TraceFormat.putVarint( buf, p, size );
+		p = TraceFormat.putUtf8( buf, p, str, len );
+		if ( newline ) {
+			buf[p++] = (byte) '\n';
+		}
+		pos = p;
+		if ( shedding ) {
+			unshed();
+		}
+		COMMITTED.lazySet( this, ( head << 32 ) | pos );
+	}
+
+	/**
+	 * Decides, through the {@link Throttle} and the {@link Sampler},
+	 * whether the call of {@code methodId} starting now is traced. If it
+	 * is not, a skipped frame is pushed, so that {@link #exitTraced} leaves
+	 * its exit out too.
+	 */
+	boolean admit( int methodId, Object receiver ) {
+		boolean in = true;
+		if ( Throttle.budget > 0 ) {
+			in = throttle( methodId );
+		}
+		if ( in && Sampler.mode != Sampler.NONE ) {
+			in = sample( methodId, receiver );
+		}
+		if ( in && sampleRate > 1 && ( ++sampleTick & ( sampleRate - 1 ) ) != 0 ) {
+			// Left out under backpressure: its START and its exit are lost.
+			dropped += 2;
+			in = false;
+		}
+		if ( ! in ) {
+			pushFrame( -methodId );
+		}
+		return in;
+	}
+
+	/** Counts the call, and keeps 1 of every {@code 1 << level} of them. */
+	private boolean throttle( int methodId ) {
+		int[] calls = methodCalls;
+		if ( methodId >= calls.length ) {
+			calls = Arrays.copyOf( calls, Math.max( methodId + 1, 2 * calls.length ) );
+			methodCalls = calls;
+		}
+		int c = calls[ methodId ]++;
+		int level = Throttle.level( methodId );
+		return level == 0 || ( level != Throttle.OFF && ( c & ( ( 1 << level ) - 1 ) ) == 0 );
+	}
+
+	/**
+	 * Called by the drainer only: adds the calls made since the last
+	 * collection to {@code calls}. The counts are read without any
+	 * synchronization, so they are only approximately up to date.
+	 */
+	void collectCalls( long[] calls ) {
+		int[] made = methodCalls;
+		if ( callsSeen.length < made.length ) {
+			callsSeen = Arrays.copyOf( callsSeen, made.length );
+		}
+		int n = Math.min( made.length, calls.length );
+		for(int id=0; id < n; ++id) {
+			int c = made[id];
+			calls[id]    += c - callsSeen[id];
+			callsSeen[id] = c;
+		}
+	}
+
+	private boolean sample( int methodId, Object receiver ) {
+		switch ( Sampler.mode ) {
+		case Sampler.METHOD: {
+			if ( methodId >= methodTicks.length ) {
+				methodTicks = Arrays.copyOf( methodTicks, Math.max( methodId + 1, 2 * methodTicks.length ) );
+			}
+			int t = methodTicks[ methodId ];
+			methodTicks[ methodId ] = ( t + 1 == Sampler.rate )? 0 : t + 1;
+			return t == 0;
+		}
+		case Sampler.THREAD:
+			return threadSampled;
+		default:
+			return Sampler.admitsObject( receiver );
+		}
+	}
+
+	/**
+	 * Finds the frame that the exit of {@code methodId} belongs to, and
+	 * returns true if its call was traced; the frame is then on top of the
+	 * stack. A skipped frame is popped, and false returned.
+	 *
+	 * <p>Only the frames pushed before tracing last resumed may have lost
+	 * their exit, while it was paused: they are passed over, and popped
+	 * if the frame is found below them. A frame pushed since always sees
+	 * its exit, so the search stops there. If no frame is found, the call
+	 * started while tracing was paused; false is returned and the stack
+	 * is left as it is, so the calls that were traced keep their frames.</p>
+	 */
+	boolean exitTraced( int methodId ) {
+		int resumed = Logger.resumes;
+		int f = depth;
+		while ( f > 0 && frameMethod[ f - 1 ] != methodId && frameMethod[ f - 1 ] != -methodId ) {
+			if ( frameResumes[ f - 1 ] == resumed ) return false;
+			--f;
+		}
+		if ( f == 0 ) return false;
+		while ( depth > f ) {
+			popFrame();
+		}
+		if ( frameMethod[ depth - 1 ] < 0 ) {
+			popFrame();
+			return false;
+		}
+		return true;
+	}
+
+	private void pushFrame( int methodId ) {
+		if ( depth == frameMethod.length ) {
+			growFrames();
+		}
+		frameMethod [depth] = methodId;
+		frameStart  [depth] = slotCount;
+		frameResumes[depth] = Logger.resumes;
+		++depth;
+	}
+
+	private void growFrames() {
+		frameMethod  = Arrays.copyOf( frameMethod,  2 * depth );
+		frameStart   = Arrays.copyOf( frameStart,   2 * depth );
+		frameResumes = Arrays.copyOf( frameResumes, 2 * depth );
+	}
+
+	private void popFrame() {
+		--depth;
+		slotCount = frameStart[depth];
+	}
+
+	/**
+	 * Starts a {@link TraceFormat#START} record and pushes a frame onto
+	 * the shadow stack. It must be followed by exactly {@code argc} calls
+	 * to the {@code put} methods, then by {@link #commit}. Everything that
+	 * may fail comes before the first byte of the record, and the values
+	 * go into the room reserved here, so a failure never leaves half a
+	 * record behind.
+	 */
+	public void beginStart( int methodId, Object receiver, int argc ) {
+		long id = ObjectIds.id( receiver );
+		if ( slotCount + argc + 1 > slotTags.length ) {
+			int size = 2 * ( slotCount + argc + 1 );
+			slotTags   = Arrays.copyOf( slotTags,   size );
+			slotValues = Arrays.copyOf( slotValues, size );
+		}
+		if ( depth == frameMethod.length ) {
+			growFrames();
+		}
+		reserve( 1 + 4 * TraceFormat.MAX_VARINT + argc * TraceFormat.MAX_VALUE );
+		byte[] buf = cur;
+		int    p   = pos;
+		buf[p++] = TraceFormat.START;
+		p = putTime( buf, p );
+		p = TraceFormat.putVarint( buf, p, methodId );
+		p = TraceFormat.putVarint( buf, p, id );
+		p = TraceFormat.putVarint( buf, p, argc );
+		pos = p;
+
+		pushFrame( methodId );
+		slotTags  [slotCount] = TraceFormat.TAG_OBJECT;
+		slotValues[slotCount] = id;
+		++slotCount;
+		entering = true;
+	}
+
+	/**
+	 * Starts a {@link TraceFormat#END} record, which repeats the receiver
+	 * and the arguments popped from the shadow stack. It must be followed
+	 * by exactly one call to a {@code put} method (the return value), then
+	 * by {@link #commit}. The frame of the call must be on top of the
+	 * stack, as {@link #exitTraced} leaves it.
+	 */
+	public void beginEnd( int methodId ) {
+		beginExit( TraceFormat.END, methodId, 1 );
+	}
+
+	/**
+	 * Writes a complete {@link TraceFormat#THROW} record: the call of
+	 * {@code methodId} was left by an exception of class {@code classId}.
+	 * Its frame is popped off the shadow stack like that of an END. It
+	 * must be followed by {@link #commit}.
+	 */
+	public void writeThrow( int methodId, int classId ) {
+		beginExit( TraceFormat.THROW, methodId, 0 );
+		pos = TraceFormat.putVarint( cur, pos, classId );
+	}
+
+	/**
+	 * Writes the head of an exit record of the given kind, with the
+	 * receiver and the arguments of the frame it pops, and room for
+	 * {@code values} more values.
+	 */
+	private void beginExit( int kind, int methodId, int values ) {
+		// The frame of the call is on top (see exitTraced). The stack is
+		// only changed once the room is reserved, which may fail.
+		int first = ( depth > 0 )? frameStart[ depth - 1 ] : slotCount;
+		int argc  = ( slotCount > first )? slotCount - first - 1 : 0;
+		reserve( 1 + 5 * TraceFormat.MAX_VARINT + ( argc + values ) * TraceFormat.MAX_VALUE );
+		if ( depth > 0 ) {
+			--depth;
+		}
+		byte[] buf = cur;
+		int    p   = pos;
+		buf[p++] = (byte) kind;
+		p = putTime( buf, p );
+		p = TraceFormat.putVarint( buf, p, methodId );
+		p = TraceFormat.putVarint( buf, p, ( slotCount > first )? slotValues[first] : 0 );
+		p = TraceFormat.putVarint( buf, p, argc );
+		for(int i = first + 1; i < slotCount; ++i) {
+			buf[p] = slotTags[i];
+			p = TraceFormat.putVarint( buf, p + 1, slotValues[i] );
+		}
+		pos = p;
+		slotCount = first;
+	}
+
+	public void putVoid() {
+		cur[pos++] = TraceFormat.TAG_VOID;
+	}
+
+	public void putBoolean( boolean v ) {
+		put( TraceFormat.TAG_BOOLEAN, v? 1 : 0 );
+	}
+
+	public void putChar( char v ) {
+		put( TraceFormat.TAG_CHAR, v );
+	}
+
+	/** Also used for {@code byte} and {@code short} values. */
+	public void putInt( int v ) {
+		put( TraceFormat.TAG_INT, TraceFormat.zigzag( v ) );
+	}
+
+	public void putLong( long v ) {
+		put( TraceFormat.TAG_LONG, TraceFormat.zigzag( v ) );
+	}
+
+	public void putFloat( float v ) {
+		put( TraceFormat.TAG_FLOAT, Float.floatToRawIntBits( v ) & 0xFFFFFFFFL );
+	}
+
+	public void putDouble( double v ) {
+		put( TraceFormat.TAG_DOUBLE, Double.doubleToRawLongBits( v ) );
+	}
+
+	public void putObject( Object v ) {
+		put( TraceFormat.TAG_OBJECT, ObjectIds.id( v ) );
+	}
+
+	/** Puts the time of the record being written; returns the new position. */
+	private int putTime( byte[] buf, int p ) {
+		long time = EventRecorder.time();
+		p = TraceFormat.putVarint( buf, p, time - lastTime );
+		lastTime = time;
+		return p;
+	}
+
+	/** Puts an already encoded value, and keeps it in the frame if entering. */
+	private void put( byte tag, long encoded ) {
+		byte[] buf = cur;
+		buf[pos] = tag;
+		pos = TraceFormat.putVarint( buf, pos + 1, encoded );
+		if ( entering ) {
+			slotTags  [slotCount] = tag;
+			slotValues[slotCount] = encoded;
+			++slotCount;
+		}
+	}
+
+	/** Ends the record started by {@code beginStart} or {@code beginEnd}. */
+	public void commit() {
+		if ( shedding ) {
+			unshed();
+		}
+		COMMITTED.lazySet( this, ( head << 32 ) | pos );
+		entering = false;
+		busy     = false;
+	}
+
+	/** Number of monitored calls in progress on this thread. */
+	public int depth() {
+		return depth;
+	}
+
+	void pushLegacy( String args ) {
+		if ( legacyDepth == legacyArgs.length ) {
+			legacyArgs = Arrays.copyOf( legacyArgs, 2 * legacyDepth );
+		}
+		legacyArgs[ legacyDepth++ ] = args;
+	}
+
+	String popLegacy() {
+		if ( legacyDepth == 0 ) return null;
+		String args = legacyArgs[ --legacyDepth ];
+		legacyArgs[ legacyDepth ] = null;
+		return args;
+	}
+
+	/**
+	 * Makes room for an event of at most {@code n} bytes, or sheds the
+	 * event if the backpressure policy says so. The count of the events
+	 * dropped while the ring was full goes in first, at the start of the
+	 * new chunk.
+	 */
+	private void reserve( int n ) {
+		ensure( ( dropped > 0 )? n + LOST_SIZE : n );
+		if ( dropped > 0 && pos == 0 && ! shedding ) {
+			writeLost();
+		}
+	}
+
+	/** Writes a LOST record of the pending count; the room is kept free. */
+	private void writeLost() {
+		byte[] buf = cur;
+		buf[pos] = TraceFormat.LOST;
+		pos = TraceFormat.putVarint( buf, putTime( buf, pos + 1 ), dropped );
+		dropped = 0;
+	}
+
+	/** Redirects the event being recorded into the spill chunk. */
+	private void shed() {
+		if ( spill == null ) {
+			spill = new byte[ chunkSize ];
+		}
+		keptChunk = cur;
+		keptPos   = pos;
+		keptTime  = lastTime;
+		cur       = spill;
+		pos       = 0;
+		shedding  = true;
+		++dropped;
+	}
+
+	/** Goes back to the ring chunk once a shed event is complete. */
+	private void unshed() {
+		cur       = keptChunk;
+		pos       = keptPos;
+		lastTime  = keptTime;
+		keptChunk = null;
+		shedding  = false;
+	}
+
+	/**
+	 * Makes sure that at least {@code n} bytes are free in the current
+	 * chunk, besides room for a LOST record, publishing it and moving on
+	 * to the next one if needed.
+	 */
+	private void ensure( int n ) {
+		if ( cur != null && pos + n + LOST_SIZE <= cur.length ) return;
+		if ( cur != null ) {
+			publish();
+		}
+		acquire();
+	}
+
+	private static final int LOST_SIZE = 1 + 2 * TraceFormat.MAX_VARINT;
+
+	/**
+	 * Publishes the current chunk, ended by the count of the events the
+	 * sample policy left out meanwhile.
+	 */
+	private void publish() {
+		if ( dropped > 0 ) {
+			writeLost();
+		}
+		int idx = (int)( head % chunks.length );
+		lengths[idx] = pos;
+		cur = null;
+		pos = 0;
+		head = head + 1;
+		EventRecorder.signal();
+	}
+
+	private void acquire() {
+		int policy = EventRecorder.backpressure();
+		// Once the recorder has been stopped, the drainer may be taking
+		// the chunks, and nobody will free one: the events are dropped.
+		if ( closed || ! EventRecorder.isRunning() ) {
+			shed();
+			return;
+		}
+		// Wait for the drainer to free a chunk, unless the policy is to
+		// drop events.
+		while ( head - tail >= chunks.length ) {
+			if ( closed || ! EventRecorder.isRunning() ) {
+				shed();
+				return;
+			}
+			EventRecorder.signal();
+			if ( policy != EventRecorder.BACKPRESSURE_BLOCK ) {
+				shed();
+				return;
+			}
+			LockSupport.parkNanos( 100000L );
+		}
+		if ( policy == EventRecorder.BACKPRESSURE_SAMPLE ) {
+			// Sample down while the drainer lags by half the ring, and
+			// back up as it catches up.
+			long backlog = head - tail;
+			if ( backlog >= chunks.length / 2 ) {
+				sampleRate = Math.min( 2 * sampleRate, EventRecorder.MAX_SAMPLE_RATE );
+			} else if ( backlog == 0 ) {
+				sampleRate = Math.max( sampleRate / 2, 1 );
+			}
+		}
+		int idx = (int)( head % chunks.length );
+		if ( chunks[idx] == null ) {
+			chunks[idx] = new byte[ chunkSize ];
+		}
+		cur = chunks[idx];
+		pos = 0;
+		lastTime = 0;
+	}
+
+	/** True if there is at least one published chunk to drain. */
+	boolean hasPublished() {
+		return tail < head;
+	}
+
+	/**
+	 * Called by the drainer only: writes the oldest published chunk to
+	 * storage and hands the chunk back to the owner thread.
+	 */
+	void drainOne() throws IOException {
+		int idx = (int)( tail % chunks.length );
+		EventRecorder.writeBatch( this, chunks[idx], lengths[idx] );
+		tail = tail + 1;
+	}
+
+	/**
+	 * Called by the drainer only, once the owner thread has died (or at
+	 * shutdown, once the recorder is stopped): writes the complete records
+	 * of the partially filled current chunk, and the count of the events
+	 * dropped since. The owner may still be writing, but only past the
+	 * last complete record, and never into the ring once it is closed.
+	 */
+	void drainPartial() throws IOException {
+		if ( closed ) return;
+		closed = true;
+		while ( hasPublished() ) {
+			drainOne();
+		}
+		long mark = committed;
+		int  len  = (int) mark;
+		// The mark is that of the chunk after the published ones, unless
+		// the owner has published again meanwhile, and that chunk is
+		// then left out.
+		if ( (int)( mark >>> 32 ) == (int) tail && len > 0 ) {
+			EventRecorder.writeBatch( this, chunks[ (int)( tail % chunks.length ) ], len );
+		}
+		if ( dropped > 0 ) {
+			// The count of the events dropped last has had no later event
+			// to go in front of.
+			byte[] lost = new byte[ LOST_SIZE ];
+			lost[0] = TraceFormat.LOST;
+			int p = TraceFormat.putVarint( lost, 1, EventRecorder.time() );
+			EventRecorder.writeBatch( this, lost, TraceFormat.putVarint( lost, p, dropped ) );
+			dropped = 0;
+		}
+	}
+}
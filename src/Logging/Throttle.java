@@ -0,0 +1,119 @@
+package Logging;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps hot methods from flooding the trace. Every thread counts the
+ * calls of each method (see {@link ThreadBuffer#admit}); once per window
+ * the drainer adds the counts up, and any method called more often than
+ * the budget is throttled: only 1 of every 2, 4, ... 1024 of its calls
+ * is traced, and beyond that none at all. A method whose rate goes back
+ * down recovers in the next window. Every change of level is written
+ * into the trace as a {@link TraceFormat#THROTTLE} record.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class Throttle {
+
+	/** The level of a method that is not traced at all. */
+	static final int  OFF       = 31;
+	/** The highest level short of {@link #OFF}: 1 call of every 1024. */
+	static final int  MAX_LEVEL = 10;
+	/** Length of a window, in nanoseconds. */
+	static final long WINDOW_NANOS = 1000L * 1000 * 1000;
+
+	/** Calls per second a method may make before it is throttled; 0 for no limit. */
+	static long              budget;
+	/** Level of each method: 1 of every {@code 1 << level} calls is traced. */
+	static volatile byte[]   levels = new byte[0];
+
+	/** Drainer state: when the current window started. */
+	private static long      windowStart;
+
+	private Throttle() {}
+
+	/** Sets the budget, in calls per second per method, before tracing starts. */
+	public static void setBudget( long callsPerSecond ) {
+		if ( callsPerSecond < 0 ) {
+			throw new IllegalArgumentException( "Negative throttle budget: " + callsPerSecond );
+		}
+		budget = callsPerSecond;
+	}
+
+	/** The header line that records the budget. */
+	static String describe() {
+		return ( budget > 0 )? "Throttle: " + budget + " calls/s per method" : "Throttle: off";
+	}
+
+	static int level( int methodId ) {
+		byte[] l = levels;
+		return ( methodId < l.length )? l[ methodId ] : 0;
+	}
+
+	/**
+	 * The number of calls traced per call made at {@code level}, as
+	 * written into THROTTLE records: {@code 1 << level}, or 0 for
+	 * {@link #OFF}.
+	 */
+	static long keep( int level ) {
+		return ( level == OFF )? 0 : 1L << level;
+	}
+
+	/**
+	 * Drainer only: once a window has passed, measures the call rate of
+	 * every method and changes the levels that must change, reporting
+	 * each change to the {@link EventRecorder}.
+	 */
+	static void update( ThreadBuffer[] buffers, long now ) throws IOException {
+		if ( windowStart == 0 ) {
+			windowStart = now;
+			return;
+		}
+		if ( now - windowStart < WINDOW_NANOS ) return;
+		double seconds = ( now - windowStart ) / 1e9;
+		windowStart = now;
+
+		int n = MethodRegistry.count();
+		long[] calls = new long[ n ];
+		for( ThreadBuffer tb : buffers ) {
+			tb.collectCalls( calls );
+		}
+		byte[] l = levels;
+		if ( l.length < n ) {
+			l = Arrays.copyOf( l, n );
+		}
+		for(int id=1; id < n; ++id) {
+			if ( calls[id] == 0 && l[id] == 0 ) continue;
+			double rate  = calls[id] / seconds;
+			int    level = l[id];
+			int    need  = 0;
+			while ( need <= MAX_LEVEL && rate > budget * (double)( 1L << need ) ) {
+				++need;
+			}
+			if ( need > MAX_LEVEL ) {
+				need = OFF;
+			}
+			int next = level;
+			if ( need > level ) {
+				next = need; // Throttle at once.
+			} else if ( need < level ) {
+				// Recover to the level at which the rate takes at most
+				// half of the budget, so that the level does not flap.
+				int relaxed = need;
+				while ( relaxed < MAX_LEVEL && rate > budget * (double)( 1L << relaxed ) / 2 ) {
+					++relaxed;
+				}
+				if ( relaxed < level ) {
+					next = relaxed;
+				}
+			}
+			if ( next != level ) {
+				l[id] = (byte) next;
+				EventRecorder.writeThrottle( id, keep( next ) );
+			}
+		}
+		levels = l;
+	}
+}
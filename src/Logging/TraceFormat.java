@@ -0,0 +1,237 @@
+package Logging;
+
+/**
+ * Constants and primitive encoders of the binary ParaTracer trace format.
+ *
+ * <p>A trace file starts with {@link #MAGIC} and a version byte, followed
+ * by a sequence of records. Every record starts with a one-byte kind:</p>
+ * <ul>
+ * <li>{@link #METHOD}: {@code id, class, name, descriptor, modifiers} --
+ *     defines a method ID (see {@link MethodRegistry}). It is written once,
+ *     before the first event that uses the ID.</li>
+ * <li>{@link #THREAD}: {@code tid, name} -- names a thread.</li>
+ * <li>{@link #BATCH}: {@code tid, length} -- followed by {@code length}
+ *     bytes of events, all recorded by thread {@code tid}.</li>
+ * <li>{@link #START}: {@code time, methodId, receiver, argc, argc x value}</li>
+ * <li>{@link #END}: {@code time, methodId, receiver, argc, argc x value, value}
+ *     -- repeats the receiver and the arguments of the matching START.</li>
+ * <li>{@link #THROW}: {@code time, methodId, receiver, argc, argc x value, classId}
+ *     -- like END, for a call left by an exception of class
+ *     {@code classId} (see {@link MethodRegistry#classId}).</li>
+ * <li>{@link #TEXT}: {@code time, string} -- a free text line; the
+ *     header lines, outside of batches, have no {@code time}.</li>
+ * <li>{@link #LOST}: {@code time, count} -- the thread of the batch
+ *     dropped {@code count} events at this point, under backpressure; at
+ *     the end of a batch, the calls the sample policy left out during
+ *     it.</li>
+ * <li>{@link #THROTTLE}: {@code time, methodId, keep} -- from now on only
+ *     1 of every {@code keep} calls of the method is traced; 0 means none
+ *     (see {@link Throttle}).</li>
+ * <li>{@link #PADDING}: the zero-filled, unused tail of a segment file;
+ *     it ends the segment.</li>
+ * </ul>
+ * <p>The batches of the threads follow each other in the order they
+ * were drained, not in the order their events were recorded. The
+ * {@code time} of every record inside a batch is therefore the number of
+ * nanoseconds since the previous record of the batch, or since the start
+ * of the recording for the first one; that of a THROTTLE record is the
+ * number of nanoseconds since the start of the recording. The readers
+ * merge the threads back on it (see {@code TraceTools.TraceMerger}).</p>
+ *
+ * <p>Integers are unsigned LEB128 varints; strings are a varint byte
+ * length followed by UTF-8 bytes. A value is a one-byte type tag followed
+ * by its payload: {@code 'I'} and {@code 'J'} carry a zig-zag varint,
+ * {@code 'Z'} and {@code 'C'} a varint, {@code 'F'} and {@code 'D'} the
+ * raw IEEE bits as a varint, {@code 'L'} the ID of an object, unique
+ * within the trace (see {@link ObjectIds}; {@code 0} for {@code null}),
+ * and {@code 'V'} nothing.</p>
+ *
+ * <p>A compressed trace file starts with {@link #BLOCKS_MAGIC} instead,
+ * and holds the same records in compressed blocks (see
+ * {@link BlockWriter}).</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class TraceFormat {
+
+	public static final byte[] MAGIC   = { 'P', 'T', 'R', 'C' };
+	public static final int    VERSION = 8;
+
+	public static final byte[] BLOCKS_MAGIC   = { 'P', 'T', 'R', 'Z' };
+	public static final int    BLOCKS_VERSION = 1;
+	/** Ends the footer of a compressed trace file. */
+	public static final int    FOOTER_MAGIC   = 0x50545A49; // "PTZI"
+
+	public static final int PADDING  = 0;
+	public static final int METHOD   = 1;
+	public static final int THREAD   = 2;
+	public static final int BATCH    = 3;
+	public static final int START    = 4;
+	public static final int END      = 5;
+	public static final int TEXT     = 6;
+	public static final int LOST     = 7;
+	public static final int THROTTLE = 8;
+	public static final int THROW    = 9;
+
+	public static final byte TAG_VOID    = 'V';
+	public static final byte TAG_BOOLEAN = 'Z';
+	public static final byte TAG_CHAR    = 'C';
+	public static final byte TAG_INT     = 'I';
+	public static final byte TAG_LONG    = 'J';
+	public static final byte TAG_FLOAT   = 'F';
+	public static final byte TAG_DOUBLE  = 'D';
+	public static final byte TAG_OBJECT  = 'L';
+
+	/** Largest encoding of one varint, in bytes. */
+	public static final int MAX_VARINT = 10;
+	/** Largest encoding of one tagged value, in bytes. */
+	public static final int MAX_VALUE  = 1 + MAX_VARINT;
+
+	private TraceFormat() {}
+
+	/** Writes {@code v} as an unsigned varint; returns the new position. */
+	public static int putVarint( byte[] buf, int pos, long v ) {
+		while ( ( v & ~0x7FL ) != 0 ) {
+			buf[pos++] = (byte)( ( v & 0x7F ) | 0x80 );
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+	public static long zigzag( long v ) {
+		return ( v << 1 ) ^ ( v >> 63 );
+	}
+
+	public static long unzigzag( long v ) {
+		return ( v >>> 1 ) ^ -( v & 1 );
+	}
+
+	/** Number of bytes {@code v} takes as an unsigned varint. */
+	public static int varintSize( long v ) {
+		int n = 1;
+		while ( ( v & ~0x7FL ) != 0 ) {
+			v >>>= 7;
+			++n;
+		}
+		return n;
+	}
+
+	/** Number of bytes the first {@code len} chars of {@code str} take in UTF-8. */
+	public static int utf8Length( String str, int len ) {
+		int n = len;
+		for(int i=0; i < len; ++i) {
+			char c = str.charAt( i );
+			if ( c < 0x80 ) continue;
+			if ( c < 0x800 ) {
+				n += 1;
+			} else if ( isPair( str, i, len ) ) {
+				n += 2; // 4 bytes for the 2 chars.
+				++i;
+			} else if ( ! Character.isSurrogate( c ) ) {
+				n += 2;
+			}
+		}
+		return n;
+	}
+
+	/** True if chars {@code i} and {@code i+1} of {@code str} are a surrogate pair. */
+	private static boolean isPair( String str, int i, int len ) {
+		return Character.isHighSurrogate( str.charAt( i ) ) && i + 1 < len
+				&& Character.isLowSurrogate( str.charAt( i + 1 ) );
+	}
+
+	/**
+	 * Writes the first {@code len} chars of {@code str} as UTF-8, without
+	 * allocating an intermediate array; returns the new position. A
+	 * surrogate pair is one 4-byte sequence, and a lone surrogate is
+	 * written as '?', as {@code String.getBytes} does.
+	 */
+	public static int putUtf8( byte[] buf, int pos, String str, int len ) {
+		for(int i=0; i < len; ++i) {
+			char c = str.charAt( i );
+			if ( c < 0x80 ) {
+				buf[pos++] = (byte) c;
+			} else if ( c < 0x800 ) {
+				buf[pos++] = (byte) ( 0xC0 | ( c >> 6 ) );
+				buf[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+			} else if ( isPair( str, i, len ) ) {
+				int cp = Character.toCodePoint( c, str.charAt( ++i ) );
+				buf[pos++] = (byte) ( 0xF0 | ( cp >> 18 ) );
+				buf[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+				buf[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+				buf[pos++] = (byte) ( 0x80 | ( cp & 0x3F ) );
+			} else if ( Character.isSurrogate( c ) ) {
+				buf[pos++] = (byte) '?';
+			} else {
+				buf[pos++] = (byte) ( 0xE0 | ( c >> 12 ) );
+				buf[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+				buf[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the name of a method the way {@code CtMethod.getLongName()}
+	 * does, e.g. {@code java.util.HashMap.put(java.lang.Object,java.lang.Object)}.
+	 * An entry without a descriptor stands for a class, and is named by
+	 * the class name alone.
+	 */
+	public static String longName( String className, String name, String descriptor ) {
+		if ( descriptor.length() == 0 ) return className;
+		StringBuilder sb = new StringBuilder();
+		sb.append( className ).append( '.' ).append( name ).append( '(' );
+		int i = 1;
+		while ( i < descriptor.length() && descriptor.charAt( i ) != ')' ) {
+			if ( i > 1 ) {
+				sb.append( ',' );
+			}
+			int dims = 0;
+			while ( descriptor.charAt( i ) == '[' ) {
+				++dims;
+				++i;
+			}
+			char c = descriptor.charAt( i );
+			if ( c == 'L' ) {
+				int semi = descriptor.indexOf( ';', i );
+				sb.append( descriptor.substring( i + 1, semi ).replace( '/', '.' ) );
+				i = semi + 1;
+			} else {
+				sb.append( primitiveName( c ) );
+				++i;
+			}
+			for(int d=0; d < dims; ++d) {
+				sb.append( "[]" );
+			}
+		}
+		return sb.append( ')' ).toString();
+	}
+
+	private static String primitiveName( char c ) {
+		switch ( c ) {
+		case 'Z': return "boolean";
+		case 'B': return "byte";
+		case 'C': return "char";
+		case 'S': return "short";
+		case 'I': return "int";
+		case 'J': return "long";
+		case 'F': return "float";
+		case 'D': return "double";
+		default:  return "void";
+		}
+	}
+
+	/** Renders a decoded value the way the text trace always has. */
+	public static String valueToString( int tag, long value ) {
+		switch ( tag ) {
+		case TAG_VOID:    return "VOID";
+		case TAG_BOOLEAN: return ( value != 0 )? "true" : "false";
+		case TAG_CHAR:    return String.valueOf( (char) value );
+		case TAG_FLOAT:   return String.valueOf( Float.intBitsToFloat( (int) value ) );
+		case TAG_DOUBLE:  return String.valueOf( Double.longBitsToDouble( value ) );
+		default:          return String.valueOf( value );
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package Logging;
+
+import java.io.IOException;
+
+/**
+ * Where the drainer writes the trace: plain, memory-mapped segments
+ * ({@link SegmentWriter}), or segments of compressed blocks
+ * ({@link BlockWriter}). Only the drainer thread calls it.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+abstract class TraceWriter {
+
+	/** Bytes that still fit in the current segment. */
+	abstract long remaining();
+
+	/**
+	 * Appends {@code len} bytes. A write that does not fit in the segment
+	 * extends it rather than splitting a record across two files.
+	 */
+	abstract void write( byte[] b, int off, int len ) throws IOException;
+
+	/**
+	 * Called after every complete group of records: a BATCH record with
+	 * the records it depends on (then {@code threadId} is the thread of the
+	 * batch), or other records ({@code threadId} is -1).
+	 */
+	void boundary( long threadId ) throws IOException {}
+
+	/** Moves on to the next segment. */
+	abstract void roll() throws IOException;
+
+	/** Called after every drain sweep. */
+	abstract void sync() throws IOException;
+
+	abstract void close() throws IOException;
+}
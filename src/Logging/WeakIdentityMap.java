@@ -0,0 +1,215 @@
+package Logging;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A map from objects, compared by identity, to {@code long} values, that
+ * does not keep its keys alive: the entry of an object goes away once the
+ * object is garbage collected. The probes look objects up in it on every
+ * call, so lookups take no lock.
+ *
+ * <p>The map is split into {@value #SEGMENTS} segments by the identity
+ * hash of the keys. A segment is a chained hash table, changed only while
+ * locked; a lookup walks the chain without locking, and tries again if
+ * the table was resized meanwhile. Each segment has a reference queue of
+ * its own, and the entries of dead keys are unlinked on its next change.
+ * An entry costs one weak reference and a table slot, whatever the key.</p>
+ *
+ * <p>{@link #NONE} stands for no value, and cannot be stored.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class WeakIdentityMap {
+
+	/** The value of a missing key. */
+	public static final long NONE = Long.MIN_VALUE;
+
+	private static final int SEGMENT_BITS = 6;
+	private static final int SEGMENTS     = 1 << SEGMENT_BITS;
+
+	private static final class Entry extends WeakReference< Object > {
+		final int      hash;
+		volatile long  value;
+		volatile Entry next;
+
+		Entry( Object key, int hash, long value, Entry next, ReferenceQueue< Object > queue ) {
+			super( key, queue );
+			this.hash  = hash;
+			this.value = value;
+			this.next  = next;
+		}
+	}
+
+	private static final class Segment {
+		final ReferenceQueue< Object > queue = new ReferenceQueue< Object >();
+		/** Written again after every change of a slot, to publish it. */
+		volatile Entry[] table = new Entry[ 16 ];
+		/** Odd while the table is resized, and then incremented again. */
+		volatile int     resizes;
+		int              size;
+	}
+
+	private final Segment[] segments = new Segment[ SEGMENTS ];
+
+	public WeakIdentityMap() {
+		for(int i=0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private static int hash( Object key ) {
+		// Spread the identity hash, whose high bits pick the segment.
+		return System.identityHashCode( key ) * 0x9E3779B9;
+	}
+
+	private Segment segment( int hash ) {
+		return segments[ hash >>> ( 32 - SEGMENT_BITS ) ];
+	}
+
+	/** The value of {@code key}, or {@link #NONE}. */
+	public long get( Object key ) {
+		int     h = hash( key );
+		Segment s = segment( h );
+		while ( true ) {
+			int     resizes = s.resizes;
+			Entry[] tab     = s.table;
+			for( Entry e = tab[ h & ( tab.length - 1 ) ]; e != null; e = e.next ) {
+				if ( e.hash == h && e.get() == key ) {
+					return e.value;
+				}
+			}
+			// A resize moves entries between chains, which may hide one.
+			if ( ( resizes & 1 ) == 0 && s.resizes == resizes ) {
+				return NONE;
+			}
+		}
+	}
+
+	/**
+	 * Sets the value of {@code key} to {@code value} if it is
+	 * {@code expected}, and tells whether it was. {@link #NONE} as the
+	 * expected value means that the key must be missing, and as the new
+	 * value, that the key is removed.
+	 */
+	public boolean replace( Object key, long expected, long value ) {
+		int     h = hash( key );
+		Segment s = segment( h );
+		synchronized ( s ) {
+			expunge( s );
+			Entry[] tab   = s.table;
+			int     i     = h & ( tab.length - 1 );
+			Entry   prev  = null;
+			Entry   e     = tab[i];
+			while ( e != null && ! ( e.hash == h && e.get() == key ) ) {
+				prev = e;
+				e    = e.next;
+			}
+			long current = ( e == null )? NONE : e.value;
+			if ( current != expected ) return false;
+			if ( value == NONE ) {
+				if ( e != null ) {
+					unlink( s, tab, i, prev, e );
+				}
+			} else if ( e != null ) {
+				e.value = value;
+			} else {
+				insert( s, key, h, value );
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The value of {@code key}; if it is missing, sets it to
+	 * {@code value} and returns {@link #NONE}.
+	 */
+	public long putIfAbsent( Object key, long value ) {
+		int     h = hash( key );
+		Segment s = segment( h );
+		synchronized ( s ) {
+			expunge( s );
+			Entry[] tab = s.table;
+			for( Entry e = tab[ h & ( tab.length - 1 ) ]; e != null; e = e.next ) {
+				if ( e.hash == h && e.get() == key ) {
+					return e.value;
+				}
+			}
+			insert( s, key, h, value );
+			return NONE;
+		}
+	}
+
+	/** The number of entries, including those of keys that just died. */
+	public int size() {
+		int n = 0;
+		for( Segment s : segments ) {
+			synchronized ( s ) {
+				expunge( s );
+				n += s.size;
+			}
+		}
+		return n;
+	}
+
+	private static void insert( Segment s, Object key, int h, long value ) {
+		Entry[] tab = s.table;
+		if ( s.size >= tab.length - ( tab.length >>> 2 ) ) {
+			tab = resize( s );
+		}
+		int i = h & ( tab.length - 1 );
+		tab[i] = new Entry( key, h, value, tab[i], s.queue );
+		++s.size;
+		s.table = tab;
+	}
+
+	private static void unlink( Segment s, Entry[] tab, int i, Entry prev, Entry e ) {
+		// Readers on the entry still find the rest of the chain.
+		if ( prev == null ) {
+			tab[i] = e.next;
+		} else {
+			prev.next = e.next;
+		}
+		--s.size;
+		s.table = tab;
+	}
+
+	/** Doubles the table of a locked segment, moving the entries over. */
+	private static Entry[] resize( Segment s ) {
+		Entry[] old = s.table;
+		Entry[] tab = new Entry[ 2 * old.length ];
+		s.resizes++;
+		for( Entry head : old ) {
+			Entry e = head;
+			while ( e != null ) {
+				Entry next = e.next;
+				int   i    = e.hash & ( tab.length - 1 );
+				e.next = tab[i];
+				tab[i] = e;
+				e = next;
+			}
+		}
+		s.table = tab;
+		s.resizes++;
+		return tab;
+	}
+
+	/** Unlinks the entries of the dead keys of a locked segment. */
+	private static void expunge( Segment s ) {
+		Reference< ? > ref;
+		while ( ( ref = s.queue.poll() ) != null ) {
+			Entry   dead = (Entry) ref;
+			Entry[] tab  = s.table;
+			int     i    = dead.hash & ( tab.length - 1 );
+			Entry   prev = null;
+			for( Entry e = tab[i]; e != null; prev = e, e = e.next ) {
+				if ( e == dead ) {
+					unlink( s, tab, i, prev, e );
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package ParaTracer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import Logging.Logger;
+import Logging.MethodRegistry;
+
+/**
+ * Persistent cache of instrumented classes, so that a run that loads the
+ * same classes as an earlier one does not instrument them again.
+ *
+ * <p>An entry is named after the SHA-1 hash of the original class bytes,
+ * of the monitor specification (see {@link MonitorSpec#specHash}) and of
+ * the agent version, so it is never used for another class, another
+ * specification, or probes of another shape. It holds the instrumented
+ * bytes along with the methods whose IDs are compiled into them.</p>
+ *
+ * <p>The IDs are assigned per run, so a cached class is only used if
+ * each of its methods can get back the same ID (see
+ * {@link MethodRegistry#registerAs}). The highest ID the cache has ever
+ * handed out is kept next to the entries, and new IDs are taken above
+ * it, so that they do not collide with the cached ones. If they still do
+ * (e.g. two runs sharing the cache filled it at once), the class is
+ * instrumented again and its entry replaced.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+class BytecodeCache {
+
+	private static final int    MAGIC   = 0x50544243; // "PTBC"
+	private static final int    VERSION = 1;
+
+	/** A method whose ID is compiled into a cached class. */
+	static final class Method {
+		final int    id;
+		final String name;
+		final String descriptor;
+		final int    modifiers;
+
+		Method( int id, String name, String descriptor, int modifiers ) {
+			this.id         = id;
+			this.name       = name;
+			this.descriptor = descriptor;
+			this.modifiers  = modifiers;
+		}
+	}
+
+	private final File   dir;
+	private final File   nextIdFile;
+	/** The next ID as last saved into {@link #nextIdFile}. */
+	private int          savedNextId;
+
+	BytecodeCache( File dir ) {
+		this.dir        = dir;
+		this.nextIdFile = new File( dir, "next-id" );
+		savedNextId = readNextId();
+		MethodRegistry.reserve( savedNextId );
+	}
+
+	/**
+	 * Returns the cached instrumented bytes of {@code classBytes}, with
+	 * the IDs of its methods registered, or {@code null} if there are none
+	 * or the IDs are taken.
+	 */
+	byte[] get( String className, byte[] classBytes ) {
+		File file = null;
+		try {
+			file = entryFile( classBytes );
+			if ( ! file.isFile() ) return null;
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream(
+					MonitorSpec.readFully( new FileInputStream( file ) ) ) );
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION
+					|| ! className.equals( in.readUTF() ) ) {
+				return null;
+			}
+			int n = in.readInt();
+			for(int i=0; i < n; ++i) {
+				int    id         = in.readInt();
+				String name       = in.readUTF();
+				String descriptor = in.readUTF();
+				int    mods       = in.readInt();
+				if ( ! MethodRegistry.registerAs( className, name, descriptor, mods, id ) ) {
+					return null;
+				}
+			}
+			byte[] bytes = new byte[ in.readInt() ];
+			in.readFully( bytes );
+			return bytes;
+		} catch ( IOException ex ) {
+			System.err.println( "*** Ignoring the cached class " + file + ": " + ex );
+			return null;
+		}
+	}
+
+	/** Saves the instrumented bytes of {@code classBytes} and the IDs compiled into them. */
+	void put( String className, byte[] classBytes, byte[] instrumented, ArrayList< Method > methods ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( instrumented.length + 256 );
+			DataOutputStream      out   = new DataOutputStream( bytes );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeUTF( className );
+			out.writeInt( methods.size() );
+			for( Method m : methods ) {
+				out.writeInt( m.id );
+				out.writeUTF( m.name );
+				out.writeUTF( m.descriptor );
+				out.writeInt( m.modifiers );
+			}
+			out.writeInt( instrumented.length );
+			out.write( instrumented );
+			out.flush();
+			MonitorSpec.save( bytes.toByteArray(), entryFile( classBytes ) );
+			saveNextId();
+		} catch ( IOException ex ) {
+			System.err.println( "*** Cannot cache the class " + className + ": " + ex );
+		}
+	}
+
+	/**
+	 * Records the next ID of this run, unless another run recorded a
+	 * higher one.
+	 */
+	private synchronized void saveNextId() throws IOException {
+		int next = MethodRegistry.nextId();
+		if ( next <= savedNextId ) return;
+		next = Math.max( next, readNextId() );
+		MonitorSpec.save( Integer.toString( next ).getBytes( "UTF-8" ), nextIdFile );
+		savedNextId = next;
+	}
+
+	private int readNextId() {
+		if ( ! nextIdFile.isFile() ) return 1;
+		try {
+			return Integer.parseInt( new String(
+					MonitorSpec.readFully( new FileInputStream( nextIdFile ) ), "UTF-8" ).trim() );
+		} catch ( IOException ex ) {
+			return 1;
+		} catch ( NumberFormatException ex ) {
+			return 1;
+		}
+	}
+
+	/** {@code <dir>/<first 2 hex digits>/<other 38>.class} */
+	private File entryFile( byte[] classBytes ) throws IOException {
+		// Everything, besides the class itself, that the instrumented
+		// bytes depend on. The monitor sets may change at run time.
+		String config = ParaTracer.AGENT_VERSION + " " + Logger.mode() + " " + MonitorSpec.specHash()
+				+ " " + PropertySpec.specHash();
+		MessageDigest md = MonitorSpec.sha1();
+		md.update( config.getBytes( "UTF-8" ) );
+		String hash = MonitorSpec.toHex( md.digest( classBytes ) );
+		return new File( new File( dir, hash.substring( 0, 2 ) ), hash.substring( 2 ) + ".class" );
+	}
+}
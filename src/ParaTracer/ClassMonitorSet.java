@@ -1,103 +1,243 @@
 package ParaTracer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
 import javassist.CtMethod;
 import javassist.Modifier;
 
+/**
+ * Selects the classes, and the methods in them, that are instrumented.
+ *
+ * <p>The sets are compiled into a matcher: exact class names go in a hash
+ * map, and prefixes in a character trie, so that a class is looked up in
+ * time linear in the length of its name, not in the number of sets. When
+ * several sets match a class, the one added first wins, as it did with
+ * the linear scan this replaced.</p>
+ *
+ * <p>Classes are transformed concurrently. The matcher is immutable once
+ * built and published through a volatile field, so lookups take no lock;
+ * adding or removing sets only drops it, and the next lookup builds a new
+ * one.</p>
+ *
+ * <p>The built-in sets below are used unless a monitor specification
+ * file replaces them (see {@link MonitorSpec}).</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
 public class ClassMonitorSet {
 	public final String    className;
-	public       String[]  monitorSet;
+	public final HashSet<String> monitorSet;
 	public final boolean   monitorPublic;
 	public final boolean   monitorAll;
 	public final boolean   isPrefix;
+	/** Further methods, selected by modifiers and signature. */
+	public       MethodFilter[] filters = new MethodFilter[0];
+
+	/** The sets in the order they were added; also the lock of the writers. */
+	private static final ArrayList< ClassMonitorSet > allSets =
+			new ArrayList< ClassMonitorSet >();
+	/** The matcher of allSets, or null if it has to be built again. */
+	private static volatile Matcher matcher;
+
+	/**
+	 * An immutable snapshot of the sets. A set is known by its position in
+	 * the order the sets were added.
+	 */
+	private static final class Matcher {
+		final ClassMonitorSet[]           sets;
+		final HashMap< String, Integer >  exactSets  = new HashMap< String, Integer >();
+		final PrefixNode                  prefixSets = new PrefixNode();
+
+		Matcher( List< ClassMonitorSet > all ) {
+			sets = all.toArray( new ClassMonitorSet[ all.size() ] );
+			for(int order=0; order < sets.length; ++order) {
+				ClassMonitorSet cms = sets[order];
+				if ( cms.isPrefix ) {
+					PrefixNode node = prefixSets;
+					for(int i=0; i < cms.className.length(); ++i) {
+						node = node.addChild( cms.className.charAt( i ) );
+					}
+					if ( node.order < 0 ) {
+						node.order = order;
+					}
+				} else if ( ! exactSets.containsKey( cms.className ) ) {
+					exactSets.put( cms.className, order );
+				}
+			}
+		}
+
+		ClassMonitorSet lookup( String className ) {
+			Integer    exact = exactSets.get( className );
+			int        found = ( exact == null )? Integer.MAX_VALUE : exact;
+			PrefixNode node  = prefixSets;
+			for(int i=0; node != null; ++i) {
+				if ( node.order >= 0 && node.order < found ) {
+					found = node.order;
+				}
+				if ( i == className.length() ) break;
+				node = node.child( className.charAt( i ) );
+			}
+			return ( found == Integer.MAX_VALUE )? null : sets[ found ];
+		}
+	}
+
+	/**
+	 * A node of the prefix trie. The children are kept sorted by their
+	 * character, so a lookup does a binary search per character and
+	 * allocates nothing.
+	 */
+	private static final class PrefixNode {
+		char[]          keys     = new char[0];
+		PrefixNode[]    children = new PrefixNode[0];
+		/** The set whose prefix ends here, or -1. */
+		int             order    = -1;
+
+		PrefixNode child( char c ) {
+			int i = Arrays.binarySearch( keys, c );
+			return ( i >= 0 )? children[i] : null;
+		}
+
+		PrefixNode addChild( char c ) {
+			int i = Arrays.binarySearch( keys, c );
+			if ( i >= 0 ) return children[i];
+			i = -i - 1;
+			char[]       k = new char[ keys.length + 1 ];
+			PrefixNode[] n = new PrefixNode[ keys.length + 1 ];
+			System.arraycopy( keys,     0, k, 0, i );
+			System.arraycopy( children, 0, n, 0, i );
+			System.arraycopy( keys,     i, k, i + 1, keys.length - i );
+			System.arraycopy( children, i, n, i + 1, keys.length - i );
+			k[i] = c;
+			n[i] = new PrefixNode();
+			keys     = k;
+			children = n;
+			return n[i];
+		}
+	}
+
+	/**
+	 * Selects the methods that have all the {@code required} modifiers,
+	 * none of the {@code forbidden} ones, and the given name and
+	 * descriptor ({@code null} for any).
+	 */
+	public static final class MethodFilter {
+		public final int    required;
+		public final int    forbidden;
+		public final String name;
+		public final String descriptor;
 
-	public static ClassMonitorSet[] mClassMonitorSets;
+		public MethodFilter( int required, int forbidden, String name, String descriptor ) {
+			this.required   = required;
+			this.forbidden  = forbidden;
+			this.name       = name;
+			this.descriptor = descriptor;
+		}
 
-	public ClassMonitorSet( String className, int n ) {
+		public boolean matches( int mods, String methodName, String methodDescriptor ) {
+			return ( mods & required ) == required && ( mods & forbidden ) == 0
+					&& ( name       == null || name.equals( methodName ) )
+					&& ( descriptor == null || descriptor.equals( methodDescriptor ) );
+		}
+	}
+
+	/** Monitors the given methods of class {@code className}. */
+	public ClassMonitorSet( String className, String... methods ) {
 		this( className, false, false, false );
-		this.monitorSet = new String[n];
+		this.monitorSet.addAll( Arrays.asList( methods ) );
 	}
 
 	public ClassMonitorSet( String className, boolean isPrefix,
 			boolean monitorPublic, boolean monitorAll ) {
-		assert( monitorPublic || monitorAll );
 		this.className     = className.trim(); // Remove leading/trailing whitespace.
-		this.monitorSet    = null;
+		this.monitorSet    = new HashSet<String>();
 		this.monitorPublic = monitorPublic;
 		this.monitorAll    = monitorAll;
 		this.isPrefix      = isPrefix;
 	}
 
 	public static ClassMonitorSet isMonitoredClass( String className ) {
-		for(int i=0; i < mClassMonitorSets.length; ++i) {
-			ClassMonitorSet set = mClassMonitorSets[i];
-			if ( set == null ) {
-				return null;
-			}
-			if ( set.isPrefix ) {
-				if ( className.startsWith( set.className ) ) {
-//					System.err.println( "\tClass (" + set.className + ") found." );
-					return set;
+		Matcher m = matcher;
+		if ( m == null ) {
+			synchronized( allSets ) {
+				m = matcher;
+				if ( m == null ) {
+					matcher = m = new Matcher( allSets );
 				}
-			} else if ( className.equals( set.className ) ) {
-//				System.err.println( "\tClass (" + set.className + ") found." );
-				return set;
 			}
 		}
-		return null;
+		return m.lookup( className );
+	}
+
+	/** True if this set names class {@code name}, or a prefix of it. */
+	boolean matchesClass( String name ) {
+		return isPrefix? name.startsWith( className ) : name.equals( className );
 	}
 
 	public boolean isMonitoredMethod( CtMethod method ) {
 		if ( monitorAll ) return true;
 		int mods = method.getModifiers();
-//		String methodLongName = method.getLongName();
 		String methodName = method.getName();
 
-//		boolean isSynch     = ( ( mods & Modifier.SYNCHRONIZED ) != 0 );
-//		boolean isPrivate   = ( ( mods & Modifier.PROTECTED    ) != 0 );
-//		boolean isProtected = ( ( mods & Modifier.PRIVATE      ) != 0 );
 		boolean isPublic    = ( ( mods & Modifier.PUBLIC       ) != 0 );
 		boolean isStatic    = ( ( mods & Modifier.STATIC       ) != 0 );
-//		Logger.print( "\t\tMethod:");
-//		if ( isSynch     ) { Logger.print( " SYNCHRONIZED" ); }
-//		if ( isPrivate   ) { Logger.print( " PRIVATE"      ); }
-//		if ( isProtected ) { Logger.print( " PROTECTED"    ); }
-//		if ( isPublic    ) { Logger.print( " PUBLIC"       ); }
-//		if ( isStatic    ) { Logger.print( " STATIC"       ); }
-//		Logger.println( " " + methodName );
 
 		if ( monitorPublic && isPublic && ! isStatic ) {
 			return true;
 		}
-		if ( monitorSet == null ) return false;
-
-		for( String name : monitorSet ) {
-			if ( name.equals( methodName ) ) {
+		if ( monitorSet.contains( methodName ) ) {
+			return true;
+		}
+		for( MethodFilter filter : filters ) {
+			if ( filter.matches( mods, methodName, method.getSignature() ) ) {
 				return true;
 			}
 		}
 		return false;
 	}
 
-	private static void addClassMonitorSet( ClassMonitorSet cms ) {
-		if ( mClassMonitorSets == null ) {
-			mClassMonitorSets = new ClassMonitorSet[4];
+	/** A copy of the monitor sets, in the order they were added. */
+	static List< ClassMonitorSet > sets() {
+		synchronized( allSets ) {
+			return new ArrayList< ClassMonitorSet >( allSets );
 		}
-		// Look for an empty slot.
-		for(int i=0; i < mClassMonitorSets.length; ++i) {
-			if ( mClassMonitorSets[i] != null ) continue;
-			mClassMonitorSets[i] = cms;
-			return;
+	}
+
+	/** Forgets every monitor set, built-in ones included. */
+	static void clear() {
+		synchronized( allSets ) {
+			allSets.clear();
+			matcher = null;
 		}
-		// Re-allocate a new array.
-		int N  = mClassMonitorSets.length;
-		int NN = 2 * N;
-		ClassMonitorSet[] classMonitorSets = new ClassMonitorSet[NN];
-		System.err.println( "----- Reallocating ClassMonitorSet array: " + NN );
-		for(int i=0; i < N; ++i) {
-			classMonitorSets[i] = mClassMonitorSets[i];
+	}
+
+	/** Removes the sets of {@code className} (a class name or prefix), and returns them. */
+	static List< ClassMonitorSet > removeClassMonitorSets( String className ) {
+		ArrayList< ClassMonitorSet > removed = new ArrayList< ClassMonitorSet >();
+		synchronized( allSets ) {
+			for(int i=0; i < allSets.size(); ) {
+				if ( allSets.get( i ).className.equals( className ) ) {
+					removed.add( allSets.remove( i ) );
+				} else {
+					++i;
+				}
+			}
+			matcher = null;
+		}
+		return removed;
+	}
+
+	static void addClassMonitorSet( ClassMonitorSet cms ) {
+		assert( cms.monitorPublic || cms.monitorAll
+				|| ! cms.monitorSet.isEmpty() || cms.filters.length > 0 );
+		synchronized( allSets ) {
+			allSets.add( cms );
+			matcher = null;
 		}
-		classMonitorSets[N] = cms;
-		mClassMonitorSets = classMonitorSets;
 	}
 
 	static {
@@ -0,0 +1,374 @@
+package ParaTracer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import javassist.Modifier;
+
+/**
+ * Loads the monitor sets from a specification file instead of the
+ * built-in table of {@link ClassMonitorSet}, so that what gets traced can
+ * be tuned without rebuilding the agent:
+ *
+ * <pre>
+ * # One class, or class name prefix, per line.
+ * class  java.io.StringReader
+ * prefix java.net.URI            public
+ * class  java.util.HashMap       put get remove
+ * class  java.util.Hashtable     synchronized:*
+ * class  java.util.TreeMap       public,!static:get(Ljava/lang/Object;)Ljava/lang/Object;
+ * </pre>
+ *
+ * <p>Each name is followed by method filters; a method is monitored if
+ * any of them selects it:</p>
+ * <ul>
+ * <li>{@code public}: the public instance methods (the default).</li>
+ * <li>{@code all}: every method.</li>
+ * <li>{@code [<modifiers>:]<name>[<descriptor>]}: the methods called
+ *     {@code name} ({@code *} for any), with the given JVM descriptor if
+ *     any, and with all the given modifiers. A modifier prefixed with
+ *     {@code !} must be absent.</li>
+ * </ul>
+ *
+ * <p>The file is parsed once: the compiled sets are saved into a binary
+ * file in the cache directory, named after the SHA-1 hash of the
+ * specification, and later runs with the same specification load that
+ * file instead.</p>
+ *
+ * <p>{@code java ParaTracer.MonitorSpec} prints the built-in table in
+ * this format, as a starting point for a specification.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class MonitorSpec {
+
+	private static final int      MAGIC   = 0x50544D53; // "PTMS"
+	private static final int      VERSION = 1;
+
+	private static final String[] MODIFIER_NAMES = {
+		"public", "private", "protected", "static", "final",
+		"synchronized", "native", "abstract"
+	};
+	private static final int[]    MODIFIERS = {
+		Modifier.PUBLIC, Modifier.PRIVATE, Modifier.PROTECTED, Modifier.STATIC, Modifier.FINAL,
+		Modifier.SYNCHRONIZED, Modifier.NATIVE, Modifier.ABSTRACT
+	};
+
+	private static final int      PREFIX  = 1;
+	private static final int      PUBLIC  = 2;
+	private static final int      ALL     = 4;
+
+	/**
+	 * The hash of the loaded specification, or null if it has to be
+	 * computed from the monitor sets.
+	 */
+	private static volatile String specHash;
+
+	public static void main( String[] args ) {
+		PrintWriter out = new PrintWriter( System.out );
+		write( out );
+		out.flush();
+	}
+
+	/**
+	 * Replaces the monitor sets by those of {@code specFile}, loading them
+	 * from {@code cacheDir} if the same specification was compiled before.
+	 */
+	public static void load( File specFile, File cacheDir ) throws IOException {
+		byte[] spec      = readFully( new FileInputStream( specFile ) );
+		File   cacheFile = new File( cacheDir, "monitors-" + hash( spec ) + ".bin" );
+		ArrayList< ClassMonitorSet > sets = null;
+		if ( cacheFile.isFile() ) {
+			try {
+				sets = decode( readFully( new FileInputStream( cacheFile ) ) );
+			} catch ( IOException ex ) {
+				System.err.println( "*** Ignoring the monitor cache " + cacheFile + ": " + ex );
+			}
+		}
+		if ( sets == null ) {
+			sets = parse( new String( spec, "UTF-8" ), specFile.getPath() );
+			try {
+				save( encode( sets ), cacheFile );
+			} catch ( IOException ex ) {
+				System.err.println( "*** Cannot cache the monitor specification: " + ex );
+			}
+		}
+		specHash = hash( spec );
+		ClassMonitorSet.clear();
+		for( ClassMonitorSet set : sets ) {
+			ClassMonitorSet.addClassMonitorSet( set );
+		}
+	}
+
+	/** Prints the current monitor sets as a specification. */
+	public static void write( PrintWriter out ) {
+		for( ClassMonitorSet set : ClassMonitorSet.sets() ) {
+			out.println( specLine( set ) );
+		}
+	}
+
+	/**
+	 * The SHA-1 hash of the monitor sets in use: that of the loaded
+	 * specification, or else that of the sets written as one.
+	 */
+	public static String specHash() {
+		if ( specHash == null ) {
+			StringBuilder sb = new StringBuilder();
+			for( ClassMonitorSet set : ClassMonitorSet.sets() ) {
+				sb.append( specLine( set ) ).append( '\n' );
+			}
+			try {
+				specHash = hash( sb.toString().getBytes( "UTF-8" ) );
+			} catch ( IOException ex ) {
+				throw new IllegalStateException( ex );
+			}
+		}
+		return specHash;
+	}
+
+	/** Called when the monitor sets change after they were loaded. */
+	static void specChanged() {
+		specHash = null;
+	}
+
+	/** The given set, as a line of a specification. */
+	static String specLine( ClassMonitorSet set ) {
+		StringBuilder sb = new StringBuilder();
+		sb.append( set.isPrefix? "prefix " : "class  " ).append( set.className );
+		if ( set.monitorAll ) {
+			sb.append( " all" );
+		}
+		if ( set.monitorPublic ) {
+			sb.append( " public" );
+		}
+		for( String name : set.monitorSet ) {
+			sb.append( ' ' ).append( name );
+		}
+		for( ClassMonitorSet.MethodFilter f : set.filters ) {
+			sb.append( ' ' ).append( filterToString( f ) );
+		}
+		return sb.toString();
+	}
+
+	static ArrayList< ClassMonitorSet > parse( String spec, String fileName ) throws IOException {
+		// The lines are split by hand: the classes of java.io readers may
+		// be monitored, and must not be loaded before the transformer is.
+		ArrayList< ClassMonitorSet > sets = new ArrayList< ClassMonitorSet >();
+		String[] lines = spec.split( "\r?\n" );
+		for(int lineNo=1; lineNo <= lines.length; ++lineNo) {
+			String line = lines[ lineNo - 1 ];
+			int hash = line.indexOf( '#' );
+			if ( hash >= 0 ) {
+				line = line.substring( 0, hash );
+			}
+			String[] tokens = line.trim().split( "\\s+" );
+			if ( tokens.length == 1 && tokens[0].isEmpty() ) continue;
+			if ( tokens.length < 2
+					|| ! ( "class".equals( tokens[0] ) || "prefix".equals( tokens[0] ) ) ) {
+				throw new IOException( fileName + ":" + lineNo + ": expected 'class <name>' or 'prefix <name>'" );
+			}
+			boolean monitorAll    = false;
+			boolean monitorPublic = ( tokens.length == 2 );
+			ArrayList< String > names = new ArrayList< String >();
+			ArrayList< ClassMonitorSet.MethodFilter > filters =
+					new ArrayList< ClassMonitorSet.MethodFilter >();
+			for(int i=2; i < tokens.length; ++i) {
+				String t = tokens[i];
+				if ( "all".equals( t ) ) {
+					monitorAll = true;
+				} else if ( "public".equals( t ) ) {
+					monitorPublic = true;
+				} else if ( t.indexOf( ':' ) < 0 && t.indexOf( '(' ) < 0 && ! "*".equals( t ) ) {
+					names.add( t );
+				} else {
+					filters.add( parseFilter( t, fileName, lineNo ) );
+				}
+			}
+			ClassMonitorSet set = new ClassMonitorSet( tokens[1],
+					"prefix".equals( tokens[0] ), monitorPublic, monitorAll );
+			set.monitorSet.addAll( names );
+			set.filters = filters.toArray( new ClassMonitorSet.MethodFilter[ filters.size() ] );
+			sets.add( set );
+		}
+		return sets;
+	}
+
+	private static ClassMonitorSet.MethodFilter parseFilter( String t, String fileName, int lineNo )
+			throws IOException {
+		int required  = 0;
+		int forbidden = 0;
+		int colon = t.indexOf( ':' );
+		if ( colon >= 0 ) {
+			for( String mod : t.substring( 0, colon ).split( "," ) ) {
+				boolean negated = mod.startsWith( "!" );
+				int     bit     = modifier( negated? mod.substring( 1 ) : mod );
+				if ( bit == 0 ) {
+					throw new IOException( fileName + ":" + lineNo + ": unknown modifier '" + mod + "'" );
+				}
+				if ( negated ) {
+					forbidden |= bit;
+				} else {
+					required  |= bit;
+				}
+			}
+			t = t.substring( colon + 1 );
+		}
+		String descriptor = null;
+		int    paren      = t.indexOf( '(' );
+		if ( paren >= 0 ) {
+			descriptor = t.substring( paren );
+			t          = t.substring( 0, paren );
+		}
+		return new ClassMonitorSet.MethodFilter( required, forbidden,
+				"*".equals( t )? null : t, descriptor );
+	}
+
+	private static int modifier( String name ) {
+		for(int i=0; i < MODIFIER_NAMES.length; ++i) {
+			if ( MODIFIER_NAMES[i].equals( name ) ) {
+				return MODIFIERS[i];
+			}
+		}
+		return 0;
+	}
+
+	private static String filterToString( ClassMonitorSet.MethodFilter f ) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i < MODIFIERS.length; ++i) {
+			if ( ( f.required & MODIFIERS[i] ) != 0 ) {
+				sb.append( ( sb.length() > 0 )? "," : "" ).append( MODIFIER_NAMES[i] );
+			}
+			if ( ( f.forbidden & MODIFIERS[i] ) != 0 ) {
+				sb.append( ( sb.length() > 0 )? ",!" : "!" ).append( MODIFIER_NAMES[i] );
+			}
+		}
+		if ( sb.length() > 0 ) {
+			sb.append( ':' );
+		}
+		sb.append( ( f.name == null )? "*" : f.name );
+		if ( f.descriptor != null ) {
+			sb.append( f.descriptor );
+		}
+		return sb.toString();
+	}
+
+	private static byte[] encode( ArrayList< ClassMonitorSet > sets ) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream      out   = new DataOutputStream( bytes );
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( sets.size() );
+		for( ClassMonitorSet set : sets ) {
+			out.writeUTF( set.className );
+			out.writeByte( ( set.isPrefix? PREFIX : 0 ) | ( set.monitorPublic? PUBLIC : 0 )
+					| ( set.monitorAll? ALL : 0 ) );
+			out.writeInt( set.monitorSet.size() );
+			for( String name : set.monitorSet ) {
+				out.writeUTF( name );
+			}
+			out.writeInt( set.filters.length );
+			for( ClassMonitorSet.MethodFilter f : set.filters ) {
+				out.writeInt( f.required );
+				out.writeInt( f.forbidden );
+				out.writeUTF( ( f.name       == null )? "" : f.name );
+				out.writeUTF( ( f.descriptor == null )? "" : f.descriptor );
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static ArrayList< ClassMonitorSet > decode( byte[] bytes ) throws IOException {
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+		if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+			throw new IOException( "Not a compiled monitor specification" );
+		}
+		int n = in.readInt();
+		ArrayList< ClassMonitorSet > sets = new ArrayList< ClassMonitorSet >( n );
+		for(int i=0; i < n; ++i) {
+			String className = in.readUTF();
+			int    flags     = in.readByte();
+			ClassMonitorSet set = new ClassMonitorSet( className,
+					( flags & PREFIX ) != 0, ( flags & PUBLIC ) != 0, ( flags & ALL ) != 0 );
+			int names = in.readInt();
+			for(int j=0; j < names; ++j) {
+				set.monitorSet.add( in.readUTF() );
+			}
+			set.filters = new ClassMonitorSet.MethodFilter[ in.readInt() ];
+			for(int j=0; j < set.filters.length; ++j) {
+				int    required   = in.readInt();
+				int    forbidden  = in.readInt();
+				String name       = in.readUTF();
+				String descriptor = in.readUTF();
+				set.filters[j] = new ClassMonitorSet.MethodFilter( required, forbidden,
+						name.isEmpty()? null : name, descriptor.isEmpty()? null : descriptor );
+			}
+			sets.add( set );
+		}
+		return sets;
+	}
+
+	/** Writes a cache file through a temporary file, so it is never seen half written. */
+	static void save( byte[] bytes, File cacheFile ) throws IOException {
+		cacheFile.getParentFile().mkdirs();
+		File tmp = File.createTempFile( "paratracer", ".tmp", cacheFile.getParentFile() );
+		FileOutputStream out = new FileOutputStream( tmp );
+		try {
+			out.write( bytes );
+		} finally {
+			out.close();
+		}
+		if ( ! tmp.renameTo( cacheFile ) ) {
+			tmp.delete();
+		}
+	}
+
+	private static String hash( byte[] bytes ) {
+		MessageDigest md = sha1();
+		md.update( (byte) VERSION );
+		return toHex( md.digest( bytes ) );
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance( "SHA-1" );
+		} catch ( NoSuchAlgorithmException ex ) {
+			throw new IllegalStateException( ex );
+		}
+	}
+
+	static String toHex( byte[] bytes ) {
+		StringBuilder sb = new StringBuilder();
+		for( byte b : bytes ) {
+			sb.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) );
+			sb.append( Character.forDigit( b & 0xF, 16 ) );
+		}
+		return sb.toString();
+	}
+
+	static byte[] readFully( InputStream in ) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[ 8192 ];
+			int    n;
+			while ( ( n = in.read( buf ) ) > 0 ) {
+				out.write( buf, 0, n );
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -1,8 +1,13 @@
 package ParaTracer;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.util.List;
 
 import Logging.Logger;
+import Logging.Sampler;
+import Logging.Throttle;
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtClass;
@@ -40,6 +45,10 @@ import javassist.CtNewMethod;
  * <p> Note that we also add this line to the {@code ParaTracer} agent
  * JAR MANIFEST.MF file:</p>
  * <p>{@code Premain-Class: ParaTracer.ParaTracer}</p>
+ * <p>and these, so that the agent can also be loaded into a running JVM
+ * and take its probes out again (see {@link TraceControl}):</p>
+ * <p>{@code Agent-Class: ParaTracer.ParaTracer}</p>
+ * <p>{@code Can-Retransform-Classes: true}</p>
  * 
  ***************************************************************************************
  * <p><b>Running DaCapo Benchmarks:</b></p>
@@ -86,11 +95,25 @@ import javassist.CtNewMethod;
 
 public class ParaTracer {
 
+	/**
+	 * The version of the agent, part of the key of the cached classes
+	 * (see {@link BytecodeCache}). Change it whenever the probes change.
+	 */
+	static final String AGENT_VERSION = "2.2";
+
 	private static volatile Instrumentation instr;
 	private static boolean  onlyListClasses = false;
 	private static boolean  onlyStdClasses  = false;
 	private static String[] packages        = null;
 	private static String   fileSuffix      = null;
+	private static File     monitorSpec     = null;
+	private static File     monitorCache    =
+			new File( System.getProperty( "java.io.tmpdir" ), "paratracer" );
+	private static File     bytecodeCache   = null;
+	private static File     propertySpec    = null;
+	private static boolean  jmxControl      = false;
+	/** Set once the agent has started. */
+	private static volatile TraceControl control;
 
 	/**
 	 * After the Java Virtual Machine (JVM) has initialized, each premain
@@ -102,13 +125,36 @@ public class ParaTracer {
 	* is legal from premain.
 	*/
 	public static void premain(String agentArgs, Instrumentation inst) {
+		start( agentArgs, inst, false );
+	}
+
+	/**
+	 * Called when the agent is loaded into a running JVM (e.g. through the
+	 * Attach API), with the {@code Agent-Class} attribute of the manifest.
+	 * The first time, it starts the agent with the same options as
+	 * {@link #premain}, and instruments the monitored classes that are
+	 * already loaded. Later, its arguments are commands for the
+	 * {@link TraceControl}.
+	 */
+	public static synchronized void agentmain(String agentArgs, Instrumentation inst) {
+		if ( control != null ) {
+			control.run( ( agentArgs == null )? "" : agentArgs );
+			return;
+		}
+		start( agentArgs, inst, true );
+	}
+
+	private static synchronized void start(String agentArgs, Instrumentation inst, boolean attached) {
 		instr = inst;
-		String[] args = agentArgs.split( "," );
+		String[] args = ( agentArgs == null || agentArgs.isEmpty() )? new String[0] : agentArgs.split( "," );
 		for( String arg : args ) {
 			if ( "OnlyListClasses".equalsIgnoreCase( arg ) ) {
 				onlyListClasses = true;
 			} else if ( "OnlyStdClasses".equalsIgnoreCase( arg ) ) {
 				onlyStdClasses = true;
+			} else if ( arg.indexOf( '=' ) > 0 ) {
+				setOption( arg.substring( 0, arg.indexOf( '=' ) ),
+						arg.substring( arg.indexOf( '=' ) + 1 ) );
 			} else if ( arg.startsWith( "java." ) ) {
 				addPackage( arg );
 			} else if ( arg.startsWith( "javax." ) ) {
@@ -125,6 +171,29 @@ public class ParaTracer {
 		if ( packages != null ) {
 			Logger.setPackages( packages );
 		}
+		if ( monitorSpec != null ) {
+			try {
+				MonitorSpec.load( monitorSpec, monitorCache );
+			} catch ( IOException ex ) {
+				System.err.println( "*** Cannot load the monitor specification: " + ex.getMessage() );
+				System.exit( 1 );
+			}
+		}
+		if ( ( Logger.mode() == Logger.MODE_CHECK ) != ( propertySpec != null ) ) {
+			System.err.println( "*** The check mode and Properties=<file> go together" );
+			System.exit( 1 );
+		}
+		if ( propertySpec != null ) {
+			try {
+				PropertySpec.load( propertySpec );
+			} catch ( IOException ex ) {
+				System.err.println( "*** Cannot load the properties: " + ex.getMessage() );
+				System.exit( 1 );
+			}
+		}
+		// Start the event recorder before any class gets instrumented, so
+		// that the recorder's own classes are never traced.
+		Logger.init();
 //		try {
 //			createLoggerClass();
 //		} catch( CannotCompileException ex ) {
@@ -137,9 +206,158 @@ public class ParaTracer {
 		// they are redefined and optionally, when they are retransformed
 		// (if the transformer was added to the instrumentation instance with
 		// the boolean canRetransform set to true).
+		BytecodeCache cache = null;
+		if ( bytecodeCache != null ) {
+			cache = new BytecodeCache( bytecodeCache );
+		}
 		SimpleClassTransformer transformer =
-				new SimpleClassTransformer( onlyListClasses, onlyStdClasses, packages );
-		inst.addTransformer( transformer, false );
+				new SimpleClassTransformer( onlyListClasses, onlyStdClasses, packages, cache );
+		control = new TraceControl( inst, transformer );
+		if ( attached || jmxControl ) {
+			// Before the transformer, so that the JMX classes are not traced.
+			control.register();
+		}
+		// The transformer needs the monitor sets loaded before it runs.
+		List< ClassMonitorSet > sets = ClassMonitorSet.sets();
+		inst.addTransformer( transformer, true );
+		if ( attached ) {
+			// The classes loaded before the agent get their probes now.
+			control.retransform( sets );
+		}
+	}
+
+	/**
+	 * Handles the {@code Key=value} agent options:
+	 * <ul>
+	 * <li>{@code OutputDir=<dir>}: where the trace segments are written
+	 *     (default: the working directory).</li>
+	 * <li>{@code SegmentSize=<n>[K|M|G]}: the size of a segment file
+	 *     (default: 64M).</li>
+	 * <li>{@code Retain=<n>}: keep only the last {@code n} segments
+	 *     (default: 0, keep all).</li>
+	 * <li>{@code Fsync=none|segment|batch}: when the trace is forced to
+	 *     disk (default: none).</li>
+	 * <li>{@code Compress=on|off|<n>[K|M]}: write the segments as blocks
+	 *     of {@code n} bytes, compressed in the background (default: off;
+	 *     on: blocks of 256K).</li>
+	 * <li>{@code Backpressure=block|drop|sample}: what a thread does when
+	 *     the trace cannot keep up -- wait, drop its new events, or
+	 *     record only a sample of its calls (default: block).</li>
+	 * <li>{@code Sample=method|thread|object:<n>}: trace only 1 of every
+	 *     {@code n} calls of each method, threads, or receiver objects
+	 *     (default: trace everything).</li>
+	 * <li>{@code SampleSeed=<n>}: the seed that picks the sampled threads
+	 *     and objects (default: random, written into the trace header).</li>
+	 * <li>{@code Throttle=<n>}: trace fewer calls of the methods called
+	 *     more than {@code n} times per second, and none of the hottest
+	 *     ones (default: no limit).</li>
+	 * <li>{@code Monitor=<file>}: the classes and methods to monitor, in
+	 *     the format of {@link MonitorSpec} (default: the built-in table
+	 *     of {@link ClassMonitorSet}).</li>
+	 * <li>{@code MonitorCache=<dir>}: where compiled specifications are
+	 *     cached (default: {@code paratracer} in the temporary directory).</li>
+	 * <li>{@code BytecodeCache=<dir>}: where instrumented classes are
+	 *     cached across runs (default: no cache).</li>
+	 * <li>{@code Control=jmx}: register the {@link TraceControl} MBean,
+	 *     which is always registered when the agent is attached to a
+	 *     running JVM (default: not registered).</li>
+	 * <li>{@code Tracing=on|paused}: whether the probes record from the
+	 *     start, or only once resumed through the {@link TraceControl}
+	 *     (default: on).</li>
+	 * <li>{@code Mode=trace|profile|count|check}: record every call into the
+	 *     trace, only time the calls into per-method histograms, reported
+	 *     in {@code paratracer<suffix>-profile.txt} at exit (see
+	 *     {@link Logging.Profiler}), only count them, in snapshots
+	 *     written to {@code paratracer<suffix>-counts.txt} (see
+	 *     {@link Logging.CallCounter}), or only check them against the
+	 *     properties, writing the violations to
+	 *     {@code paratracer<suffix>-violations.txt} (see
+	 *     {@link Logging.PropertyMonitor}) (default: trace).</li>
+	 * <li>{@code CountInterval=<seconds>}: the time between two snapshots
+	 *     of the count mode; 0 writes one at exit only (default: 60).</li>
+	 * <li>{@code Properties=<file>}: the properties that the check mode
+	 *     checks, in the format of {@link PropertySpec}.</li>
+	 * </ul>
+	 */
+	private static void setOption( String key, String value ) {
+		try {
+			if ( "OutputDir".equalsIgnoreCase( key ) ) {
+				Logger.setOutputDir( value );
+			} else if ( "SegmentSize".equalsIgnoreCase( key ) ) {
+				Logger.setSegmentSize( parseSize( value ) );
+			} else if ( "Retain".equalsIgnoreCase( key ) ) {
+				Logger.setRetainedSegments( Integer.parseInt( value ) );
+			} else if ( "Fsync".equalsIgnoreCase( key ) ) {
+				Logger.setFsyncPolicy( value );
+			} else if ( "Compress".equalsIgnoreCase( key ) ) {
+				if ( "on".equalsIgnoreCase( value ) ) {
+					Logger.setCompression( Logger.DEFAULT_BLOCK_SIZE );
+				} else if ( "off".equalsIgnoreCase( value ) ) {
+					Logger.setCompression( 0 );
+				} else {
+					Logger.setCompression( parseSize( value ) );
+				}
+			} else if ( "Backpressure".equalsIgnoreCase( key ) ) {
+				Logger.setBackpressure( value );
+			} else if ( "Sample".equalsIgnoreCase( key ) ) {
+				int colon = value.indexOf( ':' );
+				if ( colon < 0 ) {
+					throw new IllegalArgumentException( value );
+				}
+				Sampler.configure( value.substring( 0, colon ),
+						Integer.parseInt( value.substring( colon + 1 ) ) );
+			} else if ( "SampleSeed".equalsIgnoreCase( key ) ) {
+				Sampler.setSeed( Long.parseLong( value ) );
+			} else if ( "Throttle".equalsIgnoreCase( key ) ) {
+				Throttle.setBudget( Long.parseLong( value ) );
+			} else if ( "Monitor".equalsIgnoreCase( key ) ) {
+				monitorSpec = new File( value );
+			} else if ( "MonitorCache".equalsIgnoreCase( key ) ) {
+				monitorCache = new File( value );
+			} else if ( "BytecodeCache".equalsIgnoreCase( key ) ) {
+				bytecodeCache = new File( value );
+			} else if ( "Tracing".equalsIgnoreCase( key ) ) {
+				if ( "paused".equalsIgnoreCase( value ) ) {
+					Logger.setTracing( false );
+				} else if ( ! "on".equalsIgnoreCase( value ) ) {
+					throw new IllegalArgumentException( value );
+				}
+			} else if ( "Mode".equalsIgnoreCase( key ) ) {
+				Logger.setMode( value );
+			} else if ( "CountInterval".equalsIgnoreCase( key ) ) {
+				Logger.setCountInterval( (long)( Double.parseDouble( value ) * 1000 ) );
+			} else if ( "Properties".equalsIgnoreCase( key ) ) {
+				propertySpec = new File( value );
+			} else if ( "Control".equalsIgnoreCase( key ) ) {
+				if ( ! "jmx".equalsIgnoreCase( value ) ) {
+					throw new IllegalArgumentException( value );
+				}
+				jmxControl = true;
+			} else {
+				System.err.println( "*** An unrecognized ParaTracer option: " + key );
+				System.exit( 1 );
+			}
+		} catch ( IllegalArgumentException ex ) {
+			System.err.println( "*** An invalid ParaTracer option: " + key + "=" + value );
+			System.exit( 1 );
+		}
+	}
+
+	/** Parses a size such as {@code 64M}; a plain number is in bytes. */
+	private static long parseSize( String value ) {
+		String v    = value.trim().toUpperCase();
+		long   unit = 1;
+		if ( v.endsWith( "K" ) ) {
+			unit = 1024L;
+		} else if ( v.endsWith( "M" ) ) {
+			unit = 1024L * 1024;
+		} else if ( v.endsWith( "G" ) ) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if ( unit != 1 ) {
+			v = v.substring( 0, v.length() - 1 );
+		}
+		return Long.parseLong( v ) * unit;
 	}
 
 	private static void addPackage( String pkg ) {
@@ -0,0 +1,220 @@
+package ParaTracer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import Logging.Property;
+import Logging.PropertyMonitor;
+
+/**
+ * Loads the properties of the check mode from a specification file:
+ *
+ * <pre>
+ * # Do not call next() on an iterator without asking hasNext() first.
+ * property HasNext
+ *   event hasNextTrue  *.hasNext returns true
+ *   event next         *.next
+ *   start  unsafe
+ *   unsafe hasNextTrue -&gt; safe
+ *   safe   next        -&gt; unsafe
+ *   unsafe next        -&gt; error
+ * </pre>
+ *
+ * <p>An {@code event} line names the calls that make the event:
+ * {@code <class>.<method>}, where the class may be {@code *} for any
+ * class, or a prefix ending in {@code *}. It happens on entry, or with
+ * {@code returns}, on return, and with {@code returns true|false|null|nonnull|<integer>},
+ * on return of that value. Several lines may name the same event.</p>
+ *
+ * <p>A transition line is {@code <state> <event>[,<event>...] -> <state>}.
+ * The states are those of the transitions; the start state is the one
+ * given by {@code start}, or else the first state of the first transition,
+ * and the state {@code error} is a violation. An event with no transition
+ * from a state leaves it there.</p>
+ *
+ * <p>Only the monitored classes (see {@link MonitorSpec}) get the probes,
+ * so the classes of the events must be monitored too.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class PropertySpec {
+
+	public static final String ERROR = "error";
+
+	/** The hash of the loaded specification, or "" if there is none. */
+	private static volatile String specHash = "";
+
+	/** Loads the properties of {@code specFile} into the {@link PropertyMonitor}. */
+	public static void load( File specFile ) throws IOException {
+		byte[] spec = MonitorSpec.readFully( new FileInputStream( specFile ) );
+		for( Property property : parse( new String( spec, "UTF-8" ), specFile.getPath() ) ) {
+			PropertyMonitor.add( property );
+		}
+		specHash = MonitorSpec.toHex( MonitorSpec.sha1().digest( spec ) );
+	}
+
+	/** The SHA-1 hash of the loaded specification, or "" if there is none. */
+	public static String specHash() {
+		return specHash;
+	}
+
+	/** The property being parsed. */
+	private static final class Builder {
+		final String              name;
+		final ArrayList< String > states   = new ArrayList< String >();
+		final ArrayList< String > events   = new ArrayList< String >();
+		// The patterns and transitions, as parsed, with their line numbers.
+		final ArrayList< String[] > patterns    = new ArrayList< String[] >();
+		final ArrayList< String[] > transitions = new ArrayList< String[] >();
+		final ArrayList< Integer >  patternLines    = new ArrayList< Integer >();
+		final ArrayList< Integer >  transitionLines = new ArrayList< Integer >();
+		String start;
+		int    lineNo;
+
+		Builder( String name, int lineNo ) {
+			this.name   = name;
+			this.lineNo = lineNo;
+		}
+
+		int state( String s ) {
+			if ( ! states.contains( s ) ) {
+				states.add( s );
+			}
+			return states.indexOf( s );
+		}
+
+		Property build( String fileName ) throws IOException {
+			for( String[] t : transitions ) {
+				state( t[0] );
+			}
+			if ( start == null ) {
+				if ( transitions.isEmpty() ) {
+					throw new IOException( fileName + ":" + lineNo + ": property " + name + " has no transition" );
+				}
+				start = transitions.get( 0 )[0];
+			}
+			int startState = state( start );
+			for( String[] t : transitions ) {
+				state( t[2] );
+			}
+			if ( ! states.contains( ERROR ) ) {
+				throw new IOException( fileName + ":" + lineNo + ": property " + name + " never reaches " + ERROR );
+			}
+			int     errorState = state( ERROR );
+			int[][] next       = new int[ states.size() ][ events.size() ];
+			for(int s=0; s < next.length; ++s) {
+				for(int e=0; e < events.size(); ++e) {
+					next[s][e] = s;
+				}
+			}
+			for(int i=0; i < transitions.size(); ++i) {
+				String[] t = transitions.get( i );
+				for( String event : t[1].split( "," ) ) {
+					if ( ! events.contains( event ) ) {
+						throw new IOException( fileName + ":" + transitionLines.get( i ) + ": unknown event '" + event + "'" );
+					}
+					next[ state( t[0] ) ][ events.indexOf( event ) ] = state( t[2] );
+				}
+			}
+			Property property = new Property( name, states.toArray( new String[ states.size() ] ),
+					events.toArray( new String[ events.size() ] ), next, startState, errorState );
+			for(int i=0; i < patterns.size(); ++i) {
+				addPattern( property, patterns.get( i ), fileName, patternLines.get( i ) );
+			}
+			return property;
+		}
+
+		private void addPattern( Property property, String[] tokens, String fileName, int lineNo )
+				throws IOException {
+			String call = tokens[2];
+			int    dot  = call.lastIndexOf( '.' );
+			if ( dot <= 0 || dot == call.length() - 1 ) {
+				throw new IOException( fileName + ":" + lineNo + ": expected '<class>.<method>'" );
+			}
+			String className = call.substring( 0, dot );
+			int    when      = Property.ON_ENTRY;
+			long   value     = 0;
+			if ( tokens.length > 3 ) {
+				if ( ! "returns".equals( tokens[3] ) || tokens.length > 5 ) {
+					throw new IOException( fileName + ":" + lineNo + ": expected 'returns [<value>]'" );
+				}
+				when = Property.ON_RETURN;
+				if ( tokens.length == 5 ) {
+					when  = Property.RETURNS;
+					value = parseValue( tokens[4], fileName, lineNo );
+				}
+			}
+			property.addPattern( events.indexOf( tokens[1] ), "*".equals( className )? null : className,
+					call.substring( dot + 1 ), when, value );
+		}
+	}
+
+	static ArrayList< Property > parse( String spec, String fileName ) throws IOException {
+		// The lines are split by hand, as in MonitorSpec.
+		ArrayList< Property > properties = new ArrayList< Property >();
+		Builder               current    = null;
+		String[] lines = spec.split( "\r?\n" );
+		for(int lineNo=1; lineNo <= lines.length; ++lineNo) {
+			String line = lines[ lineNo - 1 ];
+			int hash = line.indexOf( '#' );
+			if ( hash >= 0 ) {
+				line = line.substring( 0, hash );
+			}
+			String[] tokens = line.trim().split( "\\s+" );
+			if ( tokens.length == 1 && tokens[0].isEmpty() ) continue;
+			if ( "property".equals( tokens[0] ) ) {
+				if ( tokens.length != 2 ) {
+					throw new IOException( fileName + ":" + lineNo + ": expected 'property <name>'" );
+				}
+				if ( current != null ) {
+					properties.add( current.build( fileName ) );
+				}
+				current = new Builder( tokens[1], lineNo );
+				continue;
+			}
+			if ( current == null ) {
+				throw new IOException( fileName + ":" + lineNo + ": expected 'property <name>'" );
+			}
+			if ( "event".equals( tokens[0] ) ) {
+				if ( tokens.length < 3 ) {
+					throw new IOException( fileName + ":" + lineNo + ": expected 'event <name> <class>.<method>'" );
+				}
+				if ( ! current.events.contains( tokens[1] ) ) {
+					current.events.add( tokens[1] );
+				}
+				current.patterns.add( tokens );
+				current.patternLines.add( lineNo );
+			} else if ( "start".equals( tokens[0] ) ) {
+				if ( tokens.length != 2 || ERROR.equals( tokens[1] ) ) {
+					throw new IOException( fileName + ":" + lineNo + ": expected 'start <state>'" );
+				}
+				current.start = tokens[1];
+			} else if ( tokens.length == 4 && "->".equals( tokens[2] ) ) {
+				if ( ERROR.equals( tokens[0] ) ) {
+					throw new IOException( fileName + ":" + lineNo + ": no transition leaves " + ERROR );
+				}
+				current.transitions.add( new String[] { tokens[0], tokens[1], tokens[3] } );
+				current.transitionLines.add( lineNo );
+			} else {
+				throw new IOException( fileName + ":" + lineNo + ": expected 'event', 'start' or '<state> <event> -> <state>'" );
+			}
+		}
+		if ( current != null ) {
+			properties.add( current.build( fileName ) );
+		}
+		return properties;
+	}
+
+	private static long parseValue( String v, String fileName, int lineNo ) throws IOException {
+		if ( "true".equals( v ) || "nonnull".equals( v ) ) return 1;
+		if ( "false".equals( v ) || "null".equals( v ) ) return 0;
+		try {
+			return Long.parseLong( v );
+		} catch ( NumberFormatException ex ) {
+			throw new IOException( fileName + ":" + lineNo + ": expected true, false, null, nonnull or an integer" );
+		}
+	}
+}
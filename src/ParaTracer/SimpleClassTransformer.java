@@ -1,13 +1,27 @@
 package ParaTracer;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import Logging.Logger;
+import Logging.MethodRegistry;
+import Logging.PropertyMonitor;
+import javassist.ClassClassPath;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.Modifier;
+import javassist.NotFoundException;
 
 
 /**
@@ -21,6 +35,28 @@ import javassist.CtMethod;
  * call to transform becomes the input (via the <code>classfileBuffer</code> parameter)
  * to the next call.
  * Transformers are called in the order registered.
+ *
+ * <p>The class is parsed from the <code>classfileBuffer</code> it is
+ * given, not read again from the class path. The classes it refers to
+ * are resolved through a <code>ClassPool</code> tied to its defining
+ * loader, so classes of custom loaders (containers, OSGi bundles) are
+ * instrumented too. A pool is dropped along with its loader.</p>
+ *
+ * <p>Classes are loaded, and so transformed, by many threads at once.
+ * The pools (whose lookups are synchronized) therefore belong to the
+ * transforming thread, and the transformed class is detached from its
+ * pool once done, so every transform works in its own compile context.
+ * The method registry and the class matcher are shared, and take no
+ * lock on their common paths.</p>
+ *
+ * <p>With a {@link BytecodeCache}, a class instrumented by an earlier
+ * run is taken from the cache as it is, without Javassist.</p>
+ *
+ * <p>The transformer is registered as able to retransform classes (see
+ * {@link TraceControl}): a class already loaded is retransformed from
+ * its original bytes, to add probes to it, or to take them out by
+ * returning {@code null} while the transformer is disabled or the class
+ * is no longer monitored.</p>
  * 
  * @author Ahmed Nassar
  *
@@ -33,12 +69,105 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 	private final boolean  onlyListClasses;
 	private final boolean  onlyStdClasses;
 	private final String[] packages;
+	/** The cache of instrumented classes; null if there is none. */
+	private final BytecodeCache cache;
+	/** While false, no class is instrumented. */
+	private volatile boolean enabled = true;
+
+	/**
+	 * The JAR of the Logging classes, next to the agent JAR. When the agent
+	 * is loaded into a running JVM, the bootstrap loader finds the classes
+	 * in it, but not their class files, so the pools read them from there.
+	 */
+	private static final String LOGGER_JAR = loggerJar();
+
+	/** The pools of one transforming thread. */
+	private static final class Pools {
+		/** Resolves the classes of the bootstrap (and extension) loader. */
+		final ClassPool bootPool = new ClassPool( null );
+		/** The pools of the other loaders, which are only weakly referenced. */
+		final Map< ClassLoader, ClassPool > byLoader =
+				new WeakHashMap< ClassLoader, ClassPool >();
+
+		Pools() {
+			ClassLoader ext = ClassLoader.getSystemClassLoader().getParent();
+			if ( ext != null ) {
+				bootPool.appendClassPath( new LoaderClassPath( ext ) );
+			}
+			// The probes refer to the recorder, which is on the boot class path.
+			// The resources of a boot class are looked up on the system class
+			// path too, so only the recorder's own classes are taken from it.
+			bootPool.appendClassPath( new ClassClassPath( Logger.class ) {
+				@Override
+				public InputStream openClassfile( String className ) {
+					return className.startsWith( "Logging." )? super.openClassfile( className ) : null;
+				}
+
+				@Override
+				public URL find( String className ) {
+					return className.startsWith( "Logging." )? super.find( className ) : null;
+				}
+			});
+			if ( LOGGER_JAR != null ) {
+				try {
+					bootPool.appendClassPath( LOGGER_JAR );
+				} catch ( NotFoundException ex ) {
+					System.err.println( ex.toString() );
+				}
+			}
+		}
+	}
+
+	private final ThreadLocal< Pools > pools = new ThreadLocal< Pools >() {
+		@Override
+		protected Pools initialValue() {
+			return new Pools();
+		}
+	};
 
 	public SimpleClassTransformer( boolean onlyListClasses,
-			boolean onlyStdClasses, String[] packages ) {
+			boolean onlyStdClasses, String[] packages, BytecodeCache cache ) {
 		this.onlyListClasses = onlyListClasses;
 		this.onlyStdClasses  = onlyStdClasses;
 		this.packages        = packages;
+		this.cache           = cache;
+	}
+
+	void setEnabled( boolean enabled ) {
+		this.enabled = enabled;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	private static String loggerJar() {
+		try {
+			CodeSource cs = SimpleClassTransformer.class.getProtectionDomain().getCodeSource();
+			if ( cs == null ) return null;
+			File jar = new File( new File( cs.getLocation().toURI() ).getParentFile(), "ParaTracerLogger.jar" );
+			return jar.isFile()? jar.getPath() : null;
+		} catch ( Exception ex ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the calling thread's pool that resolves classes the way
+	 * {@code loader} does.
+	 */
+	private ClassPool poolFor( ClassLoader loader ) {
+		Pools p = pools.get();
+		if ( loader == null ) {
+			return p.bootPool;
+		}
+		ClassPool cp = p.byLoader.get( loader );
+		if ( cp == null ) {
+			cp = new ClassPool( p.bootPool );
+			cp.appendClassPath( new LoaderClassPath( loader ) );
+			p.byLoader.put( loader, cp );
+		}
+		return cp;
 	}
 
 	/**
@@ -63,6 +192,7 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 			byte[]            classfileBuffer)     // A sequence of bytes in class file format
 					throws IllegalClassFormatException {
 
+		if ( ! enabled || className == null ) return null; // No modifications.
 		String normalizedClassName = className.replaceAll("/", ".");
 
 		boolean stdClass =
@@ -92,9 +222,13 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 			}
 			if ( !found ) return null;
 		}
+		// The probes are switched through java.lang.invoke (see
+		// Logger.tracing), so its classes must not call them.
+		if ( normalizedClassName.startsWith( "java.lang.invoke." ) ) return null;
 		// To manipulate raw byte code, rely on dedicated tools
-		// such as ASM or Javassist.
-		byte[] byteCode = classfileBuffer;
+		// such as ASM or Javassist. A class that is not monitored, or
+		// that fails to be instrumented, is left as it is: null.
+		byte[] byteCode = null;
 
 		ClassMonitorSet classMonitorSet =
 				ClassMonitorSet.isMonitoredClass( normalizedClassName );
@@ -103,19 +237,24 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 //				normalizedClassName );
 //			Logger.println( "----- Monitoring: " +
 //				normalizedClassName );
+			if ( cache != null ) {
+				byte[] cached = cache.get( normalizedClassName, classfileBuffer );
+				if ( cached != null ) return cached;
+			}
+			ArrayList< BytecodeCache.Method > instrumented =
+					new ArrayList< BytecodeCache.Method >();
+			CtClass cc = null;
 			try {
 				// The ClassPool object reads a class file on demand for
 				// constructing a CtClass object and records the
 				// constructed object for responding to later accesses.
-				// The ClassPool object returned by getDefault() searches
-				// the default system search path.
-				ClassPool cp = ClassPool.getDefault();
-//         		cp.insertClassPath("/usr/local/javalib");
-//				cp.importPackage( "Logging.Logger");
+				// The pool of the defining loader searches the same
+				// classes as the loader does.
+				ClassPool cp = poolFor( loader );
 
 				// Compile-time class - an abstract representation of
-				// a class file.
-				CtClass cc = cp.get( normalizedClassName );
+				// a class file, parsed from the bytes the JVM handed us.
+				cc = cp.makeClass( new ByteArrayInputStream( classfileBuffer ) );
 
 //				CtMethod[]  methods  = cc.getDeclaredMethods(); // Inherited methods are not included.
 				CtMethod[]  methods  = cc.getMethods();
@@ -123,38 +262,52 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 //					Logger.println( "\t~~~~ Checking Method: " + method.getLongName() );
 					if ( ! classMonitorSet.isMonitoredMethod( method ) )
 						continue;
+					// Inherited methods belong to another CtClass, and
+					// abstract and native methods have no body to probe. A
+					// body that is just {} still gets its probes.
+					int mods = method.getModifiers();
+					if ( method.getDeclaringClass() != cc || Modifier.isAbstract( mods ) || Modifier.isNative( mods ) )
+						continue;
 //					System.out.println( "\t~~~~ Monitoring Method: " + method.getLongName() );
 //					Logger.println( "\t~~~~ Monitoring Method: " + method.getLongName() );
 
+					// The method is known by its registry ID from now on; the
+					// probes only hand the ID and primitive values over to
+					// the recorder, which encodes them into the binary trace.
+					int       methodId = MethodRegistry.register( normalizedClassName,
+							method.getName(), method.getSignature(), method.getModifiers() );
+					instrumented.add( new BytecodeCache.Method( methodId,
+							method.getName(), method.getSignature(), method.getModifiers() ) );
+					if ( Logger.mode() == Logger.MODE_PROFILE ) {
+						addTimingProbes( method, methodId );
+						continue;
+					}
+					if ( Logger.mode() == Logger.MODE_COUNT ) {
+						// A call is counted on entry; there is nothing to
+						// do on exit, so the method gets no handler.
+						try {
+							method.insertBefore( "{ if ( Logging.Logger.tracing() ) {"
+									+ " Logging.CallCounter.count( " + methodId + " ); } }" );
+						} catch ( Exception ex ) {
+							System.err.println( ex.toString() );
+						}
+						continue;
+					}
+					if ( Logger.mode() == Logger.MODE_CHECK ) {
+						addPropertyProbes( method, methodId, normalizedClassName );
+						continue;
+					}
+					CtClass[] pTypes   = method.getParameterTypes();
+					boolean   isStatic = Modifier.isStatic( method.getModifiers() );
 					StringBuilder sbs = new StringBuilder();
-					sbs.append( "long tid = Thread.currentThread().getId();" );
-					sbs.append( "StringBuilder sbArgs = new StringBuilder();" );
-					sbs.append( "sbArgs.append( System.identityHashCode( $0 ) );" ); // The "this" reference.
-					CtClass[] pTypes = method.getParameterTypes();
+					sbs.append( "if ( Logging.Logger.tracing() ) {" );
+					sbs.append( "Logging.ThreadBuffer __tb = Logging.Logger.enter( " + methodId + ", " );
+					sbs.append( ( isStatic? "null" : "$0" ) + ", " + pTypes.length + " );" ); // The "this" reference.
+					sbs.append( "if ( __tb != null ) {" );
 					for( int i=0; i < pTypes.length; ++i ) {
-						CtClass pType = pTypes[i];
-						if ( pType.isPrimitive() ) {
-							sbs.append( "sbArgs.append( \", \" + $args[" + i + "] );" );
-						} else {
-							sbs.append( "sbArgs.append( \", \" + System.identityHashCode( $args[" + i + "] ) );" );
-						}
+						sbs.append( putValue( pTypes[i], "$" + ( i + 1 ) ) );
 					}
-					sbs.append( "Logging.Logger.pushArgs( tid, sbArgs.toString() );" );
-					sbs.append( "StringBuilder sb = new StringBuilder();" );
-					sbs.append( "sb.append( tid + \" : " + method.getLongName() + ".<START>(\" );" );
-					sbs.append( "sb.append( sbArgs.toString() );" );
-					sbs.append( "sb.append( \")\" );" );
-					sbs.append( "Logging.Logger.println( sb.toString() );" );
-//					sbs.append( "System.err.println( sb.toString() );" );
-//					sbs.append( "String fPath = \"E:\\\\Dropbox\\\\SIMM\\\\MiningSpecs\\\\ParaTracer\\\\paratracer.out\";" );
-//					sbs.append( "try {" );
-//					sbs.append( "	java.io.FileWriter  fw  = new java.io.FileWriter( fPath, true );" );
-//					sbs.append( "	java.io.PrintWriter out = new java.io.PrintWriter( fw, true );" );
-//					sbs.append( "	out.println( sb.toString() );" );
-//					sbs.append( "	fw.close();" );
-//					sbs.append( "} catch (java.io.IOException e) {" );
-//					sbs.append( "	e.printStackTrace();" );
-//					sbs.append( "}" );
+					sbs.append( "__tb.commit(); } }" );
 
 					// You need to catch CannotCompileExceptions here because
 					// some methods might have no body which throws that exception.
@@ -168,34 +321,11 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 					// The bytecode is inserted just before every return insturction.
 					// It is not executed when an exception is thrown.
 					StringBuilder sbe = new StringBuilder();
-					sbe.append( "long tid = Thread.currentThread().getId();" );
-					sbe.append( "String args = Logging.Logger.popArgs( tid );" );
-					sbe.append( "StringBuilder sb = new StringBuilder();" );
-//					sbe.append( "sb.append( tid + \" : " + method.getLongName() + ".< END >(*)\" );" );
-					sbe.append( "sb.append( tid + \" : " + method.getLongName() + ".< END >(\" );" );
-					sbe.append( "sb.append( args );" );
-					sbe.append( "sb.append( \")\" );" );
-
-					CtClass rType = method.getReturnType();
-					if ( rType.equals( CtClass.voidType ) ) {
-						sbe.append( "sb.append( \"=VOID\" );" );
-					} if ( rType.isPrimitive() ) {
-						sbe.append( "sb.append( \"=\" + $_ );" );
-					} else {
-						sbe.append( "sb.append( \"=\" + System.identityHashCode( $_ ) );" );
-					}
-
-					sbe.append( "Logging.Logger.println( sb.toString() );" );
-//					sbe.append( "System.err.println( sb.toString() );" );
-//					sbe.append( "String fPath = \"E:\\\\Dropbox\\\\SIMM\\\\MiningSpecs\\\\ParaTracer\\\\paratracer.out\";" );
-//					sbe.append( "try {" );
-//					sbe.append( "	java.io.FileWriter  fw  = new java.io.FileWriter( fPath, true );" );
-//					sbe.append( "	java.io.PrintWriter out = new java.io.PrintWriter( fw, true );" );
-//					sbe.append( "	out.println( sb.toString() );" );
-//					sbe.append( "	fw.close();" );
-//					sbe.append( "} catch (java.io.IOException e) {" );
-//					sbe.append( "	e.printStackTrace();" );
-//					sbe.append( "}" );
+					sbe.append( "if ( Logging.Logger.tracing() ) {" );
+					sbe.append( "Logging.ThreadBuffer __tb = Logging.Logger.exit( " + methodId + " );" );
+					sbe.append( "if ( __tb != null ) {" );
+					sbe.append( putValue( method.getReturnType(), "$_" ) );
+					sbe.append( "__tb.commit(); } }" );
 
 					/** You need to catch CannotCompileExceptions here
 					 * because some methods might have no body which
@@ -205,30 +335,15 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 					 */
 					try {
 						/**
-						 * Although the compiled code inserted by
-						 * insertAfter() is executed just before the
-						 * control normally returns from the method,
-						 * it can be also executed when an exception
-						 * is thrown from the method. To execute it
-						 * when an exception is thrown, the second
-						 * parameter asFinally to insertAfter() must
-						 * be true.
-						 * If an exception is thrown, the compiled code
-						 * inserted by insertAfter() is executed as
-						 * a finally clause. The value of $_ is 0 or null
-						 * in the compiled code. After the execution of
-						 * the compiled code terminates, the exception
-						 * originally thrown is re-thrown to the caller.
-						 * Note that the value of $_ is never thrown to
-						 * the caller; it is rather discarded.
-						 * 
-						 * THIS IS IMPORTANT, since we store argument
-						 * values on the stack. An exception unwinds the
-						 * main program stack, but we need also to unwind
-						 * the instrumentation stack.
+						 * The compiled code inserted by insertAfter() is
+						 * only executed when the control normally returns
+						 * from the method. Passing true as asFinally would
+						 * also copy it into a finally clause, i.e. one
+						 * more handler; the exceptional exit is recorded
+						 * by the handler below instead.
 						 */
 						method.insertAfter(
-								"{" + sbe.toString() + "}", true );
+								"{" + sbe.toString() + "}", false );
 					} catch ( Exception ex ) {
 						System.err.println( ex.toString() );
 					}
@@ -240,20 +355,24 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 					 * text representing the inserted code fragment,
 					 * the exception value is referred to with the
 					 * special variable $e.
+					 *
+					 * THIS IS IMPORTANT, since we store argument
+					 * values on the stack. An exception unwinds the
+					 * main program stack, but we need also to unwind
+					 * the instrumentation stack: the THROW event pops
+					 * the frame of the call. One handler for Throwable
+					 * covers exceptions and errors alike, so the method
+					 * gets a single exception-table entry.
 					 */
-					CtClass eType =
-							cp.get("java.lang.Exception");
-					method.addCatch(
-							"{ Logging.Logger.println("
-							+ "\"*** Exception: \" + $e.getClass().getName());"
-							+ " throw $e; }",
-							eType );
-					eType = cp.get("java.lang.Error");
-					method.addCatch(
-							"{ Logging.Logger.println("
-							+ "\"*** Error: \" + $e.getClass().getName());"
-							+ " throw $e; }",
-							eType );
+					try {
+						method.addCatch(
+								"{ if ( Logging.Logger.tracing() ) {"
+								+ " Logging.Logger.thrown( " + methodId + ", $e ); }"
+								+ " throw $e; }",
+								cp.get( "java.lang.Throwable" ) );
+					} catch ( Exception ex ) {
+						System.err.println( ex.toString() );
+					}
 				}
 
 				/**
@@ -298,13 +417,102 @@ public class SimpleClassTransformer implements ClassFileTransformer {
 				}
 				*/
 				byteCode = cc.toBytecode(); // Obtain the modified bytecode
-				cc.detach(); // CtClass object is removed from the ClassPool to save memory.
+				if ( cache != null ) {
+					cache.put( normalizedClassName, classfileBuffer, byteCode, instrumented );
+				}
 			} catch (Exception ex) {
 //				ex.printStackTrace();
 				System.err.println( ex.toString() );
+			} finally {
+				if ( cc != null ) {
+					cc.detach(); // CtClass object is removed from the ClassPool to save memory.
+				}
 			}
 		}
         return byteCode;
 	}
 
+	/**
+	 * Adds the probes of the profile mode: the entry time is kept in a
+	 * local variable, and the duration of the call goes to the
+	 * {@link Logging.Profiler} when it returns or throws. The entry time
+	 * is 0 while tracing is paused, and the call is then not counted.
+	 *
+	 * <p>Code added by addCatch() cannot see the local variable, so the
+	 * exit probe goes into a finally clause instead, which is the one
+	 * handler of the method.</p>
+	 */
+	private static void addTimingProbes( CtMethod method, int methodId ) {
+		try {
+			method.addLocalVariable( "__pt", CtClass.longType );
+			method.insertAfter( "{ if ( __pt != 0L ) { Logging.Profiler.record( " + methodId
+					+ ", System.nanoTime() - __pt ); } }", true );
+			// The finally clause covers the body as it is now; the entry
+			// probe is inserted in front of it afterwards, outside of the
+			// clause, so that the variable is always set when it runs.
+			method.insertBefore( "{ __pt = Logging.Logger.tracing()? System.nanoTime() : 0L; }" );
+		} catch ( Exception ex ) {
+			System.err.println( ex.toString() );
+		}
+	}
+
+	/**
+	 * Adds the probes of the check mode: the {@link Logging.PropertyMonitor}
+	 * gets the calls of the method on entry and the returned values, if a
+	 * property needs them. The other methods, and the static ones, which
+	 * have no receiver to bind, get no probe at all.
+	 */
+	private static void addPropertyProbes( CtMethod method, int methodId, String className ) {
+		int probes = PropertyMonitor.probesFor( className, method.getName() );
+		if ( probes == 0 || Modifier.isStatic( method.getModifiers() ) ) return;
+		try {
+			if ( ( probes & PropertyMonitor.RETURN ) != 0 ) {
+				// The returned value, as Property.RETURNS compares it.
+				CtClass type  = method.getReturnType();
+				String  value;
+				if ( type == CtClass.voidType ) {
+					value = "0L";
+				} else if ( type == CtClass.booleanType ) {
+					value = "$_? 1L : 0L";
+				} else if ( type.isPrimitive() ) {
+					value = "(long) $_";
+				} else {
+					value = "( $_ == null )? 0L : 1L";
+				}
+				method.insertAfter( "{ if ( Logging.Logger.tracing() ) {"
+						+ " Logging.PropertyMonitor.returned( " + methodId + ", $0, " + value + " ); } }", false );
+			}
+			if ( ( probes & PropertyMonitor.ENTRY ) != 0 ) {
+				method.insertBefore( "{ if ( Logging.Logger.tracing() ) {"
+						+ " Logging.PropertyMonitor.event( " + methodId + ", $0 ); } }" );
+			}
+		} catch ( Exception ex ) {
+			System.err.println( ex.toString() );
+		}
+	}
+
+	/**
+	 * Returns the probe statement that hands {@code expr}, of type
+	 * {@code type}, over to the recorder.
+	 */
+	private static String putValue( CtClass type, String expr ) {
+		if ( type == CtClass.voidType ) {
+			return "__tb.putVoid();";
+		} else if ( type == CtClass.booleanType ) {
+			return "__tb.putBoolean( " + expr + " );";
+		} else if ( type == CtClass.charType ) {
+			return "__tb.putChar( " + expr + " );";
+		} else if ( type == CtClass.longType ) {
+			return "__tb.putLong( " + expr + " );";
+		} else if ( type == CtClass.floatType ) {
+			return "__tb.putFloat( " + expr + " );";
+		} else if ( type == CtClass.doubleType ) {
+			return "__tb.putDouble( " + expr + " );";
+		} else if ( type.isPrimitive() ) {
+			return "__tb.putInt( " + expr + " );"; // byte, short and int.
+		} else {
+			return "__tb.putObject( " + expr + " );";
+		}
+	}
+
 }
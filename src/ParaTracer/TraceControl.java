@@ -0,0 +1,192 @@
+package ParaTracer;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import Logging.CallCounter;
+import Logging.Logger;
+import Logging.Profiler;
+import Logging.PropertyMonitor;
+
+import javax.management.ObjectName;
+
+/**
+ * Changes what is traced in a running JVM. The monitor sets are changed
+ * first, then the loaded classes they name are retransformed: the JVM
+ * hands the transformer their original bytes again, so a class that is
+ * no longer monitored gets its original bytecode back, without probes.
+ *
+ * <p>The controls are reachable through JMX, as the MBean
+ * {@value #OBJECT_NAME}, or by loading the agent again into the JVM (see
+ * {@link ParaTracer#agentmain}) with commands separated by {@code ;}:</p>
+ * <ul>
+ * <li>{@code add:<spec line>}: see {@link #addClasses}.</li>
+ * <li>{@code remove:<class name or prefix>}: see {@link #removeClasses}.</li>
+ * <li>{@code stop} and {@code start}: see {@link #stopTracing} and
+ *     {@link #startTracing}.</li>
+ * <li>{@code pause} and {@code resume}: see {@link #setPaused}.</li>
+ * <li>{@code profile}: see {@link #writeProfile}.</li>
+ * <li>{@code counts}: see {@link #writeCounts}.</li>
+ * </ul>
+ *
+ * <p>Stopping takes the probes out of the classes, which takes a while
+ * for many classes; pausing leaves them in, switched off, and is
+ * immediate. An agent left attached for good is best paused, and
+ * resumed to record an incident.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceControl implements TraceControlMBean {
+
+	public static final String OBJECT_NAME = "ParaTracer:type=TraceControl";
+
+	private final Instrumentation        inst;
+	private final SimpleClassTransformer transformer;
+
+	TraceControl( Instrumentation inst, SimpleClassTransformer transformer ) {
+		this.inst        = inst;
+		this.transformer = transformer;
+	}
+
+	/** Registers the MBean with the platform MBean server. */
+	void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName( OBJECT_NAME ) );
+		} catch ( Exception ex ) {
+			System.err.println( "*** Cannot register the ParaTracer MBean: " + ex );
+		}
+	}
+
+	/** Runs the commands given to {@code agentmain}. */
+	synchronized void run( String commands ) {
+		for( String command : commands.split( ";" ) ) {
+			command = command.trim();
+			try {
+				if ( command.startsWith( "add:" ) ) {
+					addClasses( command.substring( 4 ) );
+				} else if ( command.startsWith( "remove:" ) ) {
+					removeClasses( command.substring( 7 ).trim() );
+				} else if ( "stop".equalsIgnoreCase( command ) ) {
+					stopTracing();
+				} else if ( "start".equalsIgnoreCase( command ) ) {
+					startTracing();
+				} else if ( "pause".equalsIgnoreCase( command ) ) {
+					setPaused( true );
+				} else if ( "resume".equalsIgnoreCase( command ) ) {
+					setPaused( false );
+				} else if ( "profile".equalsIgnoreCase( command ) ) {
+					writeProfile();
+				} else if ( "counts".equalsIgnoreCase( command ) ) {
+					writeCounts();
+				} else if ( command.length() > 0 ) {
+					System.err.println( "*** An unrecognized ParaTracer command: " + command );
+				}
+			} catch ( Exception ex ) {
+				System.err.println( "*** ParaTracer command failed: " + command + ": " + ex.getMessage() );
+			}
+		}
+	}
+
+	@Override
+	public synchronized int addClasses( String spec ) throws Exception {
+		List< ClassMonitorSet > sets = MonitorSpec.parse( spec.replace( ';', '\n' ), "<control>" );
+		for( ClassMonitorSet set : sets ) {
+			ClassMonitorSet.addClassMonitorSet( set );
+		}
+		MonitorSpec.specChanged();
+		return retransform( sets );
+	}
+
+	@Override
+	public synchronized int removeClasses( String className ) {
+		List< ClassMonitorSet > sets = ClassMonitorSet.removeClassMonitorSets( className );
+		MonitorSpec.specChanged();
+		return retransform( sets );
+	}
+
+	@Override
+	public synchronized int stopTracing() {
+		transformer.setEnabled( false );
+		return retransform( ClassMonitorSet.sets() );
+	}
+
+	@Override
+	public synchronized int startTracing() {
+		transformer.setEnabled( true );
+		return retransform( ClassMonitorSet.sets() );
+	}
+
+	@Override
+	public boolean isTracing() {
+		return transformer.isEnabled();
+	}
+
+	@Override
+	public void setPaused( boolean paused ) {
+		Logger.setTracing( ! paused );
+	}
+
+	@Override
+	public boolean isPaused() {
+		return ! Logger.tracing();
+	}
+
+	@Override
+	public String writeProfile() throws IOException {
+		return Profiler.writeReport().getPath();
+	}
+
+	@Override
+	public String writeCounts() throws IOException {
+		return CallCounter.writeSnapshot().getPath();
+	}
+
+	@Override
+	public String[] getViolationCounts() {
+		return PropertyMonitor.violationCounts();
+	}
+
+	@Override
+	public String[] getMonitorSpec() {
+		List< ClassMonitorSet > sets  = ClassMonitorSet.sets();
+		String[]                lines = new String[ sets.size() ];
+		for(int i=0; i < lines.length; ++i) {
+			lines[i] = MonitorSpec.specLine( sets.get( i ) );
+		}
+		return lines;
+	}
+
+	/**
+	 * Retransforms the loaded classes named by {@code sets}, and returns
+	 * how many were retransformed. The classes are retransformed one by
+	 * one, so that a class that cannot be does not hold the others back.
+	 */
+	int retransform( List< ClassMonitorSet > sets ) {
+		if ( sets.isEmpty() ) return 0;
+		ArrayList< Class<?> > classes = new ArrayList< Class<?> >();
+		for( Class<?> c : inst.getAllLoadedClasses() ) {
+			if ( ! inst.isModifiableClass( c ) ) continue;
+			String name = c.getName();
+			for( ClassMonitorSet set : sets ) {
+				if ( set.matchesClass( name ) ) {
+					classes.add( c );
+					break;
+				}
+			}
+		}
+		int done = 0;
+		for( Class<?> c : classes ) {
+			try {
+				inst.retransformClasses( c );
+				++done;
+			} catch ( Throwable ex ) {
+				System.err.println( "*** Cannot retransform " + c.getName() + ": " + ex );
+			}
+		}
+		return done;
+	}
+}
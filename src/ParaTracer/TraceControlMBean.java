@@ -0,0 +1,61 @@
+package ParaTracer;
+
+import java.io.IOException;
+
+/**
+ * The management interface of {@link TraceControl}, registered as
+ * {@value TraceControl#OBJECT_NAME}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public interface TraceControlMBean {
+
+	/**
+	 * Monitors more classes, given as lines of a specification (see
+	 * {@link MonitorSpec}) separated by {@code ;}. Returns the number of
+	 * loaded classes instrumented.
+	 */
+	int addClasses( String spec ) throws Exception;
+
+	/**
+	 * Stops monitoring the classes of the sets of {@code className} (a
+	 * class name or prefix). Returns the number of loaded classes whose
+	 * original bytecode is restored.
+	 */
+	int removeClasses( String className );
+
+	/** Takes the probes out of every loaded class. */
+	int stopTracing();
+
+	/** Puts the probes back into the loaded classes. */
+	int startTracing();
+
+	boolean isTracing();
+
+	/**
+	 * Pauses the probes, or resumes them, without transforming any class.
+	 * A paused probe costs next to nothing once compiled.
+	 */
+	void setPaused( boolean paused );
+
+	boolean isPaused();
+
+	/**
+	 * Writes the report of the profile mode now, and returns the path of
+	 * the report file.
+	 */
+	String writeProfile() throws IOException;
+
+	/**
+	 * Writes a snapshot of the call counts of the count mode now, and
+	 * returns the path of the snapshot file.
+	 */
+	String writeCounts() throws IOException;
+
+	/** The number of violations of every property of the check mode, one line each. */
+	String[] getViolationCounts();
+
+	/** The monitor sets in use, as lines of a specification. */
+	String[] getMonitorSpec();
+}
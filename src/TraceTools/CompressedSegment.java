@@ -0,0 +1,302 @@
+package TraceTools;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import Logging.TraceFormat;
+
+/**
+ * Reads a segment of compressed blocks, as written with the agent option
+ * {@code Compress} ({@code <baseName>-000001.ptrz}, ...).
+ *
+ * <p>The block index in the footer of the segment tells, for every block,
+ * where it is in the file and in the uncompressed segment, the number of
+ * the first batch it holds, the time it was written and the range of the
+ * threads of its batches. A block is found with {@link #blockAtBatch},
+ * {@link #blockAtTime} or {@link #blockAtOffset}, and decoded on its own
+ * with {@link #cursor}; the method names come from the footer too. A
+ * segment without a footer (e.g. the last one of a crashed run) is
+ * indexed by reading the block headers.</p>
+ *
+ * <p>{@link #open} uncompresses the blocks in sequence, into the bytes of
+ * a plain segment, for {@link TraceDecoder}.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class CompressedSegment {
+
+	/** Size of one block index entry in the footer, in bytes. */
+	private static final int ENTRY_SIZE = 8 + 4 + 8 + 4 + 8 + 8 + 8 + 8;
+
+	private final RandomAccessFile file;
+	private int                    blocks;
+	private long[]                 fileOffsets = new long[ 16 ];
+	private int[]                  compressedLengths = new int[ 16 ];
+	private long[]                 rawOffsets = new long[ 16 ];
+	private int[]                  rawLengths = new int[ 16 ];
+	private long[]                 firstBatches = new long[ 16 ];
+	private long[]                 timestamps = new long[ 16 ];
+	private long[]                 minThreads = new long[ 16 ];
+	private long[]                 maxThreads = new long[ 16 ];
+	/** Holds the method names of the footer, for the block cursors. */
+	private TraceCursor            names;
+	private final Inflater         inflater = new Inflater();
+	private byte[]                 compressed = new byte[ 64 * 1024 ];
+
+	public CompressedSegment( File segment ) throws IOException {
+		file = new RandomAccessFile( segment, "r" );
+		try {
+			byte[] magic = new byte[ TraceFormat.BLOCKS_MAGIC.length ];
+			file.readFully( magic );
+			if ( ! Arrays.equals( magic, TraceFormat.BLOCKS_MAGIC ) ) {
+				throw new IOException( "Not a compressed ParaTracer trace: " + segment );
+			}
+			int version = file.read();
+			if ( version != TraceFormat.BLOCKS_VERSION ) {
+				throw new IOException( "Unsupported compressed trace version: " + version );
+			}
+			if ( ! readFooter() ) {
+				scanBlocks();
+			}
+			if ( names == null ) {
+				names = TraceCursor.records( ByteBuffer.allocate( 0 ), null );
+			}
+		} catch ( IOException ex ) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/** Whether {@code file} starts as a compressed trace. */
+	public static boolean isCompressed( File file ) throws IOException {
+		byte[] magic = new byte[ TraceFormat.BLOCKS_MAGIC.length ];
+		DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+		try {
+			in.readFully( magic );
+		} catch ( EOFException ex ) {
+			return false;
+		} finally {
+			in.close();
+		}
+		return Arrays.equals( magic, TraceFormat.BLOCKS_MAGIC );
+	}
+
+	/**
+	 * Opens the segment {@code file} as the bytes of a plain segment,
+	 * uncompressing it if needed.
+	 */
+	public static InputStream open( File file ) throws IOException {
+		if ( ! isCompressed( file ) ) {
+			return new FileInputStream( file );
+		}
+		final CompressedSegment segment = new CompressedSegment( file );
+		return new InputStream() {
+			private int    block;
+			private byte[] bytes = new byte[ 0 ];
+			private int    pos;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[ 1 ];
+				return ( read( b, 0, 1 ) < 0 )? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read( byte[] b, int off, int len ) throws IOException {
+				while ( pos == bytes.length ) {
+					if ( block == segment.blockCount() ) return -1;
+					bytes = segment.block( block++ );
+					pos   = 0;
+				}
+				int n = Math.min( len, bytes.length - pos );
+				System.arraycopy( bytes, pos, b, off, n );
+				pos += n;
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				segment.close();
+			}
+		};
+	}
+
+	public int  blockCount()             { return blocks;                 }
+	/** Offset of block {@code i} in the uncompressed segment. */
+	public long rawOffset( int i )       { return rawOffsets[i];          }
+	public int  rawLength( int i )       { return rawLengths[i];          }
+	/** The number of batches written before block {@code i} since the trace started. */
+	public long firstBatch( int i )      { return firstBatches[i];        }
+	/** When the first record of block {@code i} was written, in milliseconds. */
+	public long timestamp( int i )       { return timestamps[i];          }
+	/** The lowest thread with a batch in block {@code i}, or -1 if none. */
+	public long minThread( int i )       { return minThreads[i];          }
+	/** The highest thread with a batch in block {@code i}, or -1 if none. */
+	public long maxThread( int i )       { return maxThreads[i];          }
+
+	/** The block that holds batch number {@code batch}, or -1 if it is before the segment. */
+	public int blockAtBatch( long batch ) {
+		return lastAtMost( firstBatches, batch );
+	}
+
+	/** The last block written at or before {@code millis}, or -1. */
+	public int blockAtTime( long millis ) {
+		return lastAtMost( timestamps, millis );
+	}
+
+	/** The block that holds offset {@code rawOffset} of the uncompressed segment, or -1. */
+	public int blockAtOffset( long rawOffset ) {
+		int i = lastAtMost( rawOffsets, rawOffset );
+		return ( i >= 0 && rawOffset < rawOffsets[i] + rawLengths[i] )? i : -1;
+	}
+
+	/** Uncompresses block {@code i}. */
+	public byte[] block( int i ) throws IOException {
+		int n = compressedLengths[i];
+		if ( n > compressed.length ) {
+			compressed = new byte[ n ];
+		}
+		file.seek( fileOffsets[i] + 8 );
+		file.readFully( compressed, 0, n );
+		byte[] raw = new byte[ rawLengths[i] ];
+		inflater.reset();
+		inflater.setInput( compressed, 0, n );
+		try {
+			int done = 0;
+			while ( done < raw.length && ! inflater.finished() ) {
+				int k = inflater.inflate( raw, done, raw.length - done );
+				if ( k == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) break;
+				done += k;
+			}
+			if ( done != raw.length ) {
+				throw new IOException( "Corrupt trace block " + i );
+			}
+		} catch ( DataFormatException ex ) {
+			throw new IOException( "Corrupt trace block " + i + ": " + ex.getMessage() );
+		}
+		return raw;
+	}
+
+	/**
+	 * A cursor over the records of block {@code i} only, which knows the
+	 * methods of the segment.
+	 */
+	public TraceCursor cursor( int i ) throws IOException {
+		byte[] raw  = block( i );
+		// The first block starts with the preamble of the segment.
+		int    skip = ( i == 0 )? TraceFormat.MAGIC.length + 1 : 0;
+		return TraceCursor.records( ByteBuffer.wrap( raw, skip, raw.length - skip ), names );
+	}
+
+	/** Uncompresses the whole segment. */
+	public ByteBuffer readAll() throws IOException {
+		long size = ( blocks == 0 )? 0 : rawOffsets[ blocks - 1 ] + rawLengths[ blocks - 1 ];
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException( "Segment too large to uncompress in memory" );
+		}
+		ByteBuffer all = ByteBuffer.allocate( (int) size );
+		for(int i=0; i < blocks; ++i) {
+			all.put( block( i ) );
+		}
+		all.flip();
+		return all;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+	/** Index of the last entry of {@code values} (ascending) at most {@code key}, or -1. */
+	private int lastAtMost( long[] values, long key ) {
+		int lo = 0, hi = blocks - 1, found = -1;
+		while ( lo <= hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			if ( values[mid] <= key ) {
+				found = mid;
+				lo    = mid + 1;
+			} else {
+				hi    = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/** Reads the block index and the method table of the footer, if any. */
+	private boolean readFooter() throws IOException {
+		long length = file.length();
+		if ( length < 5 + 4 + 4 + 12 ) return false;
+		file.seek( length - 12 );
+		long footer = file.readLong();
+		if ( file.readInt() != TraceFormat.FOOTER_MAGIC || footer < 5 || footer > length - 16 ) {
+			return false;
+		}
+		file.seek( footer );
+		int n = file.readInt();
+		if ( n < 0 || footer + 4 + (long) n * ENTRY_SIZE + 4 > length - 12 ) return false;
+		byte[] entries = new byte[ n * ENTRY_SIZE ];
+		file.readFully( entries );
+		ByteBuffer e = ByteBuffer.wrap( entries );
+		for(int i=0; i < n; ++i) {
+			addBlock( e.getLong(), e.getInt(), e.getLong(), e.getInt(),
+					e.getLong(), e.getLong(), e.getLong(), e.getLong() );
+		}
+		byte[] methods = new byte[ file.readInt() ];
+		file.readFully( methods );
+		names = TraceCursor.records( ByteBuffer.wrap( methods ), null );
+		while ( names.next() >= 0 ) {
+			// METHOD records only feed the names.
+		}
+		return true;
+	}
+
+	/** Indexes the blocks from their headers, without the footer's extras. */
+	private void scanBlocks() throws IOException {
+		long offset    = 5;
+		long rawOffset = 0;
+		long length    = file.length();
+		while ( offset + 8 <= length ) {
+			file.seek( offset );
+			int n   = file.readInt();
+			int raw = file.readInt();
+			if ( n <= 0 || offset + 8 + n > length ) break;
+			addBlock( offset, n, rawOffset, raw, -1, -1, -1, -1 );
+			offset    += 8 + n;
+			rawOffset += raw;
+		}
+	}
+
+	private void addBlock( long fileOffset, int compressedLength, long rawOffset, int rawLength,
+			long firstBatch, long timestamp, long minThread, long maxThread ) {
+		if ( blocks == fileOffsets.length ) {
+			int size = 2 * blocks;
+			fileOffsets       = Arrays.copyOf( fileOffsets, size );
+			compressedLengths = Arrays.copyOf( compressedLengths, size );
+			rawOffsets        = Arrays.copyOf( rawOffsets, size );
+			rawLengths        = Arrays.copyOf( rawLengths, size );
+			firstBatches      = Arrays.copyOf( firstBatches, size );
+			timestamps        = Arrays.copyOf( timestamps, size );
+			minThreads        = Arrays.copyOf( minThreads, size );
+			maxThreads        = Arrays.copyOf( maxThreads, size );
+		}
+		fileOffsets      [blocks] = fileOffset;
+		compressedLengths[blocks] = compressedLength;
+		rawOffsets       [blocks] = rawOffset;
+		rawLengths       [blocks] = rawLength;
+		firstBatches     [blocks] = firstBatch;
+		timestamps       [blocks] = timestamp;
+		minThreads       [blocks] = minThread;
+		maxThreads       [blocks] = maxThread;
+		++blocks;
+	}
+}
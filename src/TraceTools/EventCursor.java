@@ -0,0 +1,66 @@
+package TraceTools;
+
+import java.io.IOException;
+
+/**
+ * Iterates over the records of a ParaTracer trace, in the binary format
+ * ({@link TraceCursor}) or in the text format ({@link TextTraceCursor});
+ * {@link TraceReader#open} picks the right one. A binary trace read as a
+ * stream is decoded by {@link TraceDecoder}, also a cursor. The fields of the current
+ * record are read through primitive accessors, and nothing is allocated
+ * per event, so an analysis can walk a large trace at the speed of the
+ * disk.
+ *
+ * <pre>
+ * EventCursor c = TraceReader.open( new File( "paratracerXalan.out" ) );
+ * while ( c.next() &gt;= 0 ) {
+ *     if ( c.kind() == TraceFormat.START &amp;&amp; c.receiverId() == id ) ...
+ * }
+ * </pre>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public interface EventCursor {
+
+	/**
+	 * Advances to the next record, and returns its kind (one of the record
+	 * kinds of {@link Logging.TraceFormat}), or -1 at the end of the trace.
+	 */
+	int next() throws IOException;
+
+	int kind();
+
+	/** The thread of the current record, or -1 if it has none. */
+	long threadId();
+
+	/** The method of the current START, END, THROW or THROTTLE record. */
+	int methodId();
+
+	/** The name of method {@code id}, as {@link Logging.TraceFormat#longName} gives it. */
+	String methodName( int id );
+
+	/** The identity of the receiver of the current START, END or THROW record; 0 for none. */
+	long receiverId();
+
+	int argCount();
+
+	/** Type tag of argument {@code i}. */
+	int argTag( int i );
+
+	/** Argument {@code i}, encoded as in the binary format. */
+	long argAt( int i );
+
+	/** Type tag of the value of an END record. */
+	int valueTag();
+
+	/**
+	 * The value of an END record, the exception class of a THROW record
+	 * (named by {@link #methodName}), the count of a LOST record or the
+	 * fraction of calls kept by a THROTTLE record.
+	 */
+	long value();
+
+	/** The text of the current TEXT record. */
+	String text() throws IOException;
+}
@@ -0,0 +1,484 @@
+package TraceTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import Logging.TraceFormat;
+
+/**
+ * Cursor over a trace in the text format of the {@code paratracer*.out}
+ * files, memory-mapped a window at a time:
+ *
+ * <pre>
+ * 17 : java.util.HashMap.put(java.lang.Object,java.lang.Object).&lt;START&gt;(1531448569, 42, 7)
+ * 17 : java.util.HashMap.put(java.lang.Object,java.lang.Object).&lt; END &gt;(1531448569, 42, 7)=0
+ * 17 : java.net.URI.create(java.lang.String).&lt;THROW&gt;(0, 907194321)=java.lang.IllegalArgumentException
+ * 17 : &lt;LOST&gt;(120)
+ * * : java.util.HashMap.get(java.lang.Object).&lt;THROTTLE&gt;(1/16)
+ * </pre>
+ *
+ * <p>The lines are parsed in place, into the same fields as the binary
+ * records; any other line is a TEXT record, whose text ends with its
+ * newline as in a binary trace. Methods get IDs in the order
+ * they first appear, and their parameter types, from their names, tell
+ * how to read the arguments. The text does not tell the type of a
+ * returned value: a whole number is read as a {@code long}, a decimal one
+ * as a {@code double}. The exception class of a THROW line gets an ID
+ * like a method, which {@link #methodName} turns back into its name.</p>
+ *
+ * <p>Nothing is allocated per event, except to parse a floating-point
+ * argument and for the text of TEXT records.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TextTraceCursor implements EventCursor {
+
+	private static final long   WINDOW = 256L * 1024 * 1024;
+
+	private static final byte[] START_MARK    = bytes( ".<START>(" );
+	private static final byte[] END_MARK      = bytes( ".< END >(" );
+	private static final byte[] THROW_MARK    = bytes( ".<THROW>(" );
+	private static final byte[] THROTTLE_MARK = bytes( ".<THROTTLE>(" );
+	private static final byte[] LOST_MARK     = bytes( "<LOST>(" );
+
+	private final RandomAccessFile file;
+	private final FileChannel      channel;
+	private final long             size;
+	private MappedByteBuffer       buf;
+	private long                   windowStart;
+	private int                    windowLength;
+	/** Start of the next line in the window. */
+	private int                    pos;
+	private int                    lineStart;
+	private int                    lineEnd;
+	/** Whether the current line ends with a newline, as TEXT records do. */
+	private boolean                newline;
+
+	// The current record.
+	private int                    kind;
+	private long                   threadId;
+	private int                    methodId;
+	private long                   receiver;
+	private int                    argc;
+	private byte[]                 argTags   = new byte[16];
+	private long[]                 argValues = new long[16];
+	private int                    valueTag;
+	private long                   value;
+
+	// The methods, by ID from 1, and a hash table of their names.
+	private int                    methods = 1;
+	private byte[][]               methodBytes  = new byte[64][];
+	private byte[][]               methodParams = new byte[64][];
+	private String[]               methodNames  = new String[64];
+	private int[]                  table        = new int[128];
+
+	public TextTraceCursor( File file ) throws IOException {
+		this.file    = new RandomAccessFile( file, "r" );
+		this.channel = this.file.getChannel();
+		this.size    = channel.size();
+		map( 0 );
+	}
+
+	public void close() throws IOException {
+		buf = null;
+		file.close();
+	}
+
+	@Override
+	public int next() throws IOException {
+		if ( ! nextLine() ) {
+			return kind = -1;
+		}
+		return kind = parse();
+	}
+
+	@Override public int    kind()           { return kind;          }
+	@Override public long   threadId()       { return threadId;      }
+	@Override public int    methodId()       { return methodId;      }
+	@Override public long   receiverId()     { return receiver;      }
+	@Override public int    argCount()       { return argc;          }
+	@Override public int    argTag( int i )  { return argTags  [i];  }
+	@Override public long   argAt( int i )   { return argValues[i];  }
+	@Override public int    valueTag()       { return valueTag;      }
+	@Override public long   value()          { return value;         }
+
+	@Override
+	public String methodName( int id ) {
+		return ( id > 0 && id < methods )? methodNames[id] : null;
+	}
+
+	@Override
+	public String text() throws IOException {
+		byte[] bytes = new byte[ lineEnd - lineStart + ( newline? 1 : 0 ) ];
+		for(int i=0; i < lineEnd - lineStart; ++i) {
+			bytes[i] = buf.get( lineStart + i );
+		}
+		if ( newline ) {
+			bytes[ bytes.length - 1 ] = '\n';
+		}
+		return new String( bytes, "UTF-8" );
+	}
+
+	/** Finds the next line, mapping the next window if it runs past this one. */
+	private boolean nextLine() throws IOException {
+		while ( true ) {
+			if ( pos >= windowLength && windowStart + windowLength == size ) return false;
+			int nl = pos;
+			while ( nl < windowLength && buf.get( nl ) != '\n' ) {
+				++nl;
+			}
+			if ( nl < windowLength || windowStart + windowLength == size ) {
+				lineStart = pos;
+				lineEnd   = ( nl > pos && buf.get( nl - 1 ) == '\r' )? nl - 1 : nl;
+				newline   = nl < windowLength;
+				pos       = nl + 1;
+				return true;
+			}
+			if ( pos == 0 ) {
+				throw new IOException( "A trace line is longer than " + WINDOW + " bytes" );
+			}
+			map( windowStart + pos );
+		}
+	}
+
+	private void map( long start ) throws IOException {
+		windowStart  = start;
+		windowLength = (int) Math.min( WINDOW, size - start );
+		buf          = channel.map( FileChannel.MapMode.READ_ONLY, start, windowLength );
+		pos          = 0;
+	}
+
+	/** Parses the current line into the fields of a record, and returns its kind. */
+	private int parse() {
+		int p = lineStart;
+		if ( p < lineEnd && buf.get( p ) == '*' ) {
+			threadId = -1;
+			++p;
+		} else {
+			int q = skipNumber( p );
+			if ( q == p ) return TraceFormat.TEXT;
+			threadId = parseLong( p, q );
+			p = q;
+		}
+		if ( ! matches( p, " : " ) ) return TraceFormat.TEXT;
+		p += 3;
+		if ( threadId >= 0 && matches( p, LOST_MARK ) ) {
+			int q = skipNumber( p + LOST_MARK.length );
+			if ( q + 1 != lineEnd || buf.get( q ) != ')' ) return TraceFormat.TEXT;
+			value = parseLong( p + LOST_MARK.length, q );
+			return TraceFormat.LOST;
+		}
+		// The method name ends at the first marker; names such as <init>
+		// contain ".<" as well.
+		for(int m=p; m < lineEnd - 1; ++m) {
+			if ( buf.get( m ) != '.' || buf.get( m + 1 ) != '<' ) continue;
+			if ( threadId >= 0 && matches( m, START_MARK ) ) {
+				methodId = intern( p, m );
+				return parseCall( m + START_MARK.length, TraceFormat.START )? TraceFormat.START : TraceFormat.TEXT;
+			}
+			if ( threadId >= 0 && matches( m, END_MARK ) ) {
+				methodId = intern( p, m );
+				return parseCall( m + END_MARK.length, TraceFormat.END )? TraceFormat.END : TraceFormat.TEXT;
+			}
+			if ( threadId >= 0 && matches( m, THROW_MARK ) ) {
+				methodId = intern( p, m );
+				return parseCall( m + THROW_MARK.length, TraceFormat.THROW )? TraceFormat.THROW : TraceFormat.TEXT;
+			}
+			if ( threadId < 0 && matches( m, THROTTLE_MARK ) ) {
+				methodId = intern( p, m );
+				int q = m + THROTTLE_MARK.length;
+				if ( matches( q, "off)" ) ) {
+					value = 0;
+				} else if ( matches( q, "1/" ) ) {
+					int r = skipNumber( q + 2 );
+					if ( r == q + 2 ) return TraceFormat.TEXT;
+					value = parseLong( q + 2, r );
+				} else {
+					return TraceFormat.TEXT;
+				}
+				return TraceFormat.THROTTLE;
+			}
+		}
+		return TraceFormat.TEXT;
+	}
+
+	/**
+	 * Parses {@code receiver, args...)} and, for an END, {@code =value} or,
+	 * for a THROW, {@code =class}.
+	 */
+	private boolean parseCall( int p, int kind ) {
+		int q = skipNumber( p );
+		if ( q == p ) return false;
+		receiver = parseLong( p, q );
+		p = q;
+		byte[] params = methodParams[ methodId ];
+		argc = params.length;
+		if ( argc > argTags.length ) {
+			argTags   = new byte[ argc ];
+			argValues = new long[ argc ];
+		}
+		for(int i=0; i < argc; ++i) {
+			if ( ! matches( p, ", " ) ) return false;
+			p += 2;
+			argTags[i] = params[i];
+			p = parseValue( p, params[i], i );
+			if ( p < 0 ) return false;
+		}
+		if ( p >= lineEnd || buf.get( p ) != ')' ) return false;
+		++p;
+		if ( kind == TraceFormat.START ) return p == lineEnd;
+		if ( p >= lineEnd || buf.get( p ) != '=' ) return false;
+		++p;
+		if ( kind == TraceFormat.THROW ) {
+			if ( p == lineEnd ) return false;
+			valueTag = 0;
+			value    = intern( p, lineEnd );
+			return true;
+		}
+		valueTag = returnTag( p );
+		return parseValue( p, valueTag, -1 ) == lineEnd;
+	}
+
+	/**
+	 * Parses a value of type {@code tag} at {@code p} into argument
+	 * {@code i}, or into the value if {@code i} is -1. Returns the
+	 * position after it, or -1.
+	 */
+	private int parseValue( int p, int tag, int i ) {
+		long v;
+		int  q;
+		switch ( tag ) {
+		case TraceFormat.TAG_VOID:
+			if ( ! matches( p, "VOID" ) ) return -1;
+			v = 0;
+			q = p + 4;
+			break;
+		case TraceFormat.TAG_BOOLEAN:
+			if ( matches( p, "true" ) ) {
+				v = 1;
+				q = p + 4;
+			} else if ( matches( p, "false" ) ) {
+				v = 0;
+				q = p + 5;
+			} else {
+				return -1;
+			}
+			break;
+		case TraceFormat.TAG_CHAR: {
+			// One character, in UTF-8; it may well be ',' or ')'.
+			if ( p >= lineEnd ) return -1;
+			int b = buf.get( p ) & 0xFF;
+			if ( b < 0x80 ) {
+				v = b;
+				q = p + 1;
+			} else if ( b >= 0xE0 && p + 2 < lineEnd ) {
+				v = ( ( b & 0x0F ) << 12 ) | ( ( buf.get( p + 1 ) & 0x3F ) << 6 ) | ( buf.get( p + 2 ) & 0x3F );
+				q = p + 3;
+			} else if ( b >= 0xC0 && p + 1 < lineEnd ) {
+				v = ( ( b & 0x1F ) << 6 ) | ( buf.get( p + 1 ) & 0x3F );
+				q = p + 2;
+			} else {
+				v = b;
+				q = p + 1;
+			}
+			break;
+		}
+		case TraceFormat.TAG_FLOAT:
+		case TraceFormat.TAG_DOUBLE: {
+			q = p;
+			while ( q < lineEnd && buf.get( q ) != ',' && buf.get( q ) != ')' ) {
+				++q;
+			}
+			try {
+				double d = Double.parseDouble( ascii( p, q ) );
+				v = ( tag == TraceFormat.TAG_FLOAT )
+						? Float.floatToRawIntBits( (float) d ) & 0xFFFFFFFFL
+						: Double.doubleToRawLongBits( d );
+			} catch ( NumberFormatException ex ) {
+				return -1;
+			}
+			break;
+		}
+		default:
+			q = skipNumber( p );
+			if ( q == p ) return -1;
+			v = parseLong( p, q );
+			break;
+		}
+		if ( i >= 0 ) {
+			argValues[i] = v;
+		} else {
+			value = v;
+		}
+		return q;
+	}
+
+	/** Guesses the type of the returned value at {@code p}, which ends the line. */
+	private int returnTag( int p ) {
+		if ( matches( p, "VOID" ) && p + 4 == lineEnd ) return TraceFormat.TAG_VOID;
+		if ( ( matches( p, "true" ) && p + 4 == lineEnd ) || ( matches( p, "false" ) && p + 5 == lineEnd ) ) {
+			return TraceFormat.TAG_BOOLEAN;
+		}
+		if ( skipNumber( p ) == lineEnd && lineEnd > p ) return TraceFormat.TAG_LONG;
+		int b = ( p < lineEnd )? buf.get( p ) & 0xFF : 0;
+		int n = ( b < 0x80 )? 1 : ( b >= 0xE0 )? 3 : 2;
+		if ( p + n == lineEnd && ! ( b >= '0' && b <= '9' ) ) return TraceFormat.TAG_CHAR;
+		return TraceFormat.TAG_DOUBLE;
+	}
+
+	/**
+	 * The ID of the method whose name spans {@code [from, to)}, given on
+	 * its first appearance.
+	 */
+	private int intern( int from, int to ) {
+		int hash = 0x811C9DC5;
+		for(int i=from; i < to; ++i) {
+			hash = ( hash ^ buf.get( i ) ) * 0x01000193;
+		}
+		int mask = table.length - 1;
+		for(int slot = hash & mask; ; slot = ( slot + 1 ) & mask) {
+			int id = table[slot];
+			if ( id == 0 ) break;
+			if ( equals( methodBytes[id], from, to ) ) return id;
+		}
+		int id = methods++;
+		if ( id == methodBytes.length ) {
+			methodBytes  = Arrays.copyOf( methodBytes,  2 * id );
+			methodParams = Arrays.copyOf( methodParams, 2 * id );
+			methodNames  = Arrays.copyOf( methodNames,  2 * id );
+		}
+		byte[] name = new byte[ to - from ];
+		for(int i=0; i < name.length; ++i) {
+			name[i] = buf.get( from + i );
+		}
+		methodBytes [id] = name;
+		methodNames [id] = utf8( name );
+		methodParams[id] = paramTags( methodNames[id] );
+		if ( 2 * methods > table.length ) {
+			rehash();
+		} else {
+			insert( id, hash );
+		}
+		return id;
+	}
+
+	private void insert( int id, int hash ) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while ( table[slot] != 0 ) {
+			slot = ( slot + 1 ) & mask;
+		}
+		table[slot] = id;
+	}
+
+	private void rehash() {
+		table = new int[ 2 * table.length ];
+		for(int id=1; id < methods; ++id) {
+			int hash = 0x811C9DC5;
+			for( byte b : methodBytes[id] ) {
+				hash = ( hash ^ b ) * 0x01000193;
+			}
+			insert( id, hash );
+		}
+	}
+
+	/** The type tags of the parameters listed in a method name. */
+	private static byte[] paramTags( String name ) {
+		int open  = name.indexOf( '(' );
+		int close = name.lastIndexOf( ')' );
+		if ( open < 0 || close <= open + 1 ) return new byte[ 0 ];
+		String[] types = name.substring( open + 1, close ).split( "," );
+		byte[]   tags  = new byte[ types.length ];
+		for(int i=0; i < types.length; ++i) {
+			String t = types[i];
+			if ( "boolean".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_BOOLEAN;
+			} else if ( "char".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_CHAR;
+			} else if ( "byte".equals( t ) || "short".equals( t ) || "int".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_INT;
+			} else if ( "long".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_LONG;
+			} else if ( "float".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_FLOAT;
+			} else if ( "double".equals( t ) ) {
+				tags[i] = TraceFormat.TAG_DOUBLE;
+			} else {
+				tags[i] = TraceFormat.TAG_OBJECT;
+			}
+		}
+		return tags;
+	}
+
+	private boolean equals( byte[] name, int from, int to ) {
+		if ( name.length != to - from ) return false;
+		for(int i=0; i < name.length; ++i) {
+			if ( name[i] != buf.get( from + i ) ) return false;
+		}
+		return true;
+	}
+
+	private boolean matches( int p, byte[] mark ) {
+		if ( p + mark.length > lineEnd ) return false;
+		for(int i=0; i < mark.length; ++i) {
+			if ( buf.get( p + i ) != mark[i] ) return false;
+		}
+		return true;
+	}
+
+	private boolean matches( int p, String mark ) {
+		if ( p + mark.length() > lineEnd ) return false;
+		for(int i=0; i < mark.length(); ++i) {
+			if ( buf.get( p + i ) != mark.charAt( i ) ) return false;
+		}
+		return true;
+	}
+
+	/** The end of the (possibly negative) decimal number at {@code p}, or {@code p}. */
+	private int skipNumber( int p ) {
+		int q = ( p < lineEnd && buf.get( p ) == '-' )? p + 1 : p;
+		int d = q;
+		while ( d < lineEnd && buf.get( d ) >= '0' && buf.get( d ) <= '9' ) {
+			++d;
+		}
+		return ( d == q )? p : d;
+	}
+
+	private long parseLong( int from, int to ) {
+		boolean neg = buf.get( from ) == '-';
+		long    v   = 0;
+		for(int i=( neg? from + 1 : from ); i < to; ++i) {
+			v = v * 10 + ( buf.get( i ) - '0' );
+		}
+		return neg? -v : v;
+	}
+
+	private String ascii( int from, int to ) {
+		char[] chars = new char[ to - from ];
+		for(int i=0; i < chars.length; ++i) {
+			chars[i] = (char) buf.get( from + i );
+		}
+		return new String( chars );
+	}
+
+	private static String utf8( byte[] bytes ) {
+		try {
+			return new String( bytes, "UTF-8" );
+		} catch ( IOException ex ) {
+			throw new IllegalStateException( ex );
+		}
+	}
+
+	private static byte[] bytes( String s ) {
+		byte[] b = new byte[ s.length() ];
+		for(int i=0; i < b.length; ++i) {
+			b[i] = (byte) s.charAt( i );
+		}
+		return b;
+	}
+}
@@ -0,0 +1,168 @@
+package TraceTools;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import Logging.TraceFormat;
+
+/**
+ * Converts a binary ParaTracer trace back into the text format of the
+ * {@code paratracer*.out} files, so that existing analysis scripts keep
+ * working:
+ *
+ * <p>{@code java TraceTools.TraceConverter paratracerXalan-*.ptrc [-o paratracerXalan.out]}</p>
+ *
+ * <p>Events a thread dropped under backpressure show up as a
+ * {@code <tid> : <LOST>(<count>)} line where they are missing, and
+ * the throttling of a hot method as a
+ * {@code * : <method>.<THROTTLE>(1/<n>)} line. A call left by an
+ * exception ends with a {@code <tid> : <method>.<THROW>(<args>)=<class>}
+ * line instead of an END line.</p>
+ *
+ * <p>The segments are given in the order they were written, and their
+ * events are written out in the order they were recorded, across threads
+ * and segments (see {@link TraceMerger}). Each segment carries its own
+ * method table, so a subset of the segments (e.g. after the older ones
+ * were deleted by the retention policy) converts too. Every segment also
+ * repeats the header lines; only those of the first one are written out.
+ * Compressed segments ({@code .ptrz}) are uncompressed in memory.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceConverter {
+
+	public static void main( String[] args ) {
+		ArrayList<String> inFiles = new ArrayList<String>();
+		String outFile = null;
+		for(int i=0; i < args.length; ++i) {
+			if ( "-o".equals( args[i] ) && i + 1 < args.length ) {
+				outFile = args[++i];
+			} else {
+				inFiles.add( args[i] );
+			}
+		}
+		if ( inFiles.isEmpty() ) {
+			System.err.println( "Usage: TraceConverter <segment.ptrc>... [-o <trace.out>]" );
+			System.exit( 1 );
+		}
+		if ( outFile == null ) {
+			outFile = textFileName( inFiles.get( 0 ) );
+		}
+		try {
+			TraceMerger merger = new TraceMerger();
+			for( String inFile : inFiles ) {
+				merger.add( new File( inFile ) );
+			}
+			PrintWriter out = new PrintWriter( new BufferedWriter( new FileWriter( outFile ), 256 * 1024 ) );
+			try {
+				convert( merger, out, true );
+			} finally {
+				out.close();
+			}
+		} catch ( IOException ex ) {
+			System.err.println( ex.toString() );
+			System.exit( 1 );
+		}
+	}
+
+	/** {@code paratracerXalan-000001.ptrc} becomes {@code paratracerXalan.out}. */
+	public static String textFileName( String traceFile ) {
+		String name = traceFile;
+		int dot = name.lastIndexOf( '.' );
+		if ( dot > 0 ) {
+			name = name.substring( 0, dot );
+		}
+		int dash = name.lastIndexOf( '-' );
+		if ( dash > 0 && name.substring( dash + 1 ).matches( "[0-9]+" ) ) {
+			name = name.substring( 0, dash );
+		}
+		return name + ".out";
+	}
+
+	public static void convert( InputStream in, PrintWriter out ) throws IOException {
+		convert( in, out, true );
+	}
+
+	/**
+	 * Converts one segment, read as a stream. The header lines of the
+	 * segment, the TEXT records outside any batch, are written only if
+	 * {@code header} is true. The events are written in the order of
+	 * their batches, i.e. the order they were drained in.
+	 */
+	public static void convert( InputStream in, PrintWriter out, boolean header ) throws IOException {
+		convert( new TraceDecoder( in ), out, header );
+	}
+
+	/**
+	 * Converts the records of {@code dec}, e.g. a {@link TraceMerger}, in
+	 * the order it returns them. The header lines, the TEXT records
+	 * outside any batch, are written only if {@code header} is true.
+	 */
+	public static void convert( EventCursor dec, PrintWriter out, boolean header ) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try {
+			int kind;
+			while ( ( kind = dec.next() ) >= 0 ) {
+				switch ( kind ) {
+				case TraceFormat.START:
+				case TraceFormat.END:
+				case TraceFormat.THROW:
+					out.println( eventLine( dec, sb ) );
+					break;
+				case TraceFormat.LOST:
+					out.println( dec.threadId() + " : <LOST>(" + dec.value() + ")" );
+					break;
+				case TraceFormat.THROTTLE:
+					out.println( "* : " + dec.methodName( dec.methodId() ) + ".<THROTTLE>("
+							+ ( ( dec.value() == 0 )? "off" : "1/" + dec.value() ) + ")" );
+					break;
+				case TraceFormat.TEXT: {
+					if ( dec.threadId() < 0 && ! header ) break;
+					String text = dec.text();
+					if ( text.endsWith( "\n" ) ) {
+						out.println( text.substring( 0, text.length() - 1 ) );
+					} else {
+						out.print( text );
+					}
+					break;
+				}
+				default:
+					break; // METHOD and THREAD records only feed the decoder tables.
+				}
+			}
+		} catch ( EOFException ex ) {
+			// The traced JVM died before the drainer could finish the batch.
+			System.err.println( "*** Warning: " + ex.getMessage() );
+		}
+	}
+
+	/**
+	 * Renders the current START, END or THROW record of {@code cur} as a
+	 * line of the text format.
+	 */
+	static String eventLine( EventCursor cur, StringBuilder sb ) {
+		sb.setLength( 0 );
+		sb.append( cur.threadId() ).append( " : " ).append( cur.methodName( cur.methodId() ) );
+		sb.append( ( cur.kind() == TraceFormat.START )? ".<START>("
+				: ( cur.kind() == TraceFormat.THROW )? ".<THROW>(" : ".< END >(" );
+		sb.append( cur.receiverId() );
+		for(int i=0; i < cur.argCount(); ++i) {
+			sb.append( ", " );
+			sb.append( TraceFormat.valueToString( cur.argTag( i ), cur.argAt( i ) ) );
+		}
+		sb.append( ')' );
+		if ( cur.kind() == TraceFormat.END ) {
+			sb.append( '=' ).append( TraceFormat.valueToString( cur.valueTag(), cur.value() ) );
+		} else if ( cur.kind() == TraceFormat.THROW ) {
+			sb.append( '=' ).append( cur.methodName( (int) cur.value() ) );
+		}
+		return sb.toString();
+	}
+}
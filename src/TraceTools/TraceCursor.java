@@ -0,0 +1,363 @@
+package TraceTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import Logging.TraceFormat;
+
+/**
+ * Cursor over a binary ParaTracer trace segment held in memory, e.g. a
+ * memory-mapped segment file (see {@link #open}).
+ *
+ * <p>It decodes the same records as {@link TraceDecoder}, straight from
+ * the buffer: {@link #next} moves to the next record, whose fields are
+ * then read through primitive accessors. Nothing is allocated per event.
+ * The buffer is only read with absolute gets, so several cursors (see
+ * {@link #duplicate}) can walk the same buffer from different threads,
+ * each over its own range of records (see {@link #seek}).</p>
+ *
+ * <p>It is the {@link EventCursor} of binary traces; method IDs are those
+ * of the trace.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceCursor implements EventCursor {
+
+	private final ByteBuffer buf;
+	/** The methods and threads named so far; shared by the duplicates. */
+	private final Names      names;
+	private int              pos;
+	private int              end;
+
+	/** End offset of the current batch, or -1 outside of batches. */
+	private int              batchEnd = -1;
+	private long             batchThread = -1;
+	/** The time of the last record of the current batch. */
+	private long             batchTime;
+
+	// The current record.
+	private int              offset;
+	private int              kind;
+	private long             threadId;
+	private long             time;
+	private int              methodId;
+	private long             receiver;
+	private int              argc;
+	private byte[]           argTags   = new byte[16];
+	private long[]           argValues = new long[16];
+	private int              valueTag;
+	private long             value;
+	private int              textPos;
+	private int              textLen;
+
+	private static final class Names {
+		volatile String[]         methods = new String[256];
+		int                       methodLimit;
+		final HashMap< Long, String > threads = new HashMap< Long, String >();
+	}
+
+	/**
+	 * Maps the segment file {@code file} and opens a cursor over it. A
+	 * compressed segment (see {@link CompressedSegment}) is uncompressed
+	 * in memory instead.
+	 */
+	public static TraceCursor open( File file ) throws IOException {
+		if ( CompressedSegment.isCompressed( file ) ) {
+			CompressedSegment segment = new CompressedSegment( file );
+			try {
+				return new TraceCursor( segment.readAll() );
+			} finally {
+				segment.close();
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try {
+			if ( raf.length() > Integer.MAX_VALUE ) {
+				throw new IOException( "Segment too large to map: " + file );
+			}
+			return new TraceCursor( raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() ) );
+		} finally {
+			raf.close(); // The mapping stays valid.
+		}
+	}
+
+	/** Opens a cursor over {@code segment}, from its position to its limit. */
+	public TraceCursor( ByteBuffer segment ) throws IOException {
+		this( segment, new Names() );
+		int p = segment.position();
+		for(int i=0; i < TraceFormat.MAGIC.length; ++i) {
+			if ( p + i >= end || buf.get( p + i ) != TraceFormat.MAGIC[i] ) {
+				throw new IOException( "Not a ParaTracer binary trace" );
+			}
+		}
+		p += TraceFormat.MAGIC.length;
+		int version = ( p < end )? buf.get( p ) & 0xFF : -1;
+		if ( version != TraceFormat.VERSION ) {
+			throw new IOException( "Unsupported trace version: " + version );
+		}
+		pos = p + 1;
+	}
+
+	/**
+	 * Opens a cursor over {@code records}, from its position to its limit,
+	 * which do not start with the preamble of a segment (e.g. a block of a
+	 * compressed segment). It shares the method and thread names of
+	 * {@code names}, if not null.
+	 */
+	public static TraceCursor records( ByteBuffer records, TraceCursor names ) {
+		return new TraceCursor( records, ( names != null )? names.names : new Names() );
+	}
+
+	private TraceCursor( ByteBuffer buf, Names names ) {
+		this.buf   = buf;
+		this.names = names;
+		this.pos   = buf.position();
+		this.end   = buf.limit();
+	}
+
+	/**
+	 * A cursor over the same buffer, at the same record, that moves on its
+	 * own. It shares the method and thread names.
+	 */
+	public TraceCursor duplicate() {
+		TraceCursor c = new TraceCursor( buf, names );
+		c.pos         = pos;
+		c.end         = end;
+		c.batchEnd    = batchEnd;
+		c.batchThread = batchThread;
+		c.batchTime   = batchTime;
+		return c;
+	}
+
+	/**
+	 * Moves to the record at {@code offset} (e.g. a BATCH record), and
+	 * stops before {@code end}.
+	 */
+	public void seek( long offset, long end ) {
+		this.pos         = (int) offset;
+		this.end         = (int) Math.min( end, buf.limit() );
+		this.batchEnd    = -1;
+		this.batchThread = -1;
+	}
+
+	/**
+	 * Advances to the next record, inside batches. Returns its kind
+	 * ({@code METHOD}, {@code THREAD}, {@code START}, {@code END},
+	 * {@code TEXT}, {@code LOST} or {@code THROTTLE}), or -1 at the end.
+	 */
+	public int next() throws IOException {
+		return next( false );
+	}
+
+	/**
+	 * Advances to the next record outside of batches: a batch is returned
+	 * as a single {@code BATCH} record, whose {@link #threadId} and
+	 * {@link #batchEnd} are set, and its events are skipped.
+	 */
+	public int nextRecord() throws IOException {
+		return next( true );
+	}
+
+	private int next( boolean skipBatches ) throws IOException {
+		while ( true ) {
+			if ( batchEnd >= 0 && pos >= batchEnd ) {
+				batchEnd    = -1;
+				batchThread = -1;
+			}
+			offset   = pos;
+			threadId = batchThread;
+			time     = 0;
+			if ( pos >= end ) {
+				return kind = -1;
+			}
+			int k = buf.get( pos++ ) & 0xFF;
+			switch ( k ) {
+			case TraceFormat.PADDING:
+				pos = end;
+				return kind = -1;
+			case TraceFormat.BATCH:
+				batchThread = readVarint();
+				int len     = (int) readVarint();
+				batchEnd    = pos + len;
+				batchTime   = 0;
+				if ( skipBatches ) {
+					threadId    = batchThread;
+					pos         = batchEnd;
+					batchThread = -1;
+					return kind = k;
+				}
+				continue;
+			case TraceFormat.METHOD: {
+				methodId          = (int) readVarint();
+				String className  = readString();
+				String name       = readString();
+				String descriptor = readString();
+				value             = readVarint(); // The modifiers.
+				defineMethod( methodId, TraceFormat.longName( className, name, descriptor ) );
+				break;
+			}
+			case TraceFormat.THREAD:
+				threadId = readVarint();
+				synchronized( names ) {
+					names.threads.put( threadId, readString() );
+				}
+				break;
+			case TraceFormat.START:
+			case TraceFormat.END:
+			case TraceFormat.THROW:
+				time     = batchTime += readVarint();
+				methodId = (int) readVarint();
+				receiver = readVarint();
+				argc     = (int) readVarint();
+				if ( argc > argTags.length ) {
+					argTags   = new byte[ argc ];
+					argValues = new long[ argc ];
+				}
+				for(int i=0; i < argc; ++i) {
+					argTags  [i] = buf.get( pos++ );
+					argValues[i] = readValue( argTags[i] );
+				}
+				if ( k == TraceFormat.END ) {
+					valueTag = buf.get( pos++ );
+					value    = readValue( valueTag );
+				} else if ( k == TraceFormat.THROW ) {
+					valueTag = 0;
+					value    = readVarint(); // The class of the exception.
+				}
+				break;
+			case TraceFormat.TEXT:
+				if ( batchEnd >= 0 ) {
+					time = batchTime += readVarint();
+				}
+				textLen = (int) readVarint();
+				textPos = pos;
+				pos    += textLen;
+				break;
+			case TraceFormat.LOST:
+				time  = batchTime += readVarint();
+				value = readVarint();
+				break;
+			case TraceFormat.THROTTLE:
+				time     = readVarint();
+				methodId = (int) readVarint();
+				value    = readVarint();
+				break;
+			default:
+				throw new IOException( "Corrupt trace: record kind " + k + " at offset " + offset );
+			}
+			return kind = k;
+		}
+	}
+
+	public int    kind()      { return kind;     }
+	/** Offset of the current record in the buffer. */
+	public long   offset()    { return offset;   }
+	/** The recording thread, or -1 for records outside of batches. */
+	public long   threadId()  { return threadId; }
+	/**
+	 * When the current event, TEXT, LOST or THROTTLE record was recorded,
+	 * in nanoseconds since the recording started; 0 for the others.
+	 */
+	public long   time()      { return time;     }
+	public int    methodId()  { return methodId; }
+	/** The identity of the receiver of a START or END record; 0 for none. */
+	public long   receiverId() { return receiver; }
+	public int    argCount()  { return argc;     }
+	public int    argTag( int i ) { return argTags  [i]; }
+	public long   argAt( int i )  { return argValues[i]; }
+	/** Type tag of the value of an END record. */
+	public int    valueTag()  { return valueTag; }
+	/**
+	 * The value of an END record, the exception class of a THROW record
+	 * (named by {@link #methodName(int)}), the count of a LOST record, the
+	 * fraction of calls kept by a THROTTLE record, or the modifiers of a
+	 * METHOD record.
+	 */
+	public long   value()     { return value;    }
+	/** End offset of the current BATCH record (see {@link #nextRecord}). */
+	public long   batchEnd()  { return batchEnd; }
+	/** Offset of the record after the current one. */
+	public long   position()  { return pos;      }
+
+	/** The text of the current TEXT record. */
+	public String text() throws IOException {
+		byte[] bytes = new byte[ textLen ];
+		for(int i=0; i < textLen; ++i) {
+			bytes[i] = buf.get( textPos + i );
+		}
+		return new String( bytes, "UTF-8" );
+	}
+
+	public String methodName() {
+		return methodName( methodId );
+	}
+
+	public String methodName( int id ) {
+		String[] m = names.methods;
+		return ( id < m.length )? m[id] : null;
+	}
+
+	/** The highest ID of the methods named so far, plus one. */
+	public int methodLimit() {
+		synchronized( names ) {
+			return names.methodLimit;
+		}
+	}
+
+	public String threadName( long tid ) {
+		synchronized( names ) {
+			return names.threads.get( tid );
+		}
+	}
+
+	/** Names method {@code id}, e.g. from a table kept aside. */
+	public void defineMethod( int id, String longName ) {
+		synchronized( names ) {
+			String[] m = names.methods;
+			if ( id >= m.length ) {
+				m = Arrays.copyOf( m, Math.max( id + 1, 2 * m.length ) );
+			}
+			m[id] = longName;
+			names.methods = m;
+			names.methodLimit = Math.max( names.methodLimit, id + 1 );
+		}
+	}
+
+	private long readValue( int tag ) {
+		switch ( tag ) {
+		case TraceFormat.TAG_VOID:
+			return 0;
+		case TraceFormat.TAG_INT:
+		case TraceFormat.TAG_LONG:
+			return TraceFormat.unzigzag( readVarint() );
+		default:
+			return readVarint();
+		}
+	}
+
+	private String readString() throws IOException {
+		int    len   = (int) readVarint();
+		byte[] bytes = new byte[ len ];
+		for(int i=0; i < len; ++i) {
+			bytes[i] = buf.get( pos++ );
+		}
+		return new String( bytes, "UTF-8" );
+	}
+
+	private long readVarint() {
+		long v     = 0;
+		int  shift = 0;
+		while ( true ) {
+			int b = buf.get( pos++ );
+			v |= (long)( b & 0x7F ) << shift;
+			if ( ( b & 0x80 ) == 0 ) return v;
+			shift += 7;
+		}
+	}
+}
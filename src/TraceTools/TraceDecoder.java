@@ -0,0 +1,287 @@
+package TraceTools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import Logging.TraceFormat;
+
+/**
+ * Streaming decoder of binary ParaTracer traces (see {@link TraceFormat}).
+ *
+ * <p>{@link #next} advances to the next record and returns its kind. The
+ * fields of the current record are then available through the accessors.
+ * BATCH framing is handled internally: events simply report the thread
+ * that recorded them. The decoder keeps the method and thread tables it
+ * has seen so far, and reuses its field arrays, so decoding does not
+ * allocate per event. Unlike {@link TraceCursor}, it reads the trace as
+ * a stream, once, and so also reads a trace piped to it.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceDecoder implements EventCursor {
+
+	private final InputStream in;
+	private final byte[]      buf = new byte[ 64 * 1024 ];
+	private int               bufPos;
+	private int               bufLen;
+	/** Offset, in the stream, of {@code buf[0]}. */
+	private long              bufOffset;
+
+	private String[]          methodNames       = new String[256];
+	private String[]          methodClasses     = new String[256];
+	private String[]          methodDescriptors = new String[256];
+	private final HashMap< Long, String > threadNames = new HashMap< Long, String >();
+
+	/** End offset of the current batch, or -1 outside of batches. */
+	private long              batchEnd = -1;
+	private long              batchThread = -1;
+	/** The time of the last record of the current batch. */
+	private long              batchTime;
+
+	// The current record.
+	private long              offset;
+	private int               kind;
+	private long              threadId;
+	private long              time;
+	private int               methodId;
+	private long              receiver;
+	private int               argc;
+	private byte[]            argTags   = new byte[16];
+	private long[]            argValues = new long[16];
+	private int               valueTag;
+	private long              value;
+	private String            text;
+
+	public TraceDecoder( InputStream in ) throws IOException {
+		this.in = in;
+		byte[] magic = new byte[ TraceFormat.MAGIC.length ];
+		for(int i=0; i < magic.length; ++i) {
+			magic[i] = (byte) readByte();
+		}
+		if ( ! Arrays.equals( magic, TraceFormat.MAGIC ) ) {
+			throw new IOException( "Not a ParaTracer binary trace" );
+		}
+		int version = readByte();
+		if ( version != TraceFormat.VERSION ) {
+			throw new IOException( "Unsupported trace version: " + version );
+		}
+	}
+
+	/**
+	 * Advances to the next record. Returns its kind ({@code METHOD},
+	 * {@code THREAD}, {@code START}, {@code END}, {@code THROW},
+	 * {@code TEXT}, {@code LOST} or {@code THROTTLE}), or -1 at the end of
+	 * the trace.
+	 */
+	@Override
+	public int next() throws IOException {
+		while ( true ) {
+			if ( batchEnd >= 0 && position() >= batchEnd ) {
+				batchEnd    = -1;
+				batchThread = -1;
+			}
+			offset   = position();
+			threadId = batchThread;
+			time     = 0;
+			int k = readByteOrEOF();
+			if ( k < 0 || k == TraceFormat.PADDING ) {
+				return kind = -1;
+			}
+			switch ( k ) {
+			case TraceFormat.BATCH:
+				batchThread = readVarint();
+				long len    = readVarint();
+				batchEnd    = position() + len;
+				batchTime   = 0;
+				continue;
+			case TraceFormat.METHOD: {
+				methodId          = (int) readVarint();
+				String className  = readString();
+				String name       = readString();
+				String descriptor = readString();
+				value             = readVarint(); // The modifiers.
+				if ( methodId >= methodNames.length ) {
+					int size = Math.max( methodId + 1, 2 * methodNames.length );
+					methodNames       = Arrays.copyOf( methodNames,       size );
+					methodClasses     = Arrays.copyOf( methodClasses,     size );
+					methodDescriptors = Arrays.copyOf( methodDescriptors, size );
+				}
+				methodClasses    [ methodId ] = className;
+				methodDescriptors[ methodId ] = descriptor;
+				methodNames      [ methodId ] = text =
+						TraceFormat.longName( className, name, descriptor );
+				break;
+			}
+			case TraceFormat.THREAD:
+				threadId = readVarint();
+				text     = readString();
+				threadNames.put( threadId, text );
+				break;
+			case TraceFormat.START:
+			case TraceFormat.END:
+			case TraceFormat.THROW:
+				time     = batchTime += readVarint();
+				methodId = (int) readVarint();
+				receiver = readVarint();
+				argc     = (int) readVarint();
+				if ( argc > argTags.length ) {
+					argTags   = new byte[ argc ];
+					argValues = new long[ argc ];
+				}
+				for(int i=0; i < argc; ++i) {
+					argTags  [i] = (byte) readByte();
+					argValues[i] = readValue( argTags[i] );
+				}
+				if ( k == TraceFormat.END ) {
+					valueTag = readByte();
+					value    = readValue( valueTag );
+				} else if ( k == TraceFormat.THROW ) {
+					valueTag = 0;
+					value    = readVarint(); // The class of the exception.
+				}
+				break;
+			case TraceFormat.TEXT:
+				if ( batchEnd >= 0 ) {
+					time = batchTime += readVarint();
+				}
+				text = readString();
+				break;
+			case TraceFormat.LOST:
+				time  = batchTime += readVarint();
+				value = readVarint(); // The number of events dropped.
+				break;
+			case TraceFormat.THROTTLE:
+				time     = readVarint();
+				methodId = (int) readVarint();
+				value    = readVarint(); // 1 of every value calls is traced.
+				break;
+			default:
+				throw new IOException( "Corrupt trace: record kind " + k + " at offset " + offset );
+			}
+			return kind = k;
+		}
+	}
+
+	@Override
+	public int    kind()      { return kind;     }
+	/** Offset of the current record in the stream. */
+	public long   offset()    { return offset;   }
+	/** The recording thread, or -1 for records outside of batches. */
+	@Override
+	public long   threadId()  { return threadId; }
+	/**
+	 * When the current event, TEXT, LOST or THROTTLE record was recorded,
+	 * in nanoseconds since the recording started; 0 for the others.
+	 */
+	public long   time()      { return time;     }
+	@Override
+	public int    methodId()  { return methodId; }
+	@Override
+	public long   receiverId() { return receiver; }
+	@Override
+	public int    argCount()  { return argc;     }
+	@Override
+	public int    argTag( int i ) { return argTags  [i]; }
+	@Override
+	public long   argAt( int i )  { return argValues[i]; }
+	/** Type tag of the value of an END record. */
+	@Override
+	public int    valueTag()  { return valueTag; }
+	/**
+	 * The value of an END record, the exception class of a THROW record
+	 * (named by {@link #methodName(int)}), the count of a LOST record, or
+	 * the fraction of calls kept by a THROTTLE record.
+	 */
+	@Override
+	public long   value()     { return value;    }
+	/**
+	 * The text of a TEXT record, the name of a THREAD record, or the long
+	 * name of the method of a METHOD record (whose modifiers are then
+	 * returned by {@link #value}).
+	 */
+	@Override
+	public String text()      { return text;     }
+
+	public String methodName() {
+		return methodName( methodId );
+	}
+
+	@Override
+	public String methodName( int id ) {
+		return ( id < methodNames.length )? methodNames[id] : null;
+	}
+
+	public String methodClass( int id ) {
+		return ( id < methodClasses.length )? methodClasses[id] : null;
+	}
+
+	public String methodDescriptor( int id ) {
+		return ( id < methodDescriptors.length )? methodDescriptors[id] : null;
+	}
+
+	public String threadName( long tid ) {
+		return threadNames.get( tid );
+	}
+
+	/** Offset, in the stream, of the next byte to be decoded. */
+	public long position() {
+		return bufOffset + bufPos;
+	}
+
+	private long readValue( int tag ) throws IOException {
+		switch ( tag ) {
+		case TraceFormat.TAG_VOID:
+			return 0;
+		case TraceFormat.TAG_INT:
+		case TraceFormat.TAG_LONG:
+			return TraceFormat.unzigzag( readVarint() );
+		default:
+			return readVarint();
+		}
+	}
+
+	private String readString() throws IOException {
+		int    len   = (int) readVarint();
+		byte[] bytes = new byte[ len ];
+		for(int i=0; i < len; ++i) {
+			bytes[i] = (byte) readByte();
+		}
+		return new String( bytes, "UTF-8" );
+	}
+
+	private long readVarint() throws IOException {
+		long v     = 0;
+		int  shift = 0;
+		while ( true ) {
+			int b = readByte();
+			v |= (long)( b & 0x7F ) << shift;
+			if ( ( b & 0x80 ) == 0 ) return v;
+			shift += 7;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = readByteOrEOF();
+		if ( b < 0 ) {
+			throw new EOFException( "Truncated trace at offset " + position() );
+		}
+		return b;
+	}
+
+	private int readByteOrEOF() throws IOException {
+		if ( bufPos == bufLen ) {
+			bufOffset += bufLen;
+			bufPos = 0;
+			bufLen = in.read( buf, 0, buf.length );
+			if ( bufLen <= 0 ) {
+				bufLen = 0;
+				return -1;
+			}
+		}
+		return buf[ bufPos++ ] & 0xFF;
+	}
+}
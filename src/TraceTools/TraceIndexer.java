@@ -0,0 +1,687 @@
+package TraceTools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import Logging.TraceFormat;
+
+/**
+ * Indexes binary ParaTracer trace segments, so that the events of a
+ * method, a thread or an object are found without decoding the whole
+ * trace:
+ *
+ * <p>{@code java TraceTools.TraceIndexer paratracerXalan-*.ptrc [-method <name>] [-thread <id>] [-object <id>] [-rebuild]}</p>
+ *
+ * <p>The index of a segment tells, for every method, thread and object
+ * (receiver, object argument or returned object), how many events it has
+ * and which batches hold them; a batch is known by its offset in the
+ * segment. A query intersects these lists, and decodes only the batches
+ * left. The matching events of all the segments are printed in the text
+ * format of {@link TraceConverter}, in the order they were recorded (see
+ * {@link TraceMerger}). Without a query, a summary of each index is
+ * printed.</p>
+ *
+ * <p>The segment is memory-mapped and its batches are indexed in
+ * parallel, by fork/join tasks. The index is saved next to the segment,
+ * as {@code <segment>.ptix}, and reused as long as the segment has not
+ * changed.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceIndexer {
+
+	private static final int MAGIC   = 0x50544958; // "PTIX"
+	private static final int VERSION = 1;
+
+	/** Batches indexed by one task, below which it is not split. */
+	private static final int BATCHES_PER_TASK = 64;
+
+	/** The events of one method, thread or object. */
+	public static final class Posting {
+		long  count;
+		int[] batches = new int[ 4 ];
+		int   size;
+
+		/** The number of events. */
+		public long count() { return count; }
+		/** The number of batches holding the events. */
+		public int  size()  { return size;  }
+		/** The index of the {@code i}-th batch holding events, in trace order. */
+		public int  batch( int i ) { return batches[i]; }
+
+		void add( int batch ) {
+			++count;
+			if ( size > 0 && batches[ size - 1 ] == batch ) return;
+			if ( size == batches.length ) {
+				batches = Arrays.copyOf( batches, 2 * size );
+			}
+			batches[ size++ ] = batch;
+		}
+
+		/** Appends the events of {@code p}, which follow those of this posting. */
+		void append( Posting p ) {
+			count += p.count;
+			int from = ( size > 0 && p.size > 0 && batches[ size - 1 ] == p.batches[0] )? 1 : 0;
+			if ( size + p.size - from > batches.length ) {
+				batches = Arrays.copyOf( batches, Math.max( size + p.size - from, 2 * batches.length ) );
+			}
+			System.arraycopy( p.batches, from, batches, size, p.size - from );
+			size += p.size - from;
+		}
+	}
+
+	/** The postings of a range of batches. */
+	private static final class Postings {
+		final HashMap< Integer, Posting > methods = new HashMap< Integer, Posting >();
+		final HashMap< Long, Posting >    threads = new HashMap< Long, Posting >();
+		final HashMap< Long, Posting >    objects = new HashMap< Long, Posting >();
+
+		/** Appends the postings of {@code next}, which covers the following batches. */
+		void append( Postings next ) {
+			appendAll( methods, next.methods );
+			appendAll( threads, next.threads );
+			appendAll( objects, next.objects );
+		}
+
+		private static < K > void appendAll( HashMap< K, Posting > to, HashMap< K, Posting > from ) {
+			for( Map.Entry< K, Posting > e : from.entrySet() ) {
+				Posting p = to.get( e.getKey() );
+				if ( p == null ) {
+					to.put( e.getKey(), e.getValue() );
+				} else {
+					p.append( e.getValue() );
+				}
+			}
+		}
+	}
+
+	/** The index of one segment. */
+	public static final class Index {
+		final File        segment;
+		/** Where the records of the segment end. */
+		long              dataEnd;
+		long[]            batchOffsets;
+		int[]             batchLengths;
+		long[]            batchThreads;
+		String[]          methodNames;
+		Postings          postings;
+		/** Whether the index was read from its file rather than built. */
+		boolean           reused;
+
+		Index( File segment ) {
+			this.segment = segment;
+		}
+
+		public File   segment()             { return segment;               }
+		public int    batchCount()          { return batchOffsets.length;   }
+		/** Offset of the BATCH record of batch {@code i} in the segment. */
+		public long   batchOffset( int i )  { return batchOffsets[i];       }
+		/** End offset of batch {@code i} in the segment. */
+		public long   batchEnd( int i )     { return batchOffsets[i] + batchLengths[i]; }
+		public long   batchThread( int i )  { return batchThreads[i];       }
+		public boolean reused()             { return reused;                }
+
+		public String methodName( int id ) {
+			return ( id < methodNames.length )? methodNames[id] : null;
+		}
+
+		/**
+		 * The IDs of the methods named {@code name}, either in full (see
+		 * {@link TraceFormat#longName}) or without their parameter list.
+		 */
+		public int[] methodIds( String name ) {
+			int[] ids = new int[ 0 ];
+			for(int id=0; id < methodNames.length; ++id) {
+				String m = methodNames[id];
+				if ( m != null && ( m.equals( name ) || m.startsWith( name + "(" ) ) ) {
+					ids = Arrays.copyOf( ids, ids.length + 1 );
+					ids[ ids.length - 1 ] = id;
+				}
+			}
+			return ids;
+		}
+
+		public Posting method( int id )  { return postings.methods.get( id );  }
+		public Posting thread( long id ) { return postings.threads.get( id );  }
+		public Posting object( long id ) { return postings.objects.get( id );  }
+
+		public int methodCount() { return postings.methods.size(); }
+		public int threadCount() { return postings.threads.size(); }
+		public int objectCount() { return postings.objects.size(); }
+
+		/** The number of events, i.e. START and END records. */
+		public long eventCount() {
+			long n = 0;
+			for( Posting p : postings.threads.values() ) {
+				n += p.count;
+			}
+			return n;
+		}
+	}
+
+	/** Indexes a range of batches, splitting it among subtasks. */
+	private static final class IndexTask extends RecursiveTask< Postings > {
+		private static final long serialVersionUID = 1L;
+
+		private final TraceCursor cursor;
+		private final Index       index;
+		private final int         from;
+		private final int         to;
+
+		IndexTask( TraceCursor cursor, Index index, int from, int to ) {
+			this.cursor = cursor;
+			this.index  = index;
+			this.from   = from;
+			this.to     = to;
+		}
+
+		@Override
+		protected Postings compute() {
+			if ( to - from > BATCHES_PER_TASK ) {
+				int       mid   = ( from + to ) >>> 1;
+				IndexTask left  = new IndexTask( cursor, index, from, mid );
+				IndexTask right = new IndexTask( cursor, index, mid, to );
+				left.fork();
+				Postings  after = right.compute();
+				Postings  p     = left.join();
+				p.append( after );
+				return p;
+			}
+			try {
+				return indexBatches( cursor.duplicate(), index, from, to );
+			} catch ( IOException ex ) {
+				throw new RuntimeException( ex );
+			}
+		}
+	}
+
+	public static void main( String[] args ) {
+		ArrayList<String> inFiles = new ArrayList<String>();
+		String  method  = null;
+		long    thread  = -1;
+		long    object  = 0;
+		boolean rebuild = false;
+		for(int i=0; i < args.length; ++i) {
+			if ( "-method".equals( args[i] ) && i + 1 < args.length ) {
+				method = args[++i];
+			} else if ( "-thread".equals( args[i] ) && i + 1 < args.length ) {
+				thread = Long.parseLong( args[++i] );
+			} else if ( "-object".equals( args[i] ) && i + 1 < args.length ) {
+				object = Long.parseLong( args[++i] );
+			} else if ( "-rebuild".equals( args[i] ) ) {
+				rebuild = true;
+			} else {
+				inFiles.add( args[i] );
+			}
+		}
+		if ( inFiles.isEmpty() ) {
+			System.err.println( "Usage: TraceIndexer <segment.ptrc>... [-method <name>] [-thread <id>]"
+					+ " [-object <id>] [-rebuild]" );
+			System.exit( 1 );
+		}
+		boolean     query = method != null || thread >= 0 || object != 0;
+		PrintStream out   = new PrintStream( new BufferedOutputStream( System.out, 64 * 1024 ), false );
+		try {
+			ArrayList< Index > indexes = new ArrayList< Index >();
+			for( String inFile : inFiles ) {
+				long  start = System.nanoTime();
+				Index index = index( new File( inFile ), rebuild );
+				if ( query ) {
+					indexes.add( index );
+				} else {
+					out.println( inFile + ": " + index.batchCount() + " batches, " + index.eventCount() + " events, "
+							+ index.methodCount() + " methods, " + index.threadCount() + " threads, "
+							+ index.objectCount() + " objects; index " + ( index.reused()? "reused" : "built" )
+							+ " in " + ( System.nanoTime() - start ) / 1000000 + " ms" );
+				}
+			}
+			if ( query ) {
+				query( indexes, method, thread, object, out );
+			}
+		} catch ( IOException ex ) {
+			System.err.println( ex.toString() );
+			System.exit( 1 );
+		} finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Returns the index of {@code segment}: the one saved next to it if it
+	 * is still current and {@code rebuild} is false, or else a new one,
+	 * which is then saved.
+	 */
+	public static Index index( File segment, boolean rebuild ) throws IOException {
+		File file = indexFile( segment );
+		if ( ! rebuild && file.isFile() ) {
+			try {
+				Index index = read( segment, file );
+				if ( index != null ) return index;
+			} catch ( IOException ex ) {
+				System.err.println( "*** Ignoring the index " + file + ": " + ex );
+			}
+		}
+		Index index = build( segment );
+		try {
+			write( index, file );
+		} catch ( IOException ex ) {
+			System.err.println( "*** Cannot save the index " + file + ": " + ex );
+		}
+		return index;
+	}
+
+	/** Builds the index of {@code segment}. */
+	public static Index build( File segment ) throws IOException {
+		TraceCursor cursor = TraceCursor.open( segment );
+		Index       index  = new Index( segment );
+
+		// Find the batches, skipping over their events.
+		int    n       = 0;
+		long[] offsets = new long[ 1024 ];
+		int[]  lengths = new int [ 1024 ];
+		long[] threads = new long[ 1024 ];
+		int    kind;
+		while ( ( kind = cursor.nextRecord() ) >= 0 ) {
+			if ( kind != TraceFormat.BATCH ) continue;
+			if ( n == offsets.length ) {
+				offsets = Arrays.copyOf( offsets, 2 * n );
+				lengths = Arrays.copyOf( lengths, 2 * n );
+				threads = Arrays.copyOf( threads, 2 * n );
+			}
+			offsets[n] = cursor.offset();
+			lengths[n] = (int)( cursor.batchEnd() - cursor.offset() );
+			threads[n] = cursor.threadId();
+			++n;
+		}
+		index.dataEnd      = cursor.offset();
+		index.batchOffsets = Arrays.copyOf( offsets, n );
+		index.batchLengths = Arrays.copyOf( lengths, n );
+		index.batchThreads = Arrays.copyOf( threads, n );
+		index.methodNames  = methodNames( cursor );
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			index.postings = pool.invoke( new IndexTask( cursor, index, 0, n ) );
+		} catch ( RuntimeException ex ) {
+			if ( ex.getCause() instanceof IOException ) throw (IOException) ex.getCause();
+			throw ex;
+		} finally {
+			pool.shutdown();
+		}
+		return index;
+	}
+
+	/**
+	 * Prints the events of {@code index} that are of the methods named
+	 * {@code method}, of thread {@code thread}, and that involve object
+	 * {@code object}; a null method, thread -1 or object 0 matches all.
+	 */
+	public static void query( Index index, String method, long thread, long object, PrintStream out )
+			throws IOException {
+		query( Collections.singletonList( index ), method, thread, object, out );
+	}
+
+	/**
+	 * Prints the matching events of {@code indexes}, the indexes of the
+	 * segments of one trace in the order they were written, in the order
+	 * the events were recorded.
+	 */
+	public static void query( List< Index > indexes, String method, long thread, long object, PrintStream out )
+			throws IOException {
+		// Method IDs are those of the traced JVM, the same in every segment.
+		boolean[]   isMethod = null;
+		TraceMerger merger   = new TraceMerger();
+		for( Index index : indexes ) {
+			int[] candidates = null;
+			if ( method != null ) {
+				int[] ids = index.methodIds( method );
+				if ( isMethod == null ) {
+					isMethod = new boolean[ 0 ];
+				}
+				Posting all = new Posting();
+				for( int id : ids ) {
+					if ( id >= isMethod.length ) {
+						isMethod = Arrays.copyOf( isMethod, index.methodNames.length );
+					}
+					isMethod[id] = true;
+					Posting p = index.method( id );
+					if ( p != null ) {
+						all = union( all, p );
+					}
+				}
+				candidates = Arrays.copyOf( all.batches, all.size );
+			}
+			if ( thread >= 0 ) {
+				candidates = intersect( candidates, index.thread( thread ) );
+			}
+			if ( object != 0 ) {
+				candidates = intersect( candidates, index.object( object ) );
+			}
+			if ( candidates == null ) {
+				candidates = new int[ index.batchCount() ];
+				for(int i=0; i < candidates.length; ++i) {
+					candidates[i] = i;
+				}
+			}
+			if ( candidates.length == 0 ) continue;
+
+			TraceCursor cursor = TraceCursor.open( index.segment );
+			for(int id=0; id < index.methodNames.length; ++id) {
+				if ( index.methodNames[id] != null ) {
+					cursor.defineMethod( id, index.methodNames[id] );
+				}
+			}
+			for( int b : candidates ) {
+				merger.addBatch( cursor, index.batchThread( b ), index.batchOffset( b ), index.batchEnd( b ) );
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int kind;
+		while ( ( kind = merger.next() ) >= 0 ) {
+			if ( kind != TraceFormat.START && kind != TraceFormat.END && kind != TraceFormat.THROW ) continue;
+			if ( isMethod != null && ( merger.methodId() >= isMethod.length || ! isMethod[ merger.methodId() ] ) ) continue;
+			if ( thread >= 0 && merger.threadId() != thread ) continue;
+			if ( object != 0 && ! involves( merger, object ) ) continue;
+			out.println( TraceConverter.eventLine( merger, sb ) );
+		}
+	}
+
+	private static Postings indexBatches( TraceCursor cursor, Index index, int from, int to ) throws IOException {
+		Postings p    = new Postings();
+		long[]   keys = new long[ 16 ];
+		for(int b=from; b < to; ++b) {
+			Posting threadPosting = null;
+			cursor.seek( index.batchOffsets[b], index.batchEnd( b ) );
+			int kind;
+			while ( ( kind = cursor.next() ) >= 0 ) {
+				if ( kind != TraceFormat.START && kind != TraceFormat.END && kind != TraceFormat.THROW ) continue;
+				if ( threadPosting == null ) {
+					threadPosting = posting( p.threads, cursor.threadId() );
+				}
+				threadPosting.add( b );
+				Posting mp = p.methods.get( cursor.methodId() );
+				if ( mp == null ) {
+					mp = new Posting();
+					p.methods.put( cursor.methodId(), mp );
+				}
+				mp.add( b );
+
+				// The distinct objects of the event.
+				int n = 0;
+				if ( cursor.receiverId() != 0 ) {
+					keys[ n++ ] = cursor.receiverId();
+				}
+				for(int i=0; i <= cursor.argCount(); ++i) {
+					long key;
+					if ( i < cursor.argCount() ) {
+						if ( cursor.argTag( i ) != TraceFormat.TAG_OBJECT ) continue;
+						key = cursor.argAt( i );
+					} else {
+						if ( kind != TraceFormat.END || cursor.valueTag() != TraceFormat.TAG_OBJECT ) continue;
+						key = cursor.value();
+					}
+					if ( key == 0 || contains( keys, n, key ) ) continue;
+					if ( n == keys.length ) {
+						keys = Arrays.copyOf( keys, 2 * n );
+					}
+					keys[ n++ ] = key;
+				}
+				for(int i=0; i < n; ++i) {
+					posting( p.objects, keys[i] ).add( b );
+				}
+			}
+		}
+		return p;
+	}
+
+	private static Posting posting( HashMap< Long, Posting > postings, long key ) {
+		Posting p = postings.get( key );
+		if ( p == null ) {
+			p = new Posting();
+			postings.put( key, p );
+		}
+		return p;
+	}
+
+	private static boolean contains( long[] keys, int n, long key ) {
+		for(int i=0; i < n; ++i) {
+			if ( keys[i] == key ) return true;
+		}
+		return false;
+	}
+
+	private static boolean involves( EventCursor cursor, long object ) {
+		if ( cursor.receiverId() == object ) return true;
+		for(int i=0; i < cursor.argCount(); ++i) {
+			if ( cursor.argTag( i ) == TraceFormat.TAG_OBJECT && cursor.argAt( i ) == object ) return true;
+		}
+		return cursor.kind() == TraceFormat.END && cursor.valueTag() == TraceFormat.TAG_OBJECT
+				&& cursor.value() == object;
+	}
+
+	/** The batches in both {@code batches} (null for all) and {@code p}. */
+	private static int[] intersect( int[] batches, Posting p ) {
+		if ( p == null ) return new int[ 0 ];
+		if ( batches == null ) return Arrays.copyOf( p.batches, p.size );
+		int[] both = new int[ Math.min( batches.length, p.size ) ];
+		int   n    = 0;
+		for(int i=0, j=0; i < batches.length && j < p.size; ) {
+			if ( batches[i] < p.batches[j] ) {
+				++i;
+			} else if ( batches[i] > p.batches[j] ) {
+				++j;
+			} else {
+				both[ n++ ] = batches[i];
+				++i;
+				++j;
+			}
+		}
+		return Arrays.copyOf( both, n );
+	}
+
+	private static Posting union( Posting a, Posting b ) {
+		Posting u = new Posting();
+		u.batches = new int[ Math.max( 4, a.size + b.size ) ];
+		int i = 0, j = 0;
+		while ( i < a.size || j < b.size ) {
+			int next;
+			if ( j == b.size || ( i < a.size && a.batches[i] < b.batches[j] ) ) {
+				next = a.batches[ i++ ];
+			} else if ( i == a.size || b.batches[j] < a.batches[i] ) {
+				next = b.batches[ j++ ];
+			} else {
+				next = a.batches[ i++ ];
+				++j;
+			}
+			u.batches[ u.size++ ] = next;
+		}
+		u.count = a.count + b.count;
+		return u;
+	}
+
+	private static String[] methodNames( TraceCursor cursor ) {
+		int      n     = cursor.methodLimit();
+		String[] names = new String[ n ];
+		for(int id=0; id < n; ++id) {
+			names[id] = cursor.methodName( id );
+		}
+		return names;
+	}
+
+	/** {@code <segment>.ptix} */
+	public static File indexFile( File segment ) {
+		return new File( segment.getPath() + ".ptix" );
+	}
+
+	private static void write( Index index, File file ) throws IOException {
+		File tmp = new File( file.getPath() + ".tmp" );
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 256 * 1024 ) );
+		try {
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeLong( index.segment.length() );
+			out.writeLong( index.dataEnd );
+			writeVarint( out, index.batchCount() );
+			long last = 0;
+			for(int i=0; i < index.batchCount(); ++i) {
+				writeVarint( out, index.batchOffsets[i] - last );
+				writeVarint( out, index.batchLengths[i] );
+				writeVarint( out, index.batchThreads[i] );
+				last = index.batchOffsets[i];
+			}
+			writeVarint( out, index.methodNames.length );
+			for(int id=0; id < index.methodNames.length; ++id) {
+				out.writeBoolean( index.methodNames[id] != null );
+				if ( index.methodNames[id] != null ) {
+					out.writeUTF( index.methodNames[id] );
+				}
+			}
+			writeVarint( out, index.postings.methods.size() );
+			for( Map.Entry< Integer, Posting > e : index.postings.methods.entrySet() ) {
+				writeVarint( out, e.getKey() );
+				writePosting( out, e.getValue() );
+			}
+			writePostings( out, index.postings.threads );
+			writePostings( out, index.postings.objects );
+		} finally {
+			out.close();
+		}
+		if ( ! tmp.renameTo( file ) ) {
+			file.delete();
+			if ( ! tmp.renameTo( file ) ) {
+				tmp.delete();
+				throw new IOException( "Cannot rename " + tmp );
+			}
+		}
+	}
+
+	/**
+	 * Reads the index of {@code segment} from {@code file}. Returns null if
+	 * the segment changed since: its length differs, or records were added
+	 * after those indexed (a segment being written is zero-filled ahead).
+	 */
+	private static Index read( File segment, File file ) throws IOException {
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 256 * 1024 ) );
+		try {
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION ) return null;
+			if ( in.readLong() != segment.length() ) return null;
+			Index index   = new Index( segment );
+			index.dataEnd = in.readLong();
+			if ( ! endsAt( segment, index.dataEnd ) ) return null;
+			int n = (int) readVarint( in );
+			index.batchOffsets = new long[ n ];
+			index.batchLengths = new int [ n ];
+			index.batchThreads = new long[ n ];
+			long last = 0;
+			for(int i=0; i < n; ++i) {
+				last = index.batchOffsets[i] = last + readVarint( in );
+				index.batchLengths[i] = (int) readVarint( in );
+				index.batchThreads[i] = readVarint( in );
+			}
+			index.methodNames = new String[ (int) readVarint( in ) ];
+			for(int id=0; id < index.methodNames.length; ++id) {
+				if ( in.readBoolean() ) {
+					index.methodNames[id] = in.readUTF();
+				}
+			}
+			index.postings = new Postings();
+			for(int i=(int) readVarint( in ); i > 0; --i) {
+				int id = (int) readVarint( in );
+				index.postings.methods.put( id, readPosting( in ) );
+			}
+			readPostings( in, index.postings.threads );
+			readPostings( in, index.postings.objects );
+			index.reused = true;
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Whether the records of {@code segment} still end at {@code dataEnd}. */
+	private static boolean endsAt( File segment, long dataEnd ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( segment, "r" );
+		try {
+			if ( dataEnd >= raf.length() ) return true;
+			raf.seek( dataEnd );
+			return raf.read() == TraceFormat.PADDING;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writePostings( DataOutputStream out, HashMap< Long, Posting > postings ) throws IOException {
+		writeVarint( out, postings.size() );
+		for( Map.Entry< Long, Posting > e : postings.entrySet() ) {
+			writeVarint( out, e.getKey() );
+			writePosting( out, e.getValue() );
+		}
+	}
+
+	private static void readPostings( DataInputStream in, HashMap< Long, Posting > postings ) throws IOException {
+		for(int i=(int) readVarint( in ); i > 0; --i) {
+			long key = readVarint( in );
+			postings.put( key, readPosting( in ) );
+		}
+	}
+
+	/** The count, then the batches as deltas. */
+	private static void writePosting( DataOutputStream out, Posting p ) throws IOException {
+		writeVarint( out, p.count );
+		writeVarint( out, p.size );
+		int last = 0;
+		for(int i=0; i < p.size; ++i) {
+			writeVarint( out, p.batches[i] - last );
+			last = p.batches[i];
+		}
+	}
+
+	private static Posting readPosting( DataInputStream in ) throws IOException {
+		Posting p = new Posting();
+		p.count   = readVarint( in );
+		p.size    = (int) readVarint( in );
+		p.batches = new int[ Math.max( 1, p.size ) ];
+		int last = 0;
+		for(int i=0; i < p.size; ++i) {
+			last = p.batches[i] = last + (int) readVarint( in );
+		}
+		return p;
+	}
+
+	private static void writeVarint( DataOutputStream out, long v ) throws IOException {
+		while ( ( v & ~0x7FL ) != 0 ) {
+			out.writeByte( (int)( v & 0x7F ) | 0x80 );
+			v >>>= 7;
+		}
+		out.writeByte( (int) v );
+	}
+
+	private static long readVarint( DataInputStream in ) throws IOException {
+		long v     = 0;
+		int  shift = 0;
+		while ( true ) {
+			int b = in.readUnsignedByte();
+			v |= (long)( b & 0x7F ) << shift;
+			if ( ( b & 0x80 ) == 0 ) return v;
+			shift += 7;
+		}
+	}
+}
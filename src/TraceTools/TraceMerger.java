@@ -0,0 +1,179 @@
+package TraceTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import Logging.TraceFormat;
+
+/**
+ * Cursor over the events of binary ParaTracer trace segments, in the
+ * order they were recorded.
+ *
+ * <p>A thread hands its events to the drainer a chunk at a time, once
+ * the chunk is full, so the batches of a segment follow the order they
+ * were drained in: a thread that records little may hold its events for
+ * long, and they then come after later events of busier threads, or even
+ * in a later segment. Every record carries the time it was recorded (see
+ * {@link TraceFormat}) though. The merger walks the batches of every
+ * thread in turn, and always moves to the earliest record of all the
+ * threads; records of the same time keep the order of their threads.</p>
+ *
+ * <p>The header lines of the first segment come first, with thread -1,
+ * followed by the events, TEXT, LOST and THROTTLE records of all the
+ * segments. The METHOD and THREAD records only name things, through the
+ * cursor of their segment, and are not returned. The segments are
+ * memory-mapped (see {@link TraceCursor#open}), so that any batch can be
+ * read again; a compressed segment is uncompressed in memory.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceMerger implements EventCursor {
+
+	/** The batches of one thread, in order, and the one being read. */
+	private static final class Stream {
+		final int       order;
+		TraceCursor[]   segments = new TraceCursor[ 8 ];
+		long[]          offsets  = new long[ 8 ];
+		long[]          ends     = new long[ 8 ];
+		int             size;
+		int             next;
+		/** The cursor over the current batch, at its current record. */
+		TraceCursor     cursor;
+		long            time;
+
+		Stream( int order ) {
+			this.order = order;
+		}
+
+		void add( TraceCursor segment, long offset, long end ) {
+			if ( size == offsets.length ) {
+				segments = Arrays.copyOf( segments, 2 * size );
+				offsets  = Arrays.copyOf( offsets,  2 * size );
+				ends     = Arrays.copyOf( ends,     2 * size );
+			}
+			segments[size] = segment;
+			offsets [size] = offset;
+			ends    [size] = end;
+			++size;
+		}
+
+		/** Moves to the next record of the thread; returns false at the end. */
+		boolean advance() throws IOException {
+			while ( true ) {
+				if ( cursor != null ) {
+					int kind = cursor.next();
+					if ( kind >= 0 && kind != TraceFormat.METHOD && kind != TraceFormat.THREAD ) {
+						time = cursor.time();
+						return true;
+					}
+					if ( kind >= 0 ) continue;
+				}
+				if ( next == size ) return false;
+				cursor = segments[ next ].duplicate();
+				cursor.seek( offsets[ next ], ends[ next ] );
+				segments[ next ] = null;
+				++next;
+			}
+		}
+	}
+
+	private final HashMap< Long, Stream > streams = new HashMap< Long, Stream >();
+	/** The records outside of batches: the header lines and the THROTTLE records. */
+	private final Stream                  records = stream( -1 );
+	private PriorityQueue< Stream >       queue;
+	private Stream                        current;
+	private boolean                       header = true;
+
+	/** Adds the records of segment file {@code file}, which follows those added so far. */
+	public void add( File file ) throws IOException {
+		TraceCursor segment = TraceCursor.open( file );
+		int kind;
+		while ( ( kind = segment.nextRecord() ) >= 0 ) {
+			if ( kind == TraceFormat.BATCH ) {
+				addBatch( segment, segment.threadId(), segment.offset(), segment.batchEnd() );
+			} else if ( kind == TraceFormat.THROTTLE || ( kind == TraceFormat.TEXT && header ) ) {
+				records.add( segment, segment.offset(), segment.position() );
+			}
+		}
+		header = false;
+	}
+
+	/**
+	 * Adds the batch of thread {@code threadId} at {@code offset} in
+	 * {@code segment}, up to {@code end}, e.g. one found through a
+	 * {@link TraceIndexer.Index}. The batches of a thread must be added in
+	 * the order they were written. The methods of the batch must be named
+	 * in {@code segment}.
+	 */
+	public void addBatch( TraceCursor segment, long threadId, long offset, long end ) {
+		if ( queue != null ) {
+			throw new IllegalStateException( "The merge has started" );
+		}
+		stream( threadId ).add( segment, offset, end );
+	}
+
+	private Stream stream( long threadId ) {
+		Stream s = streams.get( threadId );
+		if ( s == null ) {
+			s = new Stream( streams.size() );
+			streams.put( threadId, s );
+		}
+		return s;
+	}
+
+	@Override
+	public int next() throws IOException {
+		if ( queue == null ) {
+			queue = new PriorityQueue< Stream >( Math.max( 1, streams.size() ), new Comparator< Stream >() {
+				@Override
+				public int compare( Stream a, Stream b ) {
+					if ( a.time != b.time ) return ( a.time < b.time )? -1 : 1;
+					return a.order - b.order;
+				}
+			} );
+			for( Stream s : streams.values() ) {
+				if ( s.advance() ) {
+					queue.add( s );
+				}
+			}
+		} else if ( current != null && current.advance() ) {
+			queue.add( current );
+		}
+		current = queue.poll();
+		return ( current != null )? current.cursor.kind() : -1;
+	}
+
+	private TraceCursor cursor() {
+		return current.cursor;
+	}
+
+	@Override
+	public int    kind()           { return ( current != null )? cursor().kind() : -1; }
+	@Override
+	public long   threadId()       { return cursor().threadId();   }
+	/** When the current record was recorded, as {@link TraceCursor#time} tells. */
+	public long   time()           { return cursor().time();       }
+	@Override
+	public int    methodId()       { return cursor().methodId();   }
+	@Override
+	public String methodName( int id ) { return cursor().methodName( id ); }
+	@Override
+	public long   receiverId()     { return cursor().receiverId(); }
+	@Override
+	public int    argCount()       { return cursor().argCount();   }
+	@Override
+	public int    argTag( int i )  { return cursor().argTag( i );  }
+	@Override
+	public long   argAt( int i )   { return cursor().argAt( i );   }
+	@Override
+	public int    valueTag()       { return cursor().valueTag();   }
+	@Override
+	public long   value()          { return cursor().value();      }
+	@Override
+	public String text() throws IOException { return cursor().text(); }
+}
@@ -0,0 +1,39 @@
+package TraceTools;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import Logging.TraceFormat;
+
+/**
+ * Opens a ParaTracer trace file of any format as an {@link EventCursor}:
+ * a binary segment ({@code .ptrc}), a compressed one ({@code .ptrz}) or
+ * a text trace ({@code .out}).
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public final class TraceReader {
+
+	private TraceReader() {}
+
+	public static EventCursor open( File file ) throws IOException {
+		byte[] magic = new byte[ TraceFormat.MAGIC.length ];
+		DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+		try {
+			in.readFully( magic );
+		} catch ( EOFException ex ) {
+			return new TextTraceCursor( file );
+		} finally {
+			in.close();
+		}
+		if ( Arrays.equals( magic, TraceFormat.MAGIC ) || Arrays.equals( magic, TraceFormat.BLOCKS_MAGIC ) ) {
+			return TraceCursor.open( file );
+		}
+		return new TextTraceCursor( file );
+	}
+}
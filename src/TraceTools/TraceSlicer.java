@@ -0,0 +1,386 @@
+package TraceTools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import Logging.TraceFormat;
+
+/**
+ * Slices a binary ParaTracer trace by object, or by binding of objects:
+ * the events of every slice are written together, in the order they were
+ * recorded (see {@link TraceMerger}), in the text format of
+ * {@link TraceConverter}:
+ *
+ * <p>{@code java TraceTools.TraceSlicer paratracerXalan-*.ptrc [-o paratracerXalan.slices] [-by receiver|bindings] [-mem <MB>] [-tmp <dir>]}</p>
+ *
+ * <pre>
+ * === 1531448569
+ * 1 : java.io.StringReader.read().&lt;START&gt;(1531448569)
+ * 1 : java.io.StringReader.read().&lt; END &gt;(1531448569)=97
+ * ...
+ * </pre>
+ *
+ * <p>With {@code -by receiver} (the default) an event belongs to the
+ * slice of its receiver. With {@code -by bindings} the objects are bound
+ * through the values returned: a call that returns an object binds it to
+ * its receiver, e.g. a map to the iterators and views it hands out, and
+ * transitively. An event then belongs to the slice of the binding of its
+ * receiver, which is named after the oldest object of the binding. Every
+ * event is written once, in one slice. Object arguments do not bind, as
+ * an argument shared by unrelated calls (a key, a string) would chain
+ * them all into one slice. Static calls have no receiver, and belong to
+ * no slice.</p>
+ *
+ * <p>The trace is read once in recording order, after a first pass that
+ * only binds the objects with {@code -by bindings}; only the objects
+ * bound to another one are then kept in memory. The slices are kept in
+ * memory up to the given budget; beyond it they are spilled into a run
+ * file, sorted by object, and the runs are merged at the end. The slices
+ * therefore take bounded memory whatever the size of the trace, and the
+ * disk holds at most one more copy of the sliced events. The segments are
+ * mapped, but compressed ones are uncompressed in memory.</p>
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceSlicer {
+
+	/** Memory taken by a slice besides its events, as an estimate. */
+	private static final int SLICE_OVERHEAD = 96;
+
+	/** The buffered events of one object. */
+	private static final class Slice {
+		byte[] bytes = new byte[ 64 ];
+		int    length;
+	}
+
+	/** Reads the slices of a run file, in the order of their objects. */
+	private static final class Run {
+		final int             index;
+		final File            file;
+		final DataInputStream in;
+		long                  key;
+		int                   length;
+
+		Run( int index, File file ) throws IOException {
+			this.index = index;
+			this.file  = file;
+			this.in    = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+		}
+
+		/** Advances to the next slice; returns false at the end of the run. */
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch ( EOFException ex ) {
+				return false;
+			}
+			length = in.readInt();
+			return true;
+		}
+
+		/** Copies the events of the current slice to {@code out}. */
+		void copyTo( OutputStream out, byte[] buf ) throws IOException {
+			int left = length;
+			while ( left > 0 ) {
+				int n = Math.min( left, buf.length );
+				in.readFully( buf, 0, n );
+				out.write( buf, 0, n );
+				left -= n;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+			file.delete();
+		}
+	}
+
+	private final boolean                  bindings;
+	private final long                     memoryBudget;
+	private final File                     tmpDir;
+	private final HashMap< Long, Slice >   slices = new HashMap< Long, Slice >();
+	private final ArrayList< File >        runs   = new ArrayList< File >();
+	/** Memory taken by the slices, as an estimate. */
+	private long                           buffered;
+	private long                           lost;
+	/**
+	 * With {@code -by bindings}, the object each bound object was bound
+	 * to, towards the oldest object of the binding; the other objects are
+	 * bound to none.
+	 */
+	private final HashMap< Long, Long >    parents = new HashMap< Long, Long >();
+
+	/**
+	 * @param bindings     true to slice by binding (see {@link #bind}),
+	 *                     false by receiver
+	 * @param memoryBudget the memory the slices may take, in bytes
+	 * @param tmpDir       where the run files go
+	 */
+	public TraceSlicer( boolean bindings, long memoryBudget, File tmpDir ) {
+		this.bindings     = bindings;
+		this.memoryBudget = memoryBudget;
+		this.tmpDir       = tmpDir;
+	}
+
+	public static void main( String[] args ) {
+		ArrayList<String> inFiles = new ArrayList<String>();
+		String  outFile    = null;
+		boolean bindings   = false;
+		long    memory     = 256L * 1024 * 1024;
+		String  tmpDir     = null;
+		for(int i=0; i < args.length; ++i) {
+			if ( "-o".equals( args[i] ) && i + 1 < args.length ) {
+				outFile = args[++i];
+			} else if ( "-by".equals( args[i] ) && i + 1 < args.length ) {
+				bindings = "bindings".equals( args[++i] );
+			} else if ( "-mem".equals( args[i] ) && i + 1 < args.length ) {
+				memory = Long.parseLong( args[++i] ) * 1024 * 1024;
+			} else if ( "-tmp".equals( args[i] ) && i + 1 < args.length ) {
+				tmpDir = args[++i];
+			} else {
+				inFiles.add( args[i] );
+			}
+		}
+		if ( inFiles.isEmpty() ) {
+			System.err.println( "Usage: TraceSlicer <segment.ptrc>... [-o <trace.slices>]"
+					+ " [-by receiver|bindings] [-mem <MB>] [-tmp <dir>]" );
+			System.exit( 1 );
+		}
+		if ( outFile == null ) {
+			String name = TraceConverter.textFileName( inFiles.get( 0 ) );
+			outFile = name.substring( 0, name.length() - ".out".length() ) + ".slices";
+		}
+		if ( tmpDir == null ) {
+			tmpDir = new File( outFile ).getAbsoluteFile().getParent();
+		}
+		try {
+			TraceSlicer slicer = new TraceSlicer( bindings, memory, new File( tmpDir ) );
+			if ( bindings ) {
+				slicer.bind( merge( inFiles ) );
+			}
+			slicer.add( merge( inFiles ) );
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( outFile ), 256 * 1024 );
+			try {
+				slicer.finish( out );
+			} finally {
+				out.close();
+			}
+		} catch ( IOException ex ) {
+			System.err.println( ex.toString() );
+			System.exit( 1 );
+		}
+	}
+
+	private static TraceMerger merge( ArrayList<String> inFiles ) throws IOException {
+		TraceMerger merger = new TraceMerger();
+		for( String inFile : inFiles ) {
+			merger.add( new File( inFile ) );
+		}
+		return merger;
+	}
+
+	/**
+	 * Binds the objects of the trace, for {@code -by bindings}: the object
+	 * returned by a call is bound to its receiver. It must see the whole
+	 * trace before {@link #add} does.
+	 */
+	public void bind( EventCursor dec ) throws IOException {
+		try {
+			int kind;
+			while ( ( kind = dec.next() ) >= 0 ) {
+				if ( kind == TraceFormat.END && dec.receiverId() != 0
+						&& dec.valueTag() == TraceFormat.TAG_OBJECT && dec.value() != 0 ) {
+					union( dec.receiverId(), dec.value() );
+				}
+			}
+		} catch ( EOFException ex ) {
+			// The traced JVM died before the drainer could finish the batch.
+			System.err.println( "*** Warning: " + ex.getMessage() );
+		}
+	}
+
+	/** The oldest object of the binding of {@code id}, i.e. the one of lowest ID. */
+	private long find( long id ) {
+		long root = id;
+		Long parent;
+		while ( ( parent = parents.get( root ) ) != null ) {
+			root = parent;
+		}
+		// Bind the objects on the way straight to the root.
+		while ( id != root ) {
+			long next = parents.get( id );
+			parents.put( id, root );
+			id = next;
+		}
+		return root;
+	}
+
+	private void union( long a, long b ) {
+		long ra = find( a );
+		long rb = find( b );
+		if ( ra < rb ) {
+			parents.put( rb, ra );
+		} else if ( rb < ra ) {
+			parents.put( ra, rb );
+		}
+	}
+
+	/**
+	 * Adds the events of one trace segment, read as a stream, to the
+	 * slices, in the order they were drained in.
+	 */
+	public void add( InputStream in ) throws IOException {
+		add( new TraceDecoder( in ) );
+	}
+
+	/** Adds the events of {@code dec}, e.g. a {@link TraceMerger}, to the slices. */
+	public void add( EventCursor dec ) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try {
+			int kind;
+			while ( ( kind = dec.next() ) >= 0 ) {
+				if ( kind == TraceFormat.LOST ) {
+					lost += dec.value();
+				}
+				if ( kind != TraceFormat.START && kind != TraceFormat.END && kind != TraceFormat.THROW ) continue;
+				long key = dec.receiverId();
+				if ( key == 0 ) continue; // A static call.
+				if ( bindings ) {
+					key = find( key );
+				}
+				append( key, ( TraceConverter.eventLine( dec, sb ) + "\n" ).getBytes( "UTF-8" ) );
+			}
+		} catch ( EOFException ex ) {
+			// The traced JVM died before the drainer could finish the batch.
+			System.err.println( "*** Warning: " + ex.getMessage() );
+		}
+	}
+
+	/** Writes the slices, ordered by object, and deletes the run files. */
+	public void finish( OutputStream out ) throws IOException {
+		if ( runs.isEmpty() ) {
+			for( long key : sortedKeys() ) {
+				Slice s = slices.get( key );
+				out.write( header( key ) );
+				out.write( s.bytes, 0, s.length );
+			}
+		} else {
+			spill();
+			merge( out );
+		}
+		if ( lost > 0 ) {
+			out.write( ( "# " + lost + " events were lost while tracing; some slices are incomplete.\n" )
+					.getBytes( "UTF-8" ) );
+		}
+		slices.clear();
+		buffered = 0;
+	}
+
+	private void append( long key, byte[] line ) throws IOException {
+		Slice s = slices.get( key );
+		if ( s == null ) {
+			s = new Slice();
+			slices.put( key, s );
+			buffered += SLICE_OVERHEAD + s.bytes.length;
+		}
+		if ( s.length + line.length > s.bytes.length ) {
+			int size = Math.max( s.length + line.length, 2 * s.bytes.length );
+			buffered += size - s.bytes.length;
+			s.bytes = Arrays.copyOf( s.bytes, size );
+		}
+		System.arraycopy( line, 0, s.bytes, s.length, line.length );
+		s.length += line.length;
+		if ( buffered > memoryBudget ) {
+			spill();
+		}
+	}
+
+	/** Writes the buffered slices into a new run file, ordered by object. */
+	private void spill() throws IOException {
+		File file = File.createTempFile( "paratracer-slices", ".run", tmpDir );
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 256 * 1024 ) );
+		try {
+			for( long key : sortedKeys() ) {
+				Slice s = slices.get( key );
+				out.writeLong( key );
+				out.writeInt( s.length );
+				out.write( s.bytes, 0, s.length );
+			}
+		} finally {
+			out.close();
+		}
+		runs.add( file );
+		slices.clear();
+		buffered = 0;
+	}
+
+	/**
+	 * Merges the run files. The runs were spilled in trace order, so the
+	 * parts of a slice are written in the order of their runs.
+	 */
+	private void merge( OutputStream out ) throws IOException {
+		PriorityQueue< Run > queue = new PriorityQueue< Run >( runs.size(), new Comparator< Run >() {
+			@Override
+			public int compare( Run a, Run b ) {
+				if ( a.key != b.key ) return ( a.key < b.key )? -1 : 1;
+				return a.index - b.index;
+			}
+		} );
+		for(int i=0; i < runs.size(); ++i) {
+			Run run = new Run( i, runs.get( i ) );
+			if ( run.next() ) {
+				queue.add( run );
+			} else {
+				run.close();
+			}
+		}
+		byte[]  buf     = new byte[ 64 * 1024 ];
+		boolean started = false;
+		long    current = 0;
+		while ( ! queue.isEmpty() ) {
+			Run run = queue.poll();
+			if ( ! started || run.key != current ) {
+				out.write( header( run.key ) );
+				current = run.key;
+				started = true;
+			}
+			run.copyTo( out, buf );
+			if ( run.next() ) {
+				queue.add( run );
+			} else {
+				run.close();
+			}
+		}
+		runs.clear();
+	}
+
+	private long[] sortedKeys() {
+		long[] sorted = new long[ slices.size() ];
+		int    i      = 0;
+		for( Long key : slices.keySet() ) {
+			sorted[i++] = key;
+		}
+		Arrays.sort( sorted );
+		return sorted;
+	}
+
+	private static byte[] header( long key ) throws IOException {
+		return ( "=== " + key + "\n" ).getBytes( "UTF-8" );
+	}
+}
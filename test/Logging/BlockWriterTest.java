@@ -0,0 +1,187 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import TraceTools.CompressedSegment;
+import TraceTools.TraceCursor;
+
+/**
+ * Records a compressed segment of small blocks, and finds and reads back
+ * its blocks through the footer index, and without it.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class BlockWriterTest {
+
+	private static final int THREADS    = 3;
+	private static final int LINES      = 3000;
+	private static final int BLOCK_SIZE = 4096;
+
+	private File   dir;
+	private File   segment;
+	private long[] ids = new long[ THREADS ];
+
+	@Before
+	public void record() throws Exception {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		EventRecorder.start( dir, "trace", 64L * 1024 * 1024, 0, SegmentWriter.FSYNC_NONE, BLOCK_SIZE, "header" );
+		Thread[] threads = new Thread[ THREADS ];
+		try {
+			for(int t=0; t < threads.length; ++t) {
+				threads[t] = new Thread( writer( t ) );
+				ids[t] = threads[t].getId();
+				threads[t].start();
+			}
+			for( Thread t : threads ) {
+				t.join();
+			}
+		} finally {
+			EventRecorder.stop();
+		}
+		segment = new File( dir, "trace-000001.ptrz" );
+		assertTrue( segment + " exists", segment.isFile() );
+	}
+
+	@After
+	public void deleteDir() {
+		for( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static Runnable writer( final int thread ) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ThreadBuffer tb = EventRecorder.buffer();
+				for(int i=0; i < LINES; ++i) {
+					tb.writeText( "thread " + thread + " writes line " + i, true );
+				}
+			}
+		};
+	}
+
+	private static String line( int thread, int i ) {
+		return "thread " + thread + " writes line " + i + "\n";
+	}
+
+	/** Reads the lines of every thread, block after block. */
+	private void assertLines( CompressedSegment seg ) throws IOException {
+		ArrayList< ArrayList< String > > lines = new ArrayList< ArrayList< String > >();
+		for(int t=0; t < THREADS; ++t) {
+			lines.add( new ArrayList< String >() );
+		}
+		for(int i=0; i < seg.blockCount(); ++i) {
+			TraceCursor cur = seg.cursor( i );
+			while ( cur.next() >= 0 ) {
+				for(int t=0; t < THREADS; ++t) {
+					if ( cur.threadId() == ids[t] && cur.kind() == TraceFormat.TEXT ) {
+						lines.get( t ).add( cur.text() );
+					}
+				}
+			}
+		}
+		for(int t=0; t < THREADS; ++t) {
+			assertEquals( LINES, lines.get( t ).size() );
+			for(int i=0; i < LINES; ++i) {
+				assertEquals( line( t, i ), lines.get( t ).get( i ) );
+			}
+		}
+	}
+
+	/** The blocks tile the uncompressed segment, and are found by their offsets. */
+	private static void assertOffsets( CompressedSegment seg ) throws IOException {
+		long offset = 0;
+		for(int i=0; i < seg.blockCount(); ++i) {
+			assertEquals( offset, seg.rawOffset( i ) );
+			assertTrue( seg.rawLength( i ) > 0 );
+			assertEquals( i, seg.blockAtOffset( offset ) );
+			offset += seg.rawLength( i );
+			assertEquals( i, seg.blockAtOffset( offset - 1 ) );
+		}
+		assertEquals( -1, seg.blockAtOffset( offset ) );
+		assertEquals( offset, seg.readAll().remaining() );
+	}
+
+	@Test
+	public void blocksAreFoundByBatchTimeAndOffset() throws Exception {
+		CompressedSegment seg = new CompressedSegment( segment );
+		try {
+			int n = seg.blockCount();
+			assertTrue( "many blocks: " + n, n > THREADS );
+			assertOffsets( seg );
+
+			// Every batch is in the block its number leads to, which spans
+			// its thread.
+			long batch = 0;
+			for(int i=0; i < n; ++i) {
+				assertEquals( batch, seg.firstBatch( i ) );
+				TraceCursor cur = seg.cursor( i );
+				int kind;
+				while ( ( kind = cur.nextRecord() ) >= 0 ) {
+					if ( kind == TraceFormat.BATCH ) {
+						assertEquals( i, seg.blockAtBatch( batch ) );
+						assertTrue( seg.minThread( i ) <= cur.threadId() );
+						assertTrue( seg.maxThread( i ) >= cur.threadId() );
+						++batch;
+					}
+				}
+			}
+			assertEquals( -1, seg.blockAtBatch( -1 ) );
+
+			assertEquals( -1, seg.blockAtTime( seg.timestamp( 0 ) - 1 ) );
+			assertEquals( n - 1, seg.blockAtTime( Long.MAX_VALUE ) );
+			for(int i=0; i < n; ++i) {
+				if ( i > 0 ) {
+					assertTrue( seg.timestamp( i - 1 ) <= seg.timestamp( i ) );
+				}
+				int at = seg.blockAtTime( seg.timestamp( i ) );
+				assertTrue( at >= i );
+				assertEquals( seg.timestamp( i ), seg.timestamp( at ) );
+			}
+			assertLines( seg );
+		} finally {
+			seg.close();
+		}
+	}
+
+	@Test
+	public void blocksAreScannedWithoutTheFooter() throws Exception {
+		CompressedSegment whole = new CompressedSegment( segment );
+		int  n = whole.blockCount();
+		long rawSize = whole.rawOffset( n - 1 ) + whole.rawLength( n - 1 );
+		whole.close();
+		// Cuts the segment as a crash would, before the end of the blocks.
+		RandomAccessFile file = new RandomAccessFile( segment, "rw" );
+		try {
+			file.seek( file.length() - 12 );
+			file.setLength( file.readLong() - 4 );
+		} finally {
+			file.close();
+		}
+		CompressedSegment seg = new CompressedSegment( segment );
+		try {
+			assertEquals( n, seg.blockCount() );
+			assertOffsets( seg );
+			assertEquals( rawSize, seg.rawOffset( n - 1 ) + seg.rawLength( n - 1 ) );
+			assertEquals( -1, seg.firstBatch( 0 ) );
+			assertLines( seg );
+		} finally {
+			seg.close();
+		}
+	}
+}
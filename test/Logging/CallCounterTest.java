@@ -0,0 +1,37 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the counts of the threads that died, in the {@link CallCounter}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class CallCounterTest {
+
+	@Test
+	public void deadThreadsAreFoldedIn() throws Exception {
+		final int id      = 78;
+		int       threads = 3 * CallCounter.SWEEP_INTERVAL;
+		for(int t=0; t < threads; ++t) {
+			Thread thread = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					CallCounter.count( id );
+					CallCounter.count( id );
+				}
+			} );
+			thread.start();
+			thread.join();
+		}
+		// Counted once each, however often they are summed.
+		assertEquals( 2 * threads, CallCounter.calls( id ) );
+		assertEquals( 2 * threads, CallCounter.calls( id ) );
+		// Only the last counts pushed may be those of a dead thread.
+		assertTrue( CallCounter.countsKept() <= 2 );
+	}
+}
@@ -0,0 +1,267 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import TraceTools.EventCursor;
+import TraceTools.TraceMerger;
+import TraceTools.TraceReader;
+
+/**
+ * Records a small trace, plain and compressed, and text from several
+ * threads at once, and reads them back.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class EventRecorderTest {
+
+	private static final String TEXT = "caf\u00E9 \uD83D\uDE00";
+
+	private static final int THREADS = 4;
+	private static final int LINES   = 5000;
+	private static final int TURNS   = 100;
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDir() {
+		for( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/** The events of one thread, read back. */
+	private static final class Event {
+		final int    kind;
+		final String method;
+		final long   receiverId;
+		final String args;
+		final int    valueTag;
+		final long   value;
+		final String text;
+
+		Event( EventCursor cur ) throws IOException {
+			kind       = cur.kind();
+			method     = ( kind == TraceFormat.TEXT )? null : cur.methodName( cur.methodId() );
+			receiverId = cur.receiverId();
+			StringBuilder sb = new StringBuilder();
+			if ( kind == TraceFormat.START ) {
+				for(int i=0; i < cur.argCount(); ++i) {
+					sb.append( (char) cur.argTag( i ) ).append( cur.argAt( i ) ).append( ' ' );
+				}
+			}
+			args     = sb.toString();
+			valueTag = ( kind == TraceFormat.END )? cur.valueTag() : 0;
+			value    = ( kind == TraceFormat.END || kind == TraceFormat.THROW )? cur.value() : 0;
+			text     = ( kind == TraceFormat.TEXT )? cur.text() : null;
+		}
+	}
+
+	private void startRecorder( int blockSize ) {
+		EventRecorder.start( dir, "trace", 1024 * 1024, 0, SegmentWriter.FSYNC_NONE, blockSize, "header" );
+	}
+
+	/**
+	 * Records the calls of a fresh thread, whose buffer has never been
+	 * closed by an earlier stop, and returns it.
+	 */
+	private static Thread record( final Object receiver, final Object arg ) throws InterruptedException {
+		final int foo = MethodRegistry.register( "test.A", "foo", "(IZLjava/lang/Object;)J", 0 );
+		final int bar = MethodRegistry.register( "test.A", "bar", "()V", 0 );
+		Thread t = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				ThreadBuffer tb = Logger.enter( foo, receiver, 3 );
+				tb.putInt( -42 );
+				tb.putBoolean( true );
+				tb.putObject( arg );
+				tb.commit();
+				tb.writeText( TEXT, true );
+				tb = Logger.exit( foo );
+				tb.putLong( 1L << 40 );
+				tb.commit();
+				Logger.enter( bar, null, 0 ).commit();
+				Logger.thrown( bar, new IllegalStateException() );
+			}
+		} );
+		t.start();
+		t.join();
+		return t;
+	}
+
+	/** The records of one thread, or those outside any batch for -1. */
+	private static ArrayList< Event > read( File segment, long threadId ) throws IOException {
+		ArrayList< Event > events = new ArrayList< Event >();
+		EventCursor cur = TraceReader.open( segment );
+		int kind;
+		while ( ( kind = cur.next() ) >= 0 ) {
+			if ( cur.threadId() == threadId && kind != TraceFormat.THREAD && kind != TraceFormat.METHOD ) {
+				events.add( new Event( cur ) );
+			}
+		}
+		return events;
+	}
+
+	private void roundTrip( int blockSize, String segmentName ) throws Exception {
+		startRecorder( blockSize );
+		Object receiver = new Object();
+		Object arg      = new Object();
+		Thread t;
+		try {
+			t = record( receiver, arg );
+		} finally {
+			EventRecorder.stop();
+		}
+		File segment = new File( dir, segmentName );
+		assertTrue( segment + " exists", segment.isFile() );
+
+		ArrayList< Event > header = read( segment, -1 );
+		assertEquals( 1, header.size() );
+		assertEquals( "header\n", header.get( 0 ).text );
+
+		ArrayList< Event > events = read( segment, t.getId() );
+		assertEquals( 5, events.size() );
+
+		Event start = events.get( 0 );
+		assertEquals( TraceFormat.START, start.kind );
+		assertEquals( "test.A.foo(int,boolean,java.lang.Object)", start.method );
+		assertEquals( ObjectIds.id( receiver ), start.receiverId );
+		assertEquals( "I-42 Z1 L" + ObjectIds.id( arg ) + " ", start.args );
+
+		Event text = events.get( 1 );
+		assertEquals( TraceFormat.TEXT, text.kind );
+		assertEquals( TEXT + "\n", text.text );
+
+		Event end = events.get( 2 );
+		assertEquals( TraceFormat.END, end.kind );
+		assertEquals( start.method, end.method );
+		assertEquals( TraceFormat.TAG_LONG, end.valueTag );
+		assertEquals( 1L << 40, end.value );
+
+		Event call = events.get( 3 );
+		assertEquals( TraceFormat.START, call.kind );
+		assertEquals( "test.A.bar()", call.method );
+		assertEquals( 0, call.receiverId );
+		assertEquals( "", call.args );
+
+		Event thrown = events.get( 4 );
+		assertEquals( TraceFormat.THROW, thrown.kind );
+		assertEquals( call.method, thrown.method );
+		assertEquals( MethodRegistry.classId( IllegalStateException.class ), thrown.value );
+	}
+
+	@Test
+	public void plainRoundTrip() throws Exception {
+		roundTrip( 0, "trace-000001.ptrc" );
+	}
+
+	@Test
+	public void compressedRoundTrip() throws Exception {
+		roundTrip( 64 * 1024, "trace-000001.ptrz" );
+	}
+
+	@Test
+	public void textFromManyThreads() throws Exception {
+		startRecorder( 0 );
+		final long[] ids = new long[ THREADS ];
+		Thread[] threads = new Thread[ THREADS ];
+		try {
+			for(int t=0; t < threads.length; ++t) {
+				final int thread = t;
+				threads[t] = new Thread( new Runnable() {
+					@Override
+					public void run() {
+						ThreadBuffer tb = EventRecorder.buffer();
+						for(int i=0; i < LINES; ++i) {
+							tb.writeText( "t" + thread + " " + i, true );
+						}
+					}
+				} );
+				ids[t] = threads[t].getId();
+				threads[t].start();
+			}
+			for( Thread t : threads ) {
+				t.join();
+			}
+		} finally {
+			EventRecorder.stop();
+		}
+		// Every line of every thread is there, in the order of its thread.
+		File segment = new File( dir, "trace-000001.ptrc" );
+		for(int t=0; t < threads.length; ++t) {
+			ArrayList< Event > events = read( segment, ids[t] );
+			assertEquals( LINES, events.size() );
+			for(int i=0; i < LINES; ++i) {
+				assertEquals( "t" + t + " " + i + "\n", events.get( i ).text );
+			}
+		}
+	}
+
+	/** Writes a line on every turn, and hands the turn over. */
+	private static Thread taker( final String name, final Semaphore mine, final Semaphore other ) {
+		return new Thread( new Runnable() {
+			@Override
+			public void run() {
+				ThreadBuffer tb = EventRecorder.buffer();
+				for(int i=0; i < TURNS; ++i) {
+					mine.acquireUninterruptibly();
+					tb.writeText( name + " " + i, true );
+					other.release();
+				}
+			}
+		} );
+	}
+
+	@Test
+	public void threadsAreMergedInRecordingOrder() throws Exception {
+		startRecorder( 0 );
+		Semaphore a = new Semaphore( 1 );
+		Semaphore b = new Semaphore( 0 );
+		Thread[]  threads = { taker( "a", a, b ), taker( "b", b, a ) };
+		try {
+			for( Thread t : threads ) {
+				t.start();
+			}
+			for( Thread t : threads ) {
+				t.join();
+			}
+		} finally {
+			EventRecorder.stop();
+		}
+		// Each thread holds its lines in one batch, but the merged lines
+		// take turns, as they were written.
+		TraceMerger merger = new TraceMerger();
+		merger.add( new File( dir, "trace-000001.ptrc" ) );
+		ArrayList< String > lines = new ArrayList< String >();
+		long last = 0;
+		while ( merger.next() >= 0 ) {
+			assertTrue( merger.time() >= last );
+			last = merger.time();
+			lines.add( merger.text() );
+		}
+		assertEquals( 1 + 2 * TURNS, lines.size() );
+		assertEquals( "header\n", lines.get( 0 ) );
+		for(int i=0; i < TURNS; ++i) {
+			assertEquals( "a " + i + "\n", lines.get( 1 + 2 * i ) );
+			assertEquals( "b " + i + "\n", lines.get( 2 + 2 * i ) );
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link ObjectIds}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class ObjectIdsTest {
+
+	@Test
+	public void nullIsZero() {
+		assertEquals( 0, ObjectIds.id( null ) );
+	}
+
+	@Test
+	public void idsAreStableAndIncreasing() {
+		Object a = new Object();
+		Object b = new Object();
+		long   idA = ObjectIds.id( a );
+		long   idB = ObjectIds.id( b );
+		assertTrue( idA > 0 );
+		assertTrue( "b is seen after a", idB > idA );
+		assertEquals( idA, ObjectIds.id( a ) );
+		assertEquals( idB, ObjectIds.id( b ) );
+	}
+
+	@Test
+	public void equalObjectsGetTheirOwnIds() {
+		String a = new String( "same" );
+		String b = new String( "same" );
+		assertNotEquals( ObjectIds.id( a ), ObjectIds.id( b ) );
+	}
+}
@@ -0,0 +1,80 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the duration buckets of the {@link Profiler} histograms, and
+ * of the histograms of the threads that died.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class ProfilerTest {
+
+	@Test
+	public void smallDurationsAreExact() {
+		for(int v=0; v < Profiler.SUB_BUCKETS; ++v) {
+			assertEquals( v, Profiler.bucket( v ) );
+			assertEquals( v, Profiler.bucketLow( v ) );
+			assertEquals( v, Profiler.bucketHigh( v ) );
+		}
+	}
+
+	@Test
+	public void bucketsTileTheDurations() {
+		// Every bucket starts right after the previous one ends.
+		int last = Profiler.bucket( Long.MAX_VALUE );
+		assertTrue( last < Profiler.BUCKETS );
+		for(int b=1; b <= last; ++b) {
+			assertEquals( "bucket " + b, Profiler.bucketHigh( b - 1 ) + 1, Profiler.bucketLow( b ) );
+			assertEquals( b, Profiler.bucket( Profiler.bucketLow( b ) ) );
+			assertEquals( b, Profiler.bucket( Profiler.bucketHigh( b ) ) );
+		}
+		assertEquals( Long.MAX_VALUE, Profiler.bucketHigh( last ) );
+	}
+
+	@Test
+	public void bucketsHoldTheirDurations() {
+		long[] durations = { 8, 9, 15, 16, 17, 100, 1000, 123456789L, 1L << 40, ( 1L << 40 ) + 12345 };
+		for( long v : durations ) {
+			int b = Profiler.bucket( v );
+			assertTrue( v + " in bucket " + b, Profiler.bucketLow( b ) <= v && v <= Profiler.bucketHigh( b ) );
+			// The relative error is below 1 / SUB_BUCKETS.
+			assertTrue( Profiler.bucketHigh( b ) - Profiler.bucketLow( b ) < v / Profiler.SUB_BUCKETS + 1 );
+		}
+	}
+
+	private static long calls( int methodId ) {
+		long[] h = Profiler.merge()[ methodId ];
+		long   n = 0;
+		for(int b=0; b < Profiler.BUCKETS; ++b) {
+			n += h[b];
+		}
+		return n;
+	}
+
+	@Test
+	public void deadThreadsAreFoldedIn() throws Exception {
+		final int id      = 77;
+		int       threads = 3 * Profiler.SWEEP_INTERVAL;
+		for(int t=0; t < threads; ++t) {
+			Thread thread = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					Profiler.record( id, 100 );
+					Profiler.record( id, 1000 );
+				}
+			} );
+			thread.start();
+			thread.join();
+		}
+		// Counted once each, however often they are merged.
+		assertEquals( 2 * threads, calls( id ) );
+		assertEquals( 2 * threads, calls( id ) );
+		// Only the last profile pushed may be that of a dead thread.
+		assertTrue( Profiler.profileCount() <= 2 );
+	}
+}
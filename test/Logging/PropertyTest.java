@@ -0,0 +1,72 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the state machine of a {@link Property}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class PropertyTest {
+
+	private static final int CLOSED = 0, OPENED = 1, ERROR = 2;
+	private static final int OPEN   = 0, USE    = 1, CLOSE = 2;
+
+	/** Using a resource that is not open is a violation. */
+	private static Property openUseClose() {
+		int[][] next = {
+			/* CLOSED */ { OPENED, ERROR,  CLOSED },
+			/* OPENED */ { OPENED, OPENED, CLOSED },
+			/* ERROR  */ { ERROR,  ERROR,  ERROR  },
+		};
+		Property p = new Property( "OpenUseClose", new String[] { "closed", "opened", "error" },
+				new String[] { "open", "use", "close" }, next, CLOSED, ERROR );
+		p.addPattern( OPEN,  "Res", "open",  Property.ON_ENTRY, 0 );
+		p.addPattern( USE,   "Res", "use",   Property.ON_ENTRY, 0 );
+		p.addPattern( CLOSE, "Res", "close", Property.ON_ENTRY, 0 );
+		return p;
+	}
+
+	@Test
+	public void everyObjectHasItsOwnState() {
+		Property p = openUseClose();
+		Object   a = new Object();
+		Object   b = new Object();
+		assertEquals( -1, p.step( a, OPEN ) );
+		assertEquals( -1, p.step( a, USE ) );
+		assertEquals( CLOSED, p.step( b, USE ) );
+		assertEquals( -1, p.step( a, CLOSE ) );
+		assertEquals( CLOSED, p.step( a, USE ) );
+	}
+
+	@Test
+	public void onlyObjectsOutOfTheStartStateAreKept() {
+		Property p = openUseClose();
+		Object   a = new Object();
+		p.step( a, OPEN );
+		assertEquals( OPENED, p.instances.get( a ) );
+		p.step( a, CLOSE );
+		assertEquals( WeakIdentityMap.NONE, p.instances.get( a ) );
+		// After a violation, the object starts over.
+		p.step( a, USE );
+		assertEquals( WeakIdentityMap.NONE, p.instances.get( a ) );
+	}
+
+	@Test
+	public void patterns() {
+		Property.Pattern any    = new Property.Pattern( 0, null,         "next", Property.ON_ENTRY, 0 );
+		Property.Pattern prefix = new Property.Pattern( 0, "java.util.*", "next", Property.ON_ENTRY, 0 );
+		Property.Pattern exact  = new Property.Pattern( 0, "It",          "next", Property.ON_ENTRY, 0 );
+		assertTrue( any.matches( "Foo", "next" ) );
+		assertFalse( any.matches( "Foo", "hasNext" ) );
+		assertTrue( prefix.matches( "java.util.HashMap$KeyIterator", "next" ) );
+		assertFalse( prefix.matches( "java.utility.X", "next" ) );
+		assertTrue( exact.matches( "It", "next" ) );
+		assertFalse( exact.matches( "It2", "next" ) );
+	}
+}
@@ -0,0 +1,223 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import TraceTools.EventCursor;
+import TraceTools.TraceReader;
+
+/**
+ * Records calls under each sampling mode, and checks that the trace holds
+ * the sampled calls whole, and only them.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class SamplerTest {
+
+	private static final long SEED = 42;
+
+	private File dir;
+	private int  f;
+	private int  g;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		f = MethodRegistry.register( "test.S", "f", "()V", 0 );
+		g = MethodRegistry.register( "test.S", "g", "()V", 0 );
+		Sampler.setSeed( SEED );
+	}
+
+	@After
+	public void deleteDir() {
+		Sampler.configure( "none", 1 );
+		for( File file : dir.listFiles() ) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private static void call( int methodId, Object receiver ) {
+		ThreadBuffer tb = Logger.enter( methodId, receiver, 0 );
+		if ( tb != null ) {
+			tb.commit();
+		}
+		tb = Logger.exit( methodId );
+		if ( tb != null ) {
+			tb.putVoid();
+			tb.commit();
+		}
+	}
+
+	/** Runs {@code body} in threads of its own while recording, and returns them. */
+	private Thread[] record( int threads, final Runnable body ) throws InterruptedException {
+		EventRecorder.start( dir, "trace", 1024 * 1024, 0, SegmentWriter.FSYNC_NONE, 0, "header" );
+		Thread[] ts = new Thread[ threads ];
+		try {
+			for(int i=0; i < ts.length; ++i) {
+				ts[i] = new Thread( body );
+				ts[i].start();
+			}
+			for( Thread t : ts ) {
+				t.join();
+			}
+		} finally {
+			EventRecorder.stop();
+		}
+		return ts;
+	}
+
+	/**
+	 * The calls of every thread, as "START f 7" or "END f 7", by thread;
+	 * the receiver is left out of static calls.
+	 */
+	private HashMap< Long, ArrayList< String > > read() throws IOException {
+		HashMap< Long, ArrayList< String > > calls = new HashMap< Long, ArrayList< String > >();
+		EventCursor cur = TraceReader.open( new File( dir, "trace-000001.ptrc" ) );
+		int kind;
+		while ( ( kind = cur.next() ) >= 0 ) {
+			if ( kind != TraceFormat.START && kind != TraceFormat.END ) continue;
+			ArrayList< String > list = calls.get( cur.threadId() );
+			if ( list == null ) {
+				list = new ArrayList< String >();
+				calls.put( cur.threadId(), list );
+			}
+			String name = ( cur.methodId() == f )? "f" : "g";
+			list.add( ( ( kind == TraceFormat.START )? "START " : "END " ) + name
+					+ ( ( cur.receiverId() != 0 )? " " + cur.receiverId() : "" ) );
+		}
+		return calls;
+	}
+
+	private static ArrayList< String > calls( HashMap< Long, ArrayList< String > > calls, Thread t ) {
+		ArrayList< String > list = calls.get( t.getId() );
+		return ( list == null )? new ArrayList< String >() : list;
+	}
+
+	@Test
+	public void methodSamplingKeepsOneCallInRate() throws Exception {
+		Sampler.configure( "method", 4 );
+		Thread[] ts = record( 1, new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0; i < 20; ++i) {
+					call( f, null );
+					if ( i % 2 == 0 ) {
+						call( g, null );
+					}
+				}
+			}
+		} );
+		// Calls 0, 4, 8, ... of f, and 0, 4, 8 of g, which are made along
+		// with calls 0, 8 and 16 of f.
+		ArrayList< String > expected = new ArrayList< String >();
+		for(int i=0; i < 20; i += 4) {
+			expected.add( "START f" );
+			expected.add( "END f" );
+			if ( i % 8 == 0 ) {
+				expected.add( "START g" );
+				expected.add( "END g" );
+			}
+		}
+		assertEquals( expected, calls( read(), ts[0] ) );
+	}
+
+	@Test
+	public void objectSamplingKeepsWholeObjects() throws Exception {
+		Sampler.configure( "object", 3 );
+		final Object[] objects = new Object[ 60 ];
+		for(int i=0; i < objects.length; ++i) {
+			objects[i] = new Object();
+		}
+		Thread[] ts = record( 1, new Runnable() {
+			@Override
+			public void run() {
+				for( Object obj : objects ) {
+					call( f, obj );
+				}
+				call( g, null );
+				for( Object obj : objects ) {
+					call( f, obj );
+				}
+			}
+		} );
+		// Every call on a sampled object, and every static call.
+		ArrayList< String > expected = new ArrayList< String >();
+		int picked = 0;
+		for(int round=0; round < 2; ++round) {
+			for( Object obj : objects ) {
+				if ( Sampler.admitsObject( obj ) ) {
+					expected.add( "START f " + ObjectIds.id( obj ) );
+					expected.add( "END f " + ObjectIds.id( obj ) );
+					++picked;
+				}
+			}
+			if ( round == 0 ) {
+				expected.add( "START g" );
+				expected.add( "END g" );
+			}
+		}
+		assertTrue( "some objects are left out: " + picked, picked > 0 && picked < 2 * objects.length );
+		assertEquals( expected, calls( read(), ts[0] ) );
+	}
+
+	@Test
+	public void threadSamplingKeepsWholeThreads() throws Exception {
+		Sampler.configure( "thread", 2 );
+		Thread[] ts = record( 8, new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0; i < 3; ++i) {
+					call( f, null );
+				}
+			}
+		} );
+		HashMap< Long, ArrayList< String > > calls = read();
+		int picked = 0;
+		for( Thread t : ts ) {
+			if ( Sampler.admitsThread( t.getId() ) ) {
+				assertEquals( 6, calls( calls, t ).size() );
+				++picked;
+			} else {
+				assertEquals( 0, calls( calls, t ).size() );
+			}
+		}
+		assertEquals( picked, calls.size() );
+	}
+
+	@Test
+	public void modesAreDescribed() {
+		Sampler.configure( "Method", 4 );
+		assertEquals( "Sampling: method 1/4 seed=" + SEED, Sampler.describe() );
+		Sampler.configure( "object", 1 );
+		assertEquals( "Sampling: none", Sampler.describe() );
+	}
+
+	@Test
+	public void badSettingsAreRejected() {
+		assertRejected( "calls", 4, "Unknown sampling mode: calls" );
+		assertRejected( "method", 0, "Sampling rate must be at least 1: 0" );
+	}
+
+	private static void assertRejected( String mode, int rate, String message ) {
+		try {
+			Sampler.configure( mode, rate );
+			fail( "configured " + mode + " 1/" + rate );
+		} catch ( IllegalArgumentException ex ) {
+			assertEquals( message, ex.getMessage() );
+		}
+	}
+}
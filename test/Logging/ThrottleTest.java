@@ -0,0 +1,136 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import TraceTools.TraceCursor;
+
+/**
+ * Drives the {@link Throttle} window by window with calls counted by a
+ * thread buffer, and reads back the levels written into a trace.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class ThrottleTest {
+
+	private static final long BUDGET = 100;
+	private static final long WINDOW = Throttle.WINDOW_NANOS;
+
+	/** The drainer clock; every test starts well after the last window. */
+	private static long now = WINDOW;
+
+	private ThreadBuffer[] buffers;
+	private int            hot;
+	private int            cold;
+
+	@Before
+	public void startWindow() throws IOException {
+		hot  = MethodRegistry.register( "test.T", "hot",  "()V", 0 );
+		cold = MethodRegistry.register( "test.T", "cold", "()V", 0 );
+		Throttle.setBudget( BUDGET );
+		Throttle.levels = new byte[0];
+		buffers = new ThreadBuffer[] { new ThreadBuffer( Thread.currentThread(), 4096, 4 ) };
+		now += 100 * WINDOW;
+		Throttle.update( buffers, now );
+	}
+
+	@After
+	public void resetLevels() {
+		Throttle.setBudget( 0 );
+		Throttle.levels = new byte[0];
+	}
+
+	/** Makes {@code n} calls of {@code methodId}, and returns how many are traced. */
+	private int calls( int methodId, int n ) {
+		int traced = 0;
+		for(int i=0; i < n; ++i) {
+			if ( buffers[0].admit( methodId, null ) ) {
+				++traced;
+			}
+		}
+		return traced;
+	}
+
+	private void nextWindow() throws IOException {
+		now += WINDOW;
+		Throttle.update( buffers, now );
+	}
+
+	@Test
+	public void hotMethodsAreThrottledAndRecover() throws Exception {
+		assertEquals( 450, calls( hot, 450 ) );
+		assertEquals( 50,  calls( cold, 50 ) );
+		nextWindow();
+		// 450 calls/s need 1 in 8 to fit in 100.
+		assertEquals( 3, Throttle.level( hot ) );
+		assertEquals( 0, Throttle.level( cold ) );
+		assertEquals( 10, calls( hot, 80 ) );
+		assertEquals( 50, calls( cold, 50 ) );
+		nextWindow();
+		// 80 calls/s fit in the budget, but take more than half of it at
+		// 1 in 1.
+		assertEquals( 1, Throttle.level( hot ) );
+		assertEquals( 40, calls( hot, 80 ) );
+		nextWindow();
+		nextWindow();
+		assertEquals( 0, Throttle.level( hot ) );
+		assertEquals( 80, calls( hot, 80 ) );
+	}
+
+	@Test
+	public void floodingMethodsAreTurnedOff() throws Exception {
+		int flood = (int)( BUDGET << Throttle.MAX_LEVEL ) + 1;
+		calls( hot, flood );
+		nextWindow();
+		assertEquals( Throttle.OFF, Throttle.level( hot ) );
+		assertEquals( 0, Throttle.keep( Throttle.OFF ) );
+		assertEquals( 1024, Throttle.keep( Throttle.MAX_LEVEL ) );
+		// The calls left out still count.
+		assertEquals( 0, calls( hot, flood ) );
+		nextWindow();
+		assertEquals( Throttle.OFF, Throttle.level( hot ) );
+		nextWindow();
+		assertEquals( 0, Throttle.level( hot ) );
+	}
+
+	@Test
+	public void levelsAreWrittenIntoThePreamble() throws Exception {
+		File dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		byte[] levels = new byte[ Math.max( hot, cold ) + 1 ];
+		levels[ hot ]  = 3;
+		levels[ cold ] = Throttle.OFF;
+		Throttle.levels = levels;
+		// The drainer changes no level without a budget.
+		Throttle.setBudget( 0 );
+		EventRecorder.start( dir, "trace", 1024 * 1024, 0, SegmentWriter.FSYNC_NONE, 0, "header" );
+		EventRecorder.stop();
+		File segment = new File( dir, "trace-000001.ptrc" );
+		HashMap< Integer, Long > keep = new HashMap< Integer, Long >();
+		TraceCursor cur = TraceCursor.open( segment );
+		int kind;
+		while ( ( kind = cur.next() ) >= 0 ) {
+			if ( kind == TraceFormat.THROTTLE ) {
+				assertEquals( -1, cur.threadId() );
+				assertTrue( keep.put( cur.methodId(), cur.value() ) == null );
+				assertEquals( "test.T." + ( ( cur.methodId() == hot )? "hot" : "cold" ) + "()",
+						cur.methodName( cur.methodId() ) );
+			}
+		}
+		assertEquals( 2, keep.size() );
+		assertEquals( Long.valueOf( 8 ), keep.get( hot ) );
+		assertEquals( Long.valueOf( 0 ), keep.get( cold ) );
+		segment.delete();
+		dir.delete();
+	}
+}
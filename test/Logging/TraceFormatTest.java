@@ -0,0 +1,123 @@
+package Logging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Round trips of the primitive encodings of {@link TraceFormat}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceFormatTest {
+
+	private static final long[] VALUES = {
+		0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 300, -1, -2, 1L << 35,
+		Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+	};
+
+	/** Reads back an unsigned varint, as the trace readers do. */
+	private static long getVarint( byte[] buf, int[] pos ) {
+		long v     = 0;
+		int  shift = 0;
+		while ( true ) {
+			byte b = buf[ pos[0]++ ];
+			v |= (long)( b & 0x7F ) << shift;
+			if ( b >= 0 ) return v;
+			shift += 7;
+		}
+	}
+
+	@Test
+	public void varintRoundTrip() {
+		byte[] buf = new byte[ VALUES.length * TraceFormat.MAX_VARINT ];
+		int    end = 0;
+		for( long v : VALUES ) {
+			int start = end;
+			end = TraceFormat.putVarint( buf, end, v );
+			assertEquals( "size of " + v, TraceFormat.varintSize( v ), end - start );
+		}
+		int[] pos = { 0 };
+		for( long v : VALUES ) {
+			assertEquals( v, getVarint( buf, pos ) );
+		}
+		assertEquals( end, pos[0] );
+	}
+
+	@Test
+	public void varintSizes() {
+		assertEquals( 1, TraceFormat.varintSize( 0 ) );
+		assertEquals( 1, TraceFormat.varintSize( 0x7F ) );
+		assertEquals( 2, TraceFormat.varintSize( 0x80 ) );
+		assertEquals( TraceFormat.MAX_VARINT, TraceFormat.varintSize( -1 ) );
+	}
+
+	@Test
+	public void zigzagRoundTrip() {
+		for( long v : VALUES ) {
+			assertEquals( v, TraceFormat.unzigzag( TraceFormat.zigzag( v ) ) );
+		}
+		// Small magnitudes, of either sign, stay small.
+		assertEquals( 0, TraceFormat.zigzag(  0 ) );
+		assertEquals( 1, TraceFormat.zigzag( -1 ) );
+		assertEquals( 2, TraceFormat.zigzag(  1 ) );
+		assertEquals( 1, TraceFormat.varintSize( TraceFormat.zigzag( -64 ) ) );
+	}
+
+	private static void assertUtf8( String str ) throws Exception {
+		byte[] expected = str.getBytes( "UTF-8" );
+		assertEquals( str, expected.length, TraceFormat.utf8Length( str, str.length() ) );
+		byte[] buf = new byte[ 3 * str.length() ];
+		int    end = TraceFormat.putUtf8( buf, 0, str, str.length() );
+		assertArrayEquals( expected, Arrays.copyOf( buf, end ) );
+		assertEquals( str, new String( buf, 0, end, "UTF-8" ) );
+	}
+
+	@Test
+	public void utf8RoundTrip() throws Exception {
+		assertUtf8( "" );
+		assertUtf8( "plain ASCII" );
+		assertUtf8( "caf\u00E9 \u00FC\u00DF" );
+		assertUtf8( "\u20AC \u4E2D\u6587 \uFFFD" );
+		assertUtf8( "G clef \uD834\uDD1E, emoji \uD83D\uDE00" );
+	}
+
+	@Test
+	public void utf8LoneSurrogates() throws Exception {
+		// Written as '?', as String.getBytes does.
+		String str = "a\uD800b\uDC00c";
+		byte[] buf = new byte[ 16 ];
+		int    end = TraceFormat.putUtf8( buf, 0, str, str.length() );
+		assertEquals( "a?b?c", new String( buf, 0, end, "UTF-8" ) );
+		assertEquals( end, TraceFormat.utf8Length( str, str.length() ) );
+	}
+
+	@Test
+	public void utf8PairCutByLength() throws Exception {
+		// The high surrogate is the last char written, so it is alone.
+		String str = "x\uD83D\uDE00";
+		byte[] buf = new byte[ 16 ];
+		int    end = TraceFormat.putUtf8( buf, 0, str, 2 );
+		assertEquals( "x?", new String( buf, 0, end, "UTF-8" ) );
+		assertEquals( end, TraceFormat.utf8Length( str, 2 ) );
+	}
+
+	@Test
+	public void longNames() {
+		assertEquals( "java.util.HashMap.put(java.lang.Object,java.lang.Object)",
+				TraceFormat.longName( "java.util.HashMap", "put",
+						"(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;" ) );
+		assertEquals( "A.f()", TraceFormat.longName( "A", "f", "()V" ) );
+		assertEquals( "A.g(int,long[],java.lang.String[][],boolean)",
+				TraceFormat.longName( "A", "g", "(I[J[[Ljava/lang/String;Z)V" ) );
+		assertEquals( "A.h(byte,char,short,float,double)",
+				TraceFormat.longName( "A", "h", "(BCSFD)I" ) );
+		// An entry without a descriptor is a class.
+		assertEquals( "java.lang.IllegalStateException",
+				TraceFormat.longName( "java.lang.IllegalStateException", "", "" ) );
+	}
+}
@@ -0,0 +1,114 @@
+package Logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link WeakIdentityMap}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class WeakIdentityMapTest {
+
+	private static final long NONE = WeakIdentityMap.NONE;
+
+	@Test
+	public void putGetReplaceRemove() {
+		WeakIdentityMap map = new WeakIdentityMap();
+		Object key = new Object();
+		assertEquals( NONE, map.get( key ) );
+		assertEquals( NONE, map.putIfAbsent( key, 1 ) );
+		assertEquals( 1, map.putIfAbsent( key, 2 ) );
+		assertEquals( 1, map.get( key ) );
+
+		assertFalse( map.replace( key, 5, 3 ) );
+		assertTrue( map.replace( key, 1, 3 ) );
+		assertEquals( 3, map.get( key ) );
+
+		// NONE as the new value removes the key...
+		assertTrue( map.replace( key, 3, NONE ) );
+		assertEquals( NONE, map.get( key ) );
+		assertEquals( 0, map.size() );
+		// ... and as the expected one, requires it to be missing.
+		assertTrue( map.replace( key, NONE, 7 ) );
+		assertFalse( map.replace( key, NONE, 8 ) );
+		assertEquals( 7, map.get( key ) );
+	}
+
+	@Test
+	public void keysAreComparedByIdentity() {
+		WeakIdentityMap map = new WeakIdentityMap();
+		String a = new String( "key" );
+		String b = new String( "key" );
+		map.putIfAbsent( a, 1 );
+		map.putIfAbsent( b, 2 );
+		assertEquals( 1, map.get( a ) );
+		assertEquals( 2, map.get( b ) );
+		assertEquals( NONE, map.get( "key" ) );
+	}
+
+	@Test
+	public void growsAndKeepsEveryEntry() {
+		WeakIdentityMap   map  = new WeakIdentityMap();
+		ArrayList< Object > keys = new ArrayList< Object >();
+		for(int i=0; i < 20000; ++i) {
+			Object key = new Object();
+			keys.add( key );
+			assertEquals( NONE, map.putIfAbsent( key, i ) );
+		}
+		assertEquals( keys.size(), map.size() );
+		for(int i=0; i < keys.size(); ++i) {
+			assertEquals( i, map.get( keys.get( i ) ) );
+		}
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		final WeakIdentityMap map  = new WeakIdentityMap();
+		final Object[]        keys = new Object[ 4000 ];
+		for(int i=0; i < keys.length; ++i) {
+			keys[i] = new Object();
+		}
+		// Every thread adds one to the value of every key.
+		Thread[] threads = new Thread[ 4 ];
+		for(int t=0; t < threads.length; ++t) {
+			threads[t] = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					for( Object key : keys ) {
+						while ( true ) {
+							long v = map.get( key );
+							if ( map.replace( key, v, ( v == NONE )? 1 : v + 1 ) ) break;
+						}
+					}
+				}
+			} );
+			threads[t].start();
+		}
+		for( Thread t : threads ) {
+			t.join();
+		}
+		for( Object key : keys ) {
+			assertEquals( threads.length, map.get( key ) );
+		}
+	}
+
+	@Test
+	public void forgetsDeadKeys() throws Exception {
+		WeakIdentityMap map = new WeakIdentityMap();
+		for(int i=0; i < 1000; ++i) {
+			map.putIfAbsent( new Object(), i );
+		}
+		for(int i=0; i < 50 && map.size() > 0; ++i) {
+			System.gc();
+			Thread.sleep( 20 );
+		}
+		assertEquals( 0, map.size() );
+	}
+}
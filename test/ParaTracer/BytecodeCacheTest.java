@@ -0,0 +1,133 @@
+package ParaTracer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Logging.MethodRegistry;
+
+/**
+ * Saves instrumented classes into a {@link BytecodeCache}, and gets them
+ * back, as the same run or a later one would.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class BytecodeCacheTest {
+
+	private static final byte[] CLASS        = { (byte) 0xCA, (byte) 0xFE, 1, 2, 3 };
+	private static final byte[] INSTRUMENTED = { (byte) 0xCA, (byte) 0xFE, 1, 2, 3, 4, 5 };
+
+	private File          dir;
+	private BytecodeCache cache;
+
+	@Before
+	public void createCache() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		cache = new BytecodeCache( dir );
+	}
+
+	@After
+	public void deleteCache() {
+		delete( dir );
+	}
+
+	private static void delete( File file ) {
+		File[] files = file.listFiles();
+		if ( files != null ) {
+			for( File f : files ) {
+				delete( f );
+			}
+		}
+		file.delete();
+	}
+
+	private static ArrayList< BytecodeCache.Method > methods( int... ids ) {
+		ArrayList< BytecodeCache.Method > methods = new ArrayList< BytecodeCache.Method >();
+		for(int i=0; i < ids.length; ++i) {
+			methods.add( new BytecodeCache.Method( ids[i], "m" + i, "(I)V", 1 ) );
+		}
+		return methods;
+	}
+
+	/** The entries of the cache, without the next ID. */
+	private ArrayList< File > entries() {
+		ArrayList< File > entries = new ArrayList< File >();
+		for( File sub : dir.listFiles() ) {
+			if ( sub.isDirectory() ) {
+				for( File f : sub.listFiles() ) {
+					entries.add( f );
+				}
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	public void entriesAreFoundByTheirClassBytes() throws Exception {
+		int m0 = MethodRegistry.register( "test.CacheA", "m0", "(I)V", 1 );
+		int m1 = MethodRegistry.register( "test.CacheA", "m1", "(I)V", 1 );
+		assertNull( cache.get( "test.CacheA", CLASS ) );
+		cache.put( "test.CacheA", CLASS, INSTRUMENTED, methods( m0, m1 ) );
+		assertEquals( 1, entries().size() );
+		assertArrayEquals( INSTRUMENTED, cache.get( "test.CacheA", CLASS ) );
+		assertArrayEquals( INSTRUMENTED, new BytecodeCache( dir ).get( "test.CacheA", CLASS ) );
+		assertNull( cache.get( "test.CacheA", new byte[] { (byte) 0xCA, (byte) 0xFE, 1, 2, 4 } ) );
+		assertNull( cache.get( "test.Other", CLASS ) );
+		// The next ID of this run is saved, for the runs to come.
+		String next = new String( MonitorSpec.readFully( new FileInputStream( new File( dir, "next-id" ) ) ), "UTF-8" );
+		assertEquals( MethodRegistry.nextId(), Integer.parseInt( next ) );
+	}
+
+	@Test
+	public void cachedIdsAreClaimedInALaterRun() throws Exception {
+		// IDs that an earlier run gave, and that this one has not given yet.
+		int id = MethodRegistry.nextId() + 100;
+		cache.put( "test.CacheB", CLASS, INSTRUMENTED, methods( id, id + 1 ) );
+		assertArrayEquals( INSTRUMENTED, cache.get( "test.CacheB", CLASS ) );
+		assertEquals( "test.CacheB", MethodRegistry.className( id ) );
+		assertEquals( "m1", MethodRegistry.name( id + 1 ) );
+		assertEquals( "(I)V", MethodRegistry.descriptor( id + 1 ) );
+		assertEquals( 1, MethodRegistry.modifiers( id ) );
+		assertEquals( id, MethodRegistry.register( "test.CacheB", "m0", "(I)V", 1 ) );
+	}
+
+	@Test
+	public void takenIdsAreNotReused() throws Exception {
+		int taken = MethodRegistry.register( "test.CacheC", "other", "()V", 0 );
+		cache.put( "test.CacheC", CLASS, INSTRUMENTED, methods( taken ) );
+		assertNull( cache.get( "test.CacheC", CLASS ) );
+	}
+
+	@Test
+	public void nextIdIsReservedByALaterRun() throws Exception {
+		int next = MethodRegistry.nextId() + 50;
+		MonitorSpec.save( Integer.toString( next ).getBytes( "UTF-8" ), new File( dir, "next-id" ) );
+		new BytecodeCache( dir );
+		assertTrue( MethodRegistry.nextId() >= next );
+		assertTrue( MethodRegistry.register( "test.CacheD", "m0", "(I)V", 1 ) >= next );
+	}
+
+	@Test
+	public void corruptEntriesAreIgnored() throws Exception {
+		int m0 = MethodRegistry.register( "test.CacheE", "m0", "(I)V", 1 );
+		cache.put( "test.CacheE", CLASS, INSTRUMENTED, methods( m0 ) );
+		File entry = entries().get( 0 );
+		MonitorSpec.save( "not a class".getBytes( "UTF-8" ), entry );
+		assertNull( cache.get( "test.CacheE", CLASS ) );
+		MonitorSpec.save( new byte[] { 0x50, 0x54, 0x42, 0x43, 0, 0, 0, 1, 0 }, entry );
+		assertNull( cache.get( "test.CacheE", CLASS ) );
+	}
+}
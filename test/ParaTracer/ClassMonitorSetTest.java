@@ -0,0 +1,93 @@
+package ParaTracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the class matcher of {@link ClassMonitorSet}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class ClassMonitorSetTest {
+
+	private List< ClassMonitorSet > saved;
+
+	@Before
+	public void clearSets() {
+		saved = ClassMonitorSet.sets();
+		ClassMonitorSet.clear();
+	}
+
+	@After
+	public void restoreSets() {
+		ClassMonitorSet.clear();
+		for( ClassMonitorSet set : saved ) {
+			ClassMonitorSet.addClassMonitorSet( set );
+		}
+	}
+
+	private static ClassMonitorSet add( String className, boolean isPrefix ) {
+		ClassMonitorSet set = new ClassMonitorSet( className, isPrefix, true, false );
+		ClassMonitorSet.addClassMonitorSet( set );
+		return set;
+	}
+
+	@Test
+	public void exactNames() {
+		ClassMonitorSet map = add( "java.util.HashMap", false );
+		assertSame( map, ClassMonitorSet.isMonitoredClass( "java.util.HashMap" ) );
+		assertNull( ClassMonitorSet.isMonitoredClass( "java.util.HashMap$Node" ) );
+		assertNull( ClassMonitorSet.isMonitoredClass( "java.util.Hash" ) );
+	}
+
+	@Test
+	public void prefixes() {
+		ClassMonitorSet net = add( "java.net.", true );
+		add( "java.net.URI", true );
+		assertSame( net, ClassMonitorSet.isMonitoredClass( "java.net.Socket" ) );
+		assertSame( net, ClassMonitorSet.isMonitoredClass( "java.net." ) );
+		assertNull( ClassMonitorSet.isMonitoredClass( "java.net" ) );
+		assertNull( ClassMonitorSet.isMonitoredClass( "java.nio.Buffer" ) );
+		// Both match; the one added first wins.
+		assertSame( net, ClassMonitorSet.isMonitoredClass( "java.net.URISyntaxException" ) );
+	}
+
+	@Test
+	public void theFirstSetAddedWins() {
+		ClassMonitorSet uri    = add( "java.net.URI", true );
+		ClassMonitorSet exact  = add( "java.net.URI", false );
+		ClassMonitorSet net    = add( "java.net.", true );
+		ClassMonitorSet socket = add( "java.net.Socket", false );
+		assertSame( uri, ClassMonitorSet.isMonitoredClass( "java.net.URI" ) );
+		assertSame( uri, ClassMonitorSet.isMonitoredClass( "java.net.URI$Parser" ) );
+		assertSame( net, ClassMonitorSet.isMonitoredClass( "java.net.Socket" ) );
+		assertSame( exact, ClassMonitorSet.removeClassMonitorSets( "java.net.URI" ).get( 1 ) );
+		assertSame( net, ClassMonitorSet.isMonitoredClass( "java.net.URI" ) );
+		ClassMonitorSet.removeClassMonitorSets( "java.net." );
+		assertSame( socket, ClassMonitorSet.isMonitoredClass( "java.net.Socket" ) );
+		assertNull( ClassMonitorSet.isMonitoredClass( "java.net.URI" ) );
+	}
+
+	@Test
+	public void manySets() {
+		for(int i=0; i < 500; ++i) {
+			add( "pkg" + i + ".", true );
+			add( "pkg" + i + ".Exact", false );
+		}
+		List< ClassMonitorSet > sets = ClassMonitorSet.sets();
+		assertEquals( 1000, sets.size() );
+		for(int i=0; i < 500; ++i) {
+			assertSame( sets.get( 2 * i ), ClassMonitorSet.isMonitoredClass( "pkg" + i + ".Exact" ) );
+			assertSame( sets.get( 2 * i ), ClassMonitorSet.isMonitoredClass( "pkg" + i + ".Other" ) );
+		}
+		assertNull( ClassMonitorSet.isMonitoredClass( "pkg500.Exact" ) );
+	}
+}
@@ -0,0 +1,168 @@
+package ParaTracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javassist.Modifier;
+
+import org.junit.Test;
+
+/**
+ * Tests of the parsing and the binary cache of {@link MonitorSpec}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class MonitorSpecTest {
+
+	private static final String SPEC =
+			"# One class, or class name prefix, per line.\n"
+			+ "class  java.io.StringReader\n"
+			+ "prefix java.net.URI            public\n"
+			+ "\n"
+			+ "class  java.util.HashMap       put get remove  # The map itself.\r\n"
+			+ "class  java.util.Hashtable     synchronized:*\n"
+			+ "class  java.util.TreeMap       public,!static:get(Ljava/lang/Object;)Ljava/lang/Object;\n"
+			+ "prefix java.util.concurrent.   all\n";
+
+	@Test
+	public void parse() throws IOException {
+		ArrayList< ClassMonitorSet > sets = MonitorSpec.parse( SPEC, "spec" );
+		assertEquals( 6, sets.size() );
+
+		ClassMonitorSet reader = sets.get( 0 );
+		assertEquals( "java.io.StringReader", reader.className );
+		assertFalse( reader.isPrefix );
+		assertTrue( "public is the default", reader.monitorPublic );
+
+		ClassMonitorSet uri = sets.get( 1 );
+		assertTrue( uri.isPrefix );
+		assertTrue( uri.monitorPublic );
+
+		ClassMonitorSet map = sets.get( 2 );
+		assertFalse( map.monitorPublic );
+		assertEquals( new HashSet< String >( Arrays.asList( "put", "get", "remove" ) ), map.monitorSet );
+
+		ClassMonitorSet.MethodFilter sync = sets.get( 3 ).filters[0];
+		assertEquals( Modifier.SYNCHRONIZED, sync.required );
+		assertEquals( 0, sync.forbidden );
+		assertNull( sync.name );
+		assertNull( sync.descriptor );
+
+		ClassMonitorSet.MethodFilter get = sets.get( 4 ).filters[0];
+		assertEquals( Modifier.PUBLIC, get.required );
+		assertEquals( Modifier.STATIC, get.forbidden );
+		assertEquals( "get", get.name );
+		assertEquals( "(Ljava/lang/Object;)Ljava/lang/Object;", get.descriptor );
+		assertTrue( get.matches( Modifier.PUBLIC, "get", "(Ljava/lang/Object;)Ljava/lang/Object;" ) );
+		assertFalse( get.matches( Modifier.PUBLIC | Modifier.STATIC, "get", "(Ljava/lang/Object;)Ljava/lang/Object;" ) );
+		assertFalse( get.matches( Modifier.PUBLIC, "get", "(I)Ljava/lang/Object;" ) );
+
+		assertTrue( sets.get( 5 ).monitorAll );
+	}
+
+	@Test
+	public void specLinesParseBack() throws IOException {
+		for( ClassMonitorSet set : MonitorSpec.parse( SPEC, "spec" ) ) {
+			ClassMonitorSet again = MonitorSpec.parse( MonitorSpec.specLine( set ), "line" ).get( 0 );
+			assertSameSet( set, again );
+		}
+	}
+
+	@Test
+	public void loadCachesTheCompiledSets() throws IOException {
+		File dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		File spec  = new File( dir, "monitors.spec" );
+		File cache = new File( dir, "cache" );
+		List< ClassMonitorSet > saved = ClassMonitorSet.sets();
+		try {
+			write( spec, SPEC.getBytes( "UTF-8" ) );
+			MonitorSpec.load( spec, cache );
+			List< ClassMonitorSet > parsed = ClassMonitorSet.sets();
+			File[] cached = cache.listFiles();
+			assertEquals( 1, cached.length );
+
+			// The same specification is now read from the cache...
+			MonitorSpec.load( spec, cache );
+			assertSameSets( parsed, ClassMonitorSet.sets() );
+
+			// ... unless the cache is unreadable, and then parsed again.
+			write( cached[0], new byte[] { 'P', 'T', 'R', 'C', 0, 0, 0, 7 } );
+			MonitorSpec.load( spec, cache );
+			assertSameSets( parsed, ClassMonitorSet.sets() );
+		} finally {
+			ClassMonitorSet.clear();
+			for( ClassMonitorSet set : saved ) {
+				ClassMonitorSet.addClassMonitorSet( set );
+			}
+			for( File f : cache.listFiles() ) {
+				f.delete();
+			}
+			cache.delete();
+			spec.delete();
+			dir.delete();
+		}
+	}
+
+	private static void write( File file, byte[] bytes ) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream( file );
+		try {
+			out.write( bytes );
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void errorsNameTheLine() {
+		assertParseError( "class java.util.HashMap\nclass\n", "spec:2: expected 'class <name>' or 'prefix <name>'" );
+		assertParseError( "method java.util.HashMap\n",       "spec:1: expected 'class <name>' or 'prefix <name>'" );
+		assertParseError( "\n\nclass A volatile:*\n",         "spec:3: unknown modifier 'volatile'" );
+	}
+
+	private static void assertParseError( String spec, String message ) {
+		try {
+			MonitorSpec.parse( spec, "spec" );
+			fail( "parsed " + spec );
+		} catch ( IOException ex ) {
+			assertEquals( message, ex.getMessage() );
+		}
+	}
+
+	private static void assertSameSets( List< ClassMonitorSet > expected, List< ClassMonitorSet > actual ) {
+		assertEquals( expected.size(), actual.size() );
+		for(int i=0; i < expected.size(); ++i) {
+			assertSameSet( expected.get( i ), actual.get( i ) );
+		}
+	}
+
+	private static void assertSameSet( ClassMonitorSet expected, ClassMonitorSet actual ) {
+		assertEquals( expected.className,     actual.className );
+		assertEquals( expected.isPrefix,      actual.isPrefix );
+		assertEquals( expected.monitorPublic, actual.monitorPublic );
+		assertEquals( expected.monitorAll,    actual.monitorAll );
+		assertEquals( expected.monitorSet,    actual.monitorSet );
+		assertEquals( expected.filters.length, actual.filters.length );
+		for(int i=0; i < expected.filters.length; ++i) {
+			ClassMonitorSet.MethodFilter e = expected.filters[i];
+			ClassMonitorSet.MethodFilter a = actual.filters[i];
+			assertEquals( e.required,   a.required );
+			assertEquals( e.forbidden,  a.forbidden );
+			assertEquals( e.name,       a.name );
+			assertEquals( e.descriptor, a.descriptor );
+		}
+	}
+}
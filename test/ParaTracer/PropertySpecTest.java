@@ -0,0 +1,77 @@
+package ParaTracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import Logging.Property;
+
+/**
+ * Tests of the parsing of {@link PropertySpec}.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class PropertySpecTest {
+
+	private static final String SPEC =
+			"# Do not call next() on an iterator without asking hasNext() first.\n"
+			+ "property HasNext\n"
+			+ "  event hasNextTrue  *.hasNext returns true\n"
+			+ "  event next         java.util.*.next\n"
+			+ "  start  unsafe\n"
+			+ "  unsafe hasNextTrue -> safe\n"
+			+ "  safe   next        -> unsafe\n"
+			+ "  unsafe next        -> error\n"
+			+ "\n"
+			+ "property ReadAfterClose\r\n"
+			+ "  event read  java.io.StringReader.read\r\n"
+			+ "  event read  java.io.StringReader.skip   # Several lines, one event.\r\n"
+			+ "  event close java.io.StringReader.close\r\n"
+			+ "  open close -> shut\r\n"
+			+ "  shut read,close -> error\r\n";
+
+	@Test
+	public void parse() throws IOException {
+		ArrayList< Property > properties = PropertySpec.parse( SPEC, "spec" );
+		assertEquals( 2, properties.size() );
+		assertEquals( "HasNext",        properties.get( 0 ).name() );
+		assertEquals( "ReadAfterClose", properties.get( 1 ).name() );
+		assertEquals( 0, properties.get( 0 ).violations() );
+	}
+
+	@Test
+	public void errorsNameTheLine() {
+		assertParseError( "event next It.next\n",
+				"spec:1: expected 'property <name>'" );
+		assertParseError( "property P\n  event e A.f\n  a e -> error\n  b e -> c -> d\n",
+				"spec:4: expected 'event', 'start' or '<state> <event> -> <state>'" );
+		assertParseError( "property P\n  event e A.f\n  a f -> error\n",
+				"spec:3: unknown event 'f'" );
+		assertParseError( "property P\n  event e A.f\n  a e -> b\n",
+				"spec:1: property P never reaches error" );
+		assertParseError( "property P\n  event e A.f\n",
+				"spec:1: property P has no transition" );
+		assertParseError( "property P\n  event e f\n  a e -> error\n",
+				"spec:2: expected '<class>.<method>'" );
+		assertParseError( "property P\n  event e A.f returns maybe\n  a e -> error\n",
+				"spec:2: expected true, false, null, nonnull or an integer" );
+		assertParseError( "property P\n  event e A.f\n  error e -> a\n",
+				"spec:3: no transition leaves error" );
+		assertParseError( "property P\n  event e A.f\n  start error\n  a e -> error\n",
+				"spec:3: expected 'start <state>'" );
+	}
+
+	private static void assertParseError( String spec, String message ) {
+		try {
+			PropertySpec.parse( spec, "spec" );
+			fail( "parsed " + spec );
+		} catch ( IOException ex ) {
+			assertEquals( message, ex.getMessage() );
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package TraceTools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import Logging.TraceFormat;
+
+/**
+ * Reads text traces back into records, and writes them out again.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TextTraceCursorTest {
+
+	private static final String PUT  = "java.util.HashMap.put(java.lang.Object,java.lang.Object)";
+	private static final String F    = "A.f(int,boolean,char,long,double,float)";
+	private static final String INIT = "A.<init>()";
+
+	private static final String[] LINES = {
+		"# A trace",
+		"17 : " + PUT + ".<START>(1531448569, 42, 7)",
+		"17 : " + PUT + ".< END >(1531448569, 42, 7)=0",
+		"17 : " + F + ".<START>(0, -3, true, ,, 1099511627776, 2.5, 0.25)",
+		"17 : " + F + ".< END >(0, -3, true, ,, 1099511627776, 2.5, 0.25)=\u00E9",
+		"17 : " + INIT + ".<START>(12)",
+		"17 : " + INIT + ".< END >(12)=VOID",
+		"18 : java.net.URI.create(java.lang.String).<THROW>(0, 907194321)=java.lang.IllegalArgumentException",
+		"18 : <LOST>(120)",
+		"* : java.util.HashMap.get(java.lang.Object).<THROTTLE>(1/16)",
+		"* : java.util.HashMap.get(java.lang.Object).<THROTTLE>(off)",
+		"18 : not an event",
+	};
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDir() {
+		for( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private File writeText( String name, String text ) throws IOException {
+		File file = new File( dir, name );
+		OutputStreamWriter out = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" );
+		try {
+			out.write( text );
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String convert( EventCursor cur ) throws IOException {
+		StringWriter text = new StringWriter();
+		PrintWriter  out  = new PrintWriter( text );
+		TraceConverter.convert( cur, out, true );
+		out.flush();
+		return text.toString().replace( System.getProperty( "line.separator" ), "\n" );
+	}
+
+	private static String join( String[] lines, String newline ) {
+		StringBuilder sb = new StringBuilder();
+		for( String line : lines ) {
+			sb.append( line ).append( newline );
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void linesAreParsedIntoRecords() throws Exception {
+		TextTraceCursor cur = new TextTraceCursor( writeText( "trace.out", join( LINES, "\r\n" ) ) );
+		try {
+			assertEquals( TraceFormat.TEXT, cur.next() );
+			assertEquals( "# A trace\n", cur.text() );
+
+			assertEquals( TraceFormat.START, cur.next() );
+			assertEquals( 17, cur.threadId() );
+			assertEquals( PUT, cur.methodName( cur.methodId() ) );
+			assertEquals( 1531448569, cur.receiverId() );
+			assertEquals( 2, cur.argCount() );
+			assertEquals( TraceFormat.TAG_OBJECT, cur.argTag( 0 ) );
+			assertEquals( 42, cur.argAt( 0 ) );
+			assertEquals( 7, cur.argAt( 1 ) );
+			int put = cur.methodId();
+
+			assertEquals( TraceFormat.END, cur.next() );
+			assertEquals( put, cur.methodId() );
+			assertEquals( TraceFormat.TAG_LONG, cur.valueTag() );
+			assertEquals( 0, cur.value() );
+
+			assertEquals( TraceFormat.START, cur.next() );
+			assertEquals( F, cur.methodName( cur.methodId() ) );
+			assertEquals( 6, cur.argCount() );
+			assertEquals( TraceFormat.TAG_INT, cur.argTag( 0 ) );
+			assertEquals( -3, cur.argAt( 0 ) );
+			assertEquals( TraceFormat.TAG_BOOLEAN, cur.argTag( 1 ) );
+			assertEquals( 1, cur.argAt( 1 ) );
+			assertEquals( TraceFormat.TAG_CHAR, cur.argTag( 2 ) );
+			assertEquals( ',', cur.argAt( 2 ) );
+			assertEquals( TraceFormat.TAG_LONG, cur.argTag( 3 ) );
+			assertEquals( 1L << 40, cur.argAt( 3 ) );
+			assertEquals( TraceFormat.TAG_DOUBLE, cur.argTag( 4 ) );
+			assertEquals( 2.5, Double.longBitsToDouble( cur.argAt( 4 ) ), 0 );
+			assertEquals( TraceFormat.TAG_FLOAT, cur.argTag( 5 ) );
+			assertEquals( 0.25f, Float.intBitsToFloat( (int) cur.argAt( 5 ) ), 0 );
+
+			assertEquals( TraceFormat.END, cur.next() );
+			assertEquals( TraceFormat.TAG_CHAR, cur.valueTag() );
+			assertEquals( '\u00E9', cur.value() );
+
+			// The name of a constructor holds ".<" too.
+			assertEquals( TraceFormat.START, cur.next() );
+			assertEquals( INIT, cur.methodName( cur.methodId() ) );
+			assertEquals( 12, cur.receiverId() );
+			assertEquals( 0, cur.argCount() );
+			assertEquals( TraceFormat.END, cur.next() );
+			assertEquals( TraceFormat.TAG_VOID, cur.valueTag() );
+
+			assertEquals( TraceFormat.THROW, cur.next() );
+			assertEquals( 18, cur.threadId() );
+			assertEquals( "java.lang.IllegalArgumentException", cur.methodName( (int) cur.value() ) );
+
+			assertEquals( TraceFormat.LOST, cur.next() );
+			assertEquals( 18, cur.threadId() );
+			assertEquals( 120, cur.value() );
+
+			assertEquals( TraceFormat.THROTTLE, cur.next() );
+			assertEquals( -1, cur.threadId() );
+			assertEquals( "java.util.HashMap.get(java.lang.Object)", cur.methodName( cur.methodId() ) );
+			assertEquals( 16, cur.value() );
+			assertEquals( TraceFormat.THROTTLE, cur.next() );
+			assertEquals( 0, cur.value() );
+
+			assertEquals( TraceFormat.TEXT, cur.next() );
+			assertEquals( "18 : not an event\n", cur.text() );
+			assertEquals( -1, cur.next() );
+		} finally {
+			cur.close();
+		}
+	}
+
+	@Test
+	public void linesAreWrittenBackAsRead() throws Exception {
+		String text = join( LINES, "\n" );
+		TextTraceCursor cur = new TextTraceCursor( writeText( "trace.out", text ) );
+		try {
+			assertEquals( text, convert( cur ) );
+		} finally {
+			cur.close();
+		}
+	}
+
+	@Test
+	public void convertedTraceReadsAsTheBinaryOne() throws Exception {
+		Traces trace = new Traces()
+				.header( "header" )
+				.method( 1, "M", "get", "(Ljava/lang/Object;)Ljava/lang/Object;" )
+				.method( 2, "M", "clear", "()V" )
+				.batch( 5 )
+				.start( 10, 1, 3, 4 )
+				.text ( 11, "caf\u00E9" )
+				.end  ( 12, 1, 3, 6, 4 )
+				.start( 13, 2, 3 )
+				.end  ( 14, 2, 3, -1 );
+		String text = convert( trace.cursor() );
+		EventCursor binary = trace.cursor();
+		EventCursor parsed = TraceReader.open( writeText( "trace.out", text ) );
+		assertTrue( parsed instanceof TextTraceCursor );
+		int kind;
+		while ( ( kind = binary.next() ) >= 0 ) {
+			if ( kind == TraceFormat.METHOD ) continue;
+			assertEquals( kind, parsed.next() );
+			if ( kind == TraceFormat.TEXT ) {
+				assertEquals( binary.text(), parsed.text() );
+				continue;
+			}
+			assertEquals( binary.threadId(), parsed.threadId() );
+			assertEquals( binary.methodName( binary.methodId() ), parsed.methodName( parsed.methodId() ) );
+			assertEquals( binary.receiverId(), parsed.receiverId() );
+			assertEquals( binary.argCount(), parsed.argCount() );
+			for(int i=0; i < binary.argCount(); ++i) {
+				assertEquals( binary.argTag( i ), parsed.argTag( i ) );
+				assertEquals( binary.argAt( i ), parsed.argAt( i ) );
+			}
+			if ( kind == TraceFormat.END ) {
+				assertEquals( binary.value(), parsed.value() );
+			}
+		}
+		assertEquals( -1, parsed.next() );
+		((TextTraceCursor) parsed).close();
+	}
+}
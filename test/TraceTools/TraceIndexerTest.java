@@ -0,0 +1,131 @@
+package TraceTools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Indexes two small segments, saves and reads back their indexes, and
+ * queries them by method, thread and object.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceIndexerTest {
+
+	private static final int GET = 1, PUT = 2;
+
+	private File dir;
+	private File first;
+	private File second;
+
+	@Before
+	public void writeTrace() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		first = new Traces()
+				.method( GET, "M", "get", "(Ljava/lang/Object;)Ljava/lang/Object;" )
+				.method( PUT, "M", "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;" )
+				.batch( 1 )
+				.start( 30, PUT, 10, 20, 21 )
+				.end  ( 40, PUT, 10, 0, 20, 21 )
+				.batch( 2 )
+				.start( 10, GET, 11, 20 )
+				.end  ( 20, GET, 11, 0, 20 )
+				.write( new File( dir, "trace-000001.ptrc" ) );
+		// Thread 2 recorded this batch before the one of thread 1 above.
+		second = new Traces()
+				.method( GET, "M", "get", "(Ljava/lang/Object;)Ljava/lang/Object;" )
+				.method( PUT, "M", "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;" )
+				.batch( 2 )
+				.start( 25, GET, 10, 20 )
+				.end  ( 26, GET, 10, 21, 20 )
+				.write( new File( dir, "trace-000002.ptrc" ) );
+	}
+
+	@After
+	public void deleteDir() {
+		for( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String query( String method, long thread, long object ) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream( bytes, true, "UTF-8" );
+		TraceIndexer.query( Arrays.asList( TraceIndexer.index( first, false ), TraceIndexer.index( second, false ) ),
+				method, thread, object, out );
+		return bytes.toString( "UTF-8" ).replace( System.getProperty( "line.separator" ), "\n" );
+	}
+
+	@Test
+	public void postings() throws Exception {
+		TraceIndexer.Index index = TraceIndexer.build( first );
+		assertEquals( 2, index.batchCount() );
+		assertEquals( 1, index.batchThread( 0 ) );
+		assertEquals( 2, index.batchThread( 1 ) );
+		assertEquals( 4, index.eventCount() );
+		assertEquals( 2, index.methodCount() );
+		assertEquals( 2, index.threadCount() );
+		// The receivers 10 and 11, the arguments 20 and 21.
+		assertEquals( 4, index.objectCount() );
+		assertEquals( 4, index.object( 20 ).count() );
+		assertEquals( 2, index.object( 20 ).size() );
+		assertEquals( 1, index.object( 10 ).size() );
+		assertEquals( 0, index.object( 10 ).batch( 0 ) );
+		assertTrue( Arrays.equals( new int[] { GET }, index.methodIds( "M.get" ) ) );
+		assertTrue( Arrays.equals( new int[] { PUT }, index.methodIds( "M.put(java.lang.Object,java.lang.Object)" ) ) );
+	}
+
+	@Test
+	public void indexIsSavedAndReused() throws Exception {
+		TraceIndexer.Index built = TraceIndexer.index( first, false );
+		assertFalse( built.reused() );
+		assertTrue( TraceIndexer.indexFile( first ).isFile() );
+		TraceIndexer.Index read = TraceIndexer.index( first, false );
+		assertTrue( read.reused() );
+		assertEquals( built.batchCount(), read.batchCount() );
+		for(int i=0; i < built.batchCount(); ++i) {
+			assertEquals( built.batchOffset( i ), read.batchOffset( i ) );
+			assertEquals( built.batchEnd( i ),    read.batchEnd( i ) );
+			assertEquals( built.batchThread( i ), read.batchThread( i ) );
+		}
+		assertEquals( built.eventCount(),  read.eventCount() );
+		assertEquals( built.objectCount(), read.objectCount() );
+		assertEquals( "M.get(java.lang.Object)", read.methodName( GET ) );
+		assertFalse( TraceIndexer.index( first, true ).reused() );
+	}
+
+	@Test
+	public void queriesFollowRecordingOrder() throws Exception {
+		assertEquals(
+				  "2 : M.get(java.lang.Object).<START>(11, 20)\n"
+				+ "2 : M.get(java.lang.Object).< END >(11, 20)=0\n"
+				+ "2 : M.get(java.lang.Object).<START>(10, 20)\n"
+				+ "2 : M.get(java.lang.Object).< END >(10, 20)=21\n",
+				query( "M.get", -1, 0 ) );
+		// Object 21 is an argument of put, and returned by the second get.
+		assertEquals(
+				  "2 : M.get(java.lang.Object).< END >(10, 20)=21\n"
+				+ "1 : M.put(java.lang.Object,java.lang.Object).<START>(10, 20, 21)\n"
+				+ "1 : M.put(java.lang.Object,java.lang.Object).< END >(10, 20, 21)=0\n",
+				query( null, -1, 21 ) );
+		assertEquals(
+				  "2 : M.get(java.lang.Object).<START>(10, 20)\n"
+				+ "2 : M.get(java.lang.Object).< END >(10, 20)=21\n",
+				query( "M.get", 2, 10 ) );
+		assertEquals( "", query( "M.remove", -1, 0 ) );
+	}
+}
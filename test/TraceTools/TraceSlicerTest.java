@@ -0,0 +1,116 @@
+package TraceTools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Slices a small trace, whose batches are not in recording order, by
+ * receiver and by binding, in memory and through run files.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+public class TraceSlicerTest {
+
+	private static final int ITERATOR = 1, NEXT = 2, SIZE = 3, OF = 4;
+
+	private static final String SLICE_10 =
+			  "2 : M.size().<START>(10)\n"
+			+ "1 : M.iterator().<START>(10)\n"
+			+ "1 : M.iterator().< END >(10)=11\n"
+			+ "2 : M.size().< END >(10)=VOID\n";
+	private static final String SLICE_11 =
+			  "1 : I.next().<START>(11)\n"
+			+ "1 : I.next().< END >(11)=12\n";
+	private static final String SLICE_12 =
+			  "2 : M.size().<START>(12)\n"
+			+ "2 : M.size().< END >(12)=VOID\n";
+	private static final String SLICE_20 =
+			  "2 : M.size().<START>(20)\n"
+			+ "2 : M.size().< END >(20)=VOID\n";
+
+	private File dir;
+	private File segment;
+
+	@Before
+	public void writeTrace() throws IOException {
+		dir = File.createTempFile( "paratracer", "" );
+		dir.delete();
+		dir.mkdirs();
+		// Thread 1 was drained first, but thread 2 recorded first.
+		segment = new Traces()
+				.header( "header" )
+				.method( ITERATOR, "M", "iterator", "()Ljava/util/Iterator;" )
+				.method( NEXT,     "I", "next",     "()Ljava/lang/Object;" )
+				.method( SIZE,     "M", "size",     "()I" )
+				.method( OF,       "S", "of",       "()LM;" )
+				.batch( 1 )
+				.start( 20, ITERATOR, 10 )
+				.end  ( 30, ITERATOR, 10, 11 )
+				.start( 50, NEXT, 11 )
+				.end  ( 60, NEXT, 11, 12 )
+				.batch( 2 )
+				.start( 10, SIZE, 10 )
+				.end  ( 40, SIZE, 10, -1 )
+				.start( 45, OF, 0 )
+				.end  ( 46, OF, 0, 30 )
+				.start( 70, SIZE, 20 )
+				.start( 75, SIZE, 12 )
+				.end  ( 76, SIZE, 12, -1 )
+				.end  ( 80, SIZE, 20, -1 )
+				.write( new File( dir, "trace-000001.ptrc" ) );
+	}
+
+	@After
+	public void deleteDir() {
+		for( File f : dir.listFiles() ) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private String slice( boolean bindings, long memory ) throws IOException {
+		TraceSlicer slicer = new TraceSlicer( bindings, memory, dir );
+		if ( bindings ) {
+			TraceMerger merger = new TraceMerger();
+			merger.add( segment );
+			slicer.bind( merger );
+		}
+		TraceMerger merger = new TraceMerger();
+		merger.add( segment );
+		slicer.add( merger );
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		slicer.finish( out );
+		return out.toString( "UTF-8" );
+	}
+
+	@Test
+	public void byReceiver() throws Exception {
+		assertEquals( "=== 10\n" + SLICE_10 + "=== 11\n" + SLICE_11 + "=== 12\n" + SLICE_12
+				+ "=== 20\n" + SLICE_20, slice( false, 1L << 20 ) );
+	}
+
+	@Test
+	public void byBinding() throws Exception {
+		// The iterator 11 is bound to the map 10, and the element 12 to
+		// the iterator; every event is written once. The static call
+		// binds nothing.
+		assertEquals( "=== 10\n" + SLICE_10 + SLICE_11 + SLICE_12 + "=== 20\n" + SLICE_20,
+				slice( true, 1L << 20 ) );
+	}
+
+	@Test
+	public void spilledRunsGiveTheSameSlices() throws Exception {
+		// Every event spills the slices into a run file.
+		assertEquals( slice( false, 1L << 20 ), slice( false, 1 ) );
+		assertEquals( slice( true,  1L << 20 ), slice( true,  1 ) );
+		assertEquals( 1, dir.listFiles().length );
+	}
+}
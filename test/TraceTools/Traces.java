@@ -0,0 +1,148 @@
+package TraceTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import Logging.TraceFormat;
+
+/**
+ * Writes small binary traces, record by record, for the tests of the
+ * trace tools. The times of the events are given in full, and written
+ * relative to the previous record of their batch, as the recorder does.
+ *
+ * @author Ahmed Nassar
+ *
+ */
+final class Traces {
+
+	private final ByteArrayOutputStream out   = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	private final byte[]                buf   = new byte[ TraceFormat.MAX_VARINT ];
+	private long                        batchThread = -1;
+	private long                        lastTime;
+
+	Traces() {
+		out.write( TraceFormat.MAGIC, 0, TraceFormat.MAGIC.length );
+		out.write( TraceFormat.VERSION );
+	}
+
+	/** A header line, outside of batches. */
+	Traces header( String line ) {
+		endBatch();
+		out.write( TraceFormat.TEXT );
+		string( out, line + "\n" );
+		return this;
+	}
+
+	/** Defines method {@code id}, whose long name is then {@code className.name(...)}. */
+	Traces method( int id, String className, String name, String descriptor ) {
+		endBatch();
+		out.write( TraceFormat.METHOD );
+		varint( out, id );
+		string( out, className );
+		string( out, name );
+		string( out, descriptor );
+		varint( out, 0 );
+		return this;
+	}
+
+	/** Starts a batch of thread {@code tid}; it ends with the next batch or record outside. */
+	Traces batch( long tid ) {
+		endBatch();
+		batchThread = tid;
+		lastTime    = 0;
+		return this;
+	}
+
+	/** A START record, with object arguments. */
+	Traces start( long time, int methodId, long receiver, long... objects ) {
+		event( TraceFormat.START, time, methodId, receiver, objects );
+		return this;
+	}
+
+	/** An END record that returns object {@code value}, or nothing if it is negative. */
+	Traces end( long time, int methodId, long receiver, long value, long... objects ) {
+		event( TraceFormat.END, time, methodId, receiver, objects );
+		if ( value < 0 ) {
+			batch.write( TraceFormat.TAG_VOID );
+		} else {
+			batch.write( TraceFormat.TAG_OBJECT );
+			varint( batch, value );
+		}
+		return this;
+	}
+
+	/** A TEXT record of the batch. */
+	Traces text( long time, String line ) {
+		batch.write( TraceFormat.TEXT );
+		time( time );
+		string( batch, line + "\n" );
+		return this;
+	}
+
+	private void event( int kind, long time, int methodId, long receiver, long[] objects ) {
+		batch.write( kind );
+		time( time );
+		varint( batch, methodId );
+		varint( batch, receiver );
+		varint( batch, objects.length );
+		for( long id : objects ) {
+			batch.write( TraceFormat.TAG_OBJECT );
+			varint( batch, id );
+		}
+	}
+
+	private void time( long time ) {
+		varint( batch, time - lastTime );
+		lastTime = time;
+	}
+
+	private void endBatch() {
+		if ( batchThread < 0 ) return;
+		out.write( TraceFormat.BATCH );
+		varint( out, batchThread );
+		varint( out, batch.size() );
+		out.write( batch.toByteArray(), 0, batch.size() );
+		batch.reset();
+		batchThread = -1;
+	}
+
+	private void varint( ByteArrayOutputStream to, long v ) {
+		to.write( buf, 0, TraceFormat.putVarint( buf, 0, v ) );
+	}
+
+	private void string( ByteArrayOutputStream to, String str ) {
+		try {
+			byte[] bytes = str.getBytes( "UTF-8" );
+			varint( to, bytes.length );
+			to.write( bytes, 0, bytes.length );
+		} catch ( UnsupportedEncodingException ex ) {
+			throw new AssertionError( ex );
+		}
+	}
+
+	byte[] bytes() {
+		endBatch();
+		return out.toByteArray();
+	}
+
+	/** A cursor over the trace written so far. */
+	TraceCursor cursor() throws IOException {
+		return new TraceCursor( ByteBuffer.wrap( bytes() ) );
+	}
+
+	/** Writes the trace into {@code file}, and returns it. */
+	File write( File file ) throws IOException {
+		FileOutputStream fos = new FileOutputStream( file );
+		try {
+			fos.write( bytes() );
+		} finally {
+			fos.close();
+		}
+		return file;
+	}
+}